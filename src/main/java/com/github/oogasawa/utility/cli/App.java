@@ -1,16 +1,52 @@
 package com.github.oogasawa.utility.cli;
 
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.TreeSet;
+import java.util.ArrayList;
+import java.util.List;
 
 import com.github.oogasawa.utility.jar.JarCommands;
 import com.github.oogasawa.utility.stats.StatsCommands;
+import com.github.oogasawa.utility.filter.AhoCorasick;
+import com.github.oogasawa.utility.filter.ApproximateDifference;
+import com.github.oogasawa.utility.filter.BgzfOutputStream;
+import com.github.oogasawa.utility.filter.ByteLine;
+import com.github.oogasawa.utility.filter.ByteRegex;
+import com.github.oogasawa.utility.filter.ColumnProfiler;
+import com.github.oogasawa.utility.filter.CompressedInput;
+import com.github.oogasawa.utility.filter.Deduplicator;
+import com.github.oogasawa.utility.filter.ExternalSetOperation;
+import com.github.oogasawa.utility.filter.GroupBy;
+import com.github.oogasawa.utility.filter.HashJoin;
+import com.github.oogasawa.utility.filter.HashSetOperation;
+import com.github.oogasawa.utility.filter.IndexedSetOperation;
+import com.github.oogasawa.utility.filter.KeyedSetOperation;
+import com.github.oogasawa.utility.filter.LinePipeline;
+import com.github.oogasawa.utility.filter.LineSorter;
+import com.github.oogasawa.utility.filter.MemorySize;
+import com.github.oogasawa.utility.filter.Partitioner;
 import com.github.oogasawa.utility.filter.SetOperation;
+import com.github.oogasawa.utility.filter.SetOperator;
+import com.github.oogasawa.utility.filter.SortedFileSource;
+import com.github.oogasawa.utility.filter.SortedSetAlgebra;
+import com.github.oogasawa.utility.filter.SortedSetIndex;
 import com.github.oogasawa.utility.filter.StdinOperation;
 import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.UnrecognizedOptionException;
 
 /**
  * The {@code App} class demonstrates the usage of the Utility-cli command-line parser.
@@ -25,6 +61,9 @@ public class App {
      * The command-line usage synopsis.
      */
     String synopsis = "java -jar Utility-cli-VERSION-fat.jar <command> <options>";
+
+    /** The word separating the stages of the "pipe" command. */
+    private static final String STAGE_SEPARATOR = "!";
     
     /**
      * The repository that holds command definitions and executes them.
@@ -73,9 +112,20 @@ public class App {
      */
     public void setupCommands() {
         differenceCommand();
+        unionCommand();
+        intersectCommand();
+        symdiffCommand();
+        setIndexCommand();
+        joinCommand();
         filterCommand();
         getColumnsCommand();
         splitCommand();
+        pipeCommand();
+        groupByCommand();
+        profileCommand();
+        sortCommand();
+        dedupCommand();
+        partitionCommand();
 
         // Register additional commands from another class.
         JarCommands jarCommands = new JarCommands();
@@ -106,8 +156,41 @@ public class App {
                 .longOpt("file2")
                 .hasArg(true)
                 .argName("file2")
-                .desc("Second file for set difference calculation (f1 - f2).")
-                .required(true)
+                .desc("Second file for set difference calculation (f1 - f2). "
+                        + "May be omitted when --bloom names an existing filter.")
+                .required(false)
+                .build());
+
+        addSetEngineOptions(opts);
+        addKeyOptions(opts);
+
+        opts.addOption(Option.builder("approximate")
+                .option("a")
+                .longOpt("approximate")
+                .hasArg(false)
+                .desc("Test the lines of file1 against a Bloom filter of file2; lines of file1 are "
+                        + "dropped by mistake with the given false-positive rate. "
+                        + "The result is printed in the order of file1.")
+                .required(false)
+                .build());
+
+        opts.addOption(Option.builder("bloom")
+                .option("b")
+                .longOpt("bloom")
+                .hasArg(true)
+                .argName("FILE")
+                .desc("Bloom filter file of file2 (implies --approximate). "
+                        + "It is loaded if it is up to date, and built and saved otherwise.")
+                .required(false)
+                .build());
+
+        opts.addOption(Option.builder("fpp")
+                .longOpt("fpp")
+                .hasArg(true)
+                .argName("RATE")
+                .desc("False-positive rate of the Bloom filter; a saved filter built with another "
+                        + "rate is rebuilt (default: 0.01 for a new filter, any for a saved one).")
+                .required(false)
                 .build());
 
         this.cmds.addCommand("difference", opts,
@@ -115,19 +198,472 @@ public class App {
                 (CommandLine cl) -> {
                     String file1 = cl.getOptionValue("file1");
                     String file2 = cl.getOptionValue("file2");
-                    SetOperation s = new SetOperation();
-                    TreeSet<String> set1 = s.read(Path.of(file1));
-                    TreeSet<String> set2 = s.read(Path.of(file2));
-                    TreeSet<String> result = s.difference(set1, set2);
-                    s.print(result);
+                    if (cl.hasOption("approximate") || cl.hasOption("bloom")) {
+                        runApproximateDifference(file1, file2, cl);
+                    } else if (file2 == null) {
+                        System.err.println("Error: Missing required option: f2");
+                    } else {
+                        runSetOperation(SetOperator.DIFFERENCE, List.of(Path.of(file1), Path.of(file2)), cl);
+                    }
                 });
     }
 
+    /**
+     * Evaluates {@code file1 - file2} against a Bloom filter of {@code file2}.
+     *
+     * @param file1 The first file.
+     * @param file2 The second file, or {@code null} if a saved filter is used.
+     * @param cl The parsed command line.
+     */
+    private void runApproximateDifference(String file1, String file2, CommandLine cl) {
+        if (List.of("sorted", "unordered", "external", "key1", "key2").stream().anyMatch(cl::hasOption)) {
+            System.err.println("Error: --approximate cannot be combined with another engine or key columns.");
+            return;
+        }
+
+        try {
+            ApproximateDifference d = cl.hasOption("fpp")
+                    ? new ApproximateDifference(Double.parseDouble(cl.getOptionValue("fpp")))
+                    : new ApproximateDifference();
+            d.prepare(file2 == null ? null : Path.of(file2),
+                    cl.hasOption("bloom") ? Path.of(cl.getOptionValue("bloom")) : null);
+            d.difference(Path.of(file1));
+            d.printReport();
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Defines the "union" command, which calculates the union of two or more sets.
+     */
+    public void unionCommand() {
+        setAlgebraCommand("union", SetOperator.UNION,
+                "Computes the union of two or more sets of data.");
+    }
+
+    /**
+     * Defines the "intersect" command, which calculates the intersection of two or more sets.
+     */
+    public void intersectCommand() {
+        setAlgebraCommand("intersect", SetOperator.INTERSECTION,
+                "Computes the intersection of two or more sets of data.");
+    }
+
+    /**
+     * Defines the "symdiff" command, which calculates the symmetric difference of two or more sets.
+     */
+    public void symdiffCommand() {
+        setAlgebraCommand("symdiff", SetOperator.SYMMETRIC_DIFFERENCE,
+                "Computes the symmetric difference of two or more sets of data.\n\n"
+                + "With more than two files, the lines contained in an odd number of files are printed.");
+    }
+
+    /**
+     * Registers an n-ary set operation whose input files are given as arguments.
+     *
+     * @param command The command name.
+     * @param op The operator evaluated by the command.
+     * @param description The command description.
+     */
+    private void setAlgebraCommand(String command, SetOperator op, String description) {
+        Options opts = new Options();
+        addSetEngineOptions(opts);
+        if (KeyedSetOperation.supports(op)) {
+            addKeyOptions(opts);
+        }
+
+        this.cmds.addCommand(command, opts,
+                description + "\n\nUsage: " + command + " [options] FILE1 FILE2 [FILE...]",
+                (CommandLine cl) -> {
+                    List<Path> files = cl.getArgList().stream().map(Path::of).toList();
+                    if (files.size() < 2) {
+                        System.err.println("Error: " + command + " requires at least two files.");
+                        return;
+                    }
+                    runSetOperation(op, files, cl);
+                });
+    }
+
+    /**
+     * Adds the options that select the engine of the set operation commands.
+     *
+     * @param opts The options of the command.
+     */
+    private void addSetEngineOptions(Options opts) {
+        opts.addOption(Option.builder("sorted")
+                .option("s")
+                .longOpt("sorted")
+                .hasArg(false)
+                .desc("The inputs are already sorted (LC_ALL=C sort); merge them in a single pass "
+                        + "in constant memory and fail on unsorted input.")
+                .required(false)
+                .build());
+
+        opts.addOption(Option.builder("unordered")
+                .option("u")
+                .longOpt("unordered")
+                .hasArg(false)
+                .desc("Use the off-heap hash engine; the result is printed in order of first "
+                        + "occurrence instead of sorted order.")
+                .required(false)
+                .build());
+
+        opts.addOption(Option.builder("external")
+                .option("x")
+                .longOpt("external")
+                .hasArg(false)
+                .desc("Sort the inputs on disk instead of loading them into memory.")
+                .required(false)
+                .build());
+
+        opts.addOption(Option.builder("memory")
+                .option("m")
+                .longOpt("memory")
+                .hasArg(true)
+                .argName("SIZE")
+                .desc("Memory budget of the external mode, e.g. 512m or 2g (default: 256m).")
+                .required(false)
+                .build());
+
+        opts.addOption(Option.builder("tmpdir")
+                .option("T")
+                .longOpt("tmpdir")
+                .hasArg(true)
+                .argName("DIR")
+                .desc("Directory for the sorted runs of the external mode (default: java.io.tmpdir).")
+                .required(false)
+                .build());
+    }
+
+    /**
+     * Adds the key column options of the difference and intersect commands.
+     *
+     * @param opts The options of the command.
+     */
+    private void addKeyOptions(Options opts) {
+        opts.addOption(Option.builder("key1")
+                .longOpt("key1")
+                .hasArg(true)
+                .argName("COLUMNS")
+                .desc("Key columns of the first file, e.g. 2 or 0,3-4 (0-based, tab-separated). "
+                        + "Whole rows of the first file are printed in their original order "
+                        + "if their key is (intersect) or is not (difference) among the keys "
+                        + "of the other files. Defaults to --key2.")
+                .required(false)
+                .build());
+
+        opts.addOption(Option.builder("key2")
+                .longOpt("key2")
+                .hasArg(true)
+                .argName("COLUMNS")
+                .desc("Key columns of the other files. Defaults to --key1.")
+                .required(false)
+                .build());
+    }
+
+    /**
+     * Evaluates a set operation with the engine selected on the command line and prints the result.
+     *
+     * @param op The operator to apply.
+     * @param files The input files.
+     * @param cl The parsed command line.
+     */
+    private void runSetOperation(SetOperator op, List<Path> files, CommandLine cl) {
+        long engines = List.of("sorted", "unordered", "external").stream().filter(cl::hasOption).count();
+        if (engines > 1) {
+            System.err.println("Error: --sorted, --unordered and --external cannot be used together.");
+            return;
+        }
+
+        if (cl.hasOption("key1") || cl.hasOption("key2")) {
+            if (engines > 0) {
+                System.err.println("Error: --key1 and --key2 cannot be combined with another engine.");
+                return;
+            }
+            runKeyedOperation(op, files, cl);
+            return;
+        }
+
+        try {
+            if (cl.hasOption("sorted")) {
+                List<SortedFileSource> sources = new ArrayList<>();
+                try {
+                    for (Path file : files) {
+                        sources.add(new SortedFileSource(file));
+                    }
+                    // The lines are ISO-8859-1 strings of the input bytes.
+                    Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.ISO_8859_1));
+                    SortedSetAlgebra.apply(op, sources, out);
+                    out.flush();
+                } finally {
+                    for (SortedFileSource source : sources) {
+                        source.close();
+                    }
+                }
+            } else if (cl.hasOption("unordered")) {
+                HashSetOperation s = new HashSetOperation();
+                s.apply(op, files);
+                s.printReport();
+            } else if (cl.hasOption("external")) {
+                long memory = MemorySize.parse(cl.getOptionValue("memory", "256m"));
+                Path tmpDir = Path.of(cl.getOptionValue("tmpdir", System.getProperty("java.io.tmpdir")));
+                ExternalSetOperation s = new ExternalSetOperation(memory, tmpDir);
+                s.apply(op, files);
+                s.printReport();
+            } else if (!runIndexedOperation(op, files)) {
+                SetOperation s = new SetOperation();
+                List<ByteLine[]> sets = s.readSorted(files);
+                s.printBytes(SortedSetAlgebra.apply(op, sets));
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Evaluates a difference or intersection on key columns and prints the matching rows.
+     *
+     * @param op The operator to apply.
+     * @param files The input files.
+     * @param cl The parsed command line.
+     */
+    private void runKeyedOperation(SetOperator op, List<Path> files, CommandLine cl) {
+        try {
+            String key1 = cl.getOptionValue("key1", cl.getOptionValue("key2"));
+            String key2 = cl.getOptionValue("key2", key1);
+            KeyedSetOperation s = new KeyedSetOperation(
+                    StdinOperation.parseColumns(key1), StdinOperation.parseColumns(key2));
+            s.apply(op, files);
+            s.printReport();
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Evaluates a difference or intersection with the indexes of the second and later files,
+     * if every one of them has an index that is up to date.
+     *
+     * @param op The operator to apply.
+     * @param files The input files.
+     * @return {@code true} if the result was printed, {@code false} if indexes cannot be used.
+     * @throws IOException If a file or an index cannot be read.
+     */
+    private boolean runIndexedOperation(SetOperator op, List<Path> files) throws IOException {
+        if (!IndexedSetOperation.supports(op)) {
+            return false;
+        }
+        try (IndexedSetOperation s = IndexedSetOperation.openFresh(files.subList(1, files.size()))) {
+            if (s == null) {
+                return false;
+            }
+            s.apply(op, files.get(0));
+            return true;
+        }
+    }
+
+    /**
+     * Defines the "set:index" command, which builds a persistent index of a set file.
+     */
+    public void setIndexCommand() {
+        Options opts = new Options();
+
+        opts.addOption(Option.builder("file")
+                .option("f")
+                .longOpt("file")
+                .hasArg(true)
+                .argName("file")
+                .desc("The set file to index.")
+                .required(true)
+                .build());
+
+        opts.addOption(Option.builder("output")
+                .option("o")
+                .longOpt("output")
+                .hasArg(true)
+                .argName("FILE")
+                .desc("The index file (default: FILE.sidx next to the set file, "
+                        + "where difference and intersect look for it).")
+                .required(false)
+                .build());
+
+        opts.addOption(Option.builder("sorted")
+                .option("s")
+                .longOpt("sorted")
+                .hasArg(false)
+                .desc("The file is already sorted (LC_ALL=C sort); index it in a single pass "
+                        + "in constant memory and fail on unsorted input.")
+                .required(false)
+                .build());
+
+        this.cmds.addCommand("set:index", opts,
+                "Builds a sorted, prefix-compressed index of a set file.\n\n"
+                + "difference and intersect look up the lines of the first file in the index "
+                + "of the other files instead of reading them, as long as the index is up to date "
+                + "(same path, size and modification time).",
+                (CommandLine cl) -> {
+                    Path file = Path.of(cl.getOptionValue("file"));
+                    Path index = cl.hasOption("output")
+                            ? Path.of(cl.getOptionValue("output"))
+                            : SortedSetIndex.indexPathOf(file);
+                    try {
+                        long start = System.nanoTime();
+                        long entries = SortedSetIndex.build(file, index, cl.hasOption("sorted"));
+                        System.err.println(String.format("%s: %d lines, %s, %.3f s", index, entries,
+                                MemorySize.format(Files.size(index)), (System.nanoTime() - start) / 1e9));
+                    } catch (IOException | IllegalArgumentException e) {
+                        System.err.println("Error: " + e.getMessage());
+                    }
+                });
+    }
+
+    /**
+     * Defines the "join" command, which joins two tab-delimited inputs on key columns.
+     */
+    public void joinCommand() {
+        Options opts = new Options();
+
+        opts.addOption(Option.builder("key1")
+                .longOpt("key1")
+                .hasArg(true)
+                .argName("COLUMNS")
+                .desc("Key columns of the left input, e.g. 0 or 0,2-3 (0-based). Defaults to --key2.")
+                .required(false)
+                .build());
+
+        opts.addOption(Option.builder("key2")
+                .longOpt("key2")
+                .hasArg(true)
+                .argName("COLUMNS")
+                .desc("Key columns of the right input. Defaults to --key1.")
+                .required(false)
+                .build());
+
+        opts.addOption(Option.builder("type")
+                .option("t")
+                .longOpt("type")
+                .hasArg(true)
+                .argName("TYPE")
+                .desc("inner (matching pairs, default), left (matching pairs and unmatched left rows) "
+                        + "or anti (unmatched left rows).")
+                .required(false)
+                .build());
+
+        opts.addOption(Option.builder("memory")
+                .option("m")
+                .longOpt("memory")
+                .hasArg(true)
+                .argName("SIZE")
+                .desc("Memory budget of the hash table; larger inputs are partitioned to disk "
+                        + "(default: 256m).")
+                .required(false)
+                .build());
+
+        opts.addOption(Option.builder("tmpdir")
+                .option("T")
+                .longOpt("tmpdir")
+                .hasArg(true)
+                .argName("DIR")
+                .desc("Directory for partition files (default: java.io.tmpdir).")
+                .required(false)
+                .build());
+
+        this.cmds.addCommand("join", opts,
+                "Joins two tab-delimited inputs on key columns with a hash table.\n\n"
+                + "Usage: join [options] [LEFT] RIGHT\n\n"
+                + "The left input is read from standard input if it is omitted or given as -. "
+                + "Matching rows are printed as the left row and the right row separated by a tab. "
+                + "The hash table is built on the smaller file, and statistics are printed to "
+                + "standard error.",
+                (CommandLine cl) -> {
+                    List<String> args = cl.getArgList();
+                    if (args.isEmpty() || args.size() > 2) {
+                        System.err.println("Error: join requires a right input and an optional left input.");
+                        return;
+                    }
+                    if (!cl.hasOption("key1") && !cl.hasOption("key2")) {
+                        System.err.println("Error: Missing required option: key1 or key2");
+                        return;
+                    }
+                    Path left = args.size() == 2 && !args.get(0).equals("-") ? Path.of(args.get(0)) : null;
+                    Path right = Path.of(args.get(args.size() - 1));
+                    try {
+                        String key1 = cl.getOptionValue("key1", cl.getOptionValue("key2"));
+                        String key2 = cl.getOptionValue("key2", key1);
+                        HashJoin join = new HashJoin(HashJoin.Type.of(cl.getOptionValue("type", "inner")),
+                                StdinOperation.parseColumns(key1), StdinOperation.parseColumns(key2),
+                                MemorySize.parse(cl.getOptionValue("memory", "256m")),
+                                Path.of(cl.getOptionValue("tmpdir", System.getProperty("java.io.tmpdir"))));
+                        join.join(left, right);
+                        join.printReport();
+                    } catch (IOException | IllegalArgumentException e) {
+                        System.err.println("Error: " + e.getMessage());
+                    }
+                });
+    }
 
     /**
      * Defines the "filter" command, which filters lines based on given conditions.
      */
     public void filterCommand() {
+        Options opts = filterOptions();
+
+        opts.addOption(Option.builder("threads")
+                .option("t")
+                .longOpt("threads")
+                .hasArg(true)
+                .argName("N")
+                .desc("Number of threads testing lines (default: number of processors).")
+                .required(false)
+                .build());
+
+        opts.addOption(Option.builder("unordered")
+                .option("u")
+                .longOpt("unordered")
+                .hasArg(false)
+                .desc("Write matching lines as soon as their batch is done instead of in input order.")
+                .required(false)
+                .build());
+
+        addCompressOption(opts);
+
+        this.cmds.addCommand("filter", opts,
+                "Filters lines based on specified conditions.\n\n"
+                + "Usage: filter [options] [FILE...]\n\n"
+                + "Standard input is read if no file is given. Regular files are memory-mapped and "
+                + "filtered in chunks on all threads, with the output in file order.",
+                (CommandLine cl) -> {
+                    try {
+                        int column = cl.hasOption("column") ? Integer.parseInt(cl.getOptionValue("column")) : -1;
+                        int threads = threads(cl);
+                        boolean ordered = !cl.hasOption("unordered");
+                        if (cl.hasOption("regex") == cl.hasOption("patterns-file")) {
+                            System.err.println("Error: Exactly one of --regex and --patterns-file is required.");
+                        } else if (cl.hasOption("patterns-file")) {
+                            AhoCorasick patterns = AhoCorasick.load(Path.of(cl.getOptionValue("patterns-file")));
+                            runOnInput(cl, (in, out) -> StdinOperation.filterLines(patterns, column, threads,
+                                    ordered, in, out),
+                                    (files, out) -> StdinOperation.filterLines(patterns, column, threads, files, out));
+                        } else {
+                            String regex = cl.getOptionValue("regex");
+                            ByteRegex.Engine engine = ByteRegex.Engine.of(cl.getOptionValue("engine", "java"));
+                            runOnInput(cl, (in, out) -> StdinOperation.regexFilterLines(regex, column, threads,
+                                    ordered, engine, in, out),
+                                    (files, out) -> StdinOperation.regexFilterLines(regex, column, threads, engine,
+                                            files, out));
+                        }
+                    } catch (IOException | IllegalArgumentException e) {
+                        System.err.println("Error: " + e.getMessage());
+                    }
+                });
+    }
+
+    /**
+     * Returns the options of the "filter" command that describe the filter itself, also used by
+     * its stages in "pipe"; the options of the process are added by the command.
+     */
+    private static Options filterOptions() {
         Options opts = new Options();
 
         opts.addOption(Option.builder("column")
@@ -145,21 +681,60 @@ public class App {
                 .hasArg(true)
                 .argName("regex")
                 .desc("Regular expression pattern for filtering.")
-                .required(true)
+                .required(false)
                 .build());
 
-        this.cmds.addCommand("filter", opts,
-                "Filters lines based on specified conditions.",
-                (CommandLine cl) -> {
-                    String columnsStr = cl.getOptionValue("column");
-                    StdinOperation.getColumns(columnsStr);
-                });
+        opts.addOption(Option.builder("patternsFile")
+                .option("p")
+                .longOpt("patterns-file")
+                .hasArg(true)
+                .argName("FILE")
+                .desc("File of literal strings, one per line; keeps the lines containing any of them.")
+                .required(false)
+                .build());
+
+        opts.addOption(Option.builder("engine")
+                .option("e")
+                .longOpt("engine")
+                .hasArg(true)
+                .argName("java|dfa")
+                .desc("Regex engine: java (default, full syntax) or dfa (linear time, no back-references or look-around).")
+                .required(false)
+                .build());
+
+        return opts;
     }
 
     /**
      * Defines the "getColumns" command, which extracts specific columns from tab-delimited input.
      */
     public void getColumnsCommand() {
+        Options opts = getColumnsOptions();
+        addThreadsOption(opts);
+        addCompressOption(opts);
+
+        this.cmds.addCommand("getColumns", opts,
+                "Extracts specific columns from tab-delimited lines.\n\n"
+                + "Usage: getColumns -c COLUMNS [FILE...]\n\n"
+                + "Standard input is read if no file is given. Regular files are memory-mapped and "
+                + "processed in chunks on all threads, with the output in file order.",
+                (CommandLine cl) -> {
+                    String columnsStr = cl.getOptionValue("columns");
+                    try {
+                        int threads = threads(cl);
+                        runOnInput(cl, (in, out) -> StdinOperation.getColumns(columnsStr, in, out),
+                                (files, out) -> StdinOperation.getColumns(columnsStr, threads, files, out));
+                    } catch (IllegalArgumentException e) {
+                        System.err.println("Error: " + e.getMessage());
+                    }
+                });
+    }
+
+    /**
+     * Returns the options of the "getColumns" command that describe the extraction itself, also
+     * used by its stages in "pipe".
+     */
+    private static Options getColumnsOptions() {
         Options opts = new Options();
 
         opts.addOption(Option.builder("c")
@@ -170,12 +745,7 @@ public class App {
                 .required(true)
                 .build());
 
-        this.cmds.addCommand("getColumns", opts,
-                "Extracts specific columns from tab-delimited lines.",
-                (CommandLine cl) -> {
-                    String columnsStr = cl.getOptionValue("columns");
-                    StdinOperation.getColumns(columnsStr);
-                });
+        return opts;
     }
 
     
@@ -183,20 +753,18 @@ public class App {
      * Defines the "split" command, which splits each line into fields based on a delimiter.
      */
     public void splitCommand() {
-        Options opts = new Options();
-
-        opts.addOption(Option.builder("delimiter")
-                .option("d")
-                .longOpt("delimiter")
-                .hasArg(true)
-                .argName("delimiter")
-                .desc("Field delimiter (default: tab character).")
-                .required(false)
-                .build());
+        Options opts = splitOptions();
+        addThreadsOption(opts);
+        addCompressOption(opts);
 
         String description = """
             Splits each line into separate fields.
 
+            Usage: split [options] [FILE...]
+
+            Standard input is read if no file is given. Regular files are memory-mapped and
+            split in chunks on all threads, with the output in file order.
+
             For example, given the following data file
             
             $ cat taxonomy.dump 
@@ -225,13 +793,723 @@ public class App {
             2	Bacteriobiota		synonym
             2	eubacteria		genbank common name
 
+            A delimiter without regular expression operators, such as "\\|" or "\\t\\|\\t", is
+            searched for as bytes; any other is compiled once.
+
+            With --csv, the input is read as CSV (RFC 4180): quoted fields may contain the
+            separator, doubled quotes and line breaks, and each record becomes one line.
+
+            $ java -jar target/Utility-cli-4.2.0.jar split --csv < table.csv > table.tsv
+
             """;
         
         this.cmds.addCommand("split", opts,
                              description,
                 (CommandLine cl) -> {
-                    String delimiter = cl.getOptionValue("delimiter", "\\t");
-                    StdinOperation.splitLines(delimiter);
+                    try {
+                        int threads = threads(cl);
+                        if (cl.hasOption("csv")) {
+                            // A record may span lines, so CSV files are read as streams.
+                            String delimiter = cl.getOptionValue("delimiter", ",");
+                            runOnInput(cl, (in, out) -> StdinOperation.splitCsv(delimiter, in, out),
+                                    (files, out) -> {
+                                        for (Path file : files) {
+                                            try (InputStream in = CompressedInput.open(file, threads)) {
+                                                StdinOperation.splitCsv(delimiter, in, out);
+                                            }
+                                        }
+                                    });
+                        } else {
+                            String delimiter = cl.getOptionValue("delimiter", "\\t");
+                            runOnInput(cl, (in, out) -> StdinOperation.splitLines(delimiter, in, out),
+                                    (files, out) -> StdinOperation.splitLines(delimiter, threads, files, out));
+                        }
+                    } catch (IllegalArgumentException e) {
+                        System.err.println("Error: " + e.getMessage());
+                    }
+                });
+    }
+
+    /**
+     * Returns the options of the "split" command that describe the splitting itself, also used by
+     * its stages in "pipe".
+     */
+    private static Options splitOptions() {
+        Options opts = new Options();
+
+        opts.addOption(Option.builder("delimiter")
+                .option("d")
+                .longOpt("delimiter")
+                .hasArg(true)
+                .argName("delimiter")
+                .desc("Field delimiter, a regular expression (default: tab character; with --csv, "
+                        + "a single character, default: comma).")
+                .required(false)
+                .build());
+
+        opts.addOption(Option.builder("csv")
+                .longOpt("csv")
+                .hasArg(false)
+                .desc("Read CSV with quoted fields, which may span lines; tabs, line breaks and "
+                        + "backslashes in fields are written as \\t, \\n, \\r and \\\\.")
+                .required(false)
+                .build());
+
+        return opts;
+    }
+
+    /**
+     * Defines the "pipe" command, which runs several line commands in one process.
+     */
+    public void pipeCommand() {
+        Options opts = new Options();
+        addCompressOption(opts);
+
+        String description = """
+            Runs split, filter and getColumns stages one after another in a single pass.
+
+            The stages are separated by "!" and written with the options of the commands,
+            either as one quoted argument or as separate arguments after "--":
+
+            $ cat taxonomy.dump | java -jar Utility-cli-VERSION.jar pipe "split -d '\\|' ! filter -c 1 -r '^Bac' ! getColumns -c 0,1"
+
+            The output is the same as that of the commands connected by pipes, without starting
+            a JVM per command or encoding the lines between them; only the fields used by later
+            stages are split out. Compressed input is detected as for the single commands.
+            The input is read from standard input; stages do not take files.
+            """;
+
+        this.cmds.addCommand("pipe", opts, description,
+                (CommandLine cl) -> {
+                    try {
+                        List<String> args = cl.getArgList();
+                        LinePipeline pipeline = parsePipeline(
+                                args.size() == 1 ? tokenizeStages(args.get(0)) : splitStages(args));
+                        runOnStdio(cl, pipeline::run);
+                    } catch (IOException | IllegalArgumentException | ParseException e) {
+                        System.err.println("Error: " + e.getMessage());
+                    }
                 });
     }
+
+    /**
+     * Defines the "groupBy" command, which aggregates tab-delimited input by key columns.
+     */
+    public void groupByCommand() {
+        Options opts = new Options();
+
+        opts.addOption(Option.builder("key")
+                .option("k")
+                .longOpt("key")
+                .hasArg(true)
+                .argName("COLUMNS")
+                .desc("Key columns, e.g. 0 or 0,2-3 (0-based).")
+                .required(true)
+                .build());
+
+        opts.addOption(Option.builder("aggregate")
+                .option("a")
+                .longOpt("aggregate")
+                .hasArg(true)
+                .argName("LIST")
+                .desc("Aggregates of each group, e.g. count,sum:3,mean:3,distinct:1; the functions are "
+                        + "count, sum, min, max, mean and distinct (default: count).")
+                .required(false)
+                .build());
+
+        opts.addOption(Option.builder("threads")
+                .option("t")
+                .longOpt("threads")
+                .hasArg(true)
+                .argName("N")
+                .desc("Number of partitions aggregated in parallel (default: number of processors).")
+                .required(false)
+                .build());
+
+        opts.addOption(Option.builder("memory")
+                .option("m")
+                .longOpt("memory")
+                .hasArg(true)
+                .argName("SIZE")
+                .desc("Memory budget of the groups; rows of further groups are spilled to disk "
+                        + "(default: 256m).")
+                .required(false)
+                .build());
+
+        opts.addOption(Option.builder("tmpdir")
+                .option("T")
+                .longOpt("tmpdir")
+                .hasArg(true)
+                .argName("DIR")
+                .desc("Directory for spill files (default: java.io.tmpdir).")
+                .required(false)
+                .build());
+
+        addCompressOption(opts);
+
+        this.cmds.addCommand("groupBy", opts,
+                "Aggregates tab-delimited lines by key columns.\n\n"
+                + "Usage: groupBy -k COLUMNS [options] [FILE...]\n\n"
+                + "Standard input is read if no file is given; files are read one after another as one input.\n\n"
+                + "Each group is printed as its key columns followed by its aggregates, in the order "
+                + "of the first line of the group. Statistics are printed to standard error.\n\n"
+                + "$ cat orders.tsv | java -jar Utility-cli-VERSION.jar groupBy -k 1 -a count,sum:2",
+                (CommandLine cl) -> {
+                    try {
+                        int threads = threads(cl);
+                        GroupBy groupBy = new GroupBy(StdinOperation.parseColumns(cl.getOptionValue("key")),
+                                GroupBy.Aggregate.parse(cl.getOptionValue("aggregate", "count")), threads,
+                                MemorySize.parse(cl.getOptionValue("memory", "256m")),
+                                Path.of(cl.getOptionValue("tmpdir", System.getProperty("java.io.tmpdir"))));
+                        runOnConcatenatedInput(cl, groupBy::run);
+                        groupBy.printReport();
+                    } catch (IllegalArgumentException e) {
+                        System.err.println("Error: " + e.getMessage());
+                    }
+                });
+    }
+
+    /**
+     * Defines the "profile" command, which summarizes every column of tab-delimited input.
+     */
+    public void profileCommand() {
+        Options opts = new Options();
+
+        opts.addOption(Option.builder("columns")
+                .option("c")
+                .longOpt("columns")
+                .hasArg(true)
+                .argName("N")
+                .desc("Number of leading columns profiled (default: 256).")
+                .required(false)
+                .build());
+
+        opts.addOption(Option.builder("top")
+                .option("n")
+                .longOpt("top")
+                .hasArg(true)
+                .argName("N")
+                .desc("Number of most frequent values printed per column, at most 64 (default: 5).")
+                .required(false)
+                .build());
+
+        opts.addOption(Option.builder("threads")
+                .option("t")
+                .longOpt("threads")
+                .hasArg(true)
+                .argName("N")
+                .desc("Number of threads profiling lines (default: number of processors).")
+                .required(false)
+                .build());
+
+        addCompressOption(opts);
+
+        this.cmds.addCommand("profile", opts,
+                "Summarizes every column of tab-delimited lines in one pass.\n\n"
+                + "Usage: profile [options] [FILE...]\n\n"
+                + "Standard input is read if no file is given; files are read one after another as one input.\n\n"
+                + "One line is printed per column: present, empty and missing counts, the estimated "
+                + "number of distinct values, the range of lengths, the count, extremes and estimated "
+                + "quantiles of its numbers, and its most frequent values. Memory does not grow with "
+                + "the number of lines.",
+                (CommandLine cl) -> {
+                    try {
+                        int threads = threads(cl);
+                        ColumnProfiler profiler = new ColumnProfiler(threads,
+                                Integer.parseInt(cl.getOptionValue("columns", "256")),
+                                Integer.parseInt(cl.getOptionValue("top", "5")));
+                        runOnConcatenatedInput(cl, profiler::run);
+                    } catch (IllegalArgumentException e) {
+                        System.err.println("Error: " + e.getMessage());
+                    }
+                });
+    }
+
+    /**
+     * Defines the "sort" command, which sorts lines by the whole line or by key columns.
+     */
+    public void sortCommand() {
+        Options opts = new Options();
+
+        opts.addOption(Option.builder("key")
+                .option("k")
+                .longOpt("key")
+                .hasArg(true)
+                .argName("KEYS")
+                .desc("Key columns in order of precedence, each optionally followed by n (numeric) "
+                        + "and r (reverse), e.g. 2,0n or 1-3r (0-based; default: the whole line).")
+                .required(false)
+                .build());
+
+        opts.addOption(Option.builder("numeric")
+                .option("n")
+                .longOpt("numeric")
+                .hasArg(false)
+                .desc("Compare keys without flags as numbers.")
+                .required(false)
+                .build());
+
+        opts.addOption(Option.builder("reverse")
+                .option("r")
+                .longOpt("reverse")
+                .hasArg(false)
+                .desc("Reverse the order of keys without flags.")
+                .required(false)
+                .build());
+
+        opts.addOption(Option.builder("unique")
+                .option("u")
+                .longOpt("unique")
+                .hasArg(false)
+                .desc("Print only the first line of each key.")
+                .required(false)
+                .build());
+
+        opts.addOption(Option.builder("threads")
+                .option("t")
+                .longOpt("threads")
+                .hasArg(true)
+                .argName("N")
+                .desc("Number of threads sorting chunks (default: number of processors).")
+                .required(false)
+                .build());
+
+        opts.addOption(Option.builder("memory")
+                .option("m")
+                .longOpt("memory")
+                .hasArg(true)
+                .argName("SIZE")
+                .desc("Memory budget of the lines; more lines are sorted into runs on disk "
+                        + "(default: 256m).")
+                .required(false)
+                .build());
+
+        opts.addOption(Option.builder("tmpdir")
+                .option("T")
+                .longOpt("tmpdir")
+                .hasArg(true)
+                .argName("DIR")
+                .desc("Directory for sorted runs (default: java.io.tmpdir).")
+                .required(false)
+                .build());
+
+        addCompressOption(opts);
+
+        this.cmds.addCommand("sort", opts,
+                "Sorts lines by the whole line or by key columns.\n\n"
+                + "Usage: sort [options] [FILE...]\n\n"
+                + "Standard input is read if no file is given; files are read one after another as one input.\n\n"
+                + "Lines and text keys are compared byte by byte, as with LC_ALL=C sort; numeric keys "
+                + "sort after values that are not numbers. Lines with equal keys keep their input "
+                + "order. Statistics are printed to standard error.\n\n"
+                + "$ cat orders.tsv | java -jar Utility-cli-VERSION.jar sort -k 1,2nr -m 2g",
+                (CommandLine cl) -> {
+                    try {
+                        int threads = threads(cl);
+                        boolean numeric = cl.hasOption("numeric");
+                        boolean reverse = cl.hasOption("reverse");
+                        List<LineSorter.Key> keys = cl.hasOption("key")
+                                ? LineSorter.Key.parse(cl.getOptionValue("key"), numeric, reverse)
+                                : List.of(new LineSorter.Key(-1, numeric, reverse));
+                        LineSorter sorter = new LineSorter(keys, cl.hasOption("unique"), threads,
+                                MemorySize.parse(cl.getOptionValue("memory", "256m")),
+                                Path.of(cl.getOptionValue("tmpdir", System.getProperty("java.io.tmpdir"))));
+                        runOnConcatenatedInput(cl, sorter::run);
+                        sorter.printReport();
+                    } catch (IllegalArgumentException e) {
+                        System.err.println("Error: " + e.getMessage());
+                    }
+                });
+    }
+
+    /**
+     * Defines the "dedup" command, which prints the first occurrence of every line or key.
+     */
+    public void dedupCommand() {
+        Options opts = new Options();
+
+        opts.addOption(Option.builder("key")
+                .option("k")
+                .longOpt("key")
+                .hasArg(true)
+                .argName("COLUMNS")
+                .desc("Key columns, e.g. 0 or 0,2-3 (0-based; default: the whole line).")
+                .required(false)
+                .build());
+
+        opts.addOption(Option.builder("memory")
+                .option("m")
+                .longOpt("memory")
+                .hasArg(true)
+                .argName("SIZE")
+                .desc("Memory budget of the fingerprint table; lines of further keys are spilled to "
+                        + "disk (default: 256m).")
+                .required(false)
+                .build());
+
+        opts.addOption(Option.builder("tmpdir")
+                .option("T")
+                .longOpt("tmpdir")
+                .hasArg(true)
+                .argName("DIR")
+                .desc("Directory for spill files (default: java.io.tmpdir).")
+                .required(false)
+                .build());
+
+        addCompressOption(opts);
+
+        this.cmds.addCommand("dedup", opts,
+                "Prints the first occurrence of every line or key, in input order.\n\n"
+                + "Usage: dedup [options] [FILE...]\n\n"
+                + "Standard input is read if no file is given; files are read one after another as one input.\n\n"
+                + "Unlike uniq, the input need not be sorted. Keys are remembered as 128-bit "
+                + "fingerprints of 23 to 46 bytes each. Statistics are printed to standard error.\n\n"
+                + "$ cat events.tsv | java -jar Utility-cli-VERSION.jar dedup -k 0,2",
+                (CommandLine cl) -> {
+                    try {
+                        Deduplicator dedup = new Deduplicator(
+                                cl.hasOption("key") ? StdinOperation.parseColumns(cl.getOptionValue("key")) : List.of(),
+                                MemorySize.parse(cl.getOptionValue("memory", "256m")),
+                                Path.of(cl.getOptionValue("tmpdir", System.getProperty("java.io.tmpdir"))));
+                        runOnConcatenatedInput(cl, dedup::run);
+                        dedup.printReport();
+                    } catch (IllegalArgumentException e) {
+                        System.err.println("Error: " + e.getMessage());
+                    }
+                });
+    }
+
+    /**
+     * Defines the "partition" command, which distributes tab-delimited lines over files by a hash
+     * of key columns.
+     */
+    public void partitionCommand() {
+        Options opts = new Options();
+
+        opts.addOption(Option.builder("key")
+                .option("k")
+                .longOpt("key")
+                .hasArg(true)
+                .argName("COLUMNS")
+                .desc("Key columns, e.g. 0 or 0,2-3 (0-based; default: the whole line).")
+                .required(false)
+                .build());
+
+        opts.addOption(Option.builder("partitions")
+                .option("n")
+                .longOpt("partitions")
+                .hasArg(true)
+                .argName("N")
+                .desc("Number of output files.")
+                .required(true)
+                .build());
+
+        opts.addOption(Option.builder("output")
+                .option("o")
+                .longOpt("output")
+                .hasArg(true)
+                .argName("PREFIX")
+                .desc("Output path prefix; files are named PREFIX-00000 to PREFIX-(N-1) (default: part).")
+                .required(false)
+                .build());
+
+        opts.addOption(Option.builder("memory")
+                .option("m")
+                .longOpt("memory")
+                .hasArg(true)
+                .argName("SIZE")
+                .desc("Memory shared by the write buffers of the files, each getting 64k to 8m "
+                        + "(default: 256m, at least 1m). It is not exceeded: if the buffers do not fit, "
+                        + "the largest are written to their files and released.")
+                .required(false)
+                .build());
+
+        opts.addOption(Option.builder("maxOpen")
+                .longOpt("max-open")
+                .hasArg(true)
+                .argName("N")
+                .desc("Number of files kept open at the same time (default: 256).")
+                .required(false)
+                .build());
+
+        opts.addOption(Option.builder("compress")
+                .option("z")
+                .longOpt("compress")
+                .hasArg(false)
+                .desc("Write the files as BGZF (blocked gzip) with the suffix .gz, compressed on all processors.")
+                .required(false)
+                .build());
+
+        this.cmds.addCommand("partition", opts,
+                "Distributes the lines of [FILE...] or standard input over N files by a hash of "
+                + "their key columns.\n\n"
+                + "All lines with the same key go to the same file, in input order. "
+                + "Statistics are printed to standard error.\n\n"
+                + "$ java -jar Utility-cli-VERSION.jar partition -k 0 -n 64 -o shards/part -z events.tsv",
+                (CommandLine cl) -> {
+                    int threads = Runtime.getRuntime().availableProcessors();
+                    try {
+                        Partitioner partitioner = new Partitioner(
+                                cl.hasOption("key") ? StdinOperation.parseColumns(cl.getOptionValue("key")) : List.of(),
+                                Integer.parseInt(cl.getOptionValue("partitions")),
+                                Path.of(cl.getOptionValue("output", "part")),
+                                cl.hasOption("compress"),
+                                MemorySize.parse(cl.getOptionValue("memory", "256m")),
+                                Integer.parseInt(cl.getOptionValue("maxOpen", "256")),
+                                threads);
+                        if (cl.getArgList().isEmpty()) {
+                            try (InputStream in = CompressedInput.open(new FileInputStream(FileDescriptor.in), threads)) {
+                                partitioner.run(in);
+                            }
+                        } else {
+                            partitioner.run(cl.getArgList().stream().map(Path::of).toList());
+                        }
+                        partitioner.printReport();
+                    } catch (IOException | IllegalArgumentException e) {
+                        System.err.println("Error: " + e.getMessage());
+                    }
+                });
+    }
+
+    /**
+     * Builds a pipeline from its stages, each a command name followed by its options.
+     */
+    private static LinePipeline parsePipeline(List<List<String>> stages) throws IOException, ParseException {
+        LinePipeline pipeline = new LinePipeline();
+        for (List<String> stage : stages) {
+            if (stage.isEmpty()) {
+                throw new IllegalArgumentException("Empty stage in pipe expression");
+            }
+            String name = stage.get(0);
+            String[] stageArgs = stage.subList(1, stage.size()).toArray(new String[0]);
+            switch (name) {
+                case "split" -> {
+                    CommandLine cl = parseStage(name, splitOptions(), stageArgs);
+                    if (cl.hasOption("csv")) {
+                        pipeline.csv(cl.getOptionValue("delimiter", ","));
+                    } else {
+                        pipeline.split(cl.getOptionValue("delimiter", "\\t"));
+                    }
+                }
+                case "getColumns" -> {
+                    CommandLine cl = parseStage(name, getColumnsOptions(), stageArgs);
+                    pipeline.columns(cl.getOptionValue("columns"));
+                }
+                case "filter" -> {
+                    CommandLine cl = parseStage(name, filterOptions(), stageArgs);
+                    int column = cl.hasOption("column") ? Integer.parseInt(cl.getOptionValue("column")) : -1;
+                    if (cl.hasOption("regex") == cl.hasOption("patterns-file")) {
+                        throw new IllegalArgumentException("Exactly one of --regex and --patterns-file is required.");
+                    } else if (cl.hasOption("patterns-file")) {
+                        pipeline.filter(AhoCorasick.load(Path.of(cl.getOptionValue("patterns-file"))), column);
+                    } else {
+                        pipeline.regexFilter(cl.getOptionValue("regex"), column,
+                                ByteRegex.Engine.of(cl.getOptionValue("engine", "java")));
+                    }
+                }
+                default -> throw new IllegalArgumentException(
+                        "Unknown pipe stage: " + name + " (use split, filter or getColumns)");
+            }
+        }
+        return pipeline;
+    }
+
+    /**
+     * Parses the options of a stage, which reads the output of the previous stage and so takes
+     * no file operands. Options of the process, such as --threads or --compress, are not stage
+     * options and are rejected rather than ignored.
+     */
+    private static CommandLine parseStage(String name, Options opts, String[] args) throws ParseException {
+        CommandLine cl;
+        try {
+            cl = new DefaultParser().parse(opts, args);
+        } catch (UnrecognizedOptionException e) {
+            throw new IllegalArgumentException("Unsupported option in pipe stage " + name + ": " + e.getOption()
+                    + " (stages take no process options such as --threads, --unordered or --compress)");
+        }
+        if (!cl.getArgList().isEmpty()) {
+            throw new IllegalArgumentException("Unexpected argument in pipe stage " + name + ": "
+                    + String.join(" ", cl.getArgList()) + " (pipe reads standard input only)");
+        }
+        return cl;
+    }
+
+    /**
+     * Cuts arguments that the shell has already split into stages at every "!".
+     */
+    private static List<List<String>> splitStages(List<String> args) {
+        List<List<String>> stages = new ArrayList<>();
+        stages.add(new ArrayList<>());
+        for (String arg : args) {
+            if (arg.equals(STAGE_SEPARATOR)) {
+                stages.add(new ArrayList<>());
+            } else {
+                stages.get(stages.size() - 1).add(arg);
+            }
+        }
+        return stages;
+    }
+
+    /**
+     * Splits a stage expression into words as a POSIX shell would, where single quotes keep
+     * everything and double quotes and backslashes escape, and into stages at every unquoted
+     * "!".
+     */
+    private static List<List<String>> tokenizeStages(String expression) {
+        List<List<String>> stages = new ArrayList<>();
+        List<String> words = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        boolean inWord = false;
+        boolean quoted = false;
+        for (int i = 0; i <= expression.length(); i++) {
+            char c = i < expression.length() ? expression.charAt(i) : ' ';
+            if (Character.isWhitespace(c)) {
+                if (inWord && !quoted && word.toString().equals(STAGE_SEPARATOR)) {
+                    stages.add(words);
+                    words = new ArrayList<>();
+                } else if (inWord) {
+                    words.add(word.toString());
+                }
+                word.setLength(0);
+                inWord = false;
+                quoted = false;
+                continue;
+            }
+            inWord = true;
+            if (c == '\'') {
+                int close = expression.indexOf('\'', i + 1);
+                if (close < 0) {
+                    throw new IllegalArgumentException("Unclosed quote in pipe expression");
+                }
+                word.append(expression, i + 1, close);
+                quoted = true;
+                i = close;
+            } else if (c == '"') {
+                quoted = true;
+                for (i++; i < expression.length() && expression.charAt(i) != '"'; i++) {
+                    char d = expression.charAt(i);
+                    if (d == '\\' && i + 1 < expression.length() && "\"\\$`".indexOf(expression.charAt(i + 1)) >= 0) {
+                        d = expression.charAt(++i);
+                    }
+                    word.append(d);
+                }
+                if (i >= expression.length()) {
+                    throw new IllegalArgumentException("Unclosed quote in pipe expression");
+                }
+            } else if (c == '\\' && i + 1 < expression.length()) {
+                word.append(expression.charAt(++i));
+                quoted = true;
+            } else {
+                word.append(c);
+            }
+        }
+        stages.add(words);
+        return stages;
+    }
+
+    /**
+     * A line command reading an input and writing an output.
+     */
+    @FunctionalInterface
+    private interface StreamCommand {
+        void run(InputStream in, OutputStream out) throws IOException;
+    }
+
+    /**
+     * A line command reading files and writing an output.
+     */
+    @FunctionalInterface
+    private interface FileCommand {
+        void run(List<Path> files, OutputStream out) throws IOException;
+    }
+
+    private static void addThreadsOption(Options opts) {
+        opts.addOption(Option.builder("threads")
+                .option("t")
+                .longOpt("threads")
+                .hasArg(true)
+                .argName("N")
+                .desc("Number of threads processing files (default: number of processors).")
+                .required(false)
+                .build());
+    }
+
+    /**
+     * Returns the value of --threads, or the number of processors.
+     */
+    private static int threads(CommandLine cl) {
+        int threads = cl.hasOption("threads")
+                ? Integer.parseInt(cl.getOptionValue("threads"))
+                : Runtime.getRuntime().availableProcessors();
+        if (threads < 1) {
+            throw new IllegalArgumentException("The number of threads must be positive: " + threads);
+        }
+        return threads;
+    }
+
+    private static void addCompressOption(Options opts) {
+        opts.addOption(Option.builder("compress")
+                .option("z")
+                .longOpt("compress")
+                .hasArg(false)
+                .desc("Write the output as BGZF (blocked gzip), compressed on all processors.")
+                .required(false)
+                .build());
+    }
+
+    /**
+     * Runs a line command on standard input and output. Gzip and BGZF input is detected and
+     * decompressed; the output is compressed to BGZF if --compress is given.
+     */
+    private static void runOnStdio(CommandLine cl, StreamCommand command) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        System.out.flush();
+        OutputStream stdout = new FileOutputStream(FileDescriptor.out);
+        BgzfOutputStream bgzf = cl.hasOption("compress") ? new BgzfOutputStream(stdout, threads) : null;
+        try (InputStream in = CompressedInput.open(new FileInputStream(FileDescriptor.in), threads)) {
+            command.run(in, bgzf != null ? bgzf : stdout);
+            if (bgzf != null) {
+                bgzf.finish();
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Runs a line command on the files given as arguments read one after another, or on
+     * standard input if there are none; see {@link CompressedInput#concatenate(List, int)}.
+     */
+    private static void runOnConcatenatedInput(CommandLine cl, StreamCommand command) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        runOnInput(cl, command, (files, out) -> {
+            try (InputStream in = CompressedInput.concatenate(files, threads)) {
+                command.run(in, out);
+            }
+        });
+    }
+
+    /**
+     * Runs a line command on the files given as arguments, or on standard input if there are
+     * none. The output is compressed to BGZF if --compress is given.
+     */
+    private static void runOnInput(CommandLine cl, StreamCommand stream, FileCommand command) {
+        if (cl.getArgList().isEmpty()) {
+            runOnStdio(cl, stream);
+            return;
+        }
+        List<Path> files = cl.getArgList().stream().map(Path::of).toList();
+        int threads = Runtime.getRuntime().availableProcessors();
+        System.out.flush();
+        OutputStream stdout = new FileOutputStream(FileDescriptor.out);
+        BgzfOutputStream bgzf = cl.hasOption("compress") ? new BgzfOutputStream(stdout, threads) : null;
+        try {
+            command.run(files, bgzf != null ? bgzf : stdout);
+            if (bgzf != null) {
+                bgzf.finish();
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+        }
+    }
 }
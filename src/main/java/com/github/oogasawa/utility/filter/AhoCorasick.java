@@ -0,0 +1,272 @@
+package com.github.oogasawa.utility.filter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The {@code AhoCorasick} class finds whether any of a set of literal strings occurs in a line,
+ * reading every byte of the line once whatever the number of strings.
+ *
+ * The strings are compiled into an Aho-Corasick automaton over UTF-8 bytes. The automaton is
+ * stored in a few flat arrays: the transitions of all states, sorted by byte, are packed one
+ * state after another and looked up by binary search, except for the start state, which has a
+ * full table of 256 entries because it is visited after most bytes. States are numbered in
+ * breadth-first order, so the states near the start are close together in memory. A state is
+ * accepting if a string ends there or at any state on its chain of failure links, so a match
+ * is known as soon as the state is entered.
+ *
+ * An instance is immutable and can be shared by several threads.
+ */
+public final class AhoCorasick {
+
+    private static final int ROOT = 0;
+
+    /** The start of the transitions of each state; the last entry is the number of transitions. */
+    private final int[] edgeStart;
+    private final byte[] edgeLabel;
+    private final int[] edgeTarget;
+    private final int[] rootNext;
+    private final int[] fail;
+    private final boolean[] accepting;
+    private final int patterns;
+
+    private AhoCorasick(int[] edgeStart, byte[] edgeLabel, int[] edgeTarget, int[] rootNext, int[] fail,
+            boolean[] accepting, int patterns) {
+        this.edgeStart = edgeStart;
+        this.edgeLabel = edgeLabel;
+        this.edgeTarget = edgeTarget;
+        this.rootNext = rootNext;
+        this.fail = fail;
+        this.accepting = accepting;
+        this.patterns = patterns;
+    }
+
+    /**
+     * Compiles an automaton for a set of strings. Empty strings are ignored.
+     *
+     * @param patterns The strings to search for.
+     * @return The automaton.
+     * @throws IllegalArgumentException If there is no non-empty string.
+     */
+    public static AhoCorasick compile(Collection<String> patterns) {
+        Trie trie = new Trie();
+        int count = 0;
+        for (String pattern : patterns) {
+            if (!pattern.isEmpty()) {
+                trie.add(pattern.getBytes(StandardCharsets.UTF_8));
+                count++;
+            }
+        }
+        if (count == 0) {
+            throw new IllegalArgumentException("No patterns to search for");
+        }
+        return trie.compile(count);
+    }
+
+    /**
+     * Compiles an automaton for the lines of a file, one string per line. Empty lines are
+     * ignored.
+     *
+     * @param file The file of strings, in UTF-8.
+     * @return The automaton.
+     * @throws IOException If the file cannot be read.
+     * @throws IllegalArgumentException If the file has no non-empty line.
+     */
+    public static AhoCorasick load(Path file) throws IOException {
+        return compile(Files.readAllLines(file, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Tests whether any of the strings occurs in a range of bytes.
+     *
+     * @param buf The array containing the bytes.
+     * @param off The start of the range.
+     * @param len The length of the range.
+     * @return {@code true} if a string occurs in the range.
+     */
+    public boolean find(byte[] buf, int off, int len) {
+        int state = ROOT;
+        int end = off + len;
+        for (int i = off; i < end; i++) {
+            state = next(state, buf[i]);
+            if (accepting[state]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of strings searched for.
+     *
+     * @return The number of non-empty strings.
+     */
+    public int size() {
+        return patterns;
+    }
+
+    /**
+     * Returns the number of states of the automaton.
+     *
+     * @return The number of states.
+     */
+    public int states() {
+        return fail.length;
+    }
+
+    private int next(int state, byte b) {
+        while (state != ROOT) {
+            int target = transition(state, b);
+            if (target >= 0) {
+                return target;
+            }
+            state = fail[state];
+        }
+        return rootNext[b & 0xff];
+    }
+
+    private int transition(int state, byte b) {
+        int lo = edgeStart[state];
+        int hi = edgeStart[state + 1] - 1;
+        int key = b & 0xff;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int label = edgeLabel[mid] & 0xff;
+            if (label < key) {
+                lo = mid + 1;
+            } else if (label > key) {
+                hi = mid - 1;
+            } else {
+                return edgeTarget[mid];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The trie of the strings while they are added, with the children of a node in a linked
+     * list.
+     */
+    private static class Trie {
+
+        private int size = 1;
+        private int[] firstChild = new int[1024];
+        private int[] nextSibling = new int[1024];
+        private byte[] label = new byte[1024];
+        private boolean[] terminal = new boolean[1024];
+        private int[] failNode;
+
+        Trie() {
+            firstChild[ROOT] = -1;
+        }
+
+        void add(byte[] pattern) {
+            int node = ROOT;
+            for (byte b : pattern) {
+                int child = child(node, b);
+                if (child < 0) {
+                    child = newNode(b);
+                    nextSibling[child] = firstChild[node];
+                    firstChild[node] = child;
+                }
+                node = child;
+            }
+            terminal[node] = true;
+        }
+
+        private int child(int node, byte b) {
+            for (int c = firstChild[node]; c >= 0; c = nextSibling[c]) {
+                if (label[c] == b) {
+                    return c;
+                }
+            }
+            return -1;
+        }
+
+        private int newNode(byte b) {
+            if (size == label.length) {
+                int capacity = size * 2;
+                firstChild = Arrays.copyOf(firstChild, capacity);
+                nextSibling = Arrays.copyOf(nextSibling, capacity);
+                label = Arrays.copyOf(label, capacity);
+                terminal = Arrays.copyOf(terminal, capacity);
+            }
+            int node = size++;
+            firstChild[node] = -1;
+            label[node] = b;
+            return node;
+        }
+
+        /**
+         * Numbers the nodes breadth-first, computes the failure links and packs the transitions.
+         * The failure link of a node is computed when its parent is visited, after the links of
+         * all shallower nodes.
+         */
+        AhoCorasick compile(int patterns) {
+            int[] order = new int[size];
+            int[] stateOf = new int[size];
+            failNode = new int[size];
+            order[0] = ROOT;
+            int tail = 1;
+            for (int head = 0; head < tail; head++) {
+                int node = order[head];
+                stateOf[node] = head;
+                for (int c = firstChild[node]; c >= 0; c = nextSibling[c]) {
+                    order[tail++] = c;
+                    failNode[c] = node == ROOT ? ROOT : failure(failNode[node], label[c]);
+                }
+            }
+
+            int[] edgeStart = new int[size + 1];
+            byte[] edgeLabel = new byte[size - 1];
+            int[] edgeTarget = new int[size - 1];
+            int[] rootNext = new int[256];
+            int[] fail = new int[size];
+            boolean[] accepting = new boolean[size];
+            List<Integer> children = new ArrayList<>();
+            int edges = 0;
+            for (int state = 0; state < size; state++) {
+                int node = order[state];
+                fail[state] = stateOf[failNode[node]];
+                // The failure link leads to a shallower state, which has already been filled in.
+                accepting[state] = terminal[node] || accepting[fail[state]];
+
+                edgeStart[state] = edges;
+                children.clear();
+                for (int c = firstChild[node]; c >= 0; c = nextSibling[c]) {
+                    children.add(c);
+                }
+                children.sort((a, b) -> Integer.compare(label[a] & 0xff, label[b] & 0xff));
+                for (int c : children) {
+                    edgeLabel[edges] = label[c];
+                    edgeTarget[edges] = stateOf[c];
+                    edges++;
+                    if (node == ROOT) {
+                        rootNext[label[c] & 0xff] = stateOf[c];
+                    }
+                }
+            }
+            edgeStart[size] = edges;
+            return new AhoCorasick(edgeStart, edgeLabel, edgeTarget, rootNext, fail, accepting, patterns);
+        }
+
+        private int failure(int node, byte b) {
+            while (true) {
+                int c = child(node, b);
+                if (c >= 0) {
+                    return c;
+                }
+                if (node == ROOT) {
+                    return ROOT;
+                }
+                node = failNode[node];
+            }
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.github.oogasawa.utility.filter;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * The {@code ApproximateDifference} class computes {@code file1 - file2} against a
+ * {@link BloomFilter} of {@code file2} instead of the exact set.
+ *
+ * The filter needs a few bits per element of {@code file2}, so a reference set of billions of
+ * lines fits into a few hundred megabytes to a few gigabytes. Lines of {@code file1} that are
+ * reported as contained by mistake are missing from the result with about the configured
+ * false-positive rate; no line that is contained in {@code file2} is ever printed.
+ *
+ * The result is printed in the order of {@code file1}, each line once.
+ */
+public class ApproximateDifference {
+
+    /** The false-positive rate of new filters when none is requested. */
+    public static final double DEFAULT_FPP = 0.01;
+
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+    private final double fpp;
+    /** Whether a saved filter must have been built with {@link #fpp}. */
+    private final boolean fppRequested;
+    private BloomFilter filter = null;
+    private String filterOrigin = "";
+    private long emittedMemory = 0;
+
+    /**
+     * Creates an approximate difference that builds filters with {@link #DEFAULT_FPP} and
+     * accepts a saved filter of any false-positive rate.
+     */
+    public ApproximateDifference() {
+        this.fpp = DEFAULT_FPP;
+        this.fppRequested = false;
+    }
+
+    /**
+     * Creates an approximate difference with the given false-positive rate, which a saved filter
+     * must also have been built with.
+     *
+     * @param fpp The false-positive rate of the filter.
+     */
+    public ApproximateDifference(double fpp) {
+        this.fpp = fpp;
+        this.fppRequested = true;
+    }
+
+    /**
+     * Prepares the filter of the reference set.
+     *
+     * If {@code filterPath} names an existing filter that is up to date with {@code file2}
+     * (or {@code file2} is not given), it is loaded. Otherwise the filter is built from
+     * {@code file2} and, if {@code filterPath} is given, saved there for later runs. A filter
+     * built with another false-positive rate than the one requested is rebuilt as well, or used
+     * with a warning if {@code file2} is not given.
+     *
+     * @param file2 The reference set, or {@code null} to use a saved filter.
+     * @param filterPath The file holding the saved filter, or {@code null}.
+     * @throws IOException If the reference set or the filter cannot be read or written.
+     */
+    public void prepare(Path file2, Path filterPath) throws IOException {
+        if (filterPath != null && Files.exists(filterPath)) {
+            BloomFilter saved = BloomFilter.load(filterPath);
+            boolean sameFpp = !fppRequested || saved.getConfiguredFpp() == fpp;
+            if (file2 == null || saved.isFreshFor(file2) && sameFpp) {
+                if (!sameFpp) {
+                    System.err.println(String.format("Bloom filter %s was built with fpp %.3g; "
+                            + "the requested %.3g needs file2 to rebuild it", filterPath,
+                            saved.getConfiguredFpp(), fpp));
+                }
+                filter = saved;
+                filterOrigin = "loaded from " + filterPath;
+                return;
+            }
+            System.err.println("Bloom filter " + filterPath + (sameFpp ? " is out of date" : " has another fpp")
+                    + "; rebuilding it from " + file2);
+        }
+        if (file2 == null) {
+            throw new IOException("Either file2 or an existing Bloom filter file is required");
+        }
+
+        filter = build(file2);
+        filterOrigin = "built from " + file2;
+        if (filterPath != null) {
+            filter.save(filterPath);
+            filterOrigin += ", saved to " + filterPath;
+        }
+    }
+
+    /**
+     * Streams {@code file1} against the prepared filter and prints the result to standard output.
+     *
+     * @param file1 The file whose lines are tested.
+     * @throws IOException If the file cannot be read.
+     */
+    public void difference(Path file1) throws IOException {
+        OutputStream out = new BufferedOutputStream(System.out, 1 << 16);
+        difference(file1, out);
+        out.flush();
+    }
+
+    /**
+     * Streams {@code file1} against the prepared filter.
+     *
+     * @param file1 The file whose lines are tested.
+     * @param out The destination of the lines that are not in the reference set.
+     * @throws IOException If the file cannot be read or the output cannot be written.
+     */
+    public void difference(Path file1, OutputStream out) throws IOException {
+        OffHeapLineSet emitted = new OffHeapLineSet();
+        try (InputStream in = Files.newInputStream(file1)) {
+            new ByteLineReader(in).forEachLine((buf, off, len) -> {
+                if (!filter.mightContain(buf, off, len) && emitted.add(buf, off, len)) {
+                    out.write(buf, off, len);
+                    out.write(NEWLINE);
+                }
+            });
+        }
+        emittedMemory = emitted.memoryUsage();
+    }
+
+    /**
+     * Returns the filter in use.
+     *
+     * @return The filter, or {@code null} before {@link #prepare(Path, Path)}.
+     */
+    public BloomFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Prints the filter statistics to standard error.
+     */
+    public void printReport() {
+        System.err.println("bloom filter (" + filterOrigin + "): " + filter.report());
+        System.err.println("memory: filter " + MemorySize.format(filter.sizeInBytes())
+                + " on heap, result deduplication " + MemorySize.format(emittedMemory) + " off-heap");
+    }
+
+    private BloomFilter build(Path file2) throws IOException {
+        if (!Files.isRegularFile(file2)) {
+            throw new IOException(file2 + ": the reference set must be a regular file to size the Bloom filter");
+        }
+        MappedLineFile mapped = MappedLineFile.map(file2);
+
+        // Size the filter by the number of lines; duplicates only make it a little larger.
+        long lines = 0;
+        for (ByteBuffer segment : mapped.segments()) {
+            int limit = segment.limit();
+            for (int i = 0; i < limit; i++) {
+                if (segment.get(i) == '\n') {
+                    lines++;
+                }
+            }
+            if (limit > 0 && segment.get(limit - 1) != '\n') {
+                lines++;
+            }
+        }
+
+        BloomFilter result = new BloomFilter(lines, fpp);
+        byte[][] scratch = { new byte[256] };
+        mapped.forEachLine((segment, off, len) -> {
+            if (scratch[0].length < len) {
+                scratch[0] = new byte[Math.max(len, scratch[0].length * 2)];
+            }
+            segment.get(off, scratch[0], 0, len);
+            result.add(scratch[0], 0, len);
+        });
+        result.setSource(file2);
+        return result;
+    }
+}
@@ -0,0 +1,216 @@
+package com.github.oogasawa.utility.filter;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * The {@code BgzfOutputStream} class compresses its output into BGZF, the blocked gzip format of
+ * bgzip and samtools, on several threads.
+ *
+ * The output is cut into blocks of at most 65280 bytes, each compressed by a pool of threads
+ * into an independent gzip member whose header records its size; the members are written in
+ * order, and {@link #finish()} appends the empty block that marks the end of a BGZF file. The
+ * result is a valid gzip file for any gzip reader, and can be decompressed in parallel by
+ * {@link CompressedInput}. Only {@link Deflater} of the JDK is used. An instance is not
+ * thread-safe.
+ */
+public class BgzfOutputStream extends OutputStream {
+
+    /** The largest amount of data in a block, which keeps any compressed block within 64 KB. */
+    private static final int BLOCK_DATA = 0xff00;
+    private static final int MAX_BLOCK = 1 << 16;
+    private static final int HEADER_SIZE = 18;
+    private static final int FOOTER_SIZE = 8;
+
+    private static final byte[] EOF_BLOCK = {
+        0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 2, 0, 0x1b, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0 };
+
+    private static final ThreadLocal<Deflater> DEFLATERS =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+
+    private final OutputStream out;
+    private final ExecutorService pool;
+    private final boolean ownsPool;
+    private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+    private final int maxPending;
+    private byte[] buffer = new byte[BLOCK_DATA];
+    private int count = 0;
+    private boolean finished = false;
+
+    /**
+     * Creates a stream.
+     *
+     * @param out The destination.
+     * @param threads The number of threads compressing blocks.
+     */
+    public BgzfOutputStream(OutputStream out, int threads) {
+        this.out = out;
+        int n = Math.max(1, threads);
+        this.maxPending = n * 2;
+        this.pool = Executors.newFixedThreadPool(n, r -> {
+            Thread t = new Thread(r, "bgzf-deflater");
+            t.setDaemon(true);
+            return t;
+        });
+        this.ownsPool = true;
+    }
+
+    /**
+     * Creates a stream compressing on a pool shared with other streams, which
+     * {@link #finish()} leaves running.
+     *
+     * @param out The destination.
+     * @param pool The threads compressing blocks.
+     * @param maxPending The number of blocks that may wait for compression before the stream
+     *                   waits for the oldest one.
+     */
+    public BgzfOutputStream(OutputStream out, ExecutorService pool, int maxPending) {
+        this.out = out;
+        this.maxPending = Math.max(1, maxPending);
+        this.pool = pool;
+        this.ownsPool = false;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == BLOCK_DATA) {
+            submit();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == BLOCK_DATA) {
+                submit();
+            }
+            int n = Math.min(len, BLOCK_DATA - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Compresses and writes the buffered data, ending the current block early, and flushes the
+     * destination.
+     *
+     * @throws IOException If the destination cannot be written.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (count > 0) {
+            submit();
+        }
+        while (!pending.isEmpty()) {
+            writeNext();
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes everything and the end-of-file block, and stops the compressing threads unless the
+     * pool is shared, without closing the destination.
+     *
+     * @throws IOException If the destination cannot be written.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        try {
+            flush();
+            out.write(EOF_BLOCK);
+            out.flush();
+            finished = true;
+        } finally {
+            if (ownsPool) {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Finishes the stream and closes the destination.
+     *
+     * @throws IOException If the destination cannot be written.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void submit() throws IOException {
+        byte[] data = buffer;
+        int length = count;
+        pending.add(pool.submit(() -> compress(data, length)));
+        buffer = new byte[BLOCK_DATA];
+        count = 0;
+        while (pending.size() > maxPending) {
+            writeNext();
+        }
+    }
+
+    private void writeNext() throws IOException {
+        try {
+            out.write(pending.removeFirst().get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Compresses data into a complete BGZF block.
+     */
+    private static byte[] compress(byte[] data, int length) throws IOException {
+        byte[] block = new byte[MAX_BLOCK];
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setInput(data, 0, length);
+        deflater.finish();
+        int limit = MAX_BLOCK - HEADER_SIZE - FOOTER_SIZE;
+        int compressed = deflater.deflate(block, HEADER_SIZE, limit);
+        if (!deflater.finished()) {
+            throw new IOException("BGZF block does not fit in 64 KB");
+        }
+
+        int size = HEADER_SIZE + compressed + FOOTER_SIZE;
+        System.arraycopy(EOF_BLOCK, 0, block, 0, HEADER_SIZE);
+        block[16] = (byte) (size - 1);
+        block[17] = (byte) ((size - 1) >>> 8);
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        int p = HEADER_SIZE + compressed;
+        putInt(block, p, (int) crc.getValue());
+        putInt(block, p + 4, length);
+        return Arrays.copyOf(block, size);
+    }
+
+    private static void putInt(byte[] b, int off, int v) {
+        b[off] = (byte) v;
+        b[off + 1] = (byte) (v >>> 8);
+        b[off + 2] = (byte) (v >>> 16);
+        b[off + 3] = (byte) (v >>> 24);
+    }
+}
@@ -0,0 +1,252 @@
+package com.github.oogasawa.utility.filter;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The {@code BloomFilter} class is a probabilistic set of byte strings with a configurable
+ * false-positive rate.
+ *
+ * The filter is sized from the expected number of elements {@code n} and the target rate
+ * {@code p} as {@code m = -n ln p / (ln 2)^2} bits and {@code k = (m / n) ln 2} hash functions.
+ * The {@code k} bit positions are derived from one 64-bit hash by double hashing. A filter can
+ * be saved to a file and loaded again, together with the size and modification time of the
+ * file it was built from, so that a stale filter can be detected.
+ */
+public class BloomFilter {
+
+    private static final int MAGIC = 0x424C4D31; // "BLM1"
+
+    private final long[] bits;
+    private final long numBits;
+    private final int numHashes;
+    private final double configuredFpp;
+    private long count = 0;
+
+    private String sourcePath = "";
+    private long sourceSize = -1;
+    private long sourceModified = -1;
+
+    /**
+     * Creates an empty filter.
+     *
+     * @param expectedElements The number of elements expected to be inserted.
+     * @param fpp The target false-positive rate, between 0 and 1.
+     */
+    public BloomFilter(long expectedElements, double fpp) {
+        if (fpp <= 0 || fpp >= 1) {
+            throw new IllegalArgumentException("False-positive rate must be between 0 and 1: " + fpp);
+        }
+        long n = Math.max(1, expectedElements);
+        long m = (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        long words = Math.max(1, (m + 63) >>> 6);
+        if (words > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Bloom filter too large: " + m + " bits");
+        }
+        this.bits = new long[(int) words];
+        this.numBits = words << 6;
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / n * Math.log(2)));
+        this.configuredFpp = fpp;
+    }
+
+    private BloomFilter(long[] bits, int numHashes, double configuredFpp, long count) {
+        this.bits = bits;
+        this.numBits = (long) bits.length << 6;
+        this.numHashes = numHashes;
+        this.configuredFpp = configuredFpp;
+        this.count = count;
+    }
+
+    /**
+     * Adds an element.
+     *
+     * @param buf The array containing the element.
+     * @param off The start of the element.
+     * @param len The length of the element.
+     */
+    public void add(byte[] buf, int off, int len) {
+        long h1 = Hash64.hash(buf, off, len);
+        long h2 = Hash64.mix(h1) | 1;
+        for (int i = 0; i < numHashes; i++) {
+            long bit = Long.remainderUnsigned(h1 + i * h2, numBits);
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+        count++;
+    }
+
+    /**
+     * Tests whether an element may be contained. A {@code false} result is always correct; a
+     * {@code true} result is wrong with about the configured false-positive rate.
+     *
+     * @param buf The array containing the element.
+     * @param off The start of the element.
+     * @param len The length of the element.
+     * @return {@code false} if the element is definitely not contained.
+     */
+    public boolean mightContain(byte[] buf, int off, int len) {
+        long h1 = Hash64.hash(buf, off, len);
+        long h2 = Hash64.mix(h1) | 1;
+        for (int i = 0; i < numHashes; i++) {
+            long bit = Long.remainderUnsigned(h1 + i * h2, numBits);
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Estimates the actual false-positive rate from the fraction of bits that are set.
+     *
+     * @return The estimated false-positive rate.
+     */
+    public double estimatedFpp() {
+        long set = 0;
+        for (long word : bits) {
+            set += Long.bitCount(word);
+        }
+        return Math.pow((double) set / numBits, numHashes);
+    }
+
+    /**
+     * Returns the false-positive rate the filter was sized for.
+     *
+     * @return The configured rate.
+     */
+    public double getConfiguredFpp() {
+        return configuredFpp;
+    }
+
+    /**
+     * Returns the number of elements added, including duplicates.
+     *
+     * @return The number of insertions.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the size of the bit array.
+     *
+     * @return The size in bytes.
+     */
+    public long sizeInBytes() {
+        return numBits >>> 3;
+    }
+
+    /**
+     * Returns a one-line description of the filter, for reports.
+     *
+     * @return The description.
+     */
+    public String report() {
+        return String.format("%d elements, %s, %d hashes, configured fpp %.3g, estimated fpp %.3g",
+                count, MemorySize.format(sizeInBytes()), numHashes, configuredFpp, estimatedFpp());
+    }
+
+    /**
+     * Records the file the filter was built from.
+     *
+     * @param source The source file.
+     * @throws IOException If the attributes of the file cannot be read.
+     */
+    public void setSource(Path source) throws IOException {
+        this.sourcePath = source.toAbsolutePath().toString();
+        this.sourceSize = Files.size(source);
+        this.sourceModified = Files.getLastModifiedTime(source).toMillis();
+    }
+
+    /**
+     * Tests whether the filter was built from the current content of the given file, judged by
+     * its path, size and modification time.
+     *
+     * @param source The file to check.
+     * @return {@code true} if the filter is up to date.
+     * @throws IOException If the attributes of the file cannot be read.
+     */
+    public boolean isFreshFor(Path source) throws IOException {
+        return sourcePath.equals(source.toAbsolutePath().toString())
+                && sourceSize == Files.size(source)
+                && sourceModified == Files.getLastModifiedTime(source).toMillis();
+    }
+
+    /**
+     * Saves the filter to a file.
+     *
+     * @param path The destination file.
+     * @throws IOException If the file cannot be written.
+     */
+    public void save(Path path) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(numHashes);
+            out.writeDouble(configuredFpp);
+            out.writeLong(count);
+            out.writeUTF(sourcePath);
+            out.writeLong(sourceSize);
+            out.writeLong(sourceModified);
+            out.writeInt(bits.length);
+            ByteBuffer block = ByteBuffer.allocate(1 << 16);
+            LongBuffer longs = block.asLongBuffer();
+            for (int i = 0; i < bits.length; i += longs.capacity()) {
+                int n = Math.min(longs.capacity(), bits.length - i);
+                longs.clear();
+                longs.put(bits, i, n);
+                out.write(block.array(), 0, n * Long.BYTES);
+            }
+        }
+    }
+
+    /**
+     * Loads a filter saved with {@link #save(Path)}.
+     *
+     * @param path The file to load.
+     * @return The filter.
+     * @throws IOException If the file cannot be read or is not a saved filter.
+     */
+    public static BloomFilter load(Path path) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            // The header is read unbuffered so that the channel position marks the bit array.
+            DataInputStream in = new DataInputStream(Channels.newInputStream(ch));
+            if (in.readInt() != MAGIC) {
+                throw new IOException(path + " is not a Bloom filter file");
+            }
+            int numHashes = in.readInt();
+            double fpp = in.readDouble();
+            long count = in.readLong();
+            String sourcePath = in.readUTF();
+            long sourceSize = in.readLong();
+            long sourceModified = in.readLong();
+            int words = in.readInt();
+
+            BloomFilter filter = new BloomFilter(new long[words], numHashes, fpp, count);
+            filter.sourcePath = sourcePath;
+            filter.sourceSize = sourceSize;
+            filter.sourceModified = sourceModified;
+
+            // The bit array is copied in bulk through a mapping instead of word by word.
+            long pos = ch.position();
+            long remaining = (long) words * Long.BYTES;
+            int word = 0;
+            while (remaining > 0) {
+                int len = (int) Math.min(remaining, 1L << 30);
+                LongBuffer longs = ch.map(FileChannel.MapMode.READ_ONLY, pos, len).asLongBuffer();
+                longs.get(filter.bits, word, len / Long.BYTES);
+                word += len / Long.BYTES;
+                pos += len;
+                remaining -= len;
+            }
+            return filter;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.github.oogasawa.utility.filter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Comparator;
+
+/**
+ * The {@code ByteLine} class is an immutable line of text represented by a range of bytes,
+ * typically a slice of a memory-mapped file.
+ *
+ * Lines are compared as unsigned bytes, which for UTF-8 text is the order of the Unicode code
+ * points. This order is independent of the platform charset. It agrees with
+ * {@link String#compareTo} except for supplementary characters, which {@code String} orders
+ * before the code points {@code U+E000} to {@code U+FFFF}.
+ *
+ * The bytes are decoded only when {@link #toString()} is called. Decoded lines are put in the
+ * same order by {@link #UTF8_ORDER}.
+ */
+public final class ByteLine implements Comparable<ByteLine> {
+
+    /**
+     * Orders strings as their UTF-8 encodings compare as unsigned bytes, as {@code LC_ALL=C sort}
+     * does.
+     */
+    public static final Comparator<String> UTF8_ORDER = ByteLine::compareUtf8;
+
+    private final ByteBuffer buf;
+    private final int off;
+    private final int len;
+
+    /**
+     * Creates a line referring to a range of a buffer. The buffer must not be modified afterwards.
+     *
+     * @param buf The buffer containing the line.
+     * @param off The absolute start of the line in the buffer.
+     * @param len The length of the line.
+     */
+    public ByteLine(ByteBuffer buf, int off, int len) {
+        this.buf = buf.order() == ByteOrder.BIG_ENDIAN ? buf : buf.duplicate().order(ByteOrder.BIG_ENDIAN);
+        this.off = off;
+        this.len = len;
+    }
+
+    /**
+     * Creates a line owning the given bytes.
+     *
+     * @param bytes The bytes of the line.
+     * @return The line.
+     */
+    public static ByteLine of(byte[] bytes) {
+        return new ByteLine(ByteBuffer.wrap(bytes), 0, bytes.length);
+    }
+
+    /**
+     * Returns the length of the line in bytes.
+     *
+     * @return The number of bytes.
+     */
+    public int length() {
+        return len;
+    }
+
+    /**
+     * Copies the bytes of the line into an array.
+     *
+     * @param dst The destination array.
+     * @param dstOff The position in the destination array.
+     */
+    public void copyTo(byte[] dst, int dstOff) {
+        buf.get(off, dst, dstOff, len);
+    }
+
+    @Override
+    public int compareTo(ByteLine o) {
+        int n = Math.min(len, o.len);
+        int i = 0;
+        // Big-endian words compare like their bytes when treated as unsigned numbers.
+        for (; i + 8 <= n; i += 8) {
+            long a = buf.getLong(off + i);
+            long b = o.buf.getLong(o.off + i);
+            if (a != b) {
+                return Long.compareUnsigned(a, b);
+            }
+        }
+        for (; i < n; i++) {
+            int c = (buf.get(off + i) & 0xFF) - (o.buf.get(o.off + i) & 0xFF);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return len - o.len;
+    }
+
+    /**
+     * Compares two strings as their UTF-8 encodings compare as unsigned bytes, without encoding
+     * them.
+     *
+     * This is the order of the code points: it differs from {@link String#compareTo} only where
+     * a surrogate, which stands for a supplementary character, meets a char of {@code U+E000} to
+     * {@code U+FFFF}, and such pairs are moved into code point order.
+     *
+     * @param a The first string.
+     * @param b The second string.
+     * @return A negative number, zero or a positive number as {@code a} is less than, equal to
+     *         or greater than {@code b}.
+     */
+    public static int compareUtf8(String a, String b) {
+        int n = Math.min(a.length(), b.length());
+        for (int i = 0; i < n; i++) {
+            char c = a.charAt(i);
+            char d = b.charAt(i);
+            if (c != d) {
+                if (c >= Character.MIN_SURROGATE && d >= Character.MIN_SURROGATE) {
+                    // Surrogates move above U+E000..U+FFFF, which move down into their place.
+                    return fixup(c) - fixup(d);
+                }
+                return c - d;
+            }
+        }
+        return a.length() - b.length();
+    }
+
+    private static int fixup(char c) {
+        return c <= Character.MAX_SURROGATE ? c + 0x2000 : c - 0x800;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof ByteLine other && len == other.len && compareTo(other) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = 1;
+        for (int i = 0; i < len; i++) {
+            h = 31 * h + buf.get(off + i);
+        }
+        return h;
+    }
+
+    /**
+     * Decodes the line as UTF-8.
+     *
+     * @return The line as a string.
+     */
+    @Override
+    public String toString() {
+        byte[] bytes = new byte[len];
+        copyTo(bytes, 0);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,144 @@
+package com.github.oogasawa.utility.filter;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+/**
+ * The {@code ByteLineReader} class splits an input stream into lines without decoding it.
+ *
+ * Every line is handed to a {@link LineConsumer} as a range of a shared byte array that is
+ * only valid during the call. The line terminator ({@code \n} or {@code \r\n}) is not part of
+ * the range, and a last line without a terminator is delivered as well.
+ *
+ * Newlines are found 64 bytes at a time by a {@link ByteScanner}. Input is read in blocks of
+ * 1 MB, either from a stream or from a channel. A channel is read
+ * through a direct buffer, which spares the JDK the temporary direct buffer it otherwise uses
+ * for every read into a heap array; {@link #stdin()} reads standard input this way.
+ */
+public class ByteLineReader {
+
+    /**
+     * Receives the lines read by a {@link ByteLineReader}.
+     */
+    @FunctionalInterface
+    public interface LineConsumer {
+
+        /**
+         * Processes a line.
+         *
+         * @param buf The array containing the line; it is reused after the call returns.
+         * @param off The start of the line.
+         * @param len The length of the line without its terminator.
+         * @throws IOException If the line cannot be processed.
+         */
+        void accept(byte[] buf, int off, int len) throws IOException;
+    }
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final ByteScanner scanner = ByteScanner.get();
+    private final InputStream in;
+    private final ReadableByteChannel channel;
+    private ByteBuffer direct = null;
+    private byte[] buf = new byte[BUFFER_SIZE];
+
+    /**
+     * Creates a reader.
+     *
+     * @param in The stream to read; it is not closed by this class.
+     */
+    public ByteLineReader(InputStream in) {
+        this.in = in;
+        this.channel = null;
+    }
+
+    /**
+     * Creates a reader of a channel.
+     *
+     * @param channel The channel to read; it is not closed by this class.
+     */
+    public ByteLineReader(ReadableByteChannel channel) {
+        this.in = null;
+        this.channel = channel;
+    }
+
+    /**
+     * Creates a reader of the standard input of the process, bypassing {@code System.in}.
+     *
+     * @return The reader.
+     */
+    public static ByteLineReader stdin() {
+        return new ByteLineReader(new FileInputStream(FileDescriptor.in).getChannel());
+    }
+
+    /**
+     * Reads the stream to the end, passing every line to the consumer.
+     *
+     * @param consumer The consumer of the lines.
+     * @return The number of lines read.
+     * @throws IOException If the stream cannot be read or the consumer fails.
+     */
+    public long forEachLine(LineConsumer consumer) throws IOException {
+        long lines = 0;
+        int start = 0;
+        int limit = 0;
+        int n;
+        while ((n = read(limit)) >= 0) {
+            int scan = limit;
+            limit += n;
+            for (int i = scan; i < limit; i += ByteScanner.BLOCK) {
+                for (long m = scanner.mask(buf, i, limit, (byte) '\n'); m != 0; m &= m - 1) {
+                    int nl = i + Long.numberOfTrailingZeros(m);
+                    consumer.accept(buf, start, trimCr(start, nl));
+                    lines++;
+                    start = nl + 1;
+                }
+            }
+
+            // Move the incomplete line to the front, growing the buffer for very long lines.
+            int rest = limit - start;
+            if (start == 0 && rest == buf.length) {
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            } else if (start > 0) {
+                System.arraycopy(buf, start, buf, 0, rest);
+            }
+            start = 0;
+            limit = rest;
+        }
+        if (limit > 0) {
+            consumer.accept(buf, 0, trimCr(0, limit));
+            lines++;
+        }
+        return lines;
+    }
+
+    /**
+     * Reads into the buffer from the given position, returning the number of bytes read or -1.
+     */
+    private int read(int pos) throws IOException {
+        if (in != null) {
+            return in.read(buf, pos, buf.length - pos);
+        }
+        if (direct == null) {
+            direct = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        direct.clear().limit(Math.min(direct.capacity(), buf.length - pos));
+        int n = channel.read(direct);
+        if (n > 0) {
+            direct.flip().get(buf, pos, n);
+        }
+        return n;
+    }
+
+    private int trimCr(int start, int end) {
+        if (end > start && buf[end - 1] == '\r') {
+            end--;
+        }
+        return end - start;
+    }
+}
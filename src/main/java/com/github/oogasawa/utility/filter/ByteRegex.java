@@ -0,0 +1,982 @@
+package com.github.oogasawa.utility.filter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * The {@code ByteRegex} class is a regular expression engine that runs in time linear in the
+ * length of the input, whatever the expression.
+ *
+ * It accepts the subset of the {@code java.util.regex} syntax that needs no backtracking, as in
+ * RE2: literals, escaped characters, {@code .}, character classes with ranges and negation,
+ * {@code \d \w \s} and their complements (ASCII, as in {@code Pattern}), groups, non-capturing
+ * groups, alternation, the greedy and lazy quantifiers, and the anchors {@code ^} and
+ * {@code $} at the ends of the line. Back-references, look-around, word boundaries,
+ * possessive quantifiers, inline flags and nested classes are rejected with a
+ * {@link PatternSyntaxException}.
+ *
+ * The expression is compiled into a Thompson NFA over UTF-8 bytes, so that multi-byte
+ * characters are matched without decoding the line. A {@link Matcher} runs it as a DFA whose
+ * states are built lazily, one transition at a time, the first time a byte is seen in a state,
+ * so that a search costs one table lookup per byte once the states in use are built. The
+ * number of states kept is bounded; when the cache is full it is cleared, and if it fills up
+ * repeatedly within one line the search continues by simulating the NFA directly, which is
+ * slower but still linear. Bytes that are not valid UTF-8 match no character.
+ *
+ * A compiled expression is immutable and can be shared by several threads; each thread needs
+ * its own {@code Matcher}.
+ */
+public final class ByteRegex {
+
+    /** The engines available to the regex filters. */
+    public enum Engine {
+        /** {@code java.util.regex}, with the full syntax and backtracking. */
+        JAVA,
+        /** {@code ByteRegex}, linear in time. */
+        DFA;
+
+        /**
+         * Returns the engine with the given name, ignoring case.
+         *
+         * @param name The name, {@code java} or {@code dfa}.
+         * @return The engine.
+         * @throws IllegalArgumentException If the name is unknown.
+         */
+        public static Engine of(String name) {
+            try {
+                return valueOf(name.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown regex engine: " + name + " (use java or dfa)");
+            }
+        }
+    }
+
+    private static final int MAX_NODES = 1 << 18;
+    private static final int DEFAULT_MAX_STATES = 2048;
+    private static final int MAX_CODE_POINT = Character.MAX_CODE_POINT;
+
+    /** Node types of the NFA. */
+    private static final byte RANGE = 0;
+    private static final byte SPLIT = 1;
+    private static final byte EMPTY = 2;
+    private static final byte BOL = 3;
+    private static final byte EOL = 4;
+    private static final byte MATCH = 5;
+
+    private final String pattern;
+    private final byte[] type;
+    /** The low byte of a range, or the second branch of a split. */
+    private final int[] arg;
+    /** The high byte of a range. */
+    private final int[] high;
+    private final int[] next;
+    private final int start;
+
+    private ByteRegex(String pattern, Program program) {
+        this.pattern = pattern;
+        this.type = Arrays.copyOf(program.type, program.size);
+        this.arg = Arrays.copyOf(program.arg, program.size);
+        this.high = Arrays.copyOf(program.high, program.size);
+        this.next = Arrays.copyOf(program.next, program.size);
+        this.start = program.start;
+    }
+
+    /**
+     * Compiles a regular expression.
+     *
+     * @param regex The regular expression.
+     * @return The compiled expression.
+     * @throws PatternSyntaxException If the expression is invalid or uses syntax this engine
+     *         does not support.
+     */
+    public static ByteRegex compile(String regex) {
+        Node root = new Parser(regex).parse();
+        Program program = new Program(regex);
+        program.start = program.compile(root, program.add(MATCH, 0, 0, -1));
+        return new ByteRegex(regex, program);
+    }
+
+    /**
+     * Returns the source of the expression.
+     *
+     * @return The regular expression.
+     */
+    public String pattern() {
+        return pattern;
+    }
+
+    /**
+     * Returns the number of NFA nodes of the compiled expression.
+     *
+     * @return The number of nodes.
+     */
+    public int size() {
+        return type.length;
+    }
+
+    /**
+     * Creates a matcher with a cache of the default size.
+     *
+     * @return The matcher.
+     */
+    public Matcher matcher() {
+        return new Matcher(DEFAULT_MAX_STATES);
+    }
+
+    /**
+     * Creates a matcher.
+     *
+     * @param maxStates The number of DFA states kept before the cache is cleared; at least 4.
+     * @return The matcher.
+     */
+    public Matcher matcher(int maxStates) {
+        return new Matcher(Math.max(4, maxStates));
+    }
+
+    /**
+     * The {@code Matcher} class searches lines with a lazily built DFA. An instance is not
+     * thread-safe.
+     */
+    public final class Matcher {
+
+        private static final int MAX_FLUSHES = 8;
+
+        private static final byte IS_MATCH = 1;
+        private static final byte IS_DEAD = 2;
+        private static final byte END_KNOWN = 4;
+        private static final byte END_MATCH = 8;
+
+        private final int maxStates;
+        private final Map<StateKey, Integer> ids = new HashMap<>();
+        private int[][] sets = new int[64][];
+        private byte[] flags = new byte[64];
+        /** The transitions, 256 per state; -1 where not built yet. */
+        private int[] table = new int[64 * 256];
+        private int count = 0;
+        private int startState = -1;
+        private long flushes = 0;
+
+        private final Closure closure = new Closure(type.length);
+
+        private Matcher(int maxStates) {
+            this.maxStates = maxStates;
+        }
+
+        /**
+         * Tests whether the expression matches anywhere in a range of bytes.
+         *
+         * @param buf The array containing the bytes.
+         * @param off The start of the range.
+         * @param len The length of the range.
+         * @return {@code true} if there is a match.
+         */
+        public boolean find(byte[] buf, int off, int len) {
+            if (startState < 0) {
+                closure.clear();
+                closure.add(start, true, false);
+                startState = state(closure.toSet());
+            }
+            int s = startState;
+            if (len == 0) {
+                closure.clear();
+                closure.add(start, true, true);
+                return closure.matches();
+            }
+            int localFlushes = 0;
+            int end = off + len;
+            for (int i = off; i < end; i++) {
+                byte f = flags[s];
+                if ((f & IS_MATCH) != 0) {
+                    return true;
+                }
+                if ((f & IS_DEAD) != 0) {
+                    return false;
+                }
+                int b = buf[i] & 0xff;
+                int t = table[s * 256 + b];
+                if (t < 0) {
+                    if (count == maxStates) {
+                        if (++localFlushes > MAX_FLUSHES) {
+                            return simulate(sets[s], buf, i, end);
+                        }
+                        int[] current = sets[s];
+                        flush();
+                        s = state(current);
+                    }
+                    t = state(step(sets[s], b));
+                    table[s * 256 + b] = t;
+                }
+                s = t;
+            }
+            return (flags[s] & IS_MATCH) != 0 || endMatches(s);
+        }
+
+        /**
+         * Returns the number of DFA states currently cached.
+         *
+         * @return The number of states.
+         */
+        public int cachedStates() {
+            return count;
+        }
+
+        /**
+         * Returns how many times the cache has been cleared.
+         *
+         * @return The number of flushes.
+         */
+        public long flushes() {
+            return flushes;
+        }
+
+        private boolean endMatches(int s) {
+            if ((flags[s] & END_KNOWN) == 0) {
+                closure.clear();
+                for (int node : sets[s]) {
+                    if (type[node] == EOL) {
+                        closure.add(next[node], false, true);
+                    }
+                }
+                flags[s] |= closure.matches() ? END_KNOWN | END_MATCH : END_KNOWN;
+            }
+            return (flags[s] & END_MATCH) != 0;
+        }
+
+        /**
+         * Continues a search by stepping sets of NFA nodes without caching them.
+         */
+        private boolean simulate(int[] set, byte[] buf, int from, int end) {
+            for (int i = from; i < end; i++) {
+                set = step(set, buf[i] & 0xff);
+                if (set.length == 0) {
+                    return false;
+                }
+                for (int node : set) {
+                    if (type[node] == MATCH) {
+                        return true;
+                    }
+                }
+            }
+            closure.clear();
+            for (int node : set) {
+                if (type[node] == EOL) {
+                    closure.add(next[node], false, true);
+                }
+            }
+            return closure.matches();
+        }
+
+        /**
+         * Returns the set of nodes after a byte, with a new search started at the next position.
+         */
+        private int[] step(int[] set, int b) {
+            closure.clear();
+            for (int node : set) {
+                if (type[node] == RANGE && arg[node] <= b && b <= high[node]) {
+                    closure.add(next[node], false, false);
+                }
+            }
+            closure.add(start, false, false);
+            return closure.toSet();
+        }
+
+        private int state(int[] set) {
+            StateKey key = new StateKey(set);
+            Integer id = ids.get(key);
+            if (id != null) {
+                return id;
+            }
+            if (count == sets.length) {
+                int capacity = Math.min(maxStates, count * 2);
+                sets = Arrays.copyOf(sets, capacity);
+                flags = Arrays.copyOf(flags, capacity);
+                table = Arrays.copyOf(table, capacity * 256);
+            }
+            int s = count++;
+            sets[s] = set;
+            Arrays.fill(table, s * 256, s * 256 + 256, -1);
+            byte f = 0;
+            if (set.length == 0) {
+                f |= IS_DEAD;
+            }
+            for (int node : set) {
+                if (type[node] == MATCH) {
+                    f |= IS_MATCH;
+                }
+            }
+            flags[s] = f;
+            ids.put(key, s);
+            return s;
+        }
+
+        private void flush() {
+            ids.clear();
+            count = 0;
+            startState = -1;
+            flushes++;
+        }
+    }
+
+    /**
+     * The epsilon closure of a set of NFA nodes, kept as a sparse set.
+     */
+    private final class Closure {
+
+        private final int[] dense;
+        private final int[] sparse;
+        private final int[] stack;
+        private int size = 0;
+
+        Closure(int nodes) {
+            dense = new int[nodes];
+            sparse = new int[nodes];
+            stack = new int[nodes];
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        boolean contains(int node) {
+            int i = sparse[node];
+            return i < size && dense[i] == node;
+        }
+
+        /**
+         * Adds the nodes reachable from a node without consuming a byte. Ranges, matches and,
+         * before the end of the line, end anchors are kept.
+         */
+        void add(int node, boolean atStart, boolean atEnd) {
+            int top = push(node, 0);
+            while (top > 0) {
+                int n = stack[--top];
+                switch (type[n]) {
+                    case SPLIT -> {
+                        top = push(arg[n], top);
+                        top = push(next[n], top);
+                    }
+                    case EMPTY -> top = push(next[n], top);
+                    case BOL -> {
+                        if (atStart) {
+                            top = push(next[n], top);
+                        }
+                    }
+                    case EOL -> {
+                        if (atEnd) {
+                            top = push(next[n], top);
+                        }
+                    }
+                    default -> {
+                    }
+                }
+            }
+        }
+
+        /**
+         * Adds a node to the set and to the stack of nodes to expand, unless it is already in
+         * the set, so that every node is expanded once.
+         */
+        private int push(int node, int top) {
+            if (contains(node)) {
+                return top;
+            }
+            sparse[node] = size;
+            dense[size++] = node;
+            stack[top] = node;
+            return top + 1;
+        }
+
+        boolean matches() {
+            for (int i = 0; i < size; i++) {
+                if (type[dense[i]] == MATCH) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Returns the nodes that matter to the following steps, sorted.
+         */
+        int[] toSet() {
+            int n = 0;
+            int[] set = new int[size];
+            for (int i = 0; i < size; i++) {
+                int node = dense[i];
+                byte t = type[node];
+                if (t == RANGE || t == MATCH || t == EOL) {
+                    set[n++] = node;
+                }
+            }
+            set = Arrays.copyOf(set, n);
+            Arrays.sort(set);
+            return set;
+        }
+    }
+
+    /**
+     * A set of NFA nodes as a hash key.
+     */
+    private static final class StateKey {
+
+        private final int[] set;
+        private final int hash;
+
+        StateKey(int[] set) {
+            this.set = set;
+            this.hash = Arrays.hashCode(set);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof StateKey other && Arrays.equals(set, other.set);
+        }
+    }
+
+    // ---- Syntax tree
+
+    private sealed interface Node permits Chars, Concat, Alt, Repeat, Anchor {
+    }
+
+    /** A set of code points, as sorted, disjoint, inclusive ranges. */
+    private record Chars(int[] ranges) implements Node {
+    }
+
+    private record Concat(List<Node> items) implements Node {
+    }
+
+    private record Alt(List<Node> items) implements Node {
+    }
+
+    /** A repetition; a maximum of -1 is unbounded. */
+    private record Repeat(Node body, int min, int max) implements Node {
+    }
+
+    private record Anchor(boolean start) implements Node {
+    }
+
+    /**
+     * A recursive-descent parser for the supported syntax.
+     */
+    private static class Parser {
+
+        private static final int[] DIGIT = { '0', '9' };
+        private static final int[] WORD = { '0', '9', 'A', 'Z', '_', '_', 'a', 'z' };
+        private static final int[] SPACE = { '\t', '\r', ' ', ' ' };
+        /** Any character but the line terminators, like {@code .} in {@code Pattern}. */
+        private static final int[] DOT = {
+            0, '\n' - 1, '\n' + 1, '\r' - 1, '\r' + 1, 0x84, 0x86, 0x2027, 0x202A, MAX_CODE_POINT };
+
+        private final String re;
+        private int pos = 0;
+
+        Parser(String re) {
+            this.re = re;
+        }
+
+        Node parse() {
+            Node node = alternation();
+            if (pos < re.length()) {
+                throw error("Unmatched closing ')'", pos);
+            }
+            return node;
+        }
+
+        private PatternSyntaxException error(String description, int index) {
+            return new PatternSyntaxException(description, re, index);
+        }
+
+        private boolean more() {
+            return pos < re.length();
+        }
+
+        private int peek() {
+            return re.codePointAt(pos);
+        }
+
+        private int take() {
+            int c = re.codePointAt(pos);
+            pos += Character.charCount(c);
+            return c;
+        }
+
+        private Node alternation() {
+            List<Node> items = new ArrayList<>();
+            items.add(concatenation());
+            while (more() && peek() == '|') {
+                pos++;
+                items.add(concatenation());
+            }
+            return items.size() == 1 ? items.get(0) : new Alt(items);
+        }
+
+        private Node concatenation() {
+            List<Node> items = new ArrayList<>();
+            while (more() && peek() != '|' && peek() != ')') {
+                items.add(quantified(atom()));
+            }
+            return items.size() == 1 ? items.get(0) : new Concat(items);
+        }
+
+        private Node quantified(Node atom) {
+            if (!more()) {
+                return atom;
+            }
+            int at = pos;
+            int min;
+            int max;
+            switch (peek()) {
+                case '*' -> {
+                    min = 0;
+                    max = -1;
+                    pos++;
+                }
+                case '+' -> {
+                    min = 1;
+                    max = -1;
+                    pos++;
+                }
+                case '?' -> {
+                    min = 0;
+                    max = 1;
+                    pos++;
+                }
+                case '{' -> {
+                    int close = re.indexOf('}', pos);
+                    if (close < 0) {
+                        throw error("Unclosed counted closure", pos);
+                    }
+                    String[] bounds = re.substring(pos + 1, close).split(",", -1);
+                    try {
+                        min = Integer.parseInt(bounds[0]);
+                        max = bounds.length == 1 ? min : bounds[1].isEmpty() ? -1 : Integer.parseInt(bounds[1]);
+                    } catch (NumberFormatException e) {
+                        throw error("Illegal repetition", pos);
+                    }
+                    if (bounds.length > 2 || min < 0 || (max >= 0 && max < min) || Math.max(min, max) > 1000) {
+                        throw error("Illegal repetition range", pos);
+                    }
+                    pos = close + 1;
+                }
+                default -> {
+                    return atom;
+                }
+            }
+            if (more() && peek() == '+') {
+                throw error("Possessive quantifiers are not supported by the DFA engine", pos);
+            }
+            if (more() && peek() == '?') {
+                // Laziness does not change whether a line matches.
+                pos++;
+            }
+            if (more() && (peek() == '*' || peek() == '+' || peek() == '?' || peek() == '{')) {
+                throw error("Dangling meta character '" + Character.toString(peek()) + "'", pos);
+            }
+            if (atom instanceof Anchor) {
+                throw error("Quantified anchors are not supported by the DFA engine", at);
+            }
+            return new Repeat(atom, min, max);
+        }
+
+        private Node atom() {
+            int at = pos;
+            int c = take();
+            switch (c) {
+                case '(' -> {
+                    if (re.startsWith("?:", pos)) {
+                        pos += 2;
+                    } else if (re.startsWith("?", pos)) {
+                        throw error("Look-around, named groups and inline flags are not supported by the DFA engine", at);
+                    }
+                    Node body = alternation();
+                    if (!more() || take() != ')') {
+                        throw error("Unclosed group", re.length());
+                    }
+                    return body;
+                }
+                case '[' -> {
+                    return new Chars(charClass());
+                }
+                case '.' -> {
+                    return new Chars(DOT);
+                }
+                case '^' -> {
+                    return new Anchor(true);
+                }
+                case '$' -> {
+                    return new Anchor(false);
+                }
+                case '\\' -> {
+                    if (re.startsWith("Q", pos)) {
+                        int close = re.indexOf("\\E", pos + 1);
+                        String quoted = re.substring(pos + 1, close < 0 ? re.length() : close);
+                        pos = close < 0 ? re.length() : close + 2;
+                        List<Node> items = new ArrayList<>();
+                        quoted.codePoints().forEach(q -> items.add(new Chars(new int[] { q, q })));
+                        return items.size() == 1 ? items.get(0) : new Concat(items);
+                    }
+                    return new Chars(escape(false));
+                }
+                case '*', '+', '?', '{' -> throw error("Dangling meta character '" + Character.toString(c) + "'", at);
+                default -> {
+                    return new Chars(new int[] { c, c });
+                }
+            }
+        }
+
+        /**
+         * Parses an escape sequence after the backslash and returns its characters.
+         */
+        private int[] escape(boolean inClass) {
+            if (!more()) {
+                throw error("Unexpected internal error", pos);
+            }
+            int at = pos - 1;
+            int c = take();
+            switch (c) {
+                case 't': return single('\t');
+                case 'n': return single('\n');
+                case 'r': return single('\r');
+                case 'f': return single('\f');
+                case 'a': return single(0x07);
+                case 'e': return single(0x1B);
+                case 'd': return DIGIT;
+                case 'D': return negate(DIGIT);
+                case 'w': return WORD;
+                case 'W': return negate(WORD);
+                case 's': return SPACE;
+                case 'S': return negate(SPACE);
+                case 'x': {
+                    if (more() && peek() == '{') {
+                        int close = re.indexOf('}', pos);
+                        if (close < 0) {
+                            throw error("Unclosed hexadecimal escape sequence", pos);
+                        }
+                        int value = hex(pos + 1, close);
+                        pos = close + 1;
+                        return single(value);
+                    }
+                    int value = hex(pos, pos + 2);
+                    pos += 2;
+                    return single(value);
+                }
+                case 'u': {
+                    int value = hex(pos, pos + 4);
+                    pos += 4;
+                    if (Character.isHighSurrogate((char) value) && re.startsWith("\\u", pos)) {
+                        int low = hex(pos + 2, pos + 6);
+                        if (Character.isLowSurrogate((char) low)) {
+                            pos += 6;
+                            value = Character.toCodePoint((char) value, (char) low);
+                        }
+                    }
+                    return single(value);
+                }
+                case '0': {
+                    int value = 0;
+                    int digits = 0;
+                    while (more() && digits < 3 && peek() >= '0' && peek() <= '7' && value * 8 + peek() - '0' <= 0377) {
+                        value = value * 8 + take() - '0';
+                        digits++;
+                    }
+                    if (digits == 0) {
+                        throw error("Illegal octal escape sequence", at);
+                    }
+                    return single(value);
+                }
+                default: {
+                    if (Character.isLetterOrDigit(c)) {
+                        throw error("The escape \\" + Character.toString(c) + " is not supported by the DFA engine", at);
+                    }
+                    return single(c);
+                }
+            }
+        }
+
+        private int hex(int from, int to) {
+            try {
+                int value = Integer.parseInt(re.substring(from, Math.min(to, re.length())), 16);
+                if (to > re.length() || value > MAX_CODE_POINT) {
+                    throw new NumberFormatException();
+                }
+                return value;
+            } catch (NumberFormatException e) {
+                throw error("Illegal hexadecimal escape sequence", from);
+            }
+        }
+
+        /**
+         * Parses a character class after the opening bracket.
+         */
+        private int[] charClass() {
+            int at = pos - 1;
+            boolean negated = false;
+            if (more() && peek() == '^') {
+                negated = true;
+                pos++;
+            }
+            List<int[]> parts = new ArrayList<>();
+            boolean first = true;
+            while (true) {
+                if (!more()) {
+                    throw error("Unclosed character class", re.length() - 1);
+                }
+                int c = peek();
+                if (c == ']' && !first) {
+                    pos++;
+                    break;
+                }
+                if (c == '[' || re.startsWith("&&", pos)) {
+                    throw error("Nested classes and intersections are not supported by the DFA engine", pos);
+                }
+                first = false;
+                int[] item;
+                int low;
+                pos += Character.charCount(c);
+                if (c == '\\') {
+                    item = escape(true);
+                    if (item.length != 2 || item[0] != item[1]) {
+                        parts.add(item);
+                        continue;
+                    }
+                    low = item[0];
+                } else {
+                    low = c;
+                }
+                int hi = low;
+                if (re.startsWith("-", pos) && pos + 1 < re.length() && re.charAt(pos + 1) != ']') {
+                    pos++;
+                    int d = take();
+                    if (d == '\\') {
+                        int[] end = escape(true);
+                        if (end.length != 2 || end[0] != end[1]) {
+                            throw error("Illegal character range", pos);
+                        }
+                        hi = end[0];
+                    } else if (d == '[') {
+                        throw error("Nested classes and intersections are not supported by the DFA engine", pos);
+                    } else {
+                        hi = d;
+                    }
+                    if (hi < low) {
+                        throw error("Illegal character range", pos);
+                    }
+                }
+                parts.add(new int[] { low, hi });
+            }
+            int[] ranges = union(parts);
+            if (ranges.length == 0 && !negated) {
+                throw error("Empty character class", at);
+            }
+            return negated ? negate(ranges) : ranges;
+        }
+
+        private static int[] single(int c) {
+            return new int[] { c, c };
+        }
+
+        private static int[] union(List<int[]> parts) {
+            List<int[]> pairs = new ArrayList<>();
+            for (int[] part : parts) {
+                for (int i = 0; i < part.length; i += 2) {
+                    pairs.add(new int[] { part[i], part[i + 1] });
+                }
+            }
+            pairs.sort((a, b) -> Integer.compare(a[0], b[0]));
+            int[] result = new int[pairs.size() * 2];
+            int n = 0;
+            for (int[] p : pairs) {
+                if (n > 0 && p[0] <= result[n - 1] + 1) {
+                    result[n - 1] = Math.max(result[n - 1], p[1]);
+                } else {
+                    result[n++] = p[0];
+                    result[n++] = p[1];
+                }
+            }
+            return Arrays.copyOf(result, n);
+        }
+
+        private static int[] negate(int[] ranges) {
+            int[] result = new int[ranges.length + 2];
+            int n = 0;
+            int from = 0;
+            for (int i = 0; i < ranges.length; i += 2) {
+                if (ranges[i] > from) {
+                    result[n++] = from;
+                    result[n++] = ranges[i] - 1;
+                }
+                from = ranges[i + 1] + 1;
+            }
+            if (from <= MAX_CODE_POINT) {
+                result[n++] = from;
+                result[n++] = MAX_CODE_POINT;
+            }
+            return Arrays.copyOf(result, n);
+        }
+    }
+
+    // ---- NFA construction
+
+    /**
+     * The NFA while it is built. Nodes are compiled from the end of the expression backwards,
+     * each given the node that follows it.
+     */
+    private static class Program {
+
+        private final String regex;
+        byte[] type = new byte[256];
+        int[] arg = new int[256];
+        int[] high = new int[256];
+        int[] next = new int[256];
+        int size = 0;
+        int start;
+
+        Program(String regex) {
+            this.regex = regex;
+        }
+
+        int add(byte t, int a, int h, int n) {
+            if (size == type.length) {
+                if (size == MAX_NODES) {
+                    throw new PatternSyntaxException("The expression is too large for the DFA engine", regex, -1);
+                }
+                int capacity = Math.min(MAX_NODES, size * 2);
+                type = Arrays.copyOf(type, capacity);
+                arg = Arrays.copyOf(arg, capacity);
+                high = Arrays.copyOf(high, capacity);
+                next = Arrays.copyOf(next, capacity);
+            }
+            type[size] = t;
+            arg[size] = a;
+            high[size] = h;
+            next[size] = n;
+            return size++;
+        }
+
+        int compile(Node node, int follow) {
+            if (node instanceof Chars chars) {
+                return chars(chars.ranges(), follow);
+            }
+            if (node instanceof Concat concat) {
+                int n = follow;
+                for (int i = concat.items().size() - 1; i >= 0; i--) {
+                    n = compile(concat.items().get(i), n);
+                }
+                return n;
+            }
+            if (node instanceof Alt alt) {
+                int n = compile(alt.items().get(alt.items().size() - 1), follow);
+                for (int i = alt.items().size() - 2; i >= 0; i--) {
+                    n = add(SPLIT, n, 0, compile(alt.items().get(i), follow));
+                }
+                return n;
+            }
+            if (node instanceof Anchor anchor) {
+                return add(anchor.start() ? BOL : EOL, 0, 0, follow);
+            }
+            Repeat repeat = (Repeat) node;
+            int n = follow;
+            if (repeat.max() < 0) {
+                // A loop: the split either enters the body, which comes back to it, or leaves.
+                int loop = add(SPLIT, follow, 0, -1);
+                // The arrays may be reallocated while the body is compiled.
+                int body = compile(repeat.body(), loop);
+                next[loop] = body;
+                n = loop;
+            } else {
+                for (int i = repeat.min(); i < repeat.max(); i++) {
+                    n = add(SPLIT, follow, 0, compile(repeat.body(), n));
+                }
+            }
+            for (int i = 0; i < repeat.min(); i++) {
+                n = compile(repeat.body(), n);
+            }
+            return n;
+        }
+
+        /**
+         * Compiles a set of code points into alternative sequences of UTF-8 byte ranges.
+         */
+        private int chars(int[] ranges, int follow) {
+            List<int[]> sequences = new ArrayList<>();
+            for (int i = 0; i < ranges.length; i += 2) {
+                if (ranges[i] <= 0xD7FF) {
+                    utf8(ranges[i], Math.min(ranges[i + 1], 0xD7FF), sequences);
+                }
+                if (ranges[i + 1] >= 0xE000) {
+                    utf8(Math.max(ranges[i], 0xE000), ranges[i + 1], sequences);
+                }
+            }
+            if (sequences.isEmpty()) {
+                // Only surrogates, which never occur in UTF-8: a range that matches no byte.
+                return add(RANGE, 1, 0, follow);
+            }
+            int n = -1;
+            for (int i = sequences.size() - 1; i >= 0; i--) {
+                int[] seq = sequences.get(i);
+                int s = follow;
+                for (int j = seq.length - 2; j >= 0; j -= 2) {
+                    s = add(RANGE, seq[j], seq[j + 1], s);
+                }
+                n = n < 0 ? s : add(SPLIT, s, 0, n);
+            }
+            return n;
+        }
+
+        /**
+         * Splits a range of code points, without surrogates, into ranges whose UTF-8 encodings
+         * are sequences of byte ranges, and adds those sequences.
+         */
+        private static void utf8(int lo, int hi, List<int[]> out) {
+            if (lo > hi) {
+                return;
+            }
+            int[] limits = { 0x7F, 0x7FF, 0xFFFF };
+            for (int limit : limits) {
+                if (lo <= limit && hi > limit) {
+                    utf8(lo, limit, out);
+                    utf8(limit + 1, hi, out);
+                    return;
+                }
+            }
+            if (hi <= 0x7F) {
+                out.add(new int[] { lo, hi });
+                return;
+            }
+            for (int i = 1; i < 4; i++) {
+                int m = (1 << (6 * i)) - 1;
+                if ((lo & ~m) != (hi & ~m)) {
+                    if ((lo & m) != 0) {
+                        utf8(lo, lo | m, out);
+                        utf8((lo | m) + 1, hi, out);
+                        return;
+                    }
+                    if ((hi & m) != m) {
+                        utf8(lo, (hi & ~m) - 1, out);
+                        utf8(hi & ~m, hi, out);
+                        return;
+                    }
+                }
+            }
+            byte[] a = new String(Character.toChars(lo)).getBytes(StandardCharsets.UTF_8);
+            byte[] b = new String(Character.toChars(hi)).getBytes(StandardCharsets.UTF_8);
+            int[] seq = new int[a.length * 2];
+            for (int i = 0; i < a.length; i++) {
+                seq[2 * i] = a[i] & 0xff;
+                seq[2 * i + 1] = b[i] & 0xff;
+            }
+            out.add(seq);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.github.oogasawa.utility.filter;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * The {@code ByteScanner} class finds a byte, such as a newline or a tab, 64 bytes at a time.
+ *
+ * A block of 64 bytes is turned into a bitmask of the positions holding the byte, bit {@code i}
+ * standing for the byte at offset {@code i}, and the positions are then taken from the mask
+ * with {@link Long#numberOfTrailingZeros(long)}. The block may extend past the range of
+ * interest as long as it stays inside the array; the caller clears the bits beyond it.
+ *
+ * {@link #get()} returns a scanner built on the Vector API when the JVM was started with
+ * {@code --add-modules jdk.incubator.vector} and has vectors of at least 16 bytes, and a scalar
+ * one that compares eight bytes per {@code long} otherwise. Both are stateless and
+ * thread-safe.
+ */
+public abstract class ByteScanner {
+
+    /** The number of bytes covered by a mask. */
+    public static final int BLOCK = 64;
+
+    private static final ByteScanner DEFAULT = create();
+
+    /**
+     * Returns the fastest scanner available in this JVM.
+     *
+     * @return The scanner.
+     */
+    public static ByteScanner get() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns the scalar scanner, which needs no incubator module.
+     *
+     * @return The scanner.
+     */
+    public static ByteScanner scalar() {
+        return Swar.INSTANCE;
+    }
+
+    private static ByteScanner create() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            // Loaded by name so that the class is never linked without the module.
+            try {
+                ByteScanner vector = (ByteScanner) Class
+                        .forName("com.github.oogasawa.utility.filter.VectorByteScanner")
+                        .getDeclaredConstructor().newInstance();
+                if (vector.isUseful()) {
+                    return vector;
+                }
+            } catch (ReflectiveOperationException | LinkageError e) {
+                // Fall back to the scalar scanner.
+            }
+        }
+        return Swar.INSTANCE;
+    }
+
+    /**
+     * Returns the name of the implementation, for reports.
+     *
+     * @return The name.
+     */
+    public abstract String name();
+
+    /**
+     * Tests whether the implementation is faster than the scalar one on this machine.
+     */
+    boolean isUseful() {
+        return true;
+    }
+
+    /**
+     * Returns the positions of a byte in a block of {@link #BLOCK} bytes.
+     *
+     * @param buf The array; {@code off + BLOCK} must not exceed its length.
+     * @param off The start of the block.
+     * @param b The byte to find.
+     * @return The mask, bit {@code i} being set if {@code buf[off + i] == b}.
+     */
+    public abstract long mask(byte[] buf, int off, byte b);
+
+    /**
+     * Returns the positions of a byte in the part of a range that starts a block, falling back
+     * to a loop where a whole block would pass the end of the array.
+     *
+     * @param buf The array.
+     * @param off The start of the block.
+     * @param to The end of the range; positions from here on are cleared.
+     * @param b The byte to find.
+     * @return The mask, bit {@code i} being set if {@code off + i < to} and
+     *         {@code buf[off + i] == b}.
+     */
+    public final long mask(byte[] buf, int off, int to, byte b) {
+        if (off <= buf.length - BLOCK) {
+            return mask(buf, off, b) & below(to - off);
+        }
+        long mask = 0;
+        for (int i = Math.min(to - off, BLOCK) - 1; i >= 0; i--) {
+            mask = mask << 1 | (buf[off + i] == b ? 1 : 0);
+        }
+        return mask;
+    }
+
+    /**
+     * Returns the position of the first occurrence of a byte in a range, or -1.
+     *
+     * @param buf The array.
+     * @param from The start of the range.
+     * @param to The end of the range.
+     * @param b The byte to find.
+     * @return The position, or -1 if the range does not contain the byte.
+     */
+    public int indexOf(byte[] buf, int from, int to, byte b) {
+        for (int i = from; i < to; i += BLOCK) {
+            long m = mask(buf, i, to, b);
+            if (m != 0) {
+                return i + Long.numberOfTrailingZeros(m);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the mask of the positions below {@code n}, all of them if {@code n} is
+     * {@link #BLOCK} or more.
+     *
+     * @param n The number of positions.
+     * @return The mask.
+     */
+    public static long below(int n) {
+        return n >= BLOCK ? -1L : (1L << n) - 1;
+    }
+
+    /**
+     * Compares eight bytes at a time in a {@code long} (SIMD within a register).
+     */
+    private static final class Swar extends ByteScanner {
+
+        static final Swar INSTANCE = new Swar();
+
+        private static final VarHandle LONGS =
+                MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+        private static final long LOW7 = 0x7F7F7F7F7F7F7F7FL;
+        private static final long ONES = 0x0101010101010101L;
+
+        @Override
+        public String name() {
+            return "swar";
+        }
+
+        @Override
+        public long mask(byte[] buf, int off, byte b) {
+            long pattern = (b & 0xFFL) * ONES;
+            long mask = 0;
+            for (int k = 0; k < BLOCK; k += 8) {
+                long v = (long) LONGS.get(buf, off + k) ^ pattern;
+                // 0x80 in every zero byte of v and nothing elsewhere, without carries between bytes.
+                long zero = ~(((v & LOW7) + LOW7) | v | LOW7);
+                // Gather the eight high bits into the top byte.
+                mask |= ((zero >>> 7) * 0x0102040810204080L >>> 56) << k;
+            }
+            return mask;
+        }
+    }
+}
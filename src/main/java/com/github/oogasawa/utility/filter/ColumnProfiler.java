@@ -0,0 +1,234 @@
+package com.github.oogasawa.utility.filter;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * The {@code ColumnProfiler} class summarizes every column of a tab-separated input in one
+ * pass: how often it is empty or missing, its number of distinct values, the range of its
+ * lengths, the quantiles of its numbers and its most frequent values.
+ *
+ * Each column keeps fixed-size sketches, so the memory does not depend on the number of rows:
+ * a {@link HyperLogLog} for the distinct count, a {@link TDigest} for the quantiles and a
+ * {@link SpaceSaving} summary for the top values. The lines are tested by the workers of a
+ * {@link ParallelLineFilter}, each filling a profile of its own, and the profiles are merged at
+ * the end. Columns follow the rules of {@code getColumns}, so trailing empty fields count as
+ * missing; lengths are in bytes. Quantiles between the minimum and the maximum are estimates and
+ * are rounded to six significant digits. Only top values that certainly occur more than once and
+ * certainly rank above the values after them are printed, so a column of unique identifiers has
+ * none; a count that may be too high is printed as the range {@code value=min..max}.
+ */
+public class ColumnProfiler {
+
+    private static final int HLL_PRECISION = 14;
+    private static final double COMPRESSION = 100;
+    private static final int TOP_COUNTERS = 64;
+    private static final MathContext SIGNIFICANT = new MathContext(6);
+
+    private static final String HEADER = String.join("\t", "column", "present", "empty", "missing",
+            "nullRate", "distinct", "minLength", "maxLength", "numeric", "min", "p25", "median", "p75", "p99",
+            "max", "top");
+
+    private final int threads;
+    private final int maxColumns;
+    private final int top;
+
+    /**
+     * Creates a profiler.
+     *
+     * @param threads The number of threads profiling lines.
+     * @param maxColumns The number of leading columns profiled.
+     * @param top The number of most frequent values printed per column, at most 64.
+     * @throws IllegalArgumentException If a number is out of range.
+     */
+    public ColumnProfiler(int threads, int maxColumns, int top) {
+        if (maxColumns < 1) {
+            throw new IllegalArgumentException("The number of columns must be positive: " + maxColumns);
+        }
+        if (top < 0 || top > TOP_COUNTERS) {
+            throw new IllegalArgumentException("The number of top values must be between 0 and " + TOP_COUNTERS
+                    + ": " + top);
+        }
+        this.threads = threads;
+        this.maxColumns = maxColumns;
+        this.top = top;
+    }
+
+    /**
+     * Profiles an input and prints one line per column, after a header line.
+     *
+     * @param in The input.
+     * @param out The destination of the profile; it is flushed but not closed.
+     * @throws IOException If the input cannot be read or the output cannot be written.
+     */
+    public void run(InputStream in, OutputStream out) throws IOException {
+        List<Profile> profiles = Collections.synchronizedList(new ArrayList<>());
+        new ParallelLineFilter(threads, false).filter(new ByteLineReader(in),
+                new LineWriter(OutputStream.nullOutputStream()), () -> {
+                    Profile profile = new Profile();
+                    profiles.add(profile);
+                    return profile;
+                });
+
+        Profile total = new Profile();
+        for (Profile profile : profiles) {
+            total.merge(profile);
+        }
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        writer.write(HEADER);
+        writer.write(System.lineSeparator());
+        for (int c = 0; c < total.columns.size(); c++) {
+            writer.write(total.columns.get(c).format(c, total.rows));
+            writer.write(System.lineSeparator());
+        }
+        writer.flush();
+    }
+
+    /**
+     * The statistics of the lines seen by one thread.
+     */
+    private final class Profile implements ParallelLineFilter.LinePredicate {
+
+        final TsvTokenizer tokenizer = new TsvTokenizer(maxColumns - 1);
+        final List<ColumnStats> columns = new ArrayList<>();
+        long rows = 0;
+
+        @Override
+        public boolean test(byte[] buf, int off, int len) {
+            rows++;
+            int fields = tokenizer.tokenize(buf, off, len);
+            while (columns.size() < fields) {
+                columns.add(new ColumnStats());
+            }
+            for (int c = 0; c < fields; c++) {
+                columns.get(c).add(buf, tokenizer.start(c), tokenizer.length(c));
+            }
+            return false;
+        }
+
+        void merge(Profile other) {
+            rows += other.rows;
+            while (columns.size() < other.columns.size()) {
+                columns.add(new ColumnStats());
+            }
+            for (int c = 0; c < other.columns.size(); c++) {
+                columns.get(c).merge(other.columns.get(c));
+            }
+        }
+    }
+
+    /**
+     * The sketches of one column.
+     */
+    private final class ColumnStats {
+
+        long present = 0;
+        long empty = 0;
+        int minLength = Integer.MAX_VALUE;
+        int maxLength = 0;
+        final HyperLogLog distinct = new HyperLogLog(HLL_PRECISION);
+        final TDigest numbers = new TDigest(COMPRESSION);
+        final SpaceSaving frequent = new SpaceSaving(TOP_COUNTERS);
+
+        void add(byte[] buf, int off, int len) {
+            present++;
+            if (len == 0) {
+                empty++;
+            }
+            minLength = Math.min(minLength, len);
+            maxLength = Math.max(maxLength, len);
+            long hash = Hash64.hash(buf, off, len);
+            distinct.add(hash);
+            frequent.add(hash, buf, off, len);
+            numbers.add(parseNumber(buf, off, len));
+        }
+
+        void merge(ColumnStats other) {
+            present += other.present;
+            empty += other.empty;
+            minLength = Math.min(minLength, other.minLength);
+            maxLength = Math.max(maxLength, other.maxLength);
+            distinct.merge(other.distinct);
+            numbers.merge(other.numbers);
+            frequent.merge(other.frequent);
+        }
+
+        String format(int column, long rows) {
+            long missing = rows - present;
+            boolean numeric = numbers.count() > 0;
+            List<String> fields = new ArrayList<>(List.of(
+                    Integer.toString(column),
+                    Long.toString(present),
+                    Long.toString(empty),
+                    Long.toString(missing),
+                    String.format("%.4f", rows == 0 ? 0.0 : (double) (empty + missing) / rows),
+                    Long.toString(distinct.estimate()),
+                    present == 0 ? "" : Integer.toString(minLength),
+                    present == 0 ? "" : Integer.toString(maxLength),
+                    Long.toString(numbers.count())));
+            fields.add(numeric ? GroupBy.format(numbers.min()) : "");
+            for (double q : new double[] { 0.25, 0.5, 0.75, 0.99 }) {
+                fields.add(numeric ? estimate(numbers.quantile(q)) : "");
+            }
+            fields.add(numeric ? GroupBy.format(numbers.max()) : "");
+            fields.add(frequent.certainTop(top).stream()
+                    .takeWhile(e -> e.guaranteed() > 1)
+                    .map(e -> e.value() + "=" + (e.error() == 0 ? "" : e.guaranteed() + "..") + e.count())
+                    .collect(Collectors.joining(", ")));
+            return String.join("\t", fields);
+        }
+    }
+
+    private static String estimate(double value) {
+        return new BigDecimal(value).round(SIGNIFICANT).stripTrailingZeros().toPlainString();
+    }
+
+    /**
+     * Parses a decimal number, returning NaN for anything else; names such as NaN and Infinity
+     * are not numbers here.
+     */
+    static double parseNumber(byte[] b, int off, int len) {
+        int p = off;
+        int end = off + len;
+        boolean negative = p < end && b[p] == '-';
+        if (p < end && (b[p] == '-' || b[p] == '+')) {
+            p++;
+        }
+        if (p == end) {
+            return Double.NaN;
+        }
+        if (end - p <= 15) {
+            long value = 0;
+            int q = p;
+            while (q < end && b[q] >= '0' && b[q] <= '9') {
+                value = value * 10 + (b[q++] - '0');
+            }
+            if (q == end) {
+                return negative ? -value : value;
+            }
+        }
+        for (int q = p; q < end; q++) {
+            byte c = b[q];
+            if (!(c >= '0' && c <= '9' || c == '.' || c == 'e' || c == 'E' || c == '-' || c == '+')) {
+                return Double.NaN;
+            }
+        }
+        try {
+            return Double.parseDouble(new String(b, off, len, StandardCharsets.ISO_8859_1));
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+}
@@ -0,0 +1,382 @@
+package com.github.oogasawa.utility.filter;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * The {@code CompressedInput} class opens an input that may be compressed with gzip, detecting
+ * the format from its first bytes.
+ *
+ * BGZF, the blocked gzip of bgzip and samtools, records the compressed size of every block of at
+ * most 64 KB in its header, so the blocks are cut by one thread and inflated by several,
+ * and the results are read back in order. Other gzip input, including several concatenated
+ * members, has no such sizes and is inflated by a single background thread, which still
+ * overlaps with the processing of the lines. Input that is not gzip is returned as it is. Only
+ * {@link Inflater} of the JDK is used.
+ */
+public final class CompressedInput {
+
+    private static final int HEADER_SIZE = 18;
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    private CompressedInput() {
+    }
+
+    /**
+     * Opens a stream, decompressing it if it is gzip or BGZF.
+     *
+     * @param in The stream; it is closed when the returned stream is closed.
+     * @param threads The number of threads inflating BGZF blocks.
+     * @return The decompressed stream.
+     * @throws IOException If the stream cannot be read.
+     */
+    public static InputStream open(InputStream in, int threads) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in, 1 << 16);
+        buffered.mark(HEADER_SIZE);
+        byte[] header = buffered.readNBytes(HEADER_SIZE);
+        buffered.reset();
+        if (bgzfBlockSize(header) > 0) {
+            return new ChunkStream(Math.max(1, threads) * 4, buffered).bgzf(Math.max(1, threads));
+        }
+        if (isGzip(header)) {
+            return new ChunkStream(4, buffered).gzip();
+        }
+        return buffered;
+    }
+
+    /**
+     * Opens a file, decompressing it if it is gzip or BGZF.
+     *
+     * @param file The file.
+     * @param threads The number of threads inflating BGZF blocks.
+     * @return The decompressed stream.
+     * @throws IOException If the file cannot be read.
+     */
+    public static InputStream open(Path file, int threads) throws IOException {
+        return open(Files.newInputStream(file), threads);
+    }
+
+    /**
+     * Opens files as one input, one after another, each decompressed if it is gzip or BGZF.
+     *
+     * Unlike cat, a newline is inserted after a file that does not end with one, so that its
+     * last line stays separate from the first line of the next file. Files are opened one at a
+     * time, when the previous one has been read.
+     *
+     * @param files The files.
+     * @param threads The number of threads inflating BGZF blocks.
+     * @return The concatenated stream.
+     */
+    public static InputStream concatenate(List<Path> files, int threads) {
+        return new Concatenation(files.iterator(), threads);
+    }
+
+    /**
+     * Tests whether bytes start with the gzip magic number.
+     *
+     * @param header The first bytes of the input.
+     * @return {@code true} if the input is gzip.
+     */
+    public static boolean isGzip(byte[] header) {
+        return header.length >= 2 && (header[0] & 0xff) == 0x1f && (header[1] & 0xff) == 0x8b;
+    }
+
+    /**
+     * Returns the total size of a BGZF block from its header, or -1 if the header is not that
+     * of a BGZF block. Only the usual layout, with the BC subfield alone in the extra field, is
+     * recognized here; {@link #readBlock} accepts any layout.
+     */
+    private static int bgzfBlockSize(byte[] h) {
+        if (h.length < HEADER_SIZE || !isGzip(h) || h[2] != 8 || (h[3] & 4) == 0) {
+            return -1;
+        }
+        if (u16(h, 10) != 6 || h[12] != 'B' || h[13] != 'C' || u16(h, 14) != 2) {
+            return -1;
+        }
+        return u16(h, 16) + 1;
+    }
+
+    private static int u16(byte[] b, int off) {
+        return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8;
+    }
+
+    private static int u32(byte[] b, int off) {
+        return u16(b, off) | u16(b, off + 2) << 16;
+    }
+
+    /**
+     * Reads a whole BGZF block, or returns {@code null} at the end of the input.
+     */
+    private static byte[] readBlock(InputStream in) throws IOException {
+        byte[] fixed = in.readNBytes(12);
+        if (fixed.length == 0) {
+            return null;
+        }
+        if (fixed.length < 12 || !isGzip(fixed) || (fixed[3] & 4) == 0) {
+            throw new IOException("Not a BGZF block");
+        }
+        int xlen = u16(fixed, 10);
+        byte[] extra = in.readNBytes(xlen);
+        int size = -1;
+        for (int p = 0; p + 4 <= extra.length; p += 4 + u16(extra, p + 2)) {
+            if (extra[p] == 'B' && extra[p + 1] == 'C' && u16(extra, p + 2) == 2) {
+                size = u16(extra, p + 4) + 1;
+            }
+        }
+        if (size < 12 + xlen + 8) {
+            throw new IOException("Not a BGZF block");
+        }
+        byte[] block = new byte[size];
+        System.arraycopy(fixed, 0, block, 0, 12);
+        System.arraycopy(extra, 0, block, 12, xlen);
+        int rest = size - 12 - xlen;
+        if (in.readNBytes(block, 12 + xlen, rest) < rest) {
+            throw new EOFException("Truncated BGZF block");
+        }
+        return block;
+    }
+
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    /**
+     * Inflates a BGZF block and checks its CRC and size.
+     */
+    private static byte[] inflate(byte[] block) throws IOException {
+        int xlen = u16(block, 10);
+        int dataStart = 12 + xlen;
+        int dataEnd = block.length - 8;
+        int crc = u32(block, dataEnd);
+        int size = u32(block, dataEnd + 4);
+        if (size < 0 || size > 1 << 16) {
+            throw new IOException("Corrupt BGZF block: invalid size " + Integer.toUnsignedString(size));
+        }
+        byte[] data = new byte[size];
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setInput(block, dataStart, dataEnd - dataStart);
+        try {
+            int n = 0;
+            while (n < size && !inflater.finished()) {
+                int k = inflater.inflate(data, n, size - n);
+                if (k == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += k;
+            }
+            if (n != size) {
+                throw new IOException("Corrupt BGZF block: expected " + size + " bytes, got " + n);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt BGZF block: " + e.getMessage(), e);
+        }
+        CRC32 check = new CRC32();
+        check.update(data);
+        if ((int) check.getValue() != crc) {
+            throw new IOException("Corrupt BGZF block: CRC mismatch");
+        }
+        return data;
+    }
+
+    /**
+     * A stream of decompressed chunks produced by other threads and read back in order.
+     */
+    private static final class ChunkStream extends InputStream {
+
+        private static final byte[] END = new byte[0];
+
+        private final BlockingQueue<Future<byte[]>> chunks;
+        private final InputStream source;
+        private Thread producer;
+        private ExecutorService pool;
+        private byte[] chunk = new byte[0];
+        private int pos = 0;
+        private boolean done = false;
+
+        ChunkStream(int capacity, InputStream source) {
+            this.chunks = new ArrayBlockingQueue<>(capacity);
+            this.source = source;
+        }
+
+        ChunkStream bgzf(int threads) {
+            pool = Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "bgzf-inflater");
+                t.setDaemon(true);
+                return t;
+            });
+            return start(() -> {
+                byte[] block;
+                while ((block = readBlock(source)) != null) {
+                    byte[] b = block;
+                    put(pool.submit(() -> inflate(b)));
+                }
+            });
+        }
+
+        ChunkStream gzip() {
+            return start(() -> {
+                InputStream gz = new GZIPInputStream(source, 1 << 16);
+                while (true) {
+                    byte[] data = gz.readNBytes(CHUNK_SIZE);
+                    if (data.length == 0) {
+                        break;
+                    }
+                    put(CompletableFuture.completedFuture(data));
+                }
+            });
+        }
+
+        private interface Producer {
+            void run() throws IOException, InterruptedException;
+        }
+
+        private ChunkStream start(Producer body) {
+            producer = new Thread(() -> {
+                try {
+                    body.run();
+                    put(CompletableFuture.completedFuture(END));
+                } catch (InterruptedException e) {
+                    // The stream was closed.
+                } catch (IOException | RuntimeException e) {
+                    try {
+                        put(CompletableFuture.failedFuture(e));
+                    } catch (InterruptedException ignored) {
+                        // The stream was closed.
+                    }
+                }
+            }, "gzip-reader");
+            producer.setDaemon(true);
+            producer.start();
+            return this;
+        }
+
+        private void put(Future<byte[]> future) throws InterruptedException {
+            chunks.put(future);
+        }
+
+        private boolean fill() throws IOException {
+            while (!done && pos == chunk.length) {
+                try {
+                    chunk = chunks.take().get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException io) {
+                        throw io;
+                    }
+                    throw new IOException(e.getCause());
+                }
+                pos = 0;
+                done = chunk == END;
+            }
+            return !done;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? chunk[pos++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int n = Math.min(len, chunk.length - pos);
+            System.arraycopy(chunk, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            producer.interrupt();
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+            chunks.clear();
+            source.close();
+        }
+    }
+
+    /**
+     * Reads files one after another, ending each with a newline.
+     */
+    private static final class Concatenation extends InputStream {
+
+        private final Iterator<Path> files;
+        private final int threads;
+        private InputStream current = null;
+        private byte last = '\n';
+        private boolean newlineDue = false;
+
+        Concatenation(Iterator<Path> files, int threads) {
+            this.files = files;
+            this.threads = threads;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (true) {
+                if (newlineDue) {
+                    newlineDue = false;
+                    last = '\n';
+                    b[off] = '\n';
+                    return 1;
+                }
+                if (current == null) {
+                    if (!files.hasNext()) {
+                        return -1;
+                    }
+                    current = open(files.next(), threads);
+                }
+                int n = current.read(b, off, len);
+                if (n > 0) {
+                    last = b[off + n - 1];
+                    return n;
+                }
+                current.close();
+                current = null;
+                newlineDue = last != '\n';
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (current != null) {
+                current.close();
+                current = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.github.oogasawa.utility.filter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * The {@code CsvReader} class converts CSV as described in RFC 4180 to tab-separated lines in a
+ * single pass over the undecoded bytes.
+ *
+ * A field may be quoted with {@code "}, in which case it may contain separators, line breaks
+ * and quotes written twice. Records end with {@code \n} or {@code \r\n} outside quotes, and a
+ * byte order mark at the start of the input is skipped. Lenient as most readers are, a quote
+ * inside an unquoted field is kept, and text after the closing quote of a field is appended to
+ * it. An unterminated quote at the end of the input is an error.
+ *
+ * So that every record stays on one line with one field per column, a tab, line break or
+ * backslash in a field is written as {@code \t}, {@code \n}, {@code \r} or {@code \\}, the
+ * escapes of PostgreSQL's text format. Every record is handed to a
+ * {@link ByteLineReader.LineConsumer} as a range of a shared array, without a terminator.
+ */
+public class CsvReader {
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private static final int FIELD_START = 0;
+    private static final int UNQUOTED = 1;
+    private static final int QUOTED = 2;
+    /** After a quote in a quoted field, which either closes it or is the first of a pair. */
+    private static final int QUOTE = 3;
+
+    private final InputStream in;
+    private final byte separator;
+    /** The bytes copied to the output as they are. */
+    private final boolean[] plain = new boolean[256];
+
+    private byte[] record = new byte[1024];
+    private int length = 0;
+
+    /**
+     * Creates a reader.
+     *
+     * @param in The stream to read; it is not closed by this class.
+     * @param separator The field separator.
+     * @throws IllegalArgumentException If the separator is a quote or a line break.
+     */
+    public CsvReader(InputStream in, byte separator) {
+        if (separator == '"' || separator == '\n' || separator == '\r') {
+            throw new IllegalArgumentException("Invalid CSV separator: " + (char) separator);
+        }
+        this.in = in;
+        this.separator = separator;
+        Arrays.fill(plain, true);
+        for (byte b : new byte[] { separator, '"', '\n', '\r', '\t', '\\' }) {
+            plain[b & 0xFF] = false;
+        }
+    }
+
+    /**
+     * Returns the separator given as a character or as a regular expression matching a single
+     * character, such as {@code ;}, {@code \t} or {@code \|}.
+     *
+     * @param delimiter The separator.
+     * @return The separator byte.
+     * @throws IllegalArgumentException If the separator is not a single byte.
+     */
+    public static byte separator(String delimiter) {
+        byte[] literal = FieldSplitter.literal(delimiter);
+        if (literal == null && delimiter.length() == 1) {
+            literal = new byte[] { (byte) delimiter.charAt(0) };
+        }
+        if (literal == null || literal.length != 1 || literal[0] < 0) {
+            throw new IllegalArgumentException("The CSV separator must be a single ASCII character: " + delimiter);
+        }
+        return literal[0];
+    }
+
+    /**
+     * Reads the stream to the end, passing every record to the consumer as a tab-separated
+     * line.
+     *
+     * @param consumer The consumer of the records.
+     * @return The number of records read.
+     * @throws IOException If the stream cannot be read, ends in a quoted field, or the consumer
+     *         fails.
+     */
+    public long forEachRecord(ByteLineReader.LineConsumer consumer) throws IOException {
+        byte[] buf = new byte[BUFFER_SIZE];
+        long records = 0;
+        int state = FIELD_START;
+        boolean cr = false;
+        boolean start = true;
+        int n;
+        while ((n = in.read(buf, 0, buf.length)) >= 0) {
+            int i = 0;
+            if (start) {
+                start = false;
+                if (n >= 3 && buf[0] == (byte) 0xEF && buf[1] == (byte) 0xBB && buf[2] == (byte) 0xBF) {
+                    i = 3;
+                }
+            }
+            while (i < n) {
+                if (!cr && (state == UNQUOTED || state == QUOTED)) {
+                    // Copy the run of ordinary bytes at once.
+                    int j = i;
+                    while (j < n && plain[buf[j] & 0xFF]) {
+                        j++;
+                    }
+                    append(buf, i, j - i);
+                    i = j;
+                    if (i == n) {
+                        break;
+                    }
+                }
+
+                byte c = buf[i++];
+                if (cr) {
+                    cr = false;
+                    if (c == '\n') {
+                        consumer.accept(record, 0, length);
+                        records++;
+                        length = 0;
+                        state = FIELD_START;
+                        continue;
+                    }
+                    // A lone carriage return is part of the field.
+                    escape((byte) '\r');
+                    state = UNQUOTED;
+                }
+                if (state == QUOTED) {
+                    if (c == '"') {
+                        state = QUOTE;
+                    } else {
+                        escape(c);
+                    }
+                    continue;
+                }
+                if (state == QUOTE) {
+                    if (c == '"') {
+                        append(c);
+                        state = QUOTED;
+                        continue;
+                    }
+                    state = UNQUOTED;
+                }
+                if (c == separator) {
+                    append((byte) '\t');
+                    state = FIELD_START;
+                } else if (c == '\n') {
+                    consumer.accept(record, 0, length);
+                    records++;
+                    length = 0;
+                    state = FIELD_START;
+                } else if (c == '\r') {
+                    cr = true;
+                } else if (c == '"' && state == FIELD_START) {
+                    state = QUOTED;
+                } else {
+                    escape(c);
+                    state = UNQUOTED;
+                }
+            }
+        }
+        if (state == QUOTED) {
+            throw new IOException("Unterminated quoted field in CSV record " + (records + 1));
+        }
+        if (length > 0 || state != FIELD_START) {
+            consumer.accept(record, 0, length);
+            records++;
+        }
+        return records;
+    }
+
+    /**
+     * Appends a byte of a field, escaping tabs, line breaks and backslashes.
+     */
+    private void escape(byte c) {
+        switch (c) {
+            case '\t' -> append((byte) '\\', (byte) 't');
+            case '\n' -> append((byte) '\\', (byte) 'n');
+            case '\r' -> append((byte) '\\', (byte) 'r');
+            case '\\' -> append((byte) '\\', (byte) '\\');
+            default -> append(c);
+        }
+    }
+
+    private void append(byte c) {
+        if (length == record.length) {
+            record = Arrays.copyOf(record, record.length * 2);
+        }
+        record[length++] = c;
+    }
+
+    private void append(byte a, byte b) {
+        append(a);
+        append(b);
+    }
+
+    private void append(byte[] b, int off, int len) {
+        if (length + len > record.length) {
+            record = Arrays.copyOf(record, Math.max(length + len, record.length * 2));
+        }
+        System.arraycopy(b, off, record, length, len);
+        length += len;
+    }
+}
@@ -0,0 +1,323 @@
+package com.github.oogasawa.utility.filter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * The {@code Deduplicator} class prints the first occurrence of every line, or of every key, of
+ * an input of any size, keeping the input order and without sorting.
+ *
+ * The key of a line, the whole line or its key columns joined with tabs, is reduced to a 128-bit
+ * fingerprint by two independent {@link Hash64} functions, and the fingerprints seen so far are
+ * kept in a {@link FingerprintSet}, so memory depends on the number of distinct keys but not on
+ * their length. Two different keys are taken for duplicates only if all 128 bits collide, which
+ * for a billion keys happens with a probability of about {@code 10^-21}.
+ *
+ * When the table reaches the memory budget, it stops growing. A later line whose fingerprint is
+ * in the table is still a duplicate, but any other line may repeat a key that was not kept, so
+ * it is written to one of 16 spill files chosen by its fingerprint, with its line number. All
+ * lines printed so far precede the spilled ones. After the input ends, each spill file is
+ * deduplicated on its own, spilling again if needed, and the survivors of all files are merged
+ * by line number, so the output is the same as with unlimited memory.
+ */
+public class Deduplicator {
+
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+    private static final long HIGH_SEED = 0x510E527FADE682D1L;
+    private static final long LOW_SEED = 0x9B05688C2B3E6C1FL;
+    private static final int SPILL_BITS = 4;
+    private static final int SPILL_FILES = 1 << SPILL_BITS;
+    /** Each depth partitions by four more bits of the second half of the fingerprint. */
+    private static final int MAX_DEPTH = 64 / SPILL_BITS - 1;
+
+    private final List<Integer> keyColumns;
+    private final long memoryBudget;
+    private final Path tmpDir;
+
+    private Path spillDir = null;
+    private int spillFiles = 0;
+    private long lines = 0;
+    private long unique = 0;
+    private long spilledLines = 0;
+    private long peakMemory = 0;
+    private long nanos = 0;
+
+    /**
+     * Creates a deduplicator.
+     *
+     * @param keyColumns The key columns, or an empty list to compare whole lines.
+     * @param memoryBudget The memory the fingerprint table may use before lines are spilled.
+     * @param tmpDir The directory for spill files.
+     */
+    public Deduplicator(List<Integer> keyColumns, long memoryBudget, Path tmpDir) {
+        this.keyColumns = keyColumns;
+        this.memoryBudget = memoryBudget;
+        this.tmpDir = tmpDir;
+    }
+
+    /**
+     * Deduplicates an input.
+     *
+     * @param in The input.
+     * @param out The destination of the first occurrences; it is flushed but not closed.
+     * @throws IOException If the input cannot be read, the output cannot be written, or the
+     *         spill files cannot be written.
+     */
+    public void run(InputStream in, OutputStream out) throws IOException {
+        long start = System.nanoTime();
+        OutputStream buffered = new BufferedOutputStream(out, 1 << 16);
+        KeyExtractor extractor = keyColumns.isEmpty() ? null : new KeyExtractor(keyColumns);
+        try {
+            dedup(consumer -> new ByteLineReader(in).forEachLine((buf, off, len) -> {
+                long high;
+                long low;
+                if (extractor == null) {
+                    high = Hash64.hash(buf, off, len, HIGH_SEED);
+                    low = Hash64.hash(buf, off, len, LOW_SEED);
+                } else {
+                    int n = extractor.extract(buf, off, len);
+                    high = Hash64.hash(extractor.key, 0, n, HIGH_SEED);
+                    low = Hash64.hash(extractor.key, 0, n, LOW_SEED);
+                }
+                consumer.accept(lines++, high, low, buf, off, len);
+            }), 0, (line, high, low, buf, off, len) -> {
+                buffered.write(buf, off, len);
+                buffered.write(NEWLINE);
+                unique++;
+            });
+        } finally {
+            if (spillDir != null) {
+                try (var files = Files.list(spillDir)) {
+                    for (Path file : files.toList()) {
+                        Files.deleteIfExists(file);
+                    }
+                }
+                Files.deleteIfExists(spillDir);
+                spillDir = null;
+            }
+        }
+        buffered.flush();
+        nanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Prints the statistics of the last run to standard error.
+     */
+    public void printReport() {
+        long duplicates = lines - unique;
+        System.err.println(String.format("dedup: %d lines, %d unique, %d duplicates (%.2f%%) in %.3f s (%s)",
+                lines, unique, duplicates, lines == 0 ? 0.0 : 100.0 * duplicates / lines, nanos / 1e9,
+                nanos == 0 ? "-" : String.format("%.0f lines/s", lines * 1e9 / nanos)));
+        if (spilledLines > 0) {
+            System.err.println(String.format("spilled: %d lines to %d files", spilledLines, spillFiles));
+        }
+        System.err.println("memory: " + MemorySize.format(peakMemory) + " of fingerprints at peak");
+    }
+
+    /**
+     * Returns the number of lines printed by the last run.
+     *
+     * @return The number of first occurrences.
+     */
+    public long getUnique() {
+        return unique;
+    }
+
+    /**
+     * Returns the number of lines written to spill files by the last run, at all depths.
+     *
+     * @return 0 if all fingerprints fitted into memory.
+     */
+    public long getSpilledLines() {
+        return spilledLines;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Receives lines with their numbers and fingerprints.
+     */
+    @FunctionalInterface
+    private interface RecordConsumer {
+        void accept(long line, long high, long low, byte[] buf, int off, int len) throws IOException;
+    }
+
+    /**
+     * A readable sequence of lines, in order of their numbers.
+     */
+    private interface Source {
+        void forEach(RecordConsumer consumer) throws IOException;
+    }
+
+    /**
+     * Passes the first occurrence of every fingerprint of a source to a sink, in line order.
+     */
+    private void dedup(Source source, int depth, RecordConsumer sink) throws IOException {
+        FingerprintSet[] seen = { new FingerprintSet(memoryBudget) };
+        DataOutputStream[] spills = new DataOutputStream[SPILL_FILES];
+        Path[] spillPaths = new Path[SPILL_FILES];
+        int shift = 64 - SPILL_BITS * (depth + 1);
+        try {
+            source.forEach((line, high, low, buf, off, len) -> {
+                FingerprintSet set = seen[0];
+                if (!set.isFull()) {
+                    if (set.add(high, low)) {
+                        sink.accept(line, high, low, buf, off, len);
+                    }
+                    return;
+                }
+                if (set.contains(high, low)) {
+                    return;
+                }
+                if (depth == MAX_DEPTH) {
+                    throw new IOException("Too many distinct keys for the memory budget");
+                }
+                int p = (int) (low >>> shift) & (SPILL_FILES - 1);
+                if (spills[p] == null) {
+                    spillPaths[p] = newSpillFile();
+                    spills[p] = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(spillPaths[p]),
+                            1 << 16));
+                }
+                writeRecord(spills[p], line, high, low, buf, off, len);
+                spilledLines++;
+            });
+        } finally {
+            for (DataOutputStream spill : spills) {
+                if (spill != null) {
+                    spill.close();
+                }
+            }
+        }
+        peakMemory = Math.max(peakMemory, seen[0].memoryUsage());
+        seen[0] = null;
+
+        // Deduplicate every spill file on its own, then merge the survivors by line number.
+        Path[] results = new Path[SPILL_FILES];
+        for (int p = 0; p < SPILL_FILES; p++) {
+            if (spillPaths[p] == null) {
+                continue;
+            }
+            results[p] = newSpillFile();
+            Path spill = spillPaths[p];
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(results[p]),
+                    1 << 16))) {
+                dedup(consumer -> {
+                    try (RecordReader reader = new RecordReader(spill)) {
+                        while (reader.next()) {
+                            consumer.accept(reader.line, reader.high, reader.low, reader.buf, 0, reader.len);
+                        }
+                    }
+                }, depth + 1, (line, high, low, buf, off, len) -> writeRecord(out, line, high, low, buf, off, len));
+            }
+            Files.delete(spill);
+        }
+        mergeByLine(results, sink);
+    }
+
+    private void mergeByLine(Path[] results, RecordConsumer sink) throws IOException {
+        RecordReader[] readers = new RecordReader[results.length];
+        try {
+            for (int p = 0; p < results.length; p++) {
+                if (results[p] != null) {
+                    readers[p] = new RecordReader(results[p]);
+                    if (!readers[p].next()) {
+                        readers[p].close();
+                        readers[p] = null;
+                    }
+                }
+            }
+            while (true) {
+                int min = -1;
+                for (int p = 0; p < readers.length; p++) {
+                    if (readers[p] != null && (min < 0 || readers[p].line < readers[min].line)) {
+                        min = p;
+                    }
+                }
+                if (min < 0) {
+                    break;
+                }
+                RecordReader r = readers[min];
+                sink.accept(r.line, r.high, r.low, r.buf, 0, r.len);
+                if (!r.next()) {
+                    r.close();
+                    readers[min] = null;
+                }
+            }
+        } finally {
+            for (RecordReader r : readers) {
+                if (r != null) {
+                    r.close();
+                }
+            }
+        }
+        for (Path result : results) {
+            if (result != null) {
+                Files.delete(result);
+            }
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, long line, long high, long low, byte[] buf, int off,
+            int len) throws IOException {
+        out.writeLong(line);
+        out.writeLong(high);
+        out.writeLong(low);
+        out.writeInt(len);
+        out.write(buf, off, len);
+    }
+
+    private Path newSpillFile() throws IOException {
+        if (spillDir == null) {
+            Files.createDirectories(tmpDir);
+            spillDir = Files.createTempDirectory(tmpDir, "dedup");
+        }
+        return spillDir.resolve("spill-" + spillFiles++);
+    }
+
+    /**
+     * Reads the records of a spill file.
+     */
+    private static final class RecordReader implements AutoCloseable {
+        private final DataInputStream in;
+        long line;
+        long high;
+        long low;
+        byte[] buf = new byte[256];
+        int len;
+
+        RecordReader(Path path) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16));
+        }
+
+        boolean next() throws IOException {
+            try {
+                line = in.readLong();
+            } catch (EOFException e) {
+                return false;
+            }
+            high = in.readLong();
+            low = in.readLong();
+            len = in.readInt();
+            if (buf.length < len) {
+                buf = new byte[Math.max(len, buf.length * 2)];
+            }
+            in.readFully(buf, 0, len);
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
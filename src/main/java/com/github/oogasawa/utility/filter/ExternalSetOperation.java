@@ -0,0 +1,163 @@
+package com.github.oogasawa.utility.filter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The {@code ExternalSetOperation} class computes set operations on files that are too large
+ * to be loaded into a {@code TreeSet}.
+ *
+ * Each input is sorted with an {@link ExternalSorter}, which spills sorted runs to temporary
+ * files whenever its share of the memory budget is exhausted. The operation itself is then a
+ * single streaming merge of the sorted inputs (see {@link SortedSetAlgebra}), producing the
+ * same ordered output as {@link SetOperation#print(java.util.TreeSet)}. Lines are decoded as
+ * ISO-8859-1, one character per byte, so that they are ordered as bytes and any input, valid
+ * UTF-8 or not, is written back unchanged when the result is encoded with the same charset.
+ */
+public class ExternalSetOperation {
+
+    private final long memoryBudget;
+    private final Path tmpDir;
+
+    private int runCount = 0;
+    private long bytesSpilled = 0;
+    private long mergeMillis = 0;
+
+    /**
+     * Creates an external set operation.
+     *
+     * @param memoryBudget The total number of heap bytes available for buffering lines.
+     *                     The budget is shared evenly by the operands.
+     * @param tmpDir The directory in which sorted runs are created.
+     */
+    public ExternalSetOperation(long memoryBudget, Path tmpDir) {
+        this.memoryBudget = memoryBudget;
+        this.tmpDir = tmpDir;
+    }
+
+    /**
+     * Computes {@code file1 - file2} and prints the result to standard output.
+     *
+     * @param file1 The first file.
+     * @param file2 The second file.
+     * @throws IOException If an input cannot be read or a run cannot be written.
+     */
+    public void difference(Path file1, Path file2) throws IOException {
+        apply(SetOperator.DIFFERENCE, List.of(file1, file2));
+    }
+
+    /**
+     * Computes {@code file1 - file2} and writes the result, one line per element, in ascending order.
+     *
+     * @param file1 The first file.
+     * @param file2 The second file.
+     * @param out The destination of the result.
+     * @throws IOException If an input cannot be read or a run cannot be written.
+     */
+    public void difference(Path file1, Path file2, Writer out) throws IOException {
+        apply(SetOperator.DIFFERENCE, List.of(file1, file2), out);
+    }
+
+    /**
+     * Applies an operator to the given files and prints the result to standard output.
+     *
+     * @param op The operator to apply.
+     * @param files The input files.
+     * @throws IOException If an input cannot be read or a run cannot be written.
+     */
+    public void apply(SetOperator op, List<Path> files) throws IOException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.ISO_8859_1));
+        apply(op, files, out);
+        out.flush();
+    }
+
+    /**
+     * Applies an operator to the given files and writes the result in ascending order.
+     *
+     * The memory budget is divided evenly between the inputs, which are sorted one after
+     * another before they are merged.
+     *
+     * @param op The operator to apply.
+     * @param files The input files.
+     * @param out The destination of the result.
+     * @throws IOException If an input cannot be read or a run cannot be written.
+     */
+    public void apply(SetOperator op, List<Path> files, Writer out) throws IOException {
+        List<ExternalSorter> sorters = new ArrayList<>();
+        try {
+            List<SortedLineSource> sources = new ArrayList<>();
+            for (Path file : files) {
+                ExternalSorter sorter = new ExternalSorter(memoryBudget / files.size(), tmpDir);
+                sorters.add(sorter);
+                sources.add(sort(file, sorter));
+            }
+
+            long start = System.nanoTime();
+            SortedSetAlgebra.apply(op, sources, out);
+            mergeMillis = (System.nanoTime() - start) / 1_000_000;
+
+            runCount = 0;
+            bytesSpilled = 0;
+            for (ExternalSorter sorter : sorters) {
+                runCount += sorter.getRunCount();
+                bytesSpilled += sorter.getBytesSpilled();
+            }
+        } finally {
+            for (ExternalSorter sorter : sorters) {
+                sorter.close();
+            }
+        }
+    }
+
+    /**
+     * Prints the statistics of the last operation to standard error.
+     */
+    public void printReport() {
+        System.err.println(String.format("runs: %d, spilled: %s, merge time: %.3f s",
+                runCount, MemorySize.format(bytesSpilled), mergeMillis / 1000.0));
+    }
+
+    /**
+     * Returns the number of sorted runs written by the last operation.
+     *
+     * @return The number of runs.
+     */
+    public int getRunCount() {
+        return runCount;
+    }
+
+    /**
+     * Returns the number of bytes spilled to disk by the last operation.
+     *
+     * @return The number of spilled bytes.
+     */
+    public long getBytesSpilled() {
+        return bytesSpilled;
+    }
+
+    /**
+     * Returns the duration of the merge phase of the last operation.
+     *
+     * @return The merge time in milliseconds.
+     */
+    public long getMergeMillis() {
+        return mergeMillis;
+    }
+
+    private static SortedLineSource sort(Path file, ExternalSorter sorter) throws IOException {
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(Files.newInputStream(file), StandardCharsets.ISO_8859_1))) {
+            sorter.addAll(reader);
+        }
+        return sorter.sorted();
+    }
+}
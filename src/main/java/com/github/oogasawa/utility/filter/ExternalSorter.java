@@ -0,0 +1,293 @@
+package com.github.oogasawa.utility.filter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * The {@code ExternalSorter} class sorts and deduplicates an arbitrarily large sequence of lines
+ * under a fixed memory budget.
+ *
+ * Lines are accumulated in memory until the estimated heap usage exceeds the budget. The buffer
+ * is then sorted, deduplicated and written to a temporary file (a "run"). When all lines have
+ * been added, {@link #sorted()} returns a {@link SortedLineSource} which performs a streaming
+ * k-way merge of the runs, so the complete set is never held in memory. Lines are ordered as
+ * their UTF-8 bytes; see {@link ByteLine#UTF8_ORDER}.
+ *
+ * <pre>
+ * try (ExternalSorter sorter = new ExternalSorter(256L &lt;&lt; 20, tmpDir)) {
+ *     lines.forEach(sorter::add);
+ *     SortedLineSource src = sorter.sorted();
+ *     ...
+ * }
+ * </pre>
+ */
+public class ExternalSorter implements Closeable {
+
+    /**
+     * Approximate heap overhead of a buffered line: the {@code String} and its backing array
+     * headers plus the reference held by the buffer.
+     */
+    private static final int LINE_OVERHEAD = 64;
+
+    /**
+     * The maximum number of runs merged at once. Larger run counts are merged in several passes
+     * so that the number of simultaneously open files stays bounded.
+     */
+    private static final int MAX_FAN_IN = 128;
+
+    private final long memoryBudget;
+    private final Path tmpDir;
+
+    private ArrayList<String> buffer = new ArrayList<>();
+    private long bufferedBytes = 0;
+
+    private final List<Path> runs = new ArrayList<>();
+    private final List<Closeable> openSources = new ArrayList<>();
+
+    private long bytesSpilled = 0;
+    private int runCount = 0;
+
+    /**
+     * Creates a sorter.
+     *
+     * @param memoryBudget The approximate number of heap bytes used to buffer lines.
+     * @param tmpDir The directory in which the sorted runs are created.
+     */
+    public ExternalSorter(long memoryBudget, Path tmpDir) {
+        this.memoryBudget = memoryBudget;
+        this.tmpDir = tmpDir;
+    }
+
+    /**
+     * Adds a line, spilling the buffer to a run when the memory budget is exhausted.
+     *
+     * @param line The line to add.
+     * @throws IOException If a run cannot be written.
+     */
+    public void add(String line) throws IOException {
+        buffer.add(line);
+        bufferedBytes += LINE_OVERHEAD + 2L * line.length();
+        if (bufferedBytes >= memoryBudget) {
+            spill();
+        }
+    }
+
+    /**
+     * Adds every line of the given reader.
+     *
+     * @param reader The reader to consume.
+     * @throws IOException If reading or spilling fails.
+     */
+    public void addAll(BufferedReader reader) throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            add(line);
+        }
+    }
+
+    /**
+     * Finishes the input and returns the sorted, deduplicated lines.
+     *
+     * If nothing has been spilled, the lines are served directly from memory.
+     *
+     * @return The sorted lines.
+     * @throws IOException If the runs cannot be merged.
+     */
+    public SortedLineSource sorted() throws IOException {
+        if (runs.isEmpty()) {
+            List<String> lines = sortUnique(buffer);
+            buffer = new ArrayList<>();
+            bufferedBytes = 0;
+            return new ListSource(lines);
+        }
+
+        if (!buffer.isEmpty()) {
+            spill();
+        }
+        buffer = new ArrayList<>();
+
+        // Reduce the number of runs until they can be merged with a bounded number of open files.
+        List<Path> pending = new ArrayList<>(runs);
+        while (pending.size() > MAX_FAN_IN) {
+            List<Path> next = new ArrayList<>();
+            for (int i = 0; i < pending.size(); i += MAX_FAN_IN) {
+                List<Path> group = pending.subList(i, Math.min(i + MAX_FAN_IN, pending.size()));
+                next.add(mergeToRun(group));
+            }
+            pending = next;
+        }
+
+        return openMerge(pending);
+    }
+
+    /**
+     * Returns the number of sorted runs written to disk.
+     *
+     * @return The number of runs (including intermediate merge passes).
+     */
+    public int getRunCount() {
+        return runCount;
+    }
+
+    /**
+     * Returns the number of bytes written to temporary files.
+     *
+     * @return The number of spilled bytes.
+     */
+    public long getBytesSpilled() {
+        return bytesSpilled;
+    }
+
+    /**
+     * Closes open runs and deletes all temporary files.
+     */
+    @Override
+    public void close() throws IOException {
+        for (Closeable c : openSources) {
+            c.close();
+        }
+        openSources.clear();
+        for (Path run : runs) {
+            Files.deleteIfExists(run);
+        }
+        runs.clear();
+    }
+
+    private void spill() throws IOException {
+        List<String> lines = sortUnique(buffer);
+        buffer = new ArrayList<>();
+        bufferedBytes = 0;
+
+        Path run = newRun();
+        try (BufferedWriter writer = Files.newBufferedWriter(run, StandardCharsets.UTF_8)) {
+            for (String line : lines) {
+                writer.write(line);
+                writer.newLine();
+            }
+        }
+        bytesSpilled += Files.size(run);
+    }
+
+    private Path mergeToRun(List<Path> group) throws IOException {
+        Path run = newRun();
+        try (SortedLineSource merged = openMerge(group);
+             BufferedWriter writer = Files.newBufferedWriter(run, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = merged.next()) != null) {
+                writer.write(line);
+                writer.newLine();
+            }
+        }
+        for (Path p : group) {
+            Files.deleteIfExists(p);
+        }
+        bytesSpilled += Files.size(run);
+        return run;
+    }
+
+    private Path newRun() throws IOException {
+        Path run = Files.createTempFile(tmpDir, "sort-run-", ".txt");
+        runs.add(run);
+        runCount++;
+        return run;
+    }
+
+    private SortedLineSource openMerge(List<Path> paths) throws IOException {
+        List<BufferedReader> readers = new ArrayList<>();
+        for (Path p : paths) {
+            BufferedReader reader = Files.newBufferedReader(p, StandardCharsets.UTF_8);
+            readers.add(reader);
+            openSources.add(reader);
+        }
+        return new MergeSource(readers);
+    }
+
+    private static List<String> sortUnique(List<String> lines) {
+        lines.sort(ByteLine.UTF8_ORDER);
+        ArrayList<String> result = new ArrayList<>(lines.size());
+        String prev = null;
+        for (String line : lines) {
+            if (!line.equals(prev)) {
+                result.add(line);
+                prev = line;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Serves lines that fit entirely in memory.
+     */
+    private static class ListSource implements SortedLineSource {
+        private final List<String> lines;
+        private int pos = 0;
+
+        ListSource(List<String> lines) {
+            this.lines = lines;
+        }
+
+        @Override
+        public String next() {
+            return pos < lines.size() ? lines.get(pos++) : null;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Merges several sorted runs, dropping lines that occur in more than one run.
+     */
+    private static class MergeSource implements SortedLineSource {
+
+        private record Head(String line, BufferedReader reader) {
+        }
+
+        private final List<BufferedReader> readers;
+        private final PriorityQueue<Head> queue = new PriorityQueue<>(
+                (a, b) -> ByteLine.compareUtf8(a.line, b.line));
+        private String last = null;
+
+        MergeSource(List<BufferedReader> readers) throws IOException {
+            this.readers = readers;
+            for (BufferedReader r : readers) {
+                String line = r.readLine();
+                if (line != null) {
+                    queue.add(new Head(line, r));
+                }
+            }
+        }
+
+        @Override
+        public String next() throws IOException {
+            while (!queue.isEmpty()) {
+                Head head = queue.poll();
+                String line = head.reader.readLine();
+                if (line != null) {
+                    queue.add(new Head(line, head.reader));
+                }
+                if (!head.line.equals(last)) {
+                    last = head.line;
+                    return last;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (BufferedReader r : readers) {
+                r.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.github.oogasawa.utility.filter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The {@code FieldSplitter} class splits lines at a delimiter given as a regular expression,
+ * into the fields {@code String.split} would give, trailing empty fields included.
+ *
+ * A delimiter that only matches one string, such as {@code \|} or {@code \t\|\t}, is searched
+ * for as bytes in the undecoded line, which is safe in UTF-8 since no character is part of
+ * another. Any other delimiter is compiled once and matched against the decoded line.
+ */
+abstract class FieldSplitter {
+
+    /**
+     * Receives the fields of a line.
+     */
+    @FunctionalInterface
+    interface FieldConsumer {
+
+        /**
+         * Takes a field.
+         *
+         * @param buf The array containing the field.
+         * @param from The start of the field.
+         * @param to The end of the field.
+         * @return {@code false} to skip the remaining fields of the line.
+         * @throws IOException If the field cannot be written.
+         */
+        boolean accept(byte[] buf, int from, int to) throws IOException;
+    }
+
+    /**
+     * Creates a splitter.
+     *
+     * @param regex The regular expression separating the fields.
+     * @return The splitter.
+     * @throws java.util.regex.PatternSyntaxException If the expression is invalid.
+     */
+    static FieldSplitter of(String regex) {
+        byte[] literal = literal(regex);
+        return literal != null ? new Literal(literal) : new Regex(Pattern.compile(regex));
+    }
+
+    /**
+     * Splits a line; a line without a delimiter is a single field.
+     *
+     * @param buf The array containing the line.
+     * @param off The start of the line.
+     * @param len The length of the line.
+     * @param consumer The consumer of the fields.
+     * @throws IOException If the consumer fails.
+     */
+    abstract void split(byte[] buf, int off, int len, FieldConsumer consumer) throws IOException;
+
+    /**
+     * Returns the only string a regular expression matches, encoded in UTF-8, or {@code null}
+     * if it is empty or contains operators. Escaped punctuation, {@code \t}, {@code \n},
+     * {@code \r}, {@code \f}, {@code \a}, {@code \e} and {@code \Q...\E} quotes are literal.
+     *
+     * @param regex The regular expression.
+     * @return The bytes, or {@code null}.
+     */
+    static byte[] literal(String regex) {
+        StringBuilder text = new StringBuilder();
+        int i = 0;
+        while (i < regex.length()) {
+            char c = regex.charAt(i++);
+            if (c != '\\') {
+                if ("^$.|?*+()[]{}".indexOf(c) >= 0) {
+                    return null;
+                }
+                text.append(c);
+                continue;
+            }
+            if (i == regex.length()) {
+                return null;
+            }
+            char e = regex.charAt(i++);
+            switch (e) {
+                case 't' -> text.append('\t');
+                case 'n' -> text.append('\n');
+                case 'r' -> text.append('\r');
+                case 'f' -> text.append('\f');
+                case 'a' -> text.append('\u0007');
+                case 'e' -> text.append('\u001B');
+                case 'Q' -> {
+                    int end = regex.indexOf("\\E", i);
+                    text.append(regex, i, end < 0 ? regex.length() : end);
+                    i = end < 0 ? regex.length() : end + 2;
+                }
+                default -> {
+                    if (Character.isLetterOrDigit(e)) {
+                        return null;
+                    }
+                    text.append(e);
+                }
+            }
+        }
+        return text.isEmpty() ? null : text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Searches for the delimiter as bytes.
+     */
+    private static final class Literal extends FieldSplitter {
+
+        private final byte[] delimiter;
+
+        Literal(byte[] delimiter) {
+            this.delimiter = delimiter;
+        }
+
+        @Override
+        void split(byte[] buf, int off, int len, FieldConsumer consumer) throws IOException {
+            int end = off + len;
+            int last = end - delimiter.length;
+            byte first = delimiter[0];
+            int from = off;
+            int i = off;
+            while (i <= last) {
+                if (buf[i] == first && matches(buf, i)) {
+                    if (!consumer.accept(buf, from, i)) {
+                        return;
+                    }
+                    i += delimiter.length;
+                    from = i;
+                } else {
+                    i++;
+                }
+            }
+            consumer.accept(buf, from, end);
+        }
+
+        private boolean matches(byte[] buf, int i) {
+            for (int j = 1; j < delimiter.length; j++) {
+                if (buf[i + j] != delimiter[j]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Matches a compiled expression against the decoded line.
+     */
+    private static final class Regex extends FieldSplitter {
+
+        private final Matcher matcher;
+
+        Regex(Pattern delimiter) {
+            this.matcher = delimiter.matcher("");
+        }
+
+        @Override
+        void split(byte[] buf, int off, int len, FieldConsumer consumer) throws IOException {
+            String s = new String(buf, off, len, StandardCharsets.UTF_8);
+            matcher.reset(s);
+            int index = 0;
+            while (matcher.find()) {
+                if (index == 0 && matcher.start() == 0 && matcher.end() == 0) {
+                    // A zero-width match at the beginning gives no leading empty field.
+                    continue;
+                }
+                if (!accept(s, index, matcher.start(), consumer)) {
+                    return;
+                }
+                index = matcher.end();
+            }
+            if (index == 0) {
+                consumer.accept(buf, off, off + len);
+            } else {
+                accept(s, index, s.length(), consumer);
+            }
+        }
+
+        private boolean accept(String s, int from, int to, FieldConsumer consumer) throws IOException {
+            byte[] bytes = s.substring(from, to).getBytes(StandardCharsets.UTF_8);
+            return consumer.accept(bytes, 0, bytes.length);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.github.oogasawa.utility.filter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+/**
+ * The {@code FingerprintSet} class is a set of 128-bit fingerprints that keeps its table outside
+ * the Java heap.
+ *
+ * Every slot of the open-addressing table holds the two {@code long} halves of a fingerprint,
+ * and the first half also selects the slot, probed linearly. Only the fingerprints are stored,
+ * so an element costs 23 to 46 bytes whatever its length; the pair {@code (0, 0)} marks an
+ * empty slot and is stored as {@code (0, 1)}. The table doubles when it is 70% full, unless
+ * that would exceed its limit, after which {@link #isFull()} is true and elements can only be
+ * looked up.
+ */
+class FingerprintSet {
+
+    private static final int SEGMENT_BITS = 26;
+    private static final int SEGMENT_SLOTS = 1 << SEGMENT_BITS;
+    private static final double MAX_LOAD = 0.7;
+    private static final long MIN_CAPACITY = 1 << 12;
+
+    private final long maxCapacity;
+    private LongBuffer[] table;
+    private long capacity;
+    private long mask;
+    private long size = 0;
+
+    /**
+     * Creates an empty set.
+     *
+     * @param maxBytes The largest table allowed, in bytes.
+     */
+    FingerprintSet(long maxBytes) {
+        this.maxCapacity = Math.max(MIN_CAPACITY, Long.highestOneBit(maxBytes / (2 * Long.BYTES)));
+        allocateTable(MIN_CAPACITY);
+    }
+
+    /**
+     * Adds a fingerprint.
+     *
+     * @param high The first half of the fingerprint.
+     * @param low The second half of the fingerprint.
+     * @return {@code true} if the fingerprint was not yet contained.
+     * @throws IllegalStateException If the set is full.
+     */
+    boolean add(long high, long low) {
+        if (high == 0 && low == 0) {
+            low = 1;
+        }
+        long slot = find(high, low);
+        if (slot < 0) {
+            return false;
+        }
+        if (isFull()) {
+            throw new IllegalStateException("The fingerprint table is full");
+        }
+        put(slot, high, low);
+        size++;
+        if (size > capacity * MAX_LOAD && capacity < maxCapacity) {
+            resize();
+        }
+        return true;
+    }
+
+    /**
+     * Tests whether a fingerprint is contained.
+     *
+     * @param high The first half of the fingerprint.
+     * @param low The second half of the fingerprint.
+     * @return {@code true} if the fingerprint is contained.
+     */
+    boolean contains(long high, long low) {
+        if (high == 0 && low == 0) {
+            low = 1;
+        }
+        return find(high, low) < 0;
+    }
+
+    /**
+     * Returns whether the table has reached its limit and is loaded, so no more fingerprints
+     * may be added.
+     *
+     * @return {@code true} if the set is full.
+     */
+    boolean isFull() {
+        return capacity == maxCapacity && size >= capacity * MAX_LOAD;
+    }
+
+    /**
+     * Returns the number of fingerprints.
+     *
+     * @return The number of fingerprints.
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of bytes allocated by the table.
+     *
+     * @return The size of the table in bytes.
+     */
+    long memoryUsage() {
+        return capacity * 2 * Long.BYTES;
+    }
+
+    /**
+     * Returns the slot of an absent fingerprint, or -1 if it is present.
+     */
+    private long find(long high, long low) {
+        long slot = high & mask;
+        while (true) {
+            LongBuffer segment = table[(int) (slot >>> SEGMENT_BITS)];
+            int i = 2 * (int) (slot & (SEGMENT_SLOTS - 1));
+            long h = segment.get(i);
+            long l = segment.get(i + 1);
+            if (h == 0 && l == 0) {
+                return slot;
+            }
+            if (h == high && l == low) {
+                return -1;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void put(long slot, long high, long low) {
+        LongBuffer segment = table[(int) (slot >>> SEGMENT_BITS)];
+        int i = 2 * (int) (slot & (SEGMENT_SLOTS - 1));
+        segment.put(i, high);
+        segment.put(i + 1, low);
+    }
+
+    private void allocateTable(long cap) {
+        capacity = cap;
+        mask = cap - 1;
+        int segments = (int) Math.max(1, cap >>> SEGMENT_BITS);
+        int slots = (int) Math.min(cap, SEGMENT_SLOTS);
+        table = new LongBuffer[segments];
+        for (int i = 0; i < segments; i++) {
+            table[i] = ByteBuffer.allocateDirect(slots * 2 * Long.BYTES).order(ByteOrder.nativeOrder())
+                    .asLongBuffer();
+        }
+    }
+
+    private void resize() {
+        LongBuffer[] old = table;
+        long oldCapacity = capacity;
+        allocateTable(oldCapacity * 2);
+        for (long s = 0; s < oldCapacity; s++) {
+            LongBuffer segment = old[(int) (s >>> SEGMENT_BITS)];
+            int i = 2 * (int) (s & (SEGMENT_SLOTS - 1));
+            long h = segment.get(i);
+            long l = segment.get(i + 1);
+            if (h != 0 || l != 0) {
+                put(find(h, l), h, l);
+            }
+        }
+    }
+}
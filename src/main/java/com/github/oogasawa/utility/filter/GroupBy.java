@@ -0,0 +1,901 @@
+package com.github.oogasawa.utility.filter;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The {@code GroupBy} class aggregates the rows of a tab-separated input by key columns, as
+ * {@code GROUP BY} does in SQL.
+ *
+ * Every group is printed as one line: its key columns, joined with tabs, followed by its
+ * aggregates in the order requested. Keys follow the rules of {@code getColumns}; see
+ * {@link KeyExtractor}. Values that are missing or not numbers are ignored by the numeric
+ * aggregates and counted in the report. Sums and extremes of integer columns are exact.
+ *
+ * Keys are dictionary-encoded by an {@link OffHeapLineSet}, which numbers them in order of
+ * appearance, and the aggregates are kept in {@code long} and {@code double} arrays indexed by
+ * that number, so a group costs its key and a few words per aggregate instead of a map entry
+ * with boxed values. Distinct values are interned in a second set as pairs of group and value.
+ *
+ * With several threads, the calling thread cuts the input into batches, a pool extracts and
+ * hashes the keys and parses the values, and every batch is then passed to all partition
+ * threads, each of which aggregates the rows whose key hash falls into its partition, so no
+ * table is shared. Groups are printed in the order of their first row for any number of threads.
+ *
+ * When the groups of a partition outgrow its share of the memory budget, the partition stops
+ * adding groups: rows of its groups are still aggregated, and rows of new groups are written to
+ * spill files by the hash of their key. After the input ends, the spill files are aggregated one
+ * by one, spilling again if needed, and their groups are printed after those kept in memory.
+ * The distinct values of the groups kept in memory are not bounded by the budget.
+ */
+public class GroupBy {
+
+    /**
+     * The aggregate functions.
+     */
+    public enum Function {
+        /** The number of rows. */
+        COUNT,
+        /** The sum of the numbers of a column. */
+        SUM,
+        /** The smallest number of a column. */
+        MIN,
+        /** The largest number of a column. */
+        MAX,
+        /** The arithmetic mean of the numbers of a column. */
+        MEAN,
+        /** The number of distinct values of a column. */
+        DISTINCT;
+
+        /**
+         * Returns the function with the given name, ignoring case.
+         *
+         * @param name The name, {@code count}, {@code sum}, {@code min}, {@code max},
+         *        {@code mean} or {@code distinct}.
+         * @return The function.
+         * @throws IllegalArgumentException If the name is unknown.
+         */
+        public static Function of(String name) {
+            try {
+                return valueOf(name.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(
+                        "Unknown aggregate: " + name + " (use count, sum, min, max, mean or distinct)");
+            }
+        }
+    }
+
+    /**
+     * An aggregate function applied to a column.
+     *
+     * @param function The function.
+     * @param column The column, counted from 0; -1 for {@link Function#COUNT}.
+     */
+    public record Aggregate(Function function, int column) {
+
+        /**
+         * Parses a list of aggregates such as {@code count,sum:3,distinct:1}.
+         *
+         * @param spec The aggregates separated by commas, each a function name followed by a
+         *        colon and a column, except {@code count}.
+         * @return The aggregates in the order given.
+         * @throws IllegalArgumentException If the list is malformed.
+         */
+        public static List<Aggregate> parse(String spec) {
+            List<Aggregate> aggregates = new ArrayList<>();
+            for (String item : spec.split(",")) {
+                int colon = item.indexOf(':');
+                Function function = Function.of(colon < 0 ? item : item.substring(0, colon));
+                if (function == Function.COUNT) {
+                    if (colon >= 0) {
+                        throw new IllegalArgumentException("count takes no column: " + item);
+                    }
+                    aggregates.add(new Aggregate(function, -1));
+                    continue;
+                }
+                if (colon < 0) {
+                    throw new IllegalArgumentException("Missing column of aggregate: " + item + " (e.g. sum:2)");
+                }
+                try {
+                    int column = Integer.parseInt(item.substring(colon + 1).trim());
+                    if (column < 0) {
+                        throw new IllegalArgumentException("Invalid column: " + item);
+                    }
+                    aggregates.add(new Aggregate(function, column));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid column: " + item);
+                }
+            }
+            return aggregates;
+        }
+
+        boolean isNumeric() {
+            return function != Function.COUNT && function != Function.DISTINCT;
+        }
+    }
+
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+    private static final int BATCH_SIZE = 1 << 20;
+    private static final int BATCH_LINES = 16384;
+    private static final long PARTITION_SEED = 0xBB67AE8584CAA73BL;
+    private static final long SPILL_SEED = 0x3C6EF372FE94F82BL;
+    private static final int SPILL_FILES = 16;
+    /** The smallest budget of a partition, so that every pass keeps a good share of the groups. */
+    private static final long MIN_BUDGET = 4L << 20;
+    /** Spilling stops at this depth; by then the groups have been split into 16^6 parts. */
+    private static final int MAX_DEPTH = 6;
+
+    /** The kinds of a parsed value. */
+    private static final byte MISSING = 0;
+    private static final byte INTEGER = 1;
+    private static final byte DECIMAL = 2;
+
+    private final List<Integer> keyColumns;
+    private final Aggregate[] aggregates;
+    private final int maxValueColumn;
+    private final int threads;
+    private final long memoryBudget;
+    private final Path tmpDir;
+
+    private Path spillDir = null;
+    private int spillFiles = 0;
+    private long rows = 0;
+    private long groups = 0;
+    private long ignored = 0;
+    private long spilledRows = 0;
+    private long peakMemory = 0;
+    private long nanos = 0;
+
+    /**
+     * Creates an aggregation.
+     *
+     * @param keyColumns The key columns.
+     * @param aggregates The aggregates of each group, in output order.
+     * @param threads The number of partitions aggregated in parallel.
+     * @param memoryBudget The memory the groups may use before rows are spilled to disk.
+     * @param tmpDir The directory for spill files.
+     * @throws IllegalArgumentException If no key column is given or the number of threads is not positive.
+     */
+    public GroupBy(List<Integer> keyColumns, List<Aggregate> aggregates, int threads, long memoryBudget, Path tmpDir) {
+        if (keyColumns.isEmpty()) {
+            throw new IllegalArgumentException("No key columns");
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("The number of threads must be positive: " + threads);
+        }
+        this.keyColumns = keyColumns;
+        this.aggregates = aggregates.toArray(new Aggregate[0]);
+        this.maxValueColumn = Math.max(0, aggregates.stream().mapToInt(Aggregate::column).max().orElse(0));
+        this.threads = threads;
+        this.memoryBudget = memoryBudget;
+        this.tmpDir = tmpDir;
+    }
+
+    /**
+     * Aggregates an input.
+     *
+     * @param in The input.
+     * @param out The destination of the groups; it is flushed but not closed.
+     * @throws IOException If the input cannot be read, the output cannot be written, or the
+     *         spill files cannot be written.
+     */
+    public void run(InputStream in, OutputStream out) throws IOException {
+        long start = System.nanoTime();
+        OutputStream buffered = new BufferedOutputStream(out, 1 << 16);
+        try {
+            aggregate(consumer -> new ByteLineReader(in).forEachLine(consumer), 0, buffered);
+        } finally {
+            if (spillDir != null) {
+                try (var files = Files.list(spillDir)) {
+                    for (Path file : files.toList()) {
+                        Files.deleteIfExists(file);
+                    }
+                }
+                Files.deleteIfExists(spillDir);
+                spillDir = null;
+            }
+        }
+        buffered.flush();
+        nanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Prints the statistics of the last run to standard error.
+     */
+    public void printReport() {
+        System.err.println(String.format("groupBy: %d rows, %d groups in %.3f s (%s), %d values ignored",
+                rows, groups, nanos / 1e9, nanos == 0 ? "-" : String.format("%.0f rows/s", rows * 1e9 / nanos),
+                ignored));
+        if (spilledRows > 0) {
+            System.err.println(String.format("spilled: %d rows to %d files", spilledRows, spillFiles));
+        }
+        System.err.println("memory: " + MemorySize.format(peakMemory) + " of groups at peak");
+    }
+
+    /**
+     * Returns the number of groups printed by the last run.
+     *
+     * @return The number of groups.
+     */
+    public long getGroups() {
+        return groups;
+    }
+
+    /**
+     * Returns the number of rows written to spill files by the last run, at all depths.
+     *
+     * @return 0 if all groups fitted into memory.
+     */
+    public long getSpilledRows() {
+        return spilledRows;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * A readable input.
+     */
+    private interface Source {
+        void forEachLine(ByteLineReader.LineConsumer consumer) throws IOException;
+    }
+
+    private void aggregate(Source source, int depth, OutputStream out) throws IOException {
+        Partition[] partitions = new Partition[threads];
+        for (int i = 0; i < threads; i++) {
+            partitions[i] = new Partition(depth, Math.max(MIN_BUDGET, memoryBudget / threads));
+        }
+        if (threads == 1) {
+            aggregateSerially(source, partitions[0]);
+        } else {
+            new Run(source, partitions, depth).execute();
+        }
+
+        long memory = 0;
+        List<Path> spills = new ArrayList<>();
+        for (Partition partition : partitions) {
+            memory += partition.memoryUsage();
+            ignored += partition.ignored;
+            spills.addAll(partition.closeSpills());
+        }
+        peakMemory = Math.max(peakMemory, memory);
+        if (depth == 0) {
+            rows = Arrays.stream(partitions).mapToLong(p -> p.rows).sum();
+        }
+        write(partitions, out);
+
+        for (Path spill : spills) {
+            aggregate(consumer -> {
+                try (InputStream in = Files.newInputStream(spill)) {
+                    new ByteLineReader(in).forEachLine(consumer);
+                }
+            }, depth + 1, out);
+            Files.delete(spill);
+        }
+    }
+
+    private void aggregateSerially(Source source, Partition partition) throws IOException {
+        Batch[] batch = { new Batch() };
+        long[] line = { 0 };
+        source.forEachLine((buf, off, len) -> {
+            if (batch[0].isFull(len)) {
+                batch[0].prepare(partition.depth, 1);
+                partition.addAll(batch[0], 0);
+                batch[0].reset(line[0]);
+            }
+            batch[0].add(buf, off, len);
+            line[0]++;
+        });
+        batch[0].prepare(partition.depth, 1);
+        partition.addAll(batch[0], 0);
+    }
+
+    /**
+     * Prints the groups of all partitions in the order of their first rows.
+     */
+    private void write(Partition[] partitions, OutputStream out) throws IOException {
+        if (partitions.length == 1) {
+            partitions[0].forEachRow((first, row, len) -> {
+                out.write(row, 0, len);
+                out.write(NEWLINE);
+            });
+            groups += partitions[0].keys.size();
+            return;
+        }
+
+        LineArena arena = new LineArena();
+        long[][] firsts = new long[partitions.length][];
+        long[][] addresses = new long[partitions.length][];
+        for (int p = 0; p < partitions.length; p++) {
+            long[] first = new long[partitions[p].keys.size()];
+            long[] address = new long[first.length];
+            int[] next = { 0 };
+            partitions[p].forEachRow((line, row, len) -> {
+                first[next[0]] = line;
+                address[next[0]++] = arena.add(row, 0, len);
+            });
+            firsts[p] = first;
+            addresses[p] = address;
+        }
+        peakMemory = Math.max(peakMemory, arena.memoryUsage());
+
+        // Each partition lists its groups in the order of their first rows; merge the lists.
+        int[] heads = new int[partitions.length];
+        while (true) {
+            int min = -1;
+            for (int p = 0; p < partitions.length; p++) {
+                if (heads[p] < firsts[p].length
+                        && (min < 0 || firsts[p][heads[p]] < firsts[min][heads[min]])) {
+                    min = p;
+                }
+            }
+            if (min < 0) {
+                break;
+            }
+            arena.writeTo(addresses[min][heads[min]++], out);
+            out.write(NEWLINE);
+            groups++;
+        }
+    }
+
+    private Path newSpillFile() throws IOException {
+        synchronized (this) {
+            if (spillDir == null) {
+                Files.createDirectories(tmpDir);
+                spillDir = Files.createTempDirectory(tmpDir, "groupBy");
+            }
+            return spillDir.resolve("spill-" + spillFiles++);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * A batch of input rows with their keys and values.
+     */
+    private final class Batch {
+
+        long firstLine = 0;
+        byte[] data = new byte[BATCH_SIZE];
+        int dataLen = 0;
+        int[] starts = new int[BATCH_LINES];
+        int[] lens = new int[BATCH_LINES];
+        int count = 0;
+
+        byte[] keys = new byte[1 << 16];
+        int[] keyStarts = new int[BATCH_LINES];
+        int[] keyLens = new int[BATCH_LINES];
+        int[] partitions = new int[BATCH_LINES];
+
+        /** Per aggregate: the kinds and values of numbers, or the ranges of distinct values. */
+        final byte[][] kinds = new byte[aggregates.length][];
+        final long[][] longs = new long[aggregates.length][];
+        final double[][] doubles = new double[aggregates.length][];
+        final int[][] valueStarts = new int[aggregates.length][];
+        final int[][] valueLens = new int[aggregates.length][];
+
+        /** The partition threads that have yet to process the batch. */
+        final AtomicInteger pending = new AtomicInteger();
+        Throwable failure = null;
+
+        Batch() {
+            for (int a = 0; a < aggregates.length; a++) {
+                if (aggregates[a].isNumeric()) {
+                    kinds[a] = new byte[BATCH_LINES];
+                    longs[a] = new long[BATCH_LINES];
+                    doubles[a] = new double[BATCH_LINES];
+                } else if (aggregates[a].function() == Function.DISTINCT) {
+                    valueStarts[a] = new int[BATCH_LINES];
+                    valueLens[a] = new int[BATCH_LINES];
+                }
+            }
+        }
+
+        boolean isFull(int len) {
+            return count == BATCH_LINES || (count > 0 && dataLen + len > data.length);
+        }
+
+        void add(byte[] buf, int off, int len) {
+            if (dataLen + len > data.length) {
+                data = Arrays.copyOf(data, Math.max(dataLen + len, data.length * 2));
+            }
+            System.arraycopy(buf, off, data, dataLen, len);
+            starts[count] = dataLen;
+            lens[count] = len;
+            count++;
+            dataLen += len;
+        }
+
+        void reset(long firstLine) {
+            this.firstLine = firstLine;
+            dataLen = 0;
+            count = 0;
+            failure = null;
+        }
+
+        /**
+         * Extracts and hashes the keys and parses the values of the aggregates.
+         */
+        void prepare(int depth, int partitionCount) {
+            KeyExtractor extractor = new KeyExtractor(keyColumns);
+            TsvTokenizer tokenizer = new TsvTokenizer(maxValueColumn);
+            long seed = PARTITION_SEED * (depth + 1);
+            int keysLen = 0;
+            for (int i = 0; i < count; i++) {
+                int n = extractor.extract(data, starts[i], lens[i]);
+                if (keysLen + n > keys.length) {
+                    keys = Arrays.copyOf(keys, Math.max(keysLen + n, keys.length * 2));
+                }
+                System.arraycopy(extractor.key, 0, keys, keysLen, n);
+                keyStarts[i] = keysLen;
+                keyLens[i] = n;
+                keysLen += n;
+                partitions[i] = partitionCount == 1
+                        ? 0 : (int) Long.remainderUnsigned(Hash64.hash(keys, keyStarts[i], n, seed), partitionCount);
+
+                tokenizer.tokenize(data, starts[i], lens[i]);
+                for (int a = 0; a < aggregates.length; a++) {
+                    int column = aggregates[a].column();
+                    if (kinds[a] != null) {
+                        kinds[a][i] = tokenizer.has(column)
+                                ? parse(data, tokenizer.start(column), tokenizer.length(column), a, i)
+                                : MISSING;
+                    } else if (valueStarts[a] != null) {
+                        valueStarts[a][i] = tokenizer.has(column) ? tokenizer.start(column) : 0;
+                        valueLens[a][i] = tokenizer.has(column) ? tokenizer.length(column) : -1;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Parses a number into the value arrays of an aggregate.
+         */
+        private byte parse(byte[] b, int off, int len, int a, int i) {
+            int p = off;
+            int end = off + len;
+            boolean negative = false;
+            if (p < end && (b[p] == '-' || b[p] == '+')) {
+                negative = b[p] == '-';
+                p++;
+            }
+            if (end > p && end - p <= 18) {
+                long value = 0;
+                int q = p;
+                while (q < end && b[q] >= '0' && b[q] <= '9') {
+                    value = value * 10 + (b[q++] - '0');
+                }
+                if (q == end) {
+                    longs[a][i] = negative ? -value : value;
+                    doubles[a][i] = longs[a][i];
+                    return INTEGER;
+                }
+            }
+            // Decimals and exponents; names such as NaN and Infinity are not numbers here.
+            for (int q = off; q < end; q++) {
+                byte c = b[q];
+                if (!(c >= '0' && c <= '9' || c == '.' || c == 'e' || c == 'E' || c == '-' || c == '+')) {
+                    return MISSING;
+                }
+            }
+            try {
+                doubles[a][i] = Double.parseDouble(new String(b, off, len, StandardCharsets.ISO_8859_1));
+                return DECIMAL;
+            } catch (NumberFormatException e) {
+                return MISSING;
+            }
+        }
+    }
+
+    /**
+     * Receives the formatted groups of a partition.
+     */
+    @FunctionalInterface
+    private interface RowConsumer {
+        void accept(long firstLine, byte[] row, int len) throws IOException;
+    }
+
+    /**
+     * The groups of one partition and their aggregates, indexed by the ordinal of the key.
+     */
+    private final class Partition {
+
+        final int depth;
+        final long budget;
+        final OffHeapLineSet keys = new OffHeapLineSet();
+        final OffHeapLineSet distinctValues;
+        long keyBytes = 0;
+        long distinctBytes = 0;
+        long rows = 0;
+        long ignored = 0;
+
+        long[] firstLine = new long[1024];
+        long[] count = new long[1024];
+        /** Per aggregate: the number of values, and the sum or extreme as long and as double. */
+        final long[][] n = new long[aggregates.length][];
+        final long[][] l = new long[aggregates.length][];
+        final double[][] d = new double[aggregates.length][];
+        /** Per aggregate and group: whether a value was not an integer or the long sum overflowed. */
+        final boolean[][] inexact = new boolean[aggregates.length][];
+
+        byte[] pair = new byte[256];
+        OutputStream[] spills = null;
+        Path[] spillPaths = null;
+
+        Partition(int depth, long budget) {
+            this.depth = depth;
+            this.budget = budget;
+            boolean distinct = false;
+            for (int a = 0; a < aggregates.length; a++) {
+                n[a] = new long[1024];
+                l[a] = new long[1024];
+                d[a] = new double[1024];
+                inexact[a] = new boolean[1024];
+                distinct |= aggregates[a].function() == Function.DISTINCT;
+            }
+            distinctValues = distinct ? new OffHeapLineSet() : null;
+        }
+
+        void addAll(Batch batch, int partition) throws IOException {
+            for (int i = 0; i < batch.count; i++) {
+                if (batch.partitions[i] == partition) {
+                    add(batch, i);
+                }
+            }
+        }
+
+        private void add(Batch batch, int i) throws IOException {
+            rows++;
+            int g;
+            if (spills == null) {
+                int size = keys.size();
+                g = keys.intern(batch.keys, batch.keyStarts[i], batch.keyLens[i]);
+                if (g == size) {
+                    newGroup(g, batch.firstLine + i);
+                    keyBytes += batch.keyLens[i] + 9;
+                    if (depth < MAX_DEPTH && memoryUsage() > budget) {
+                        spills = new OutputStream[SPILL_FILES];
+                        spillPaths = new Path[SPILL_FILES];
+                    }
+                }
+            } else {
+                g = keys.indexOf(batch.keys, batch.keyStarts[i], batch.keyLens[i]);
+                if (g < 0) {
+                    spill(batch, i);
+                    return;
+                }
+            }
+
+            count[g]++;
+            for (int a = 0; a < aggregates.length; a++) {
+                if (batch.kinds[a] != null) {
+                    byte kind = batch.kinds[a][i];
+                    if (kind == MISSING) {
+                        ignored++;
+                    } else {
+                        accumulate(a, g, kind, batch.longs[a][i], batch.doubles[a][i]);
+                    }
+                } else if (batch.valueStarts[a] != null) {
+                    if (batch.valueLens[a][i] < 0) {
+                        ignored++;
+                    } else if (distinct(a, g, batch.data, batch.valueStarts[a][i], batch.valueLens[a][i])) {
+                        n[a][g]++;
+                    }
+                }
+            }
+        }
+
+        private void newGroup(int g, long line) {
+            if (g == count.length) {
+                int size = g * 2;
+                firstLine = Arrays.copyOf(firstLine, size);
+                count = Arrays.copyOf(count, size);
+                for (int a = 0; a < aggregates.length; a++) {
+                    n[a] = Arrays.copyOf(n[a], size);
+                    l[a] = Arrays.copyOf(l[a], size);
+                    d[a] = Arrays.copyOf(d[a], size);
+                    inexact[a] = Arrays.copyOf(inexact[a], size);
+                }
+            }
+            firstLine[g] = line;
+        }
+
+        private void accumulate(int a, int g, byte kind, long lv, double dv) {
+            boolean first = n[a][g]++ == 0;
+            if (kind == DECIMAL) {
+                inexact[a][g] = true;
+            }
+            switch (aggregates[a].function()) {
+                case SUM, MEAN -> {
+                    long sum = l[a][g] + lv;
+                    if (((l[a][g] ^ sum) & (lv ^ sum)) < 0) {
+                        inexact[a][g] = true;
+                    }
+                    l[a][g] = sum;
+                    d[a][g] += dv;
+                }
+                case MIN -> {
+                    l[a][g] = first ? lv : Math.min(l[a][g], lv);
+                    d[a][g] = first ? dv : Math.min(d[a][g], dv);
+                }
+                case MAX -> {
+                    l[a][g] = first ? lv : Math.max(l[a][g], lv);
+                    d[a][g] = first ? dv : Math.max(d[a][g], dv);
+                }
+                default -> throw new IllegalStateException("Not a numeric aggregate: " + aggregates[a]);
+            }
+        }
+
+        /**
+         * Records a value of a group; returns {@code true} if it is new to the group.
+         */
+        private boolean distinct(int a, int g, byte[] buf, int off, int len) {
+            if (pair.length < len + 5) {
+                pair = new byte[Math.max(len + 5, pair.length * 2)];
+            }
+            pair[0] = (byte) g;
+            pair[1] = (byte) (g >>> 8);
+            pair[2] = (byte) (g >>> 16);
+            pair[3] = (byte) (g >>> 24);
+            pair[4] = (byte) a;
+            System.arraycopy(buf, off, pair, 5, len);
+            if (!distinctValues.add(pair, 0, len + 5)) {
+                return false;
+            }
+            distinctBytes += len + 14;
+            return true;
+        }
+
+        private void spill(Batch batch, int i) throws IOException {
+            long hash = Hash64.hash(batch.keys, batch.keyStarts[i], batch.keyLens[i], SPILL_SEED * (depth + 1));
+            int f = (int) Long.remainderUnsigned(hash, SPILL_FILES);
+            if (spills[f] == null) {
+                spillPaths[f] = newSpillFile();
+                spills[f] = new BufferedOutputStream(Files.newOutputStream(spillPaths[f]), 1 << 16);
+            }
+            spills[f].write(batch.data, batch.starts[i], batch.lens[i]);
+            spills[f].write('\n');
+            synchronized (GroupBy.this) {
+                spilledRows++;
+            }
+        }
+
+        /**
+         * Closes the spill files and returns them.
+         */
+        List<Path> closeSpills() throws IOException {
+            List<Path> files = new ArrayList<>();
+            if (spills != null) {
+                for (int f = 0; f < SPILL_FILES; f++) {
+                    if (spills[f] != null) {
+                        spills[f].close();
+                        files.add(spillPaths[f]);
+                    }
+                }
+            }
+            return files;
+        }
+
+        long memoryUsage() {
+            long arrays = (long) count.length * (16 + 25L * aggregates.length);
+            long distinct = distinctValues == null ? 0 : distinctBytes + distinctValues.tableBytes();
+            return keyBytes + keys.tableBytes() + arrays + distinct;
+        }
+
+        /**
+         * Formats the groups in the order of their first rows.
+         */
+        void forEachRow(RowConsumer consumer) throws IOException {
+            StringBuilder sb = new StringBuilder();
+            byte[][] row = { new byte[256] };
+            keys.forEach((g, buf, off, len) -> {
+                sb.setLength(0);
+                for (int a = 0; a < aggregates.length; a++) {
+                    sb.append('\t').append(value(a, g));
+                }
+                byte[] values = sb.toString().getBytes(StandardCharsets.UTF_8);
+                if (row[0].length < len + values.length) {
+                    row[0] = new byte[Math.max(len + values.length, row[0].length * 2)];
+                }
+                System.arraycopy(buf, off, row[0], 0, len);
+                System.arraycopy(values, 0, row[0], len, values.length);
+                consumer.accept(firstLine[g], row[0], len + values.length);
+            });
+        }
+
+        private String value(int a, int g) {
+            long values = n[a][g];
+            boolean integral = !inexact[a][g];
+            return switch (aggregates[a].function()) {
+                case COUNT -> Long.toString(count[g]);
+                case DISTINCT -> Long.toString(values);
+                case SUM -> integral ? Long.toString(l[a][g]) : format(d[a][g]);
+                case MIN, MAX -> values == 0 ? "" : integral ? Long.toString(l[a][g]) : format(d[a][g]);
+                case MEAN -> values == 0 ? "" : format(integral ? (double) l[a][g] / values : d[a][g] / values);
+            };
+        }
+    }
+
+    /**
+     * Formats a number, without a fraction if it is a whole number of reasonable size.
+     */
+    static String format(double v) {
+        if (v == Math.rint(v) && Math.abs(v) < 1e15) {
+            return Long.toString((long) v);
+        }
+        return Double.toString(v);
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * The threads and queues of one parallel pass over an input.
+     */
+    private final class Run {
+
+        private final Source source;
+        private final Partition[] partitions;
+        private final int depth;
+        private final BlockingQueue<Batch> free;
+        private final List<BlockingQueue<Future<Batch>>> queues = new ArrayList<>();
+        private final List<Thread> started = new ArrayList<>();
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+        private final ExecutorService pool;
+
+        Run(Source source, Partition[] partitions, int depth) {
+            this.source = source;
+            this.partitions = partitions;
+            this.depth = depth;
+            int batches = partitions.length * 2 + 2;
+            this.free = new ArrayBlockingQueue<>(batches);
+            for (int i = 0; i < batches; i++) {
+                free.add(new Batch());
+            }
+            for (int i = 0; i < partitions.length; i++) {
+                queues.add(new ArrayBlockingQueue<>(batches + 1));
+            }
+            this.pool = Executors.newFixedThreadPool(partitions.length, r -> {
+                Thread t = new Thread(r, "groupBy-parser");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        void execute() throws IOException {
+            try {
+                for (int i = 0; i < partitions.length; i++) {
+                    int partition = i;
+                    Thread t = new Thread(() -> aggregate(partition), "groupBy-partition-" + i);
+                    t.setDaemon(true);
+                    started.add(t);
+                    t.start();
+                }
+
+                long[] line = { 0 };
+                Batch[] current = { take(0) };
+                source.forEachLine((buf, off, len) -> {
+                    if (current[0].isFull(len)) {
+                        dispatch(current[0]);
+                        current[0] = take(line[0]);
+                    }
+                    current[0].add(buf, off, len);
+                    line[0]++;
+                });
+                dispatch(current[0]);
+                for (BlockingQueue<Future<Batch>> queue : queues) {
+                    queue.put(CompletableFuture.completedFuture(null));
+                }
+                for (Thread t : started) {
+                    t.join();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } finally {
+                pool.shutdownNow();
+                for (Thread t : started) {
+                    t.interrupt();
+                }
+            }
+
+            Throwable e = failure.get();
+            if (e instanceof IOException io) {
+                throw io;
+            } else if (e instanceof Error error) {
+                throw error;
+            } else if (e != null) {
+                throw (RuntimeException) e;
+            }
+        }
+
+        private Batch take(long firstLine) throws IOException {
+            Throwable e = failure.get();
+            if (e instanceof IOException io) {
+                throw io;
+            } else if (e != null) {
+                throw new IOException(e);
+            }
+            try {
+                Batch batch = free.take();
+                batch.reset(firstLine);
+                return batch;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        private void dispatch(Batch batch) throws InterruptedIOException {
+            batch.pending.set(partitions.length);
+            Future<Batch> prepared = pool.submit(() -> {
+                try {
+                    batch.prepare(depth, partitions.length);
+                } catch (RuntimeException | Error e) {
+                    batch.failure = e;
+                }
+                return batch;
+            });
+            try {
+                for (BlockingQueue<Future<Batch>> queue : queues) {
+                    queue.put(prepared);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        /**
+         * Aggregates the rows of a partition from every batch; after a failure, the batches are
+         * only passed on so that the reader does not wait for them.
+         */
+        private void aggregate(int partition) {
+            try {
+                while (true) {
+                    Batch batch = queues.get(partition).take().get();
+                    if (batch == null) {
+                        return;
+                    }
+                    try {
+                        if (batch.failure != null) {
+                            failure.compareAndSet(null, batch.failure);
+                        } else if (failure.get() == null) {
+                            partitions[partition].addAll(batch, partition);
+                        }
+                    } catch (IOException | RuntimeException | Error e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        if (batch.pending.decrementAndGet() == 0) {
+                            free.put(batch);
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                failure.compareAndSet(null, e.getCause());
+            } catch (CancellationException e) {
+                // The run was abandoned.
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.github.oogasawa.utility.filter;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * The {@code Hash64} class computes 64-bit hashes of byte ranges.
+ *
+ * The function consumes eight bytes per step and finishes with the avalanche step of
+ * MurmurHash3, which is sufficient for hash tables and probabilistic filters. Different
+ * seeds give independent hash functions over the same data.
+ */
+public class Hash64 {
+
+    private static final VarHandle LONGS =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private static final long P1 = 0x9E3779B97F4A7C15L;
+    private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+
+    private Hash64() {
+    }
+
+    /**
+     * Hashes a byte range with seed 0.
+     *
+     * @param buf The array containing the data.
+     * @param off The start of the range.
+     * @param len The length of the range.
+     * @return The 64-bit hash.
+     */
+    public static long hash(byte[] buf, int off, int len) {
+        return hash(buf, off, len, 0L);
+    }
+
+    /**
+     * Hashes a byte range.
+     *
+     * @param buf The array containing the data.
+     * @param off The start of the range.
+     * @param len The length of the range.
+     * @param seed The seed selecting the hash function.
+     * @return The 64-bit hash.
+     */
+    public static long hash(byte[] buf, int off, int len, long seed) {
+        long h = seed ^ (len * P1);
+        int i = off;
+        int end = off + len;
+        for (; i + 8 <= end; i += 8) {
+            long k = (long) LONGS.get(buf, i);
+            h ^= Long.rotateLeft(k * P2, 31) * P1;
+            h = Long.rotateLeft(h, 27) * P1 + P2;
+        }
+        long tail = 0;
+        for (int shift = 0; i < end; i++, shift += 8) {
+            tail |= (buf[i] & 0xFFL) << shift;
+        }
+        h ^= Long.rotateLeft(tail * P2, 31) * P1;
+        return mix(h);
+    }
+
+    /**
+     * Applies the MurmurHash3 finalizer to a 64-bit value.
+     *
+     * @param h The value to mix.
+     * @return The mixed value.
+     */
+    public static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
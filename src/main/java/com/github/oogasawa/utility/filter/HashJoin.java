@@ -0,0 +1,348 @@
+package com.github.oogasawa.utility.filter;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The {@code HashJoin} class joins two tab-separated inputs on key columns.
+ *
+ * A hash table is built on the keys of one input (the build side) and the other input (the
+ * probe side) is streamed against it. The build side is the right input unless both inputs are
+ * regular files and the left one is smaller. The left input may be standard input.
+ *
+ * <ul>
+ * <li>{@code INNER} prints the left row and the right row, separated by a tab, for every pair of
+ *     rows with equal keys.</li>
+ * <li>{@code LEFT} additionally prints the left rows without a matching right row as they are.</li>
+ * <li>{@code ANTI} prints only the left rows without a matching right row.</li>
+ * </ul>
+ * Keys follow the rules of {@code getColumns}; see {@link KeyExtractor}.
+ *
+ * If the build side is a file too large for the memory budget, both inputs are first split into
+ * partition files on disk by the hash of their keys, and the partitions are joined one by one
+ * (grace hash join). Results are then grouped by partition; otherwise, rows are printed in the
+ * order of the probe side, and unmatched rows of a left build side are printed at the end.
+ */
+public class HashJoin {
+
+    /**
+     * The kinds of join.
+     */
+    public enum Type {
+        /** Pairs of matching rows. */
+        INNER,
+        /** Pairs of matching rows and unmatched left rows. */
+        LEFT,
+        /** Unmatched left rows. */
+        ANTI;
+
+        /**
+         * Returns the type with the given name, ignoring case.
+         *
+         * @param name The name, {@code inner}, {@code left} or {@code anti}.
+         * @return The type.
+         * @throws IllegalArgumentException If the name is unknown.
+         */
+        public static Type of(String name) {
+            try {
+                return valueOf(name.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown join type: " + name + " (use inner, left or anti)");
+            }
+        }
+    }
+
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+    private static final long PARTITION_SEED = 0x6A09E667F3BCC909L;
+    private static final int MAX_PARTITIONS = 1024;
+
+    private final Type type;
+    private final List<Integer> key1;
+    private final List<Integer> key2;
+    private final long memoryBudget;
+    private final Path tmpDir;
+
+    private String buildSide = "";
+    private int partitions = 1;
+    private long buildRows = 0;
+    private long probeRows = 0;
+    private long outputRows = 0;
+    private long buildNanos = 0;
+    private long probeNanos = 0;
+    private long partitionNanos = 0;
+    private long peakMemory = 0;
+
+    /**
+     * Creates a join.
+     *
+     * @param type The kind of join.
+     * @param key1 The key columns of the left input.
+     * @param key2 The key columns of the right input.
+     * @param memoryBudget The memory the build side may use before it is partitioned to disk.
+     * @param tmpDir The directory for partition files.
+     */
+    public HashJoin(Type type, List<Integer> key1, List<Integer> key2, long memoryBudget, Path tmpDir) {
+        this.type = type;
+        this.key1 = key1;
+        this.key2 = key2;
+        this.memoryBudget = memoryBudget;
+        this.tmpDir = tmpDir;
+    }
+
+    /**
+     * Joins two inputs and prints the result to standard output.
+     *
+     * @param left The left input, or {@code null} for standard input.
+     * @param right The right input.
+     * @throws IOException If an input cannot be read.
+     */
+    public void join(Path left, Path right) throws IOException {
+        OutputStream out = new BufferedOutputStream(System.out, 1 << 16);
+        join(left, right, out);
+        out.flush();
+    }
+
+    /**
+     * Joins two inputs.
+     *
+     * @param left The left input, or {@code null} for standard input.
+     * @param right The right input.
+     * @param out The destination of the result.
+     * @throws IOException If an input cannot be read, the output cannot be written, or the
+     *         partition files cannot be written.
+     */
+    public void join(Path left, Path right, OutputStream out) throws IOException {
+        boolean buildLeft = left != null && Files.isRegularFile(left) && Files.isRegularFile(right)
+                && Files.size(left) < Files.size(right);
+        Path build = buildLeft ? left : right;
+        Source buildSource = source(build);
+        Source probeSource = source(buildLeft ? right : left);
+        buildSide = (buildLeft ? "left (" : "right (") + build + ")";
+
+        // The table needs roughly the size of the rows plus the keys plus per-row bookkeeping.
+        long estimate = Files.isRegularFile(build) ? Files.size(build) * 2 : 0;
+        if (estimate <= memoryBudget) {
+            partitions = 1;
+            joinInMemory(buildSource, probeSource, buildLeft, out);
+        } else {
+            partitions = (int) Math.min(MAX_PARTITIONS, Math.max(2, (estimate + memoryBudget - 1) / memoryBudget));
+            graceJoin(buildSource, probeSource, buildLeft, out);
+        }
+    }
+
+    /**
+     * Prints the build and probe statistics of the last join to standard error.
+     */
+    public void printReport() {
+        System.err.println(String.format("build: %s, %d rows in %.3f s (%s)", buildSide, buildRows,
+                buildNanos / 1e9, rate(buildRows, buildNanos)));
+        System.err.println(String.format("probe: %d rows in %.3f s (%s), %d rows written", probeRows,
+                probeNanos / 1e9, rate(probeRows, probeNanos), outputRows));
+        if (partitions > 1) {
+            System.err.println(String.format("partitions: %d, partitioning %.3f s", partitions, partitionNanos / 1e9));
+        }
+        System.err.println("memory: " + MemorySize.format(peakMemory) + " off-heap and on heap at peak");
+    }
+
+    private static String rate(long rows, long nanos) {
+        return nanos == 0 ? "-" : String.format("%.0f rows/s", rows * 1e9 / nanos);
+    }
+
+    /**
+     * Returns the number of partitions used by the last join.
+     *
+     * @return 1 if the build side fitted into memory.
+     */
+    public int getPartitions() {
+        return partitions;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * A readable input.
+     */
+    private interface Source {
+        void forEachLine(ByteLineReader.LineConsumer consumer) throws IOException;
+    }
+
+    private static Source source(Path file) {
+        if (file == null) {
+            return consumer -> new ByteLineReader(System.in).forEachLine(consumer);
+        }
+        return consumer -> {
+            try (InputStream in = Files.newInputStream(file)) {
+                new ByteLineReader(in).forEachLine(consumer);
+            }
+        };
+    }
+
+    /**
+     * The rows of the build side, chained by key.
+     */
+    private static class Table {
+
+        final OffHeapLineSet keys = new OffHeapLineSet();
+        final LineArena rows = new LineArena();
+        long[] address = new long[1024];
+        int[] keyOf = new int[1024];
+        int[] next = new int[1024];
+        int[] head = new int[1024];
+        int[] tail = new int[1024];
+        int size = 0;
+
+        void add(byte[] buf, int off, int len, byte[] key, int keyLen) {
+            if (size == address.length) {
+                address = Arrays.copyOf(address, size * 2);
+                keyOf = Arrays.copyOf(keyOf, size * 2);
+                next = Arrays.copyOf(next, size * 2);
+            }
+            int keys0 = keys.size();
+            int ordinal = keys.intern(key, 0, keyLen);
+            if (ordinal == head.length) {
+                head = Arrays.copyOf(head, ordinal * 2);
+                tail = Arrays.copyOf(tail, ordinal * 2);
+            }
+
+            int row = size++;
+            address[row] = rows.add(buf, off, len);
+            keyOf[row] = ordinal;
+            next[row] = -1;
+            if (keys.size() != keys0) {
+                head[ordinal] = row;
+            } else {
+                next[tail[ordinal]] = row;
+            }
+            tail[ordinal] = row;
+        }
+
+        long memoryUsage() {
+            return keys.memoryUsage() + rows.memoryUsage() + 16L * address.length + 8L * head.length;
+        }
+    }
+
+    private void joinInMemory(Source build, Source probe, boolean buildLeft, OutputStream out) throws IOException {
+        KeyExtractor buildKey = new KeyExtractor(buildLeft ? key1 : key2);
+        KeyExtractor probeKey = new KeyExtractor(buildLeft ? key2 : key1);
+        Table table = new Table();
+
+        long start = System.nanoTime();
+        build.forEachLine((buf, off, len) -> table.add(buf, off, len, buildKey.key, buildKey.extract(buf, off, len)));
+        buildRows += table.size;
+        buildNanos += System.nanoTime() - start;
+
+        start = System.nanoTime();
+        BitSet matchedKeys = new BitSet();
+        probe.forEachLine((buf, off, len) -> {
+            probeRows++;
+            int ordinal = table.keys.indexOf(probeKey.key, 0, probeKey.extract(buf, off, len));
+            if (buildLeft) {
+                if (ordinal < 0) {
+                    return;
+                }
+                matchedKeys.set(ordinal);
+                if (type != Type.ANTI) {
+                    for (int row = table.head[ordinal]; row >= 0; row = table.next[row]) {
+                        table.rows.writeTo(table.address[row], out);
+                        out.write('\t');
+                        writeRow(out, buf, off, len);
+                    }
+                }
+            } else if (ordinal >= 0 && type != Type.ANTI) {
+                for (int row = table.head[ordinal]; row >= 0; row = table.next[row]) {
+                    out.write(buf, off, len);
+                    out.write('\t');
+                    table.rows.writeTo(table.address[row], out);
+                    out.write(NEWLINE);
+                    outputRows++;
+                }
+            } else if (ordinal < 0 && type != Type.INNER) {
+                writeRow(out, buf, off, len);
+            }
+        });
+
+        if (buildLeft && type != Type.INNER) {
+            for (int row = 0; row < table.size; row++) {
+                if (!matchedKeys.get(table.keyOf[row])) {
+                    table.rows.writeTo(table.address[row], out);
+                    out.write(NEWLINE);
+                    outputRows++;
+                }
+            }
+        }
+        probeNanos += System.nanoTime() - start;
+        peakMemory = Math.max(peakMemory, table.memoryUsage());
+    }
+
+    private void writeRow(OutputStream out, byte[] buf, int off, int len) throws IOException {
+        out.write(buf, off, len);
+        out.write(NEWLINE);
+        outputRows++;
+    }
+
+    private void graceJoin(Source build, Source probe, boolean buildLeft, OutputStream out) throws IOException {
+        Files.createDirectories(tmpDir);
+        Path dir = Files.createTempDirectory(tmpDir, "join");
+        List<Path> files = new ArrayList<>();
+        try {
+            long start = System.nanoTime();
+            List<Path> buildParts = partition(build, buildLeft ? key1 : key2, dir, "build", files);
+            List<Path> probeParts = partition(probe, buildLeft ? key2 : key1, dir, "probe", files);
+            partitionNanos = System.nanoTime() - start;
+
+            for (int i = 0; i < partitions; i++) {
+                joinInMemory(source(buildParts.get(i)), source(probeParts.get(i)), buildLeft, out);
+                Files.delete(buildParts.get(i));
+                Files.delete(probeParts.get(i));
+            }
+        } finally {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    /**
+     * Splits an input into partition files by the hash of the row keys.
+     */
+    private List<Path> partition(Source input, List<Integer> columns, Path dir, String name, List<Path> created)
+            throws IOException {
+        List<Path> parts = new ArrayList<>();
+        OutputStream[] outs = new OutputStream[partitions];
+        try {
+            for (int i = 0; i < partitions; i++) {
+                Path part = dir.resolve(name + "-" + i);
+                parts.add(part);
+                created.add(part);
+                outs[i] = new BufferedOutputStream(Files.newOutputStream(part), 1 << 16);
+            }
+
+            // A different seed than the hash table's keeps the keys of a partition spread over its table.
+            KeyExtractor extractor = new KeyExtractor(columns);
+            input.forEachLine((buf, off, len) -> {
+                int n = extractor.extract(buf, off, len);
+                int p = (int) Long.remainderUnsigned(Hash64.hash(extractor.key, 0, n, PARTITION_SEED), partitions);
+                outs[p].write(buf, off, len);
+                outs[p].write('\n');
+            });
+        } finally {
+            for (OutputStream o : outs) {
+                if (o != null) {
+                    o.close();
+                }
+            }
+        }
+        return parts;
+    }
+}
@@ -0,0 +1,154 @@
+package com.github.oogasawa.utility.filter;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The {@code HashSetOperation} class computes set operations without ordering the result.
+ *
+ * Lines are handled as raw bytes and stored in {@link OffHeapLineSet}s, so neither decoding
+ * nor a tree of {@code String}s is needed. The result lists every element once, in the order of
+ * its first occurrence in the inputs.
+ *
+ * <ul>
+ * <li>{@code DIFFERENCE} loads all but the first file and streams the first file against them.</li>
+ * <li>{@code UNION} streams all files through a single set.</li>
+ * <li>{@code INTERSECTION} loads the first file and counts its elements in the other files.</li>
+ * <li>{@code SYMMETRIC_DIFFERENCE} loads all files and counts the files containing each element.</li>
+ * </ul>
+ */
+public class HashSetOperation {
+
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+    private long memoryUsage = 0;
+    private String memoryReport = "";
+
+    /**
+     * Applies an operator to the given files and prints the result to standard output.
+     *
+     * @param op The operator to apply.
+     * @param files The input files.
+     * @throws IOException If an input cannot be read.
+     */
+    public void apply(SetOperator op, List<Path> files) throws IOException {
+        OutputStream out = new BufferedOutputStream(System.out, 1 << 16);
+        apply(op, files, out);
+        out.flush();
+    }
+
+    /**
+     * Applies an operator to the given files and writes the result in order of first occurrence.
+     *
+     * @param op The operator to apply.
+     * @param files The input files.
+     * @param out The destination of the result.
+     * @throws IOException If an input cannot be read or the output cannot be written.
+     */
+    public void apply(SetOperator op, List<Path> files, OutputStream out) throws IOException {
+        switch (op) {
+            case DIFFERENCE -> difference(files, out);
+            case UNION -> union(files, out);
+            case INTERSECTION, SYMMETRIC_DIFFERENCE -> count(op, files, out);
+        }
+    }
+
+    /**
+     * Returns the number of off-heap bytes used by the last operation.
+     *
+     * @return The memory usage in bytes.
+     */
+    public long getMemoryUsage() {
+        return memoryUsage;
+    }
+
+    /**
+     * Prints the memory usage of the last operation to standard error.
+     */
+    public void printReport() {
+        System.err.println("memory: " + MemorySize.format(memoryUsage) + " off-heap (" + memoryReport + ")");
+    }
+
+    private void difference(List<Path> files, OutputStream out) throws IOException {
+        OffHeapLineSet exclude = new OffHeapLineSet();
+        for (Path file : files.subList(1, files.size())) {
+            read(file, exclude::add);
+        }
+
+        OffHeapLineSet emitted = new OffHeapLineSet();
+        read(files.get(0), (buf, off, len) -> {
+            if (!exclude.contains(buf, off, len) && emitted.add(buf, off, len)) {
+                write(out, buf, off, len);
+            }
+        });
+
+        memoryUsage = exclude.memoryUsage() + emitted.memoryUsage();
+        memoryReport = "excluded: " + exclude.memoryReport() + "; emitted: " + emitted.memoryReport();
+    }
+
+    private void union(List<Path> files, OutputStream out) throws IOException {
+        OffHeapLineSet seen = new OffHeapLineSet();
+        for (Path file : files) {
+            read(file, (buf, off, len) -> {
+                if (seen.add(buf, off, len)) {
+                    write(out, buf, off, len);
+                }
+            });
+        }
+
+        memoryUsage = seen.memoryUsage();
+        memoryReport = seen.memoryReport();
+    }
+
+    private void count(SetOperator op, List<Path> files, OutputStream out) throws IOException {
+        OffHeapLineSet set = new OffHeapLineSet();
+        int[][] state = { new int[1024], new int[1024] }; // files containing each element, last file seen
+
+        for (int i = 0; i < files.size(); i++) {
+            int fileNo = i + 1;
+            boolean grow = i == 0 || op == SetOperator.SYMMETRIC_DIFFERENCE;
+            read(files.get(i), (buf, off, len) -> {
+                int ordinal = grow ? set.intern(buf, off, len) : set.indexOf(buf, off, len);
+                if (ordinal < 0) {
+                    return;
+                }
+                if (ordinal >= state[0].length) {
+                    state[0] = Arrays.copyOf(state[0], state[0].length * 2);
+                    state[1] = Arrays.copyOf(state[1], state[1].length * 2);
+                }
+                if (state[1][ordinal] != fileNo) {
+                    state[1][ordinal] = fileNo;
+                    state[0][ordinal]++;
+                }
+            });
+        }
+
+        int inputs = files.size();
+        set.forEach((ordinal, buf, off, len) -> {
+            if (op.accepts(true, state[0][ordinal], inputs)) {
+                write(out, buf, off, len);
+            }
+        });
+
+        memoryUsage = set.memoryUsage();
+        memoryReport = set.memoryReport() + ", counters " + MemorySize.format(8L * state[0].length) + " on heap";
+    }
+
+    private static void read(Path file, ByteLineReader.LineConsumer consumer) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            new ByteLineReader(in).forEachLine(consumer);
+        }
+    }
+
+    private static void write(OutputStream out, byte[] buf, int off, int len) throws IOException {
+        out.write(buf, off, len);
+        out.write(NEWLINE);
+    }
+}
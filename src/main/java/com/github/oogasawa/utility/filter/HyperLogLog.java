@@ -0,0 +1,88 @@
+package com.github.oogasawa.utility.filter;
+
+/**
+ * The {@code HyperLogLog} class estimates the number of distinct elements of a stream in a
+ * fixed amount of memory.
+ *
+ * The first {@code p} bits of the 64-bit hash of an element select one of {@code 2^p}
+ * registers, which keeps the largest number of leading zeros seen in the remaining bits. The
+ * harmonic mean of the registers gives the estimate, with a relative standard error of about
+ * {@code 1.04 / sqrt(2^p)}; small counts are estimated from the number of empty registers
+ * instead (linear counting). Two sketches of the same precision are merged by taking the larger
+ * of each register, so streams can be counted separately and combined.
+ */
+public class HyperLogLog {
+
+    private final int precision;
+    private final byte[] registers;
+
+    /**
+     * Creates an empty sketch.
+     *
+     * @param precision The number of index bits, from 4 to 18; 14 gives 16 KB and an error of
+     *        about 0.8%.
+     * @throws IllegalArgumentException If the precision is out of range.
+     */
+    public HyperLogLog(int precision) {
+        if (precision < 4 || precision > 18) {
+            throw new IllegalArgumentException("Precision must be between 4 and 18: " + precision);
+        }
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    /**
+     * Adds an element by its hash.
+     *
+     * @param hash The 64-bit hash of the element, for example from {@link Hash64}.
+     */
+    public void add(long hash) {
+        int index = (int) (hash >>> (64 - precision));
+        // A sentinel bit bounds the count when all remaining bits are zero.
+        long rest = (hash << precision) | (1L << (precision - 1));
+        byte rank = (byte) (Long.numberOfLeadingZeros(rest) + 1);
+        if (rank > registers[index]) {
+            registers[index] = rank;
+        }
+    }
+
+    /**
+     * Adds the elements counted by another sketch.
+     *
+     * @param other A sketch of the same precision.
+     * @throws IllegalArgumentException If the precisions differ.
+     */
+    public void merge(HyperLogLog other) {
+        if (other.precision != precision) {
+            throw new IllegalArgumentException("Cannot merge precision " + other.precision + " into " + precision);
+        }
+        for (int i = 0; i < registers.length; i++) {
+            if (other.registers[i] > registers[i]) {
+                registers[i] = other.registers[i];
+            }
+        }
+    }
+
+    /**
+     * Returns the estimated number of distinct elements.
+     *
+     * @return The estimate, rounded.
+     */
+    public long estimate() {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte r : registers) {
+            sum += Math.scalb(1.0, -r);
+            if (r == 0) {
+                zeros++;
+            }
+        }
+        double alpha = 0.7213 / (1 + 1.079 / m);
+        double estimate = alpha * m * m / sum;
+        if (estimate <= 2.5 * m && zeros > 0) {
+            estimate = m * Math.log((double) m / zeros);
+        }
+        return Math.round(estimate);
+    }
+}
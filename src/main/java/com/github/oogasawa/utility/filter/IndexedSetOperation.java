@@ -0,0 +1,131 @@
+package com.github.oogasawa.utility.filter;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The {@code IndexedSetOperation} class evaluates the difference or intersection of a set file
+ * with reference sets that have a {@link SortedSetIndex}.
+ *
+ * Only the first file is loaded and sorted; each of its lines is looked up in the indexes of the
+ * other files, so the cost of a run depends on the size of the first file only. The result is
+ * printed in ascending byte order, like the result of the in-memory engine.
+ */
+public class IndexedSetOperation implements Closeable {
+
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+    private final List<SortedSetIndex> indexes;
+
+    private IndexedSetOperation(List<SortedSetIndex> indexes) {
+        this.indexes = indexes;
+    }
+
+    /**
+     * Tests whether the operator can be evaluated with indexes.
+     *
+     * @param op The operator.
+     * @return {@code true} for difference and intersection.
+     */
+    public static boolean supports(SetOperator op) {
+        return op == SetOperator.DIFFERENCE || op == SetOperator.INTERSECTION;
+    }
+
+    /**
+     * Opens the indexes of the reference sets if every one of them has a fresh index.
+     *
+     * @param references The reference sets.
+     * @return The operation, or {@code null} if an index is missing or out of date.
+     * @throws IOException If an existing index cannot be read.
+     */
+    public static IndexedSetOperation openFresh(List<Path> references) throws IOException {
+        List<SortedSetIndex> indexes = new ArrayList<>();
+        try {
+            for (Path reference : references) {
+                SortedSetIndex index = SortedSetIndex.openFresh(reference);
+                if (index == null) {
+                    closeAll(indexes);
+                    return null;
+                }
+                indexes.add(index);
+            }
+        } catch (IOException e) {
+            closeAll(indexes);
+            throw e;
+        }
+        return new IndexedSetOperation(indexes);
+    }
+
+    /**
+     * Evaluates {@code file1 op references} and prints the result to standard output.
+     *
+     * @param op The operator, difference or intersection.
+     * @param file1 The set whose lines are tested.
+     * @return The number of lines printed.
+     * @throws IOException If the file cannot be read.
+     */
+    public long apply(SetOperator op, Path file1) throws IOException {
+        OutputStream out = new BufferedOutputStream(System.out, 1 << 16);
+        long n = apply(op, file1, out);
+        out.flush();
+        return n;
+    }
+
+    /**
+     * Evaluates {@code file1 op references}.
+     *
+     * @param op The operator, difference or intersection.
+     * @param file1 The set whose lines are tested.
+     * @param out The destination of the result.
+     * @return The number of lines written.
+     * @throws IOException If the file cannot be read or the output cannot be written.
+     */
+    public long apply(SetOperator op, Path file1, OutputStream out) throws IOException {
+        if (!supports(op)) {
+            throw new IllegalArgumentException("Indexes cannot evaluate " + op);
+        }
+        boolean keepContained = op == SetOperator.INTERSECTION;
+
+        long written = 0;
+        byte[] buf = new byte[256];
+        for (ByteLine line : new ParallelLineLoader().load(file1)) {
+            int len = line.length();
+            if (buf.length < len) {
+                buf = new byte[Math.max(len, buf.length * 2)];
+            }
+            line.copyTo(buf, 0);
+
+            // Intersection keeps the lines found in every index, difference those found in none.
+            boolean keep = true;
+            for (SortedSetIndex index : indexes) {
+                if (index.contains(buf, 0, len) != keepContained) {
+                    keep = false;
+                    break;
+                }
+            }
+            if (keep) {
+                out.write(buf, 0, len);
+                out.write(NEWLINE);
+                written++;
+            }
+        }
+        return written;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeAll(indexes);
+    }
+
+    private static void closeAll(List<SortedSetIndex> indexes) throws IOException {
+        for (SortedSetIndex index : indexes) {
+            index.close();
+        }
+    }
+}
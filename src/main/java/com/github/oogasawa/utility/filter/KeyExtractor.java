@@ -0,0 +1,61 @@
+package com.github.oogasawa.utility.filter;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The {@code KeyExtractor} class copies selected tab-separated columns of a row into a reusable
+ * buffer, joined with tabs.
+ *
+ * Columns are numbered from 0. As with {@code String.split("\t")}, trailing empty fields do not
+ * count, so columns beyond the last non-empty field are left out of the key, and an empty row
+ * has a single empty field.
+ */
+class KeyExtractor {
+
+    private final int[] columns;
+    private final TsvTokenizer tokenizer;
+    byte[] key = new byte[256];
+
+    /**
+     * Creates an extractor.
+     *
+     * @param columns The columns forming the key, in key order.
+     * @throws IllegalArgumentException If a column is negative.
+     */
+    KeyExtractor(List<Integer> columns) {
+        this.columns = columns.stream().mapToInt(Integer::intValue).toArray();
+        this.tokenizer = TsvTokenizer.forColumns(columns);
+    }
+
+    /**
+     * Copies the key of a row to {@link #key}.
+     *
+     * @param buf The array containing the row.
+     * @param off The start of the row.
+     * @param len The length of the row, without the line terminator.
+     * @return The length of the key.
+     */
+    int extract(byte[] buf, int off, int len) {
+        tokenizer.tokenize(buf, off, len);
+        int n = 0;
+        boolean first = true;
+        for (int column : columns) {
+            if (!tokenizer.has(column)) {
+                continue;
+            }
+            int from = tokenizer.start(column);
+            int length = tokenizer.length(column);
+            if (key.length < n + 1 + length) {
+                key = Arrays.copyOf(key, Math.max(n + 1 + length, key.length * 2));
+            }
+            if (!first) {
+                key[n++] = '\t';
+            }
+            first = false;
+            System.arraycopy(buf, from, key, n, length);
+            n += length;
+        }
+        return n;
+    }
+}
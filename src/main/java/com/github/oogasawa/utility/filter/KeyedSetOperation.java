@@ -0,0 +1,190 @@
+package com.github.oogasawa.utility.filter;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * The {@code KeyedSetOperation} class computes the difference (anti-join) or intersection
+ * (semi-join) of tab-separated files on selected key columns.
+ *
+ * A row of the first file is printed whole if its key is not contained (difference) or is
+ * contained (intersection) in the keys of the other files. Rows are printed in the order of the
+ * first file and are not deduplicated. A key consists of the selected columns joined with tabs,
+ * with the same rules as {@code getColumns}: columns are numbered from 0, and columns beyond the
+ * end of a row, including trailing empty fields, are left out.
+ *
+ * Only keys are held in memory, in {@link OffHeapLineSet}s. With a single reference file, the
+ * keys of the smaller file are loaded and the larger file is streamed against them. If the
+ * first file is the smaller one, it is read twice: once to collect its keys and once to print
+ * the rows whose keys were matched.
+ */
+public class KeyedSetOperation {
+
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+    private final List<Integer> key1;
+    private final List<Integer> key2;
+
+    private long memoryUsage = 0;
+    private String strategy = "";
+
+    /**
+     * Creates a keyed set operation.
+     *
+     * @param key1 The key columns of the first file.
+     * @param key2 The key columns of the other files.
+     */
+    public KeyedSetOperation(List<Integer> key1, List<Integer> key2) {
+        this.key1 = key1;
+        this.key2 = key2;
+    }
+
+    /**
+     * Tests whether the operator can be evaluated on key columns.
+     *
+     * @param op The operator.
+     * @return {@code true} for difference and intersection.
+     */
+    public static boolean supports(SetOperator op) {
+        return op == SetOperator.DIFFERENCE || op == SetOperator.INTERSECTION;
+    }
+
+    /**
+     * Applies an operator and prints the result to standard output.
+     *
+     * @param op The operator, difference or intersection.
+     * @param files The input files; the rows of the first one are printed.
+     * @throws IOException If an input cannot be read.
+     */
+    public void apply(SetOperator op, List<Path> files) throws IOException {
+        OutputStream out = new BufferedOutputStream(System.out, 1 << 16);
+        apply(op, files, out);
+        out.flush();
+    }
+
+    /**
+     * Applies an operator.
+     *
+     * @param op The operator, difference or intersection.
+     * @param files The input files; the rows of the first one are written.
+     * @param out The destination of the result.
+     * @throws IOException If an input cannot be read or the output cannot be written.
+     */
+    public void apply(SetOperator op, List<Path> files, OutputStream out) throws IOException {
+        if (!supports(op)) {
+            throw new IllegalArgumentException("Key columns cannot be used with " + op);
+        }
+        boolean keepMatched = op == SetOperator.INTERSECTION;
+        Path file1 = files.get(0);
+        List<Path> references = files.subList(1, files.size());
+
+        if (references.size() == 1 && Files.isRegularFile(file1) && Files.isRegularFile(references.get(0))
+                && Files.size(file1) < Files.size(references.get(0))) {
+            probeReference(file1, references.get(0), keepMatched, out);
+        } else {
+            probeFirst(file1, references, keepMatched, out);
+        }
+    }
+
+    /**
+     * Returns the number of off-heap bytes used by the keys of the last operation.
+     *
+     * @return The memory usage in bytes.
+     */
+    public long getMemoryUsage() {
+        return memoryUsage;
+    }
+
+    /**
+     * Prints the strategy and memory usage of the last operation to standard error.
+     */
+    public void printReport() {
+        System.err.println(strategy + "; memory: " + MemorySize.format(memoryUsage) + " off-heap");
+    }
+
+    /**
+     * Loads the keys of the reference files and streams the first file against them.
+     */
+    private void probeFirst(Path file1, List<Path> references, boolean keepMatched, OutputStream out)
+            throws IOException {
+        List<OffHeapLineSet> sets = new ArrayList<>();
+        for (Path reference : references) {
+            OffHeapLineSet keys = new OffHeapLineSet();
+            KeyExtractor extractor = new KeyExtractor(key2);
+            read(reference, (buf, off, len) -> {
+                int n = extractor.extract(buf, off, len);
+                keys.add(extractor.key, 0, n);
+            });
+            sets.add(keys);
+            memoryUsage += keys.memoryUsage();
+        }
+
+        KeyExtractor extractor = new KeyExtractor(key1);
+        read(file1, (buf, off, len) -> {
+            int n = extractor.extract(buf, off, len);
+            boolean keep = true;
+            for (OffHeapLineSet keys : sets) {
+                if (keys.contains(extractor.key, 0, n) != keepMatched) {
+                    keep = false;
+                    break;
+                }
+            }
+            if (keep) {
+                write(out, buf, off, len);
+            }
+        });
+        strategy = "streamed " + file1 + " against the keys of " + references;
+    }
+
+    /**
+     * Loads the keys of the first file, streams the reference file against them, and prints the
+     * rows of the first file by their matched keys.
+     */
+    private void probeReference(Path file1, Path reference, boolean keepMatched, OutputStream out)
+            throws IOException {
+        OffHeapLineSet keys = new OffHeapLineSet();
+        KeyExtractor extractor1 = new KeyExtractor(key1);
+        read(file1, (buf, off, len) -> {
+            int n = extractor1.extract(buf, off, len);
+            keys.add(extractor1.key, 0, n);
+        });
+
+        BitSet matched = new BitSet(keys.size());
+        KeyExtractor extractor2 = new KeyExtractor(key2);
+        read(reference, (buf, off, len) -> {
+            int n = extractor2.extract(buf, off, len);
+            int ordinal = keys.indexOf(extractor2.key, 0, n);
+            if (ordinal >= 0) {
+                matched.set(ordinal);
+            }
+        });
+
+        read(file1, (buf, off, len) -> {
+            int n = extractor1.extract(buf, off, len);
+            if (matched.get(keys.indexOf(extractor1.key, 0, n)) == keepMatched) {
+                write(out, buf, off, len);
+            }
+        });
+        memoryUsage = keys.memoryUsage();
+        strategy = "streamed " + reference + " against the keys of " + file1;
+    }
+
+    private static void read(Path file, ByteLineReader.LineConsumer consumer) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            new ByteLineReader(in).forEachLine(consumer);
+        }
+    }
+
+    private static void write(OutputStream out, byte[] buf, int off, int len) throws IOException {
+        out.write(buf, off, len);
+        out.write(NEWLINE);
+    }
+}
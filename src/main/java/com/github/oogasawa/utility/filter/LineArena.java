@@ -0,0 +1,86 @@
+package com.github.oogasawa.utility.filter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The {@code LineArena} class appends byte strings, duplicates included, to direct buffers
+ * outside the Java heap and returns an address for each of them.
+ *
+ * It complements {@link OffHeapLineSet} where every occurrence has to be kept, for example the
+ * rows of the build side of a hash join. A string occupies 4 bytes plus its length.
+ */
+class LineArena {
+
+    private static final int CHUNK_BITS = 24;
+    private static final int FIRST_CHUNK_BITS = 16;
+    private static final int FIRST_CHUNK_SIZE = 1 << FIRST_CHUNK_BITS;
+
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private ByteBuffer current;
+    private long bytes = 0;
+
+    private byte[] scratch = new byte[256];
+
+    /**
+     * Appends a string.
+     *
+     * @param buf The array containing the string.
+     * @param off The start of the string.
+     * @param len The length of the string.
+     * @return The address of the string.
+     */
+    long add(byte[] buf, int off, int len) {
+        int size = 4 + len;
+        if (current == null || current.remaining() < size) {
+            // Chunks grow from 64 KB to 16 MB; a string larger than a chunk gets a chunk of its own.
+            int chunk = FIRST_CHUNK_SIZE << Math.min(chunks.size(), CHUNK_BITS - FIRST_CHUNK_BITS);
+            current = ByteBuffer.allocateDirect(Math.max(chunk, size));
+            chunks.add(current);
+        }
+        long address = ((long) (chunks.size() - 1) << 32) | current.position();
+        current.putInt(len);
+        current.put(buf, off, len);
+        bytes += size;
+        return address;
+    }
+
+    /**
+     * Writes a string to a stream.
+     *
+     * @param address The address returned by {@link #add(byte[], int, int)}.
+     * @param out The destination.
+     * @throws IOException If the stream cannot be written.
+     */
+    void writeTo(long address, OutputStream out) throws IOException {
+        ByteBuffer chunk = chunks.get((int) (address >>> 32));
+        int pos = (int) address;
+        int len = chunk.getInt(pos);
+        if (scratch.length < len) {
+            scratch = new byte[Math.max(len, scratch.length * 2)];
+        }
+        chunk.get(pos + 4, scratch, 0, len);
+        out.write(scratch, 0, len);
+    }
+
+    /**
+     * Returns the number of bytes allocated.
+     *
+     * @return The size of all chunks in bytes.
+     */
+    long memoryUsage() {
+        return chunks.stream().mapToLong(ByteBuffer::capacity).sum();
+    }
+
+    /**
+     * Returns the number of bytes stored, including the length prefixes.
+     *
+     * @return The number of bytes used.
+     */
+    long usedBytes() {
+        return bytes;
+    }
+}
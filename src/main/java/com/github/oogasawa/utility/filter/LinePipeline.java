@@ -0,0 +1,341 @@
+package com.github.oogasawa.utility.filter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The {@code LinePipeline} class runs several line operations one after another in a single
+ * pass, as {@code split | filter | getColumns} would in separate processes, with the same
+ * output.
+ *
+ * Every line is handed from stage to stage as a range of bytes, and its tab-separated fields
+ * are only located by the stages that use them. Before the run, the stages are visited from
+ * the last to the first to work out how many leading fields each one needs from the stage
+ * before it, so that a {@code split} followed only by column operations stops splitting after
+ * the last field used, and column operations never scan past their highest column. A line is
+ * only rewritten by {@code split} and {@code getColumns}, into a buffer owned by the stage.
+ */
+public class LinePipeline {
+
+    /** The number of fields needed when the whole line is used. */
+    private static final int ALL = Integer.MAX_VALUE;
+
+    private final List<Stage> stages = new ArrayList<>();
+
+    /** The field separator of CSV input, or -1 if the input is read as lines. */
+    private int csvSeparator = -1;
+
+    /**
+     * Adds a stage that splits lines at a regular expression and joins the fields with tabs,
+     * like {@link StdinOperation#splitLines(String, InputStream, OutputStream)}.
+     *
+     * @param delimiter The regular expression separating the fields.
+     * @return This pipeline.
+     */
+    public LinePipeline split(String delimiter) {
+        stages.add(new Split(FieldSplitter.of(delimiter)));
+        return this;
+    }
+
+    /**
+     * Reads the input as CSV and passes every record on as a tab-separated line, like
+     * {@link StdinOperation#splitCsv(String, InputStream, OutputStream)}. Since a record may
+     * span several lines, this can only be the first stage.
+     *
+     * @param delimiter The field separator, a single character.
+     * @return This pipeline.
+     * @throws IllegalArgumentException If stages have already been added or the separator is
+     *         not a single byte.
+     */
+    public LinePipeline csv(String delimiter) {
+        if (!stages.isEmpty() || csvSeparator >= 0) {
+            throw new IllegalArgumentException("CSV input can only be read by the first stage");
+        }
+        csvSeparator = CsvReader.separator(delimiter) & 0xFF;
+        return this;
+    }
+
+    /**
+     * Adds a stage that selects columns, like
+     * {@link StdinOperation#getColumns(String, InputStream, OutputStream)}.
+     *
+     * @param columnsStr The columns, for example {@code 3,0,5-10}.
+     * @return This pipeline.
+     */
+    public LinePipeline columns(String columnsStr) {
+        stages.add(new Columns(StdinOperation.parseColumns(columnsStr)));
+        return this;
+    }
+
+    /**
+     * Adds a stage that keeps the lines matching a regular expression.
+     *
+     * @param regex The regular expression, found anywhere in the line or column.
+     * @param column The column to search, counted from 0, or -1 for the whole line.
+     * @param engine The regex engine.
+     * @return This pipeline.
+     */
+    public LinePipeline regexFilter(String regex, int column, ByteRegex.Engine engine) {
+        stages.add(new Filter(StdinOperation.regexPredicates(regex, column, engine).get(), column));
+        return this;
+    }
+
+    /**
+     * Adds a stage that keeps the lines containing any of a set of strings.
+     *
+     * @param patterns The automaton of the strings.
+     * @param column The column to search, counted from 0, or -1 for the whole line.
+     * @return This pipeline.
+     */
+    public LinePipeline filter(AhoCorasick patterns, int column) {
+        stages.add(new Filter(StdinOperation.inColumn(column, patterns::find), column));
+        return this;
+    }
+
+    /**
+     * Returns the number of stages.
+     *
+     * @return The number of stages.
+     */
+    public int size() {
+        return stages.size() + (csvSeparator >= 0 ? 1 : 0);
+    }
+
+    /**
+     * Runs the stages over the lines of an input.
+     *
+     * @param in The input.
+     * @param out The output; it is flushed but not closed.
+     * @throws IOException If the input cannot be read or the output cannot be written.
+     */
+    public void run(InputStream in, OutputStream out) throws IOException {
+        int needed = ALL;
+        for (int i = stages.size() - 1; i >= 0; i--) {
+            needed = stages.get(i).needs(needed);
+        }
+
+        LineWriter writer = new LineWriter(out);
+        Stage[] steps = stages.toArray(new Stage[0]);
+        Line line = new Line();
+        ByteLineReader.LineConsumer consumer = (buf, off, len) -> {
+            line.buf = buf;
+            line.off = off;
+            line.len = len;
+            for (Stage stage : steps) {
+                if (!stage.process(line)) {
+                    return;
+                }
+            }
+            writer.writeLine(line.buf, line.off, line.len);
+        };
+        if (csvSeparator >= 0) {
+            new CsvReader(in, (byte) csvSeparator).forEachRecord(consumer);
+        } else {
+            new ByteLineReader(in).forEachLine(consumer);
+        }
+        writer.flush();
+    }
+
+    /**
+     * The line passed between the stages.
+     */
+    private static final class Line {
+        byte[] buf;
+        int off;
+        int len;
+    }
+
+    /**
+     * A step of the pipeline.
+     */
+    private abstract static class Stage {
+
+        /**
+         * Returns how many leading fields of its input the stage needs, given how many of its
+         * output the next stage needs.
+         */
+        abstract int needs(int downstream);
+
+        /**
+         * Processes a line, possibly replacing it; returns {@code false} to drop it.
+         */
+        abstract boolean process(Line line) throws IOException;
+    }
+
+    /**
+     * A growable buffer for a rewritten line.
+     */
+    private static final class Buffer {
+
+        byte[] bytes = new byte[1024];
+        int length = 0;
+
+        void write(byte[] b, int off, int len) {
+            if (length + len > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(length + len, bytes.length * 2));
+            }
+            System.arraycopy(b, off, bytes, length, len);
+            length += len;
+        }
+
+        void write(byte b) {
+            if (length == bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            bytes[length++] = b;
+        }
+
+        void moveTo(Line line) {
+            line.buf = bytes;
+            line.off = 0;
+            line.len = length;
+        }
+    }
+
+    private static final class Filter extends Stage {
+
+        private final ParallelLineFilter.LinePredicate predicate;
+        private final int column;
+
+        Filter(ParallelLineFilter.LinePredicate predicate, int column) {
+            this.predicate = predicate;
+            this.column = column;
+        }
+
+        @Override
+        int needs(int downstream) {
+            return column < 0 ? ALL : Math.max(downstream, column + 1);
+        }
+
+        @Override
+        boolean process(Line line) {
+            return predicate.test(line.buf, line.off, line.len);
+        }
+    }
+
+    private static final class Columns extends Stage {
+
+        private final int[] columns;
+        private final TsvTokenizer tokenizer;
+        private final Buffer out = new Buffer();
+
+        Columns(List<Integer> columns) {
+            this.columns = columns.stream().mapToInt(Integer::intValue).toArray();
+            this.tokenizer = TsvTokenizer.forColumns(columns);
+        }
+
+        @Override
+        int needs(int downstream) {
+            return Arrays.stream(columns).max().orElse(-1) + 1;
+        }
+
+        @Override
+        boolean process(Line line) {
+            int fields = tokenizer.tokenize(line.buf, line.off, line.len);
+            out.length = 0;
+            boolean first = true;
+            for (int column : columns) {
+                if (column < fields) {
+                    if (!first) {
+                        out.write((byte) '\t');
+                    }
+                    first = false;
+                    out.write(line.buf, tokenizer.start(column), tokenizer.length(column));
+                }
+            }
+            out.moveTo(line);
+            return true;
+        }
+    }
+
+    /**
+     * Splits like {@code String.split}, trailing empty fields included, but stops once the
+     * fields needed downstream are known.
+     */
+    private static final class Split extends Stage implements FieldSplitter.FieldConsumer {
+
+        private final FieldSplitter splitter;
+        private final Buffer out = new Buffer();
+        private int limit = ALL;
+
+        private int max;
+        private int seen;
+        private int written;
+        private int pending;
+
+        Split(FieldSplitter splitter) {
+            this.splitter = splitter;
+        }
+
+        @Override
+        int needs(int downstream) {
+            limit = downstream;
+            return ALL;
+        }
+
+        @Override
+        boolean process(Line line) throws IOException {
+            // A field containing a tab becomes several fields downstream, so the fields
+            // needed cannot be counted before splitting.
+            max = limit == ALL || ByteScanner.get().indexOf(line.buf, line.off, line.off + line.len, (byte) '\t') >= 0
+                    ? ALL : limit;
+
+            out.length = 0;
+            seen = 0;
+            written = 0;
+            pending = 0;
+            // The remaining empty fields are trailing ones, which String.split drops.
+            splitter.split(line.buf, line.off, line.len, this);
+            out.moveTo(line);
+            return true;
+        }
+
+        /**
+         * Takes the next field; returns {@code false} when no further field can change the
+         * output.
+         */
+        @Override
+        public boolean accept(byte[] buf, int from, int to) {
+            if (seen >= max) {
+                if (pending == 0) {
+                    return false;
+                }
+                if (from == to) {
+                    pending++;
+                    return true;
+                }
+                // A non-empty field follows, so the pending empty fields are not trailing; it is
+                // written too, or they would become trailing ones downstream.
+                write(buf, from, to);
+                return false;
+            }
+            seen++;
+            if (from == to) {
+                pending++;
+                return true;
+            }
+            write(buf, from, to);
+            return seen < max;
+        }
+
+        private void write(byte[] buf, int from, int to) {
+            flushPending();
+            if (written++ > 0) {
+                out.write((byte) '\t');
+            }
+            out.write(buf, from, to - from);
+        }
+
+        private void flushPending() {
+            for (; pending > 0; pending--) {
+                if (written++ > 0) {
+                    out.write((byte) '\t');
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,865 @@
+package com.github.oogasawa.utility.filter;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The {@code LineSorter} class sorts the lines of an input of any size under a memory budget,
+ * by the whole line or by key columns.
+ *
+ * Without keys, lines are compared byte by byte, as {@code LC_ALL=C sort} does. Each key is a
+ * column compared as bytes or, when numeric, as a number; numbers sort after everything that is
+ * not a number. Keys follow the rules of {@code getColumns}, so a missing column is an empty
+ * field. The sort is stable: lines with equal keys keep their input order, and when duplicates
+ * are removed the first line of each key is kept.
+ *
+ * The keys of a line are encoded into one byte string whose unsigned order is the order
+ * wanted, so every comparison is a byte comparison; its first eight bytes are kept as a
+ * {@code long} next to the line index, which decides most comparisons without touching the
+ * lines. The input is read into chunks of {@code budget / (threads + 1)} bytes, counting the
+ * index of every line and its encoded key; while the calling thread fills the next chunk, a
+ * pool sorts the full ones and writes them to disk as sorted runs. The last chunk is sorted in
+ * memory in slices, one per thread, and the slices and the runs are merged through a loser
+ * tree, which finds the next line with one comparison per level. With one thread, a chunk
+ * takes the whole budget. Inputs that fit into one chunk never touch the disk; more runs than
+ * can be merged at once are first merged in groups, in parallel.
+ */
+public class LineSorter {
+
+    /**
+     * A sort key.
+     *
+     * @param column The column, counted from 0; -1 for the whole line.
+     * @param numeric Whether the column is compared as a number.
+     * @param reverse Whether the order of the column is reversed.
+     */
+    public record Key(int column, boolean numeric, boolean reverse) {
+
+        private static final Pattern ITEM = Pattern.compile("(\\d+)(?:-(\\d+))?([nr]*)");
+
+        /**
+         * Parses a key list such as {@code 2,0n,3-4r}.
+         *
+         * @param spec The columns and inclusive ranges separated by commas, each optionally
+         *        followed by {@code n} (numeric) and {@code r} (reverse).
+         * @param numeric Whether keys without flags are numeric.
+         * @param reverse Whether keys without flags are reversed.
+         * @return The keys in order of precedence.
+         * @throws IllegalArgumentException If the list is malformed.
+         */
+        public static List<Key> parse(String spec, boolean numeric, boolean reverse) {
+            List<Key> keys = new ArrayList<>();
+            for (String item : spec.split(",")) {
+                Matcher m = ITEM.matcher(item.trim());
+                if (!m.matches()) {
+                    throw new IllegalArgumentException("Invalid key: " + item + " (e.g. 2, 0n or 3-4r)");
+                }
+                int first = Integer.parseInt(m.group(1));
+                int last = m.group(2) == null ? first : Integer.parseInt(m.group(2));
+                String flags = m.group(3);
+                boolean n = flags.isEmpty() ? numeric : flags.contains("n");
+                boolean r = flags.isEmpty() ? reverse : flags.contains("r");
+                for (int column = first; column <= last; column++) {
+                    keys.add(new Key(column, n, r));
+                }
+            }
+            return keys;
+        }
+    }
+
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+    /** The number of runs merged at once; see {@link ExternalSorter}. */
+    private static final int MAX_FAN_IN = 128;
+    private static final long MIN_CHUNK = 1L << 20;
+    private static final long MAX_CHUNK = 1L << 30;
+    /** The bytes of a line's index entries: offsets, lengths, prefix and order, twice for merging. */
+    private static final int LINE_OVERHEAD = 40;
+    /** The number of lines below which the last chunk is sorted in one slice. */
+    private static final int MIN_SLICE = 1 << 16;
+    /** The length of the sequences sorted by insertion before merging. */
+    private static final int INSERTION_RUN = 24;
+
+    private final Key[] keys;
+    private final boolean unique;
+    private final int threads;
+    private final long memoryBudget;
+    private final Path tmpDir;
+
+    private Path runDir = null;
+    private int runFiles = 0;
+    private long lines = 0;
+    private long written = 0;
+    private int runs = 0;
+    private long spilledBytes = 0;
+    private long nanos = 0;
+
+    /**
+     * Creates a sorter.
+     *
+     * @param keys The keys in order of precedence; an empty list sorts by the whole line.
+     * @param unique Whether only the first line of each key is printed.
+     * @param threads The number of threads sorting chunks.
+     * @param memoryBudget The memory used for lines before they are spilled to sorted runs.
+     * @param tmpDir The directory for the runs.
+     * @throws IllegalArgumentException If the number of threads is not positive.
+     */
+    public LineSorter(List<Key> keys, boolean unique, int threads, long memoryBudget, Path tmpDir) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("The number of threads must be positive: " + threads);
+        }
+        // Plain byte order needs no encoding; the line is its own key.
+        boolean plain = keys.size() == 1 && keys.get(0).equals(new Key(-1, false, false));
+        this.keys = keys.isEmpty() || plain ? null : keys.toArray(new Key[0]);
+        this.unique = unique;
+        this.threads = threads;
+        this.memoryBudget = memoryBudget;
+        this.tmpDir = tmpDir;
+    }
+
+    /**
+     * Sorts an input.
+     *
+     * @param in The input.
+     * @param out The destination of the sorted lines; it is flushed but not closed.
+     * @throws IOException If the input cannot be read, the output cannot be written, or the
+     *         runs cannot be written.
+     */
+    public void run(InputStream in, OutputStream out) throws IOException {
+        long start = System.nanoTime();
+        OutputStream buffered = new BufferedOutputStream(out, 1 << 16);
+        ExecutorService pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        try {
+            sort(new ByteLineReader(in), pool, buffered);
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+            if (runDir != null) {
+                try (var files = Files.list(runDir)) {
+                    for (Path file : files.toList()) {
+                        Files.deleteIfExists(file);
+                    }
+                }
+                Files.deleteIfExists(runDir);
+                runDir = null;
+            }
+        }
+        buffered.flush();
+        nanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Prints the statistics of the last run to standard error.
+     */
+    public void printReport() {
+        System.err.println(String.format("sort: %d lines in %.3f s (%s), %d lines written",
+                lines, nanos / 1e9, nanos == 0 ? "-" : String.format("%.0f lines/s", lines * 1e9 / nanos),
+                written));
+        if (runs > 0) {
+            System.err.println(String.format("runs: %d (%s spilled)", runs, MemorySize.format(spilledBytes)));
+        }
+    }
+
+    /**
+     * Returns the number of sorted runs written to disk by the last run, including those of
+     * intermediate merges.
+     *
+     * @return 0 if the input was sorted in memory.
+     */
+    public int getRuns() {
+        return runs;
+    }
+
+    // ------------------------------------------------------------------------
+
+    private void sort(ByteLineReader reader, ExecutorService pool, OutputStream out) throws IOException {
+        long weight = keys == null ? 1 : 2;
+        // With one thread, a chunk is sorted before the next is read, so it may take the whole budget.
+        long capacity = Math.max(MIN_CHUNK, Math.min(MAX_CHUNK, memoryBudget / (threads == 1 ? 1 : threads + 1)));
+        BlockingQueue<Chunk> free = new ArrayBlockingQueue<>(threads + 1);
+        int[] allocated = { 1 };
+        Chunk[] current = { new Chunk(capacity) };
+        List<Future<Path>> spills = new ArrayList<>();
+
+        lines = reader.forEachLine((buf, off, len) -> {
+            if (current[0].isFull(len * weight)) {
+                Chunk full = current[0];
+                spills.add(submit(pool, () -> {
+                    try {
+                        full.sort(1);
+                        return writeRun(full);
+                    } finally {
+                        free.add(full);
+                    }
+                }));
+                Chunk next = free.poll();
+                if (next == null && allocated[0] <= threads) {
+                    allocated[0]++;
+                    next = new Chunk(capacity);
+                } else if (next == null) {
+                    next = take(free);
+                }
+                next.reset();
+                current[0] = next;
+            }
+            current[0].add(buf, off, len);
+        });
+
+        // The last chunk is sorted in memory while the runs are finished.
+        Chunk last = current[0];
+        int slices = pool == null || last.count < MIN_SLICE ? 1 : Math.min(threads, MAX_FAN_IN / 2);
+        Future<Path> sorted = submit(pool, () -> {
+            last.sort(slices, pool);
+            return null;
+        });
+        List<Path> paths = new ArrayList<>();
+        for (Future<Path> spill : spills) {
+            paths.add(get(spill));
+        }
+        get(sorted);
+        free.clear();
+
+        // Merge groups of consecutive runs, so that the order of equal keys is kept, until
+        // the rest can be merged at once.
+        while (paths.size() + slices > MAX_FAN_IN) {
+            List<Future<Path>> merges = new ArrayList<>();
+            for (int i = 0; i < paths.size(); i += MAX_FAN_IN) {
+                List<Path> group = paths.subList(i, Math.min(i + MAX_FAN_IN, paths.size()));
+                merges.add(submit(pool, () -> mergeToRun(group)));
+            }
+            List<Path> next = new ArrayList<>();
+            for (Future<Path> merge : merges) {
+                next.add(get(merge));
+            }
+            paths = next;
+        }
+
+        List<Cursor> cursors = new ArrayList<>();
+        try {
+            for (Path path : paths) {
+                cursors.add(new RunCursor(path, runBufferSize(paths.size())));
+            }
+            for (Slice slice : last.slices) {
+                cursors.add(new SliceCursor(last, slice));
+            }
+            written = merge(cursors, out, NEWLINE);
+        } finally {
+            for (Cursor cursor : cursors) {
+                cursor.close();
+            }
+        }
+    }
+
+    private Path writeRun(Chunk chunk) throws IOException {
+        Path path = newRunFile();
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(path), 1 << 16)) {
+            merge(List.of(new SliceCursor(chunk, chunk.slices.get(0))), out, new byte[] { '\n' });
+        }
+        synchronized (this) {
+            spilledBytes += Files.size(path);
+        }
+        return path;
+    }
+
+    private Path mergeToRun(List<Path> group) throws IOException {
+        Path path = newRunFile();
+        List<Cursor> cursors = new ArrayList<>();
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(path), 1 << 16)) {
+            for (Path run : group) {
+                cursors.add(new RunCursor(run, runBufferSize(group.size() * threads)));
+            }
+            merge(cursors, out, new byte[] { '\n' });
+        } finally {
+            for (Cursor cursor : cursors) {
+                cursor.close();
+            }
+        }
+        for (Path run : group) {
+            Files.delete(run);
+        }
+        synchronized (this) {
+            spilledBytes += Files.size(path);
+        }
+        return path;
+    }
+
+    private synchronized Path newRunFile() throws IOException {
+        if (runDir == null) {
+            Files.createDirectories(tmpDir);
+            runDir = Files.createTempDirectory(tmpDir, "sort");
+        }
+        runs++;
+        return runDir.resolve("run-" + runFiles++);
+    }
+
+    private int runBufferSize(int open) {
+        return (int) Math.max(1 << 16, Math.min(1 << 20, memoryBudget / Math.max(1, open)));
+    }
+
+    /**
+     * Runs a task on the pool, or at once without a pool.
+     */
+    private static <T> Future<T> submit(ExecutorService pool, Callable<T> task) {
+        if (pool != null) {
+            return pool.submit(task);
+        }
+        try {
+            return CompletableFuture.completedFuture(task.call());
+        } catch (Exception | Error e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private static <T> T get(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException io) {
+                throw io;
+            } else if (cause instanceof Error error) {
+                throw error;
+            }
+            throw (RuntimeException) cause;
+        }
+    }
+
+    private static Chunk take(BlockingQueue<Chunk> free) throws InterruptedIOException {
+        try {
+            return free.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Merges sorted cursors into a stream through a loser tree, dropping lines whose key equals
+     * the previous one if duplicates are removed. Among equal keys, the earlier cursor wins.
+     *
+     * @return The number of lines written.
+     */
+    private long merge(List<Cursor> sources, OutputStream out, byte[] newline) throws IOException {
+        int k = sources.size();
+        if (k == 0) {
+            return 0;
+        }
+        Cursor[] cursors = sources.toArray(new Cursor[0]);
+        boolean[] done = new boolean[k];
+        for (int i = 0; i < k; i++) {
+            done[i] = !cursors[i].advance();
+        }
+        // Nodes 1 to k - 1 hold the losers of their matches, the leaves are k to 2k - 1, and
+        // node 0 holds the overall winner.
+        int[] tree = new int[k];
+        tree[0] = build(tree, 1, cursors, done);
+
+        byte[] previous = new byte[256];
+        int previousLen = -1;
+        long count = 0;
+        while (!done[tree[0]]) {
+            int w = tree[0];
+            Cursor c = cursors[w];
+            if (!unique || previousLen < 0
+                    || Arrays.compareUnsigned(previous, 0, previousLen, c.key, c.keyOff, c.keyOff + c.keyLen) != 0) {
+                out.write(c.line, c.lineOff, c.lineLen);
+                out.write(newline);
+                count++;
+                if (unique) {
+                    if (previous.length < c.keyLen) {
+                        previous = new byte[Math.max(c.keyLen, previous.length * 2)];
+                    }
+                    System.arraycopy(c.key, c.keyOff, previous, 0, c.keyLen);
+                    previousLen = c.keyLen;
+                }
+            }
+            done[w] = !c.advance();
+            for (int node = (w + k) >>> 1; node > 0; node >>>= 1) {
+                if (less(tree[node], w, cursors, done)) {
+                    int loser = w;
+                    w = tree[node];
+                    tree[node] = loser;
+                }
+            }
+            tree[0] = w;
+        }
+        return count;
+    }
+
+    private static int build(int[] tree, int node, Cursor[] cursors, boolean[] done) {
+        int k = cursors.length;
+        if (node >= k) {
+            return node - k;
+        }
+        int a = build(tree, 2 * node, cursors, done);
+        int b = build(tree, 2 * node + 1, cursors, done);
+        if (less(a, b, cursors, done)) {
+            tree[node] = b;
+            return a;
+        }
+        tree[node] = a;
+        return b;
+    }
+
+    private static boolean less(int a, int b, Cursor[] cursors, boolean[] done) {
+        if (done[a] || done[b]) {
+            return !done[a];
+        }
+        Cursor x = cursors[a];
+        Cursor y = cursors[b];
+        int cmp = compare(x.prefix, x.key, x.keyOff, x.keyLen, y.prefix, y.key, y.keyOff, y.keyLen);
+        return cmp < 0 || (cmp == 0 && a < b);
+    }
+
+    /**
+     * Compares two keys by their prefixes and then, if these are equal, by their remaining bytes.
+     */
+    private static int compare(long prefixA, byte[] a, int offA, int lenA, long prefixB, byte[] b, int offB, int lenB) {
+        int cmp = Long.compareUnsigned(prefixA, prefixB);
+        if (cmp != 0) {
+            return cmp;
+        }
+        int skipA = Math.min(8, lenA);
+        int skipB = Math.min(8, lenB);
+        return Arrays.compareUnsigned(a, offA + skipA, offA + lenA, b, offB + skipB, offB + lenB);
+    }
+
+    /**
+     * Returns the first eight bytes of a key as an unsigned big-endian number, padded with zeros.
+     */
+    private static long prefix(byte[] buf, int off, int len) {
+        long prefix = 0;
+        int n = Math.min(8, len);
+        for (int i = 0; i < n; i++) {
+            prefix |= (buf[off + i] & 0xFFL) << (56 - 8 * i);
+        }
+        return prefix;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * Encodes the keys of a line into a byte string that sorts as the keys do.
+     *
+     * Every text field has its bytes 0 and 1 escaped as 1 1 and 1 2 and is terminated by 0, so
+     * a field sorts before its extensions; a numeric field is 1 followed by the eight bytes of
+     * its sortable bits, or 0 followed by its text if it is not a number. Reversed fields have
+     * all their bytes inverted.
+     */
+    private final class Encoder {
+
+        final TsvTokenizer tokenizer;
+        byte[] key = new byte[256];
+
+        Encoder() {
+            List<Integer> columns = new ArrayList<>();
+            for (Key k : keys) {
+                columns.add(Math.max(0, k.column()));
+            }
+            tokenizer = TsvTokenizer.forColumns(columns);
+        }
+
+        int encode(byte[] buf, int off, int len) {
+            tokenizer.tokenize(buf, off, len);
+            int n = 0;
+            for (Key k : keys) {
+                int from = off;
+                int length = len;
+                if (k.column() >= 0) {
+                    boolean has = tokenizer.has(k.column());
+                    from = has ? tokenizer.start(k.column()) : off;
+                    length = has ? tokenizer.length(k.column()) : 0;
+                }
+                // An escaped field takes at most twice its length, plus a class byte and a terminator.
+                if (key.length < n + 2 * length + 10) {
+                    key = Arrays.copyOf(key, Math.max(n + 2 * length + 10, key.length * 2));
+                }
+                int begin = n;
+                double number = k.numeric() ? ColumnProfiler.parseNumber(buf, from, length) : Double.NaN;
+                if (k.numeric() && !Double.isNaN(number)) {
+                    long bits = Double.doubleToLongBits(number + 0.0);
+                    bits = bits < 0 ? ~bits : bits ^ Long.MIN_VALUE;
+                    key[n++] = 1;
+                    for (int shift = 56; shift >= 0; shift -= 8) {
+                        key[n++] = (byte) (bits >>> shift);
+                    }
+                } else {
+                    if (k.numeric()) {
+                        key[n++] = 0;
+                    }
+                    for (int i = from; i < from + length; i++) {
+                        byte b = buf[i];
+                        if (b == 0 || b == 1) {
+                            key[n++] = 1;
+                            key[n++] = (byte) (b + 1);
+                        } else {
+                            key[n++] = b;
+                        }
+                    }
+                    key[n++] = 0;
+                }
+                if (k.reverse()) {
+                    for (int i = begin; i < n; i++) {
+                        key[i] = (byte) ~key[i];
+                    }
+                }
+            }
+            return n;
+        }
+    }
+
+    /**
+     * A range of lines of a chunk sorted on its own, with the keys of its lines.
+     */
+    private static final class Slice {
+        final int from;
+        final int to;
+        byte[] keyData;
+
+        Slice(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    /**
+     * Lines read into memory, with the arrays that sort them: the line at position {@code p}
+     * of the sorted order is {@code order[p]}, and {@code prefixes[p]} is its key prefix.
+     */
+    private final class Chunk {
+
+        final long capacity;
+        byte[] data = new byte[1 << 16];
+        int dataLen = 0;
+        int count = 0;
+        long used = 0;
+        int[] starts = new int[4096];
+        int[] lens = new int[4096];
+        int[] keyStarts;
+        int[] keyLens;
+        long[] prefixes;
+        int[] order;
+        long[] tmpPrefixes;
+        int[] tmpOrder;
+        List<Slice> slices = List.of();
+
+        Chunk(long capacity) {
+            this.capacity = capacity;
+        }
+
+        boolean isFull(long size) {
+            return count > 0 && (used + size + LINE_OVERHEAD > capacity || dataLen + size > MAX_CHUNK);
+        }
+
+        void add(byte[] buf, int off, int len) {
+            if (dataLen + len > data.length) {
+                data = Arrays.copyOf(data, (int) Math.min(MAX_CHUNK, Math.max(dataLen + len, 2L * data.length)));
+            }
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                lens = Arrays.copyOf(lens, count * 2);
+            }
+            System.arraycopy(buf, off, data, dataLen, len);
+            starts[count] = dataLen;
+            lens[count++] = len;
+            dataLen += len;
+            used += (keys == null ? 1 : 2) * (long) len + LINE_OVERHEAD;
+        }
+
+        void reset() {
+            dataLen = 0;
+            count = 0;
+            used = 0;
+            slices = List.of();
+        }
+
+        /**
+         * Sorts the lines in one slice.
+         */
+        void sort(int n) throws IOException {
+            sort(n, null);
+        }
+
+        /**
+         * Sorts the lines in {@code n} slices, on the pool if there is one.
+         */
+        void sort(int n, ExecutorService pool) throws IOException {
+            if (prefixes == null || prefixes.length < count) {
+                int size = Math.max(count, starts.length);
+                keyStarts = new int[size];
+                keyLens = new int[size];
+                prefixes = new long[size];
+                order = new int[size];
+                tmpPrefixes = new long[size];
+                tmpOrder = new int[size];
+            }
+            List<Slice> list = new ArrayList<>();
+            for (int s = 0; s < n; s++) {
+                list.add(new Slice((int) ((long) count * s / n), (int) ((long) count * (s + 1) / n)));
+            }
+            slices = list;
+            if (n == 1) {
+                sortSlice(slices.get(0));
+                return;
+            }
+            List<Future<Path>> futures = new ArrayList<>();
+            for (Slice slice : slices) {
+                futures.add(submit(pool, () -> {
+                    sortSlice(slice);
+                    return null;
+                }));
+            }
+            for (Future<Path> future : futures) {
+                get(future);
+            }
+        }
+
+        private void sortSlice(Slice s) {
+            if (keys == null) {
+                s.keyData = data;
+                System.arraycopy(starts, s.from, keyStarts, s.from, s.to - s.from);
+                System.arraycopy(lens, s.from, keyLens, s.from, s.to - s.from);
+            } else {
+                Encoder encoder = new Encoder();
+                byte[] keyData = new byte[1 << 16];
+                int keyLen = 0;
+                for (int i = s.from; i < s.to; i++) {
+                    int n = encoder.encode(data, starts[i], lens[i]);
+                    if (keyLen + n > keyData.length) {
+                        keyData = Arrays.copyOf(keyData, Math.max(keyLen + n, keyData.length * 2));
+                    }
+                    System.arraycopy(encoder.key, 0, keyData, keyLen, n);
+                    keyStarts[i] = keyLen;
+                    keyLens[i] = n;
+                    keyLen += n;
+                }
+                s.keyData = keyData;
+            }
+            for (int i = s.from; i < s.to; i++) {
+                prefixes[i] = prefix(s.keyData, keyStarts[i], keyLens[i]);
+                order[i] = i;
+            }
+
+            // A bottom-up merge sort moving prefixes along with the line indices, so that most
+            // comparisons read the prefix arrays sequentially.
+            for (int lo = s.from; lo < s.to; lo += INSERTION_RUN) {
+                insertionSort(s.keyData, lo, Math.min(lo + INSERTION_RUN, s.to));
+            }
+            long[] srcPrefixes = prefixes;
+            int[] srcOrder = order;
+            long[] dstPrefixes = tmpPrefixes;
+            int[] dstOrder = tmpOrder;
+            for (int width = INSERTION_RUN; width < s.to - s.from; width *= 2) {
+                for (int lo = s.from; lo < s.to; lo += 2 * width) {
+                    int mid = Math.min(lo + width, s.to);
+                    int hi = Math.min(lo + 2 * width, s.to);
+                    mergeRuns(s.keyData, srcPrefixes, srcOrder, dstPrefixes, dstOrder, lo, mid, hi);
+                }
+                long[] p = srcPrefixes;
+                srcPrefixes = dstPrefixes;
+                dstPrefixes = p;
+                int[] o = srcOrder;
+                srcOrder = dstOrder;
+                dstOrder = o;
+            }
+            if (srcOrder != order) {
+                System.arraycopy(srcPrefixes, s.from, prefixes, s.from, s.to - s.from);
+                System.arraycopy(srcOrder, s.from, order, s.from, s.to - s.from);
+            }
+        }
+
+        private void insertionSort(byte[] keyData, int lo, int hi) {
+            for (int i = lo + 1; i < hi; i++) {
+                long p = prefixes[i];
+                int o = order[i];
+                int j = i - 1;
+                while (j >= lo && before(keyData, p, o, prefixes[j], order[j])) {
+                    prefixes[j + 1] = prefixes[j];
+                    order[j + 1] = order[j];
+                    j--;
+                }
+                prefixes[j + 1] = p;
+                order[j + 1] = o;
+            }
+        }
+
+        private void mergeRuns(byte[] keyData, long[] srcPrefixes, int[] srcOrder, long[] dstPrefixes,
+                int[] dstOrder, int lo, int mid, int hi) {
+            int i = lo;
+            int j = mid;
+            for (int d = lo; d < hi; d++) {
+                if (j >= hi || (i < mid && !before(keyData, srcPrefixes[j], srcOrder[j], srcPrefixes[i], srcOrder[i]))) {
+                    dstPrefixes[d] = srcPrefixes[i];
+                    dstOrder[d] = srcOrder[i++];
+                } else {
+                    dstPrefixes[d] = srcPrefixes[j];
+                    dstOrder[d] = srcOrder[j++];
+                }
+            }
+        }
+
+        /**
+         * Returns whether line {@code a} sorts before line {@code b}; equal keys keep their
+         * input order.
+         */
+        private boolean before(byte[] keyData, long prefixA, int a, long prefixB, int b) {
+            if (prefixA != prefixB) {
+                return Long.compareUnsigned(prefixA, prefixB) < 0;
+            }
+            int cmp = compare(prefixA, keyData, keyStarts[a], keyLens[a], prefixB, keyData, keyStarts[b], keyLens[b]);
+            return cmp < 0 || (cmp == 0 && a < b);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+     * A sorted sequence of lines, positioned on one line with its key.
+     */
+    private abstract static class Cursor {
+        byte[] line;
+        int lineOff;
+        int lineLen;
+        byte[] key;
+        int keyOff;
+        int keyLen;
+        long prefix;
+
+        /**
+         * Moves to the next line.
+         *
+         * @return False at the end.
+         */
+        abstract boolean advance() throws IOException;
+
+        void close() throws IOException {
+        }
+    }
+
+    /**
+     * Reads the sorted lines of a slice of a chunk.
+     */
+    private static final class SliceCursor extends Cursor {
+        private final Chunk chunk;
+        private final Slice slice;
+        private int pos;
+
+        SliceCursor(Chunk chunk, Slice slice) {
+            this.chunk = chunk;
+            this.slice = slice;
+            this.pos = slice.from - 1;
+            this.line = chunk.data;
+            this.key = slice.keyData;
+        }
+
+        @Override
+        boolean advance() {
+            if (++pos >= slice.to) {
+                return false;
+            }
+            int i = chunk.order[pos];
+            lineOff = chunk.starts[i];
+            lineLen = chunk.lens[i];
+            keyOff = chunk.keyStarts[i];
+            keyLen = chunk.keyLens[i];
+            prefix = chunk.prefixes[pos];
+            return true;
+        }
+    }
+
+    /**
+     * Reads the lines of a run file, encoding their keys again.
+     */
+    private final class RunCursor extends Cursor {
+        private final InputStream in;
+        private final Encoder encoder;
+        private byte[] buf;
+        private int pos = 0;
+        private int limit = 0;
+        private boolean eof = false;
+
+        RunCursor(Path path, int bufferSize) throws IOException {
+            this.in = Files.newInputStream(path);
+            this.encoder = keys == null ? null : new Encoder();
+            this.buf = new byte[bufferSize];
+            this.line = buf;
+        }
+
+        @Override
+        boolean advance() throws IOException {
+            int scan = pos;
+            while (true) {
+                int end = ByteScanner.get().indexOf(buf, scan, limit, (byte) '\n');
+                if (end >= 0 || (eof && limit > pos)) {
+                    if (end < 0) {
+                        end = limit;
+                    }
+                    lineOff = pos;
+                    lineLen = end - pos;
+                    pos = Math.min(end + 1, limit);
+                    break;
+                }
+                if (eof) {
+                    return false;
+                }
+                // Move the incomplete line to the front, growing the buffer for a long line.
+                int rest = limit - pos;
+                if (pos == 0 && rest == buf.length) {
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                    line = buf;
+                } else {
+                    System.arraycopy(buf, pos, buf, 0, rest);
+                }
+                pos = 0;
+                limit = rest;
+                scan = rest;
+                int n = in.read(buf, limit, buf.length - limit);
+                if (n < 0) {
+                    eof = true;
+                } else {
+                    limit += n;
+                }
+            }
+            if (encoder == null) {
+                key = buf;
+                keyOff = lineOff;
+                keyLen = lineLen;
+            } else {
+                keyLen = encoder.encode(buf, lineOff, lineLen);
+                key = encoder.key;
+                keyOff = 0;
+            }
+            prefix = prefix(key, keyOff, keyLen);
+            return true;
+        }
+
+        @Override
+        void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.github.oogasawa.utility.filter;
+
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The {@code LineWriter} class collects output lines in a large buffer and writes it out in
+ * batches.
+ *
+ * Unlike {@code System.out.println}, nothing is flushed per line: the buffer is written when it
+ * is full and when {@link #flush()} is called, which the caller must do at the end. Lines are
+ * terminated with {@link System#lineSeparator()}. A channel is written from a direct buffer,
+ * a stream from a heap array; {@link #stdout()} writes to the standard output of the process
+ * through its channel.
+ */
+public class LineWriter implements Flushable, Closeable {
+
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+    private final OutputStream out;
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer;
+
+    /**
+     * Creates a writer to a stream.
+     *
+     * @param out The destination; it is flushed but not closed by {@link #flush()}.
+     */
+    public LineWriter(OutputStream out) {
+        this.out = out;
+        this.channel = null;
+        this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a writer to a channel.
+     *
+     * @param channel The destination.
+     */
+    public LineWriter(WritableByteChannel channel) {
+        this.out = null;
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a writer to the standard output of the process. Anything pending in
+     * {@code System.out} is flushed first so that the output stays in order.
+     *
+     * @return The writer.
+     */
+    public static LineWriter stdout() {
+        System.out.flush();
+        return new LineWriter(new FileOutputStream(FileDescriptor.out).getChannel());
+    }
+
+    /**
+     * Appends bytes without a line terminator.
+     *
+     * @param buf The array containing the bytes.
+     * @param off The start of the bytes.
+     * @param len The number of bytes.
+     * @throws IOException If the buffer has to be written out and that fails.
+     */
+    public void write(byte[] buf, int off, int len) throws IOException {
+        while (len > buffer.remaining()) {
+            int n = buffer.remaining();
+            buffer.put(buf, off, n);
+            off += n;
+            len -= n;
+            drain();
+        }
+        buffer.put(buf, off, len);
+    }
+
+    /**
+     * Appends a single byte.
+     *
+     * @param b The byte.
+     * @throws IOException If the buffer has to be written out and that fails.
+     */
+    public void write(int b) throws IOException {
+        if (!buffer.hasRemaining()) {
+            drain();
+        }
+        buffer.put((byte) b);
+    }
+
+    /**
+     * Appends a line and its terminator.
+     *
+     * @param buf The array containing the line.
+     * @param off The start of the line.
+     * @param len The length of the line.
+     * @throws IOException If the buffer has to be written out and that fails.
+     */
+    public void writeLine(byte[] buf, int off, int len) throws IOException {
+        write(buf, off, len);
+        newLine();
+    }
+
+    /**
+     * Appends a line terminator.
+     *
+     * @throws IOException If the buffer has to be written out and that fails.
+     */
+    public void newLine() throws IOException {
+        write(NEWLINE, 0, NEWLINE.length);
+    }
+
+    /**
+     * Writes out the buffered bytes and flushes the destination.
+     *
+     * @throws IOException If the destination cannot be written.
+     */
+    @Override
+    public void flush() throws IOException {
+        drain();
+        if (out != null) {
+            out.flush();
+        }
+    }
+
+    /**
+     * Flushes the writer. The destination is not closed.
+     *
+     * @throws IOException If the destination cannot be written.
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        if (out != null) {
+            out.write(buffer.array(), 0, buffer.limit());
+        } else {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        buffer.clear();
+    }
+}
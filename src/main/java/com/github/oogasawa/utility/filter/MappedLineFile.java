@@ -0,0 +1,173 @@
+package com.github.oogasawa.utility.filter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The {@code MappedLineFile} class maps a text file into memory and scans it for lines on the
+ * raw bytes, without decoding.
+ *
+ * A single mapping is limited to 2 GB, so larger files are mapped as several segments. Every
+ * segment ends directly after a newline, which guarantees that no line spans two segments.
+ */
+public class MappedLineFile {
+
+    /**
+     * Receives the lines of a mapped file.
+     */
+    @FunctionalInterface
+    public interface LineConsumer {
+
+        /**
+         * Processes a line.
+         *
+         * @param segment The segment containing the line.
+         * @param off The absolute start of the line in the segment.
+         * @param len The length of the line without its terminator.
+         * @throws IOException If the line cannot be processed.
+         */
+        void accept(ByteBuffer segment, int off, int len) throws IOException;
+    }
+
+    /** The default maximum size of a segment. */
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 30;
+
+    private final Path path;
+    private final long size;
+    private final List<ByteBuffer> segments;
+
+    private MappedLineFile(Path path, long size, List<ByteBuffer> segments) {
+        this.path = path;
+        this.size = size;
+        this.segments = segments;
+    }
+
+    /**
+     * Maps a file with the default segment size.
+     *
+     * @param path The file to map.
+     * @return The mapped file.
+     * @throws IOException If the file cannot be mapped.
+     */
+    public static MappedLineFile map(Path path) throws IOException {
+        return map(path, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Maps a file.
+     *
+     * @param path The file to map.
+     * @param maxSegmentSize The maximum size of a segment in bytes.
+     * @return The mapped file.
+     * @throws IOException If the file cannot be mapped or contains a line longer than a segment.
+     */
+    public static MappedLineFile map(Path path, int maxSegmentSize) throws IOException {
+        List<ByteBuffer> segments = new ArrayList<>();
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = ch.size();
+            long pos = 0;
+            while (pos < size) {
+                int len = (int) Math.min(maxSegmentSize, size - pos);
+                MappedByteBuffer mapped = ch.map(FileChannel.MapMode.READ_ONLY, pos, len);
+                if (pos + len < size) {
+                    int end = len - 1;
+                    while (end >= 0 && mapped.get(end) != '\n') {
+                        end--;
+                    }
+                    if (end < 0) {
+                        throw new IOException(path + ": line at offset " + pos + " exceeds the segment size");
+                    }
+                    len = end + 1;
+                }
+                segments.add(mapped.slice(0, len));
+                pos += len;
+            }
+            return new MappedLineFile(path, size, Collections.unmodifiableList(segments));
+        }
+    }
+
+    /**
+     * Returns the mapped file.
+     *
+     * @return The path of the file.
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Returns the size of the file.
+     *
+     * @return The size in bytes.
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Returns the segments of the file, each ending after a newline except possibly the last one.
+     *
+     * @return The read-only segments.
+     */
+    public List<ByteBuffer> segments() {
+        return segments;
+    }
+
+    /**
+     * Passes every line of the file to the consumer. The terminator ({@code \n} or
+     * {@code \r\n}) is not part of a line.
+     *
+     * @param consumer The consumer of the lines.
+     * @return The number of lines.
+     * @throws IOException If the consumer fails.
+     */
+    public long forEachLine(LineConsumer consumer) throws IOException {
+        long lines = 0;
+        for (ByteBuffer segment : segments) {
+            lines += forEachLine(segment, 0, segment.limit(), consumer);
+        }
+        return lines;
+    }
+
+    /**
+     * Passes every line of a range of a segment to the consumer.
+     *
+     * @param segment The segment to scan.
+     * @param from The start of the range, which must be the start of a line.
+     * @param to The end of the range, directly after a newline or at the end of the segment.
+     * @param consumer The consumer of the lines.
+     * @return The number of lines.
+     * @throws IOException If the consumer fails.
+     */
+    public static long forEachLine(ByteBuffer segment, int from, int to, LineConsumer consumer)
+            throws IOException {
+        long lines = 0;
+        int start = from;
+        for (int i = from; i < to; i++) {
+            if (segment.get(i) == '\n') {
+                consumer.accept(segment, start, trimCr(segment, start, i));
+                lines++;
+                start = i + 1;
+            }
+        }
+        if (start < to) {
+            consumer.accept(segment, start, trimCr(segment, start, to));
+            lines++;
+        }
+        return lines;
+    }
+
+    private static int trimCr(ByteBuffer segment, int start, int end) {
+        if (end > start && segment.get(end - 1) == '\r') {
+            end--;
+        }
+        return end - start;
+    }
+}
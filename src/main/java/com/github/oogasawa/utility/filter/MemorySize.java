@@ -0,0 +1,73 @@
+package com.github.oogasawa.utility.filter;
+
+/**
+ * The {@code MemorySize} class converts human readable memory sizes such as
+ * {@code "512m"} or {@code "2g"} into a number of bytes.
+ *
+ * The accepted suffixes are {@code k}, {@code m}, {@code g} and {@code t}
+ * (case-insensitive, optionally followed by {@code b}). A value without a suffix
+ * is interpreted as a number of bytes.
+ */
+public class MemorySize {
+
+    private MemorySize() {
+    }
+
+    /**
+     * Parses a memory size.
+     *
+     * @param size The size string, e.g. {@code "256m"}.
+     * @return The size in bytes.
+     * @throws IllegalArgumentException If the string is not a valid size.
+     */
+    public static long parse(String size) {
+        String s = size.trim().toLowerCase();
+        if (s.endsWith("b")) {
+            s = s.substring(0, s.length() - 1);
+        }
+
+        long unit = 1L;
+        if (!s.isEmpty()) {
+            switch (s.charAt(s.length() - 1)) {
+                case 'k' -> unit = 1L << 10;
+                case 'm' -> unit = 1L << 20;
+                case 'g' -> unit = 1L << 30;
+                case 't' -> unit = 1L << 40;
+                default -> unit = 1L;
+            }
+        }
+        if (unit != 1L) {
+            s = s.substring(0, s.length() - 1);
+        }
+
+        try {
+            long value = Long.parseLong(s.trim());
+            if (value <= 0) {
+                throw new IllegalArgumentException("Memory size must be positive: " + size);
+            }
+            return value * unit;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid memory size: " + size);
+        }
+    }
+
+    /**
+     * Formats a number of bytes for reports, e.g. {@code "1.5 GB"}.
+     *
+     * @param bytes The number of bytes.
+     * @return A human readable representation.
+     */
+    public static String format(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        String[] units = { "KB", "MB", "GB", "TB" };
+        double value = bytes;
+        int i = -1;
+        while (value >= 1024 && i < units.length - 1) {
+            value /= 1024;
+            i++;
+        }
+        return String.format("%.1f %s", value, units[i]);
+    }
+}
@@ -0,0 +1,355 @@
+package com.github.oogasawa.utility.filter;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The {@code OffHeapLineSet} class is a set of byte strings that keeps its data outside the
+ * Java heap.
+ *
+ * The bytes of the elements are appended to an arena of direct buffers. An open-addressing
+ * table with linear probing indexes the arena: every slot is a single {@code long} holding the
+ * upper 24 bits of the element's 64-bit hash and the 40-bit arena address of the element. The
+ * hash tag rejects almost all mismatching slots; the remaining candidates are confirmed by
+ * comparing bytes.
+ *
+ * Each element receives an ordinal, its position in insertion order, so callers can attach
+ * dense per-element data such as counters. An element occupies about 5 bytes plus its length
+ * in the arena and 8 to 16 bytes in the table, compared to roughly 100 bytes for a
+ * {@code String} in a {@code TreeSet}.
+ *
+ * Direct buffers count against {@code -XX:MaxDirectMemorySize}, which defaults to the maximum
+ * heap size.
+ */
+public class OffHeapLineSet {
+
+    private static final int CHUNK_BITS = 24;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int FIRST_CHUNK_BITS = 16;
+    private static final int FIRST_CHUNK_SIZE = 1 << FIRST_CHUNK_BITS;
+    private static final long ADDRESS_MASK = (1L << 40) - 1;
+    private static final int SEGMENT_BITS = 27;
+    private static final int SEGMENT_SLOTS = 1 << SEGMENT_BITS;
+    private static final double MAX_LOAD = 0.7;
+
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private ByteBuffer current;
+    private long arenaBytes = 0;
+
+    private LongBuffer[] table;
+    private long capacity;
+    private long mask;
+    private int size = 0;
+
+    private byte[] scratch = new byte[256];
+
+    /**
+     * Creates an empty set.
+     */
+    public OffHeapLineSet() {
+        this(1 << 16);
+    }
+
+    /**
+     * Creates an empty set sized for the expected number of elements.
+     *
+     * @param expectedSize The number of elements expected to be inserted.
+     */
+    public OffHeapLineSet(long expectedSize) {
+        long cap = Long.highestOneBit(Math.max(16, (long) (expectedSize / MAX_LOAD)) * 2 - 1);
+        allocateTable(cap);
+    }
+
+    /**
+     * Returns the number of elements.
+     *
+     * @return The number of elements.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Adds an element.
+     *
+     * @param buf The array containing the element.
+     * @param off The start of the element.
+     * @param len The length of the element.
+     * @return {@code true} if the element was not yet contained.
+     */
+    public boolean add(byte[] buf, int off, int len) {
+        int before = size;
+        intern(buf, off, len);
+        return size != before;
+    }
+
+    /**
+     * Adds an element if it is absent and returns its ordinal.
+     *
+     * @param buf The array containing the element.
+     * @param off The start of the element.
+     * @param len The length of the element.
+     * @return The ordinal of the element; a new element receives {@code size() - 1}.
+     */
+    public int intern(byte[] buf, int off, int len) {
+        long hash = Hash64.hash(buf, off, len);
+        long tag = hash >>> 40;
+        long slot = hash & mask;
+        while (true) {
+            long entry = get(slot);
+            if (entry == 0) {
+                break;
+            }
+            if ((entry >>> 40) == tag) {
+                long address = (entry & ADDRESS_MASK) - 1;
+                if (equalsAt(address, buf, off, len)) {
+                    return ordinalAt(address);
+                }
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        int ordinal = size;
+        long address = append(ordinal, buf, off, len);
+        put(slot, (tag << 40) | (address + 1));
+        size++;
+        if (size > capacity * MAX_LOAD) {
+            resize();
+        }
+        return ordinal;
+    }
+
+    /**
+     * Tests whether an element is contained.
+     *
+     * @param buf The array containing the element.
+     * @param off The start of the element.
+     * @param len The length of the element.
+     * @return {@code true} if the element is contained.
+     */
+    public boolean contains(byte[] buf, int off, int len) {
+        return indexOf(buf, off, len) >= 0;
+    }
+
+    /**
+     * Returns the ordinal of an element.
+     *
+     * @param buf The array containing the element.
+     * @param off The start of the element.
+     * @param len The length of the element.
+     * @return The ordinal, or {@code -1} if the element is not contained.
+     */
+    public int indexOf(byte[] buf, int off, int len) {
+        long hash = Hash64.hash(buf, off, len);
+        long tag = hash >>> 40;
+        long slot = hash & mask;
+        while (true) {
+            long entry = get(slot);
+            if (entry == 0) {
+                return -1;
+            }
+            if ((entry >>> 40) == tag) {
+                long address = (entry & ADDRESS_MASK) - 1;
+                if (equalsAt(address, buf, off, len)) {
+                    return ordinalAt(address);
+                }
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Receives the elements of the set.
+     */
+    @FunctionalInterface
+    public interface EntryConsumer {
+
+        /**
+         * Processes an element.
+         *
+         * @param ordinal The ordinal of the element.
+         * @param buf The array containing the element; it is reused after the call returns.
+         * @param off The start of the element.
+         * @param len The length of the element.
+         * @throws java.io.IOException If the element cannot be processed.
+         */
+        void accept(int ordinal, byte[] buf, int off, int len) throws java.io.IOException;
+    }
+
+    /**
+     * Visits all elements in insertion order.
+     *
+     * @param consumer The consumer of the elements.
+     * @throws java.io.IOException If the consumer fails.
+     */
+    public void forEach(EntryConsumer consumer) throws java.io.IOException {
+        for (ByteBuffer chunk : chunks) {
+            int pos = 0;
+            int limit = chunk.position();
+            while (pos < limit) {
+                int ordinal = chunk.getInt(pos);
+                int len = readLength(chunk, pos + 4);
+                int data = pos + 4 + lengthSize(len);
+                byte[] bytes = scratch(len);
+                chunk.get(data, bytes, 0, len);
+                consumer.accept(ordinal, bytes, 0, len);
+                pos = data + len;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of off-heap bytes used by the element data.
+     *
+     * @return The arena size in bytes.
+     */
+    public long arenaBytes() {
+        return arenaBytes;
+    }
+
+    /**
+     * Returns the number of off-heap bytes used by the hash table.
+     *
+     * @return The table size in bytes.
+     */
+    public long tableBytes() {
+        return capacity * Long.BYTES;
+    }
+
+    /**
+     * Returns the total number of off-heap bytes reserved by this set.
+     *
+     * @return The memory usage in bytes.
+     */
+    public long memoryUsage() {
+        return arenaBytes() + tableBytes();
+    }
+
+    /**
+     * Returns a one-line description of the memory usage, for reports.
+     *
+     * @return The description.
+     */
+    public String memoryReport() {
+        return String.format("%d entries, arena %s, table %s, %.1f bytes/entry",
+                size, MemorySize.format(arenaBytes()), MemorySize.format(tableBytes()),
+                size == 0 ? 0.0 : (double) memoryUsage() / size);
+    }
+
+    // ------------------------------------------------------------------------
+    // Arena
+    // ------------------------------------------------------------------------
+
+    private long append(int ordinal, byte[] buf, int off, int len) {
+        int need = 4 + lengthSize(len) + len;
+        if (current == null || current.remaining() < need) {
+            // Chunks grow from 64 KB, so that small sets do not reserve a full chunk.
+            int size = FIRST_CHUNK_SIZE << Math.min(chunks.size(), CHUNK_BITS - FIRST_CHUNK_BITS);
+            current = ByteBuffer.allocateDirect(Math.max(size, need));
+            chunks.add(current);
+            arenaBytes += current.capacity();
+            if (chunks.size() > (1 << (40 - CHUNK_BITS))) {
+                throw new IllegalStateException("Arena exhausted");
+            }
+        }
+        int pos = current.position();
+        current.putInt(ordinal);
+        writeLength(current, len);
+        current.put(buf, off, len);
+        return ((long) (chunks.size() - 1) << CHUNK_BITS) | pos;
+    }
+
+    private boolean equalsAt(long address, byte[] buf, int off, int len) {
+        ByteBuffer chunk = chunks.get((int) (address >>> CHUNK_BITS));
+        int pos = (int) (address & (CHUNK_SIZE - 1));
+        int stored = readLength(chunk, pos + 4);
+        if (stored != len) {
+            return false;
+        }
+        byte[] bytes = scratch(len);
+        chunk.get(pos + 4 + lengthSize(len), bytes, 0, len);
+        return Arrays.equals(bytes, 0, len, buf, off, off + len);
+    }
+
+    private int ordinalAt(long address) {
+        ByteBuffer chunk = chunks.get((int) (address >>> CHUNK_BITS));
+        return chunk.getInt((int) (address & (CHUNK_SIZE - 1)));
+    }
+
+    private long hashAt(long address) {
+        ByteBuffer chunk = chunks.get((int) (address >>> CHUNK_BITS));
+        int pos = (int) (address & (CHUNK_SIZE - 1));
+        int len = readLength(chunk, pos + 4);
+        byte[] bytes = scratch(len);
+        chunk.get(pos + 4 + lengthSize(len), bytes, 0, len);
+        return Hash64.hash(bytes, 0, len);
+    }
+
+    private byte[] scratch(int len) {
+        if (scratch.length < len) {
+            scratch = new byte[Math.max(len, scratch.length * 2)];
+        }
+        return scratch;
+    }
+
+    // Lengths below 128 take one byte; larger lengths are stored as a negated int.
+    private static int lengthSize(int len) {
+        return len < 0x80 ? 1 : 4;
+    }
+
+    private static void writeLength(ByteBuffer b, int len) {
+        if (len < 0x80) {
+            b.put((byte) len);
+        } else {
+            b.putInt(~len);
+        }
+    }
+
+    private static int readLength(ByteBuffer b, int pos) {
+        byte first = b.get(pos);
+        return first >= 0 ? first : ~b.getInt(pos);
+    }
+
+    // ------------------------------------------------------------------------
+    // Table
+    // ------------------------------------------------------------------------
+
+    private void allocateTable(long cap) {
+        capacity = cap;
+        mask = cap - 1;
+        int segments = (int) Math.max(1, cap >>> SEGMENT_BITS);
+        int slots = (int) Math.min(cap, SEGMENT_SLOTS);
+        table = new LongBuffer[segments];
+        for (int i = 0; i < segments; i++) {
+            table[i] = ByteBuffer.allocateDirect(slots * Long.BYTES).asLongBuffer();
+        }
+    }
+
+    private long get(long slot) {
+        return table[(int) (slot >>> SEGMENT_BITS)].get((int) (slot & (SEGMENT_SLOTS - 1)));
+    }
+
+    private void put(long slot, long value) {
+        table[(int) (slot >>> SEGMENT_BITS)].put((int) (slot & (SEGMENT_SLOTS - 1)), value);
+    }
+
+    private void resize() {
+        LongBuffer[] old = table;
+        long oldCapacity = capacity;
+        allocateTable(oldCapacity * 2);
+        for (long i = 0; i < oldCapacity; i++) {
+            long entry = old[(int) (i >>> SEGMENT_BITS)].get((int) (i & (SEGMENT_SLOTS - 1)));
+            if (entry == 0) {
+                continue;
+            }
+            long slot = hashAt((entry & ADDRESS_MASK) - 1) & mask;
+            while (get(slot) != 0) {
+                slot = (slot + 1) & mask;
+            }
+            put(slot, entry);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package com.github.oogasawa.utility.filter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+/**
+ * The {@code ParallelFileProcessor} class runs a line operation over a regular file with
+ * several threads.
+ *
+ * The file is mapped into memory with {@link MappedLineFile}, in segments for files over 1 GB,
+ * and cut into chunks of about 4 MB that end directly after a newline. Every chunk is copied
+ * out of the mapping and processed by a worker thread with a {@link LineFunction} of its own,
+ * so that per-thread state such as a tokenizer or a {@code Matcher} is reused without
+ * synchronization. The outputs of the chunks are written in file order, and at most two chunks
+ * per thread are in flight, which bounds the memory in use whatever the size of the file.
+ */
+public class ParallelFileProcessor {
+
+    /**
+     * Processes a line, writing its result.
+     */
+    @FunctionalInterface
+    public interface LineFunction {
+
+        /**
+         * Processes a line.
+         *
+         * @param buf The array containing the line; it is reused after the call returns.
+         * @param off The start of the line.
+         * @param len The length of the line without its terminator.
+         * @param out The output of the line.
+         * @throws IOException If the output cannot be written.
+         */
+        void apply(byte[] buf, int off, int len, LineWriter out) throws IOException;
+    }
+
+    private static final int DEFAULT_CHUNK_SIZE = 4 << 20;
+
+    private final int threads;
+    private final int chunkSize;
+
+    /**
+     * Creates a processor.
+     *
+     * @param threads The number of worker threads.
+     */
+    public ParallelFileProcessor(int threads) {
+        this(threads, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Creates a processor with the given chunk size.
+     *
+     * @param threads The number of worker threads.
+     * @param chunkSize The approximate size of a chunk in bytes.
+     */
+    public ParallelFileProcessor(int threads, int chunkSize) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("The number of threads must be positive: " + threads);
+        }
+        this.threads = threads;
+        this.chunkSize = Math.max(1, chunkSize);
+    }
+
+    /**
+     * Tests whether a file can be processed by this class: it must be a regular file that is
+     * not compressed with gzip.
+     *
+     * @param file The file.
+     * @return {@code true} if the file can be mapped and cut into chunks.
+     * @throws IOException If the file cannot be read.
+     */
+    public static boolean canProcess(Path file) throws IOException {
+        if (!Files.isRegularFile(file)) {
+            return false;
+        }
+        try (InputStream in = Files.newInputStream(file)) {
+            return !CompressedInput.isGzip(in.readNBytes(2));
+        }
+    }
+
+    /**
+     * Processes the lines of a file.
+     *
+     * @param file The file; see {@link #canProcess(Path)}.
+     * @param functions Creates a function for each worker thread.
+     * @param out The output; it is not flushed.
+     * @throws IOException If the file cannot be read or the output cannot be written.
+     */
+    public void process(Path file, Supplier<LineFunction> functions, LineWriter out) throws IOException {
+        MappedLineFile mapped = MappedLineFile.map(file);
+        ThreadLocal<Worker> workers = ThreadLocal.withInitial(() -> new Worker(functions.get()));
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "file-worker");
+            t.setDaemon(true);
+            return t;
+        });
+        Deque<Future<byte[]>> inFlight = new ArrayDeque<>();
+        try {
+            for (ByteBuffer segment : mapped.segments()) {
+                int limit = segment.limit();
+                int from = 0;
+                while (from < limit) {
+                    int to = (int) Math.min(limit, (long) from + chunkSize);
+                    while (to < limit && segment.get(to - 1) != '\n') {
+                        to++;
+                    }
+                    int start = from;
+                    int end = to;
+                    if (inFlight.size() == threads * 2) {
+                        write(inFlight.removeFirst(), out);
+                    }
+                    inFlight.addLast(pool.submit(() -> workers.get().process(segment, start, end)));
+                    from = to;
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                write(inFlight.removeFirst(), out);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static void write(Future<byte[]> chunk, LineWriter out) throws IOException {
+        byte[] result;
+        try {
+            result = chunk.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while processing a file");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException u) {
+                throw u.getCause();
+            }
+            if (cause instanceof Error err) {
+                throw err;
+            }
+            throw (RuntimeException) cause;
+        }
+        out.write(result, 0, result.length);
+    }
+
+    /**
+     * The buffers and the function of a worker thread.
+     */
+    private static final class Worker {
+
+        private final ByteScanner scanner = ByteScanner.get();
+        private final LineFunction function;
+        private final Output buffer = new Output();
+        private final LineWriter out = new LineWriter(buffer);
+        private byte[] data = new byte[DEFAULT_CHUNK_SIZE];
+
+        Worker(LineFunction function) {
+            this.function = function;
+        }
+
+        /**
+         * Processes the lines of a range of a segment and returns the output.
+         */
+        byte[] process(ByteBuffer segment, int from, int to) {
+            int len = to - from;
+            if (data.length < len) {
+                data = new byte[len];
+            }
+            segment.get(from, data, 0, len);
+            try {
+                int start = 0;
+                for (int i = 0; i < len; i += ByteScanner.BLOCK) {
+                    for (long m = scanner.mask(data, i, len, (byte) '\n'); m != 0; m &= m - 1) {
+                        int nl = i + Long.numberOfTrailingZeros(m);
+                        function.apply(data, start, trimCr(start, nl), out);
+                        start = nl + 1;
+                    }
+                }
+                if (start < len) {
+                    function.apply(data, start, trimCr(start, len), out);
+                }
+                out.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            byte[] result = buffer.bytes();
+            buffer.reset();
+            return result;
+        }
+
+        private int trimCr(int start, int end) {
+            if (end > start && data[end - 1] == '\r') {
+                end--;
+            }
+            return end - start;
+        }
+    }
+
+    /**
+     * Collects the output of a chunk.
+     */
+    private static final class Output extends ByteArrayOutputStream {
+
+        Output() {
+            super(DEFAULT_CHUNK_SIZE);
+        }
+
+        byte[] bytes() {
+            return Arrays.copyOf(buf, count);
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package com.github.oogasawa.utility.filter;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Supplier;
+
+/**
+ * The {@code ParallelLineFilter} class filters lines with several threads.
+ *
+ * The calling thread writes the output while a reader thread cuts the input into batches of
+ * about 1 MB numbered by sequence, and worker threads test the lines of a batch with a
+ * predicate of their own, so that per-thread state such as a {@code Matcher} is reused without
+ * synchronization. In ordered mode, the writer holds back batches that complete early and
+ * writes them in input order; in unordered mode, it writes batches as they complete.
+ *
+ * A fixed set of batch buffers circulates between the threads and bounds the memory in use;
+ * the reader waits when all of them are in flight.
+ */
+public class ParallelLineFilter {
+
+    /**
+     * Tests a line.
+     */
+    @FunctionalInterface
+    public interface LinePredicate {
+
+        /**
+         * Tests a line.
+         *
+         * @param buf The array containing the line.
+         * @param off The start of the line.
+         * @param len The length of the line without its terminator.
+         * @return {@code true} if the line is to be kept.
+         */
+        boolean test(byte[] buf, int off, int len);
+    }
+
+    private static final int BATCH_SIZE = 1 << 20;
+    private static final int BATCH_LINES = 16384;
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+    private final int threads;
+    private final boolean ordered;
+
+    /**
+     * Creates a filter.
+     *
+     * @param threads The number of worker threads; with 1, lines are filtered by the calling thread.
+     * @param ordered {@code true} to write the kept lines in input order.
+     */
+    public ParallelLineFilter(int threads, boolean ordered) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("The number of threads must be positive: " + threads);
+        }
+        this.threads = threads;
+        this.ordered = ordered;
+    }
+
+    /**
+     * Copies the lines accepted by the predicate from the input to the output.
+     *
+     * @param in The input.
+     * @param out The output; it is not flushed.
+     * @param predicates Creates a predicate for each worker thread.
+     * @throws IOException If the input cannot be read or the output cannot be written.
+     */
+    public void filter(ByteLineReader in, LineWriter out, Supplier<LinePredicate> predicates) throws IOException {
+        if (threads == 1) {
+            LinePredicate predicate = predicates.get();
+            in.forEachLine((buf, off, len) -> {
+                if (predicate.test(buf, off, len)) {
+                    out.writeLine(buf, off, len);
+                }
+            });
+            return;
+        }
+        new Run(in, out, predicates).execute();
+    }
+
+    /**
+     * A batch of input lines and the lines of it that were kept.
+     */
+    private static class Batch {
+
+        long seq;
+        byte[] data;
+        int dataLen = 0;
+        int[] starts;
+        int[] lens;
+        int count = 0;
+        byte[] kept = new byte[1 << 16];
+        int keptLen = 0;
+
+        /** The end of input; {@code seq} holds the number of batches. */
+        boolean last = false;
+        /** A failure of another thread, passed on to the writer. */
+        Throwable failure = null;
+
+        Batch(int size) {
+            data = new byte[size];
+            starts = new int[size == 0 ? 0 : BATCH_LINES];
+            lens = new int[starts.length];
+        }
+
+        boolean isFull(int len) {
+            return count == starts.length || (count > 0 && dataLen + len > data.length);
+        }
+
+        void add(byte[] buf, int off, int len) {
+            if (dataLen + len > data.length) {
+                data = Arrays.copyOf(data, Math.max(dataLen + len, data.length * 2));
+            }
+            System.arraycopy(buf, off, data, dataLen, len);
+            starts[count] = dataLen;
+            lens[count] = len;
+            count++;
+            dataLen += len;
+        }
+
+        void keep(int start, int len) {
+            int needed = keptLen + len + NEWLINE.length;
+            if (needed > kept.length) {
+                kept = Arrays.copyOf(kept, Math.max(needed, kept.length * 2));
+            }
+            System.arraycopy(data, start, kept, keptLen, len);
+            keptLen += len;
+            System.arraycopy(NEWLINE, 0, kept, keptLen, NEWLINE.length);
+            keptLen += NEWLINE.length;
+        }
+
+        void reset(long seq) {
+            this.seq = seq;
+            dataLen = 0;
+            count = 0;
+            keptLen = 0;
+        }
+    }
+
+    /**
+     * The threads and queues of one filter run.
+     */
+    private class Run {
+
+        private final ByteLineReader in;
+        private final LineWriter out;
+        private final Supplier<LinePredicate> predicates;
+
+        private final BlockingQueue<Batch> free;
+        private final BlockingQueue<Batch> work;
+        private final BlockingQueue<Batch> done = new LinkedBlockingQueue<>();
+        private final List<Thread> started = new ArrayList<>();
+
+        Run(ByteLineReader in, LineWriter out, Supplier<LinePredicate> predicates) {
+            this.in = in;
+            this.out = out;
+            this.predicates = predicates;
+            int batches = threads * 2 + 2;
+            this.free = new ArrayBlockingQueue<>(batches);
+            this.work = new ArrayBlockingQueue<>(batches + threads);
+            for (int i = 0; i < batches; i++) {
+                free.add(new Batch(BATCH_SIZE));
+            }
+        }
+
+        void execute() throws IOException {
+            try {
+                for (int i = 0; i < threads; i++) {
+                    LinePredicate predicate = predicates.get();
+                    start("filter-worker-" + i, () -> work(predicate));
+                }
+                start("filter-reader", this::read);
+                write();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while filtering", e);
+            } finally {
+                for (Thread t : started) {
+                    t.interrupt();
+                }
+            }
+        }
+
+        private void start(String name, Runnable task) {
+            Thread t = new Thread(task, name);
+            t.setDaemon(true);
+            started.add(t);
+            t.start();
+        }
+
+        private void read() {
+            try {
+                long[] seq = { 0 };
+                Batch[] current = { take(seq[0]++) };
+                in.forEachLine((buf, off, len) -> {
+                    if (current[0].isFull(len)) {
+                        submit(current[0]);
+                        current[0] = take(seq[0]++);
+                    }
+                    current[0].add(buf, off, len);
+                });
+                submit(current[0]);
+
+                Batch end = new Batch(0);
+                end.seq = seq[0];
+                end.last = true;
+                done.add(end);
+            } catch (InterruptedIOException e) {
+                // The run was cancelled by the writer.
+            } catch (IOException | RuntimeException | Error e) {
+                fail(e);
+            }
+        }
+
+        private Batch take(long seq) throws InterruptedIOException {
+            try {
+                Batch batch = free.take();
+                batch.reset(seq);
+                return batch;
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+
+        private void submit(Batch batch) throws InterruptedIOException {
+            try {
+                work.put(batch);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+
+        private void work(LinePredicate predicate) {
+            try {
+                while (true) {
+                    Batch batch = work.take();
+                    for (int i = 0; i < batch.count; i++) {
+                        if (predicate.test(batch.data, batch.starts[i], batch.lens[i])) {
+                            batch.keep(batch.starts[i], batch.lens[i]);
+                        }
+                    }
+                    done.put(batch);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException | Error e) {
+                fail(e);
+            }
+        }
+
+        private void fail(Throwable e) {
+            Batch failure = new Batch(0);
+            failure.failure = e;
+            done.add(failure);
+        }
+
+        private void write() throws IOException, InterruptedException {
+            Map<Long, Batch> pending = new HashMap<>();
+            long next = 0;
+            long total = -1;
+            while (total < 0 || next < total) {
+                Batch batch = done.take();
+                if (batch.failure != null) {
+                    if (batch.failure instanceof IOException e) {
+                        throw e;
+                    }
+                    if (batch.failure instanceof Error e) {
+                        throw e;
+                    }
+                    throw (RuntimeException) batch.failure;
+                }
+                if (batch.last) {
+                    total = batch.seq;
+                    continue;
+                }
+                if (!ordered) {
+                    emit(batch);
+                    next++;
+                    continue;
+                }
+                pending.put(batch.seq, batch);
+                while ((batch = pending.remove(next)) != null) {
+                    emit(batch);
+                    next++;
+                }
+            }
+        }
+
+        private void emit(Batch batch) throws IOException, InterruptedException {
+            out.write(batch.kept, 0, batch.keptLen);
+            free.put(batch);
+        }
+    }
+}
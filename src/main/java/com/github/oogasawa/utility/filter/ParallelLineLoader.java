@@ -0,0 +1,214 @@
+package com.github.oogasawa.utility.filter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * The {@code ParallelLineLoader} class loads set files as sorted arrays of unique
+ * {@link ByteLine}s using the fork/join pool.
+ *
+ * A memory-mapped file is cut into chunks that end directly after a newline. Each chunk is
+ * parsed, sorted and deduplicated by its own task, and the sorted arrays of neighbouring chunks
+ * are merged pairwise as the tasks complete. Several files are loaded concurrently.
+ */
+public class ParallelLineLoader {
+
+    private static final int MIN_CHUNK_SIZE = 1 << 20;
+
+    private final ForkJoinPool pool;
+
+    /**
+     * Creates a loader running on the common fork/join pool.
+     */
+    public ParallelLineLoader() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a loader running on the given pool.
+     *
+     * @param pool The pool executing the tasks.
+     */
+    public ParallelLineLoader(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Loads several files concurrently.
+     *
+     * @param files The files to load.
+     * @return For every file, its unique lines in ascending byte order.
+     * @throws IOException If a file cannot be read.
+     */
+    public List<ByteLine[]> loadAll(List<Path> files) throws IOException {
+        List<ForkJoinTask<ByteLine[]>> tasks = new ArrayList<>();
+        for (Path file : files) {
+            tasks.add(pool.submit(() -> {
+                try {
+                    return load(file);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }));
+        }
+
+        List<ByteLine[]> result = new ArrayList<>();
+        try {
+            for (ForkJoinTask<ByteLine[]> task : tasks) {
+                result.add(task.join());
+            }
+        } catch (RuntimeException e) {
+            // The pool may rethrow a copy of the task's exception that wraps the original one.
+            for (Throwable t = e; t != null; t = t.getCause()) {
+                if (t instanceof UncheckedIOException u) {
+                    throw u.getCause();
+                }
+            }
+            throw e;
+        }
+        return result;
+    }
+
+    /**
+     * Loads a file.
+     *
+     * @param file The file to load.
+     * @return The unique lines of the file in ascending byte order.
+     * @throws IOException If the file cannot be read.
+     */
+    public ByteLine[] load(Path file) throws IOException {
+        if (!Files.isRegularFile(file)) {
+            List<ByteLine> lines = new ArrayList<>();
+            try (InputStream in = Files.newInputStream(file)) {
+                new ByteLineReader(in).forEachLine(
+                        (buf, off, len) -> lines.add(ByteLine.of(Arrays.copyOfRange(buf, off, off + len))));
+            }
+            return sortUnique(lines.toArray(new ByteLine[0]), lines.size());
+        }
+
+        MappedLineFile mapped = MappedLineFile.map(file);
+        List<Chunk> chunks = split(mapped, Math.max(MIN_CHUNK_SIZE, mapped.size() / (pool.getParallelism() * 4L)));
+        if (chunks.isEmpty()) {
+            return new ByteLine[0];
+        }
+        LoadTask task = new LoadTask(chunks, 0, chunks.size());
+        return ForkJoinTask.inForkJoinPool() ? task.invoke() : pool.invoke(task);
+    }
+
+    /**
+     * A range of a segment that starts at the beginning of a line and ends after a newline
+     * or at the end of the segment.
+     */
+    private record Chunk(ByteBuffer segment, int from, int to) {
+    }
+
+    private static List<Chunk> split(MappedLineFile file, long chunkSize) {
+        List<Chunk> chunks = new ArrayList<>();
+        for (ByteBuffer segment : file.segments()) {
+            int limit = segment.limit();
+            int from = 0;
+            while (from < limit) {
+                int to = (int) Math.min(limit, from + chunkSize);
+                while (to < limit && segment.get(to - 1) != '\n') {
+                    to++;
+                }
+                chunks.add(new Chunk(segment, from, to));
+                from = to;
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * Parses a range of chunks, splitting it in halves until a single chunk remains.
+     */
+    private static class LoadTask extends RecursiveTask<ByteLine[]> {
+
+        private static final long serialVersionUID = 1L;
+
+        /** Mapped segments, which are never serialized. */
+        private final transient List<Chunk> chunks;
+        private final int lo;
+        private final int hi;
+
+        LoadTask(List<Chunk> chunks, int lo, int hi) {
+            this.chunks = chunks;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected ByteLine[] compute() {
+            if (hi - lo == 1) {
+                return parse(chunks.get(lo));
+            }
+            int mid = (lo + hi) >>> 1;
+            LoadTask left = new LoadTask(chunks, lo, mid);
+            left.fork();
+            ByteLine[] right = new LoadTask(chunks, mid, hi).compute();
+            return mergeUnique(left.join(), right);
+        }
+
+        private static ByteLine[] parse(Chunk chunk) {
+            ByteLine[][] lines = { new ByteLine[1024] };
+            int[] n = { 0 };
+            try {
+                MappedLineFile.forEachLine(chunk.segment, chunk.from, chunk.to, (segment, off, len) -> {
+                    if (n[0] == lines[0].length) {
+                        lines[0] = Arrays.copyOf(lines[0], n[0] * 2);
+                    }
+                    lines[0][n[0]++] = new ByteLine(segment, off, len);
+                });
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return sortUnique(lines[0], n[0]);
+        }
+    }
+
+    private static ByteLine[] sortUnique(ByteLine[] lines, int n) {
+        Arrays.sort(lines, 0, n);
+        int m = 0;
+        for (int i = 0; i < n; i++) {
+            if (m == 0 || lines[i].compareTo(lines[m - 1]) != 0) {
+                lines[m++] = lines[i];
+            }
+        }
+        return Arrays.copyOf(lines, m);
+    }
+
+    private static ByteLine[] mergeUnique(ByteLine[] a, ByteLine[] b) {
+        ByteLine[] result = new ByteLine[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        int m = 0;
+        while (i < a.length && j < b.length) {
+            int cmp = a[i].compareTo(b[j]);
+            if (cmp < 0) {
+                result[m++] = a[i++];
+            } else if (cmp > 0) {
+                result[m++] = b[j++];
+            } else {
+                result[m++] = a[i++];
+                j++;
+            }
+        }
+        while (i < a.length) {
+            result[m++] = a[i++];
+        }
+        while (j < b.length) {
+            result[m++] = b[j++];
+        }
+        return m == result.length ? result : Arrays.copyOf(result, m);
+    }
+}
@@ -0,0 +1,381 @@
+package com.github.oogasawa.utility.filter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The {@code Partitioner} class distributes the lines of tab-separated input over a number of
+ * files by a hash of their key columns, so that all lines with the same key end up in the same
+ * file, in input order.
+ *
+ * The key columns are located in place by a {@link TsvTokenizer} and hashed one after the other
+ * with {@link Hash64}, without copying the key; the hash is mapped to a file by a multiplication
+ * rather than a division. Every file collects its lines in a write buffer of its own, which grows
+ * up to an equal share of the memory budget but at least to 64 KB, and the buffer is appended to
+ * the file when it is full. When the buffers together would exceed the budget, as they do with
+ * more files than 64 KB buffers fit in it, the largest ones are appended to their files and
+ * released until half of the budget is free; a budget below 1 MB is raised to 1 MB. Only a
+ * limited number of files is kept open: when the limit is reached, the file written least
+ * recently is closed and reopened for appending later.
+ *
+ * Compressed files are written as BGZF, all of them sharing one pool of compressing threads.
+ * The blocks of a buffer are compressed in parallel before the next buffer is handled, so no
+ * data waits in the streams of files that are not being written.
+ */
+public final class Partitioner {
+
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+    private static final long SEED = 0x3C6EF372FE94F82BL;
+    private static final int MIN_BUFFER_SIZE = 64 << 10;
+    private static final int MAX_BUFFER_SIZE = 8 << 20;
+    private static final long MIN_MEMORY_BUDGET = 16 * MIN_BUFFER_SIZE;
+
+    private final TsvTokenizer tokenizer;
+    private final int[] keyColumns;
+    private final Path prefix;
+    private final boolean compress;
+    private final int maxOpen;
+    private final int threads;
+    private final long memoryBudget;
+    private final int bufferSize;
+    private final Shard[] shards;
+    /** The open files, least recently written first. */
+    private final LinkedHashMap<Integer, Shard> open = new LinkedHashMap<>(16, 0.75f, true);
+
+    private ExecutorService pool = null;
+    /** The bytes held by the buffers of all files. */
+    private long allocated = 0;
+    private long releases = 0;
+    private long lines = 0;
+    private long opens = 0;
+    private long nanos = 0;
+
+    /**
+     * Creates a partitioner.
+     *
+     * @param keyColumns The key columns, or an empty list to hash whole lines.
+     * @param partitions The number of files.
+     * @param prefix The path of the files without the suffix {@code -00000}, and {@code .gz} if
+     *               compressed.
+     * @param compress Whether the files are compressed to BGZF.
+     * @param memoryBudget The memory shared by the write buffers of the files, at least 1 MB.
+     * @param maxOpen The number of files that may be open at the same time.
+     * @param threads The number of threads compressing or decompressing.
+     * @throws IllegalArgumentException If a number is not positive or a column is negative.
+     */
+    public Partitioner(List<Integer> keyColumns, int partitions, Path prefix, boolean compress,
+            long memoryBudget, int maxOpen, int threads) {
+        if (partitions < 1) {
+            throw new IllegalArgumentException("The number of partitions must be positive: " + partitions);
+        }
+        if (maxOpen < 1) {
+            throw new IllegalArgumentException("The number of open files must be positive: " + maxOpen);
+        }
+        this.tokenizer = keyColumns.isEmpty() ? null : TsvTokenizer.forColumns(keyColumns);
+        this.keyColumns = keyColumns.stream().mapToInt(Integer::intValue).toArray();
+        this.prefix = prefix;
+        this.compress = compress;
+        this.maxOpen = maxOpen;
+        this.threads = Math.max(1, threads);
+        this.memoryBudget = Math.max(MIN_MEMORY_BUDGET, memoryBudget);
+        this.bufferSize = (int) Math.max(MIN_BUFFER_SIZE, Math.min(MAX_BUFFER_SIZE, memoryBudget / partitions));
+        this.shards = new Shard[partitions];
+        for (int i = 0; i < partitions; i++) {
+            shards[i] = new Shard(i, path(i));
+        }
+    }
+
+    /**
+     * Returns the path of a file.
+     *
+     * @param partition The number of the file, from 0.
+     * @return The prefix followed by {@code -} and the number in five digits.
+     */
+    public Path path(int partition) {
+        String name = String.format("%s-%05d%s", prefix.getFileName(), partition, compress ? ".gz" : "");
+        return prefix.resolveSibling(name);
+    }
+
+    /**
+     * Partitions an input, creating all files even if some of them stay empty.
+     *
+     * @param in The input.
+     * @throws IOException If the input cannot be read or a file cannot be written.
+     */
+    public void run(InputStream in) throws IOException {
+        run(List.of(), in);
+    }
+
+    /**
+     * Partitions files, which may be compressed with gzip or BGZF, as one input.
+     *
+     * @param files The files.
+     * @throws IOException If a file cannot be read or written.
+     */
+    public void run(List<Path> files) throws IOException {
+        run(files, null);
+    }
+
+    private void run(List<Path> files, InputStream stdin) throws IOException {
+        long start = System.nanoTime();
+        Path parent = prefix.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        for (Shard shard : shards) {
+            Files.newOutputStream(shard.path).close();
+        }
+        if (compress) {
+            pool = Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "bgzf-deflater");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        try {
+            if (stdin != null) {
+                route(stdin);
+            }
+            for (Path file : files) {
+                try (InputStream in = CompressedInput.open(file, threads)) {
+                    route(in);
+                }
+            }
+            for (Shard shard : shards) {
+                flush(shard);
+                if (compress) {
+                    stream(shard).bgzf.finish();
+                }
+                close(shard);
+            }
+        } finally {
+            for (Shard shard : open.values()) {
+                shard.file.close();
+                shard.file = null;
+                shard.bgzf = null;
+            }
+            open.clear();
+            if (pool != null) {
+                pool.shutdownNow();
+                pool = null;
+            }
+        }
+        nanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Prints the statistics of the last run to standard error.
+     */
+    public void printReport() {
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        for (Shard shard : shards) {
+            min = Math.min(min, shard.lines);
+            max = Math.max(max, shard.lines);
+        }
+        System.err.println(String.format("partition: %d lines into %d files in %.3f s (%s)",
+                lines, shards.length, nanos / 1e9,
+                nanos == 0 ? "-" : String.format("%.0f lines/s", lines * 1e9 / nanos)));
+        System.err.println(String.format("lines per file: min %d, max %d, mean %.1f",
+                min, max, (double) lines / shards.length));
+        System.err.println(String.format("files: %d opened, at most %d open, buffers of %s, %d released "
+                + "to stay within %s", opens, maxOpen, MemorySize.format(bufferSize), releases,
+                MemorySize.format(memoryBudget)));
+    }
+
+    /**
+     * Returns the number of lines written to a file by the last run.
+     *
+     * @param partition The number of the file, from 0.
+     * @return The number of lines.
+     */
+    public long getLines(int partition) {
+        return shards[partition].lines;
+    }
+
+    /**
+     * Returns the number of buffers appended to their files early and released to stay within
+     * the memory budget.
+     *
+     * @return The number of releases.
+     */
+    public long getReleases() {
+        return releases;
+    }
+
+    /**
+     * Returns the number of times files were opened by the last run, including the first time.
+     *
+     * @return The number of opens.
+     */
+    public long getOpens() {
+        return opens;
+    }
+
+    // ------------------------------------------------------------------------
+
+    private void route(InputStream in) throws IOException {
+        new ByteLineReader(in).forEachLine((buf, off, len) -> {
+            Shard shard = shards[partition(buf, off, len)];
+            if (shard.buffer == null) {
+                reserve(shard, Math.min(MIN_BUFFER_SIZE, bufferSize));
+                shard.buffer = new byte[Math.min(MIN_BUFFER_SIZE, bufferSize)];
+            }
+            int size = len + NEWLINE.length;
+            while (shard.length + size > shard.buffer.length && shard.buffer.length < bufferSize) {
+                int grown = Math.min(bufferSize, shard.buffer.length * 2);
+                reserve(shard, grown - shard.buffer.length);
+                shard.buffer = Arrays.copyOf(shard.buffer, grown);
+            }
+            if (shard.length + size > shard.buffer.length) {
+                flush(shard);
+                if (size > shard.buffer.length) {
+                    // A line longer than the buffer is written directly.
+                    OutputStream out = stream(shard).out();
+                    out.write(buf, off, len);
+                    out.write(NEWLINE);
+                    out.flush();
+                    shard.lines++;
+                    lines++;
+                    return;
+                }
+            }
+            System.arraycopy(buf, off, shard.buffer, shard.length, len);
+            System.arraycopy(NEWLINE, 0, shard.buffer, shard.length + len, NEWLINE.length);
+            shard.length += size;
+            shard.lines++;
+            lines++;
+        });
+    }
+
+    /**
+     * Accounts for a buffer growing by some bytes. If the budget would be exceeded, the largest
+     * buffers of other files are appended to their files and released until half of it is free.
+     */
+    private void reserve(Shard growing, int bytes) throws IOException {
+        if (allocated + bytes > memoryBudget) {
+            List<Shard> held = new ArrayList<>();
+            for (Shard shard : shards) {
+                if (shard.buffer != null && shard != growing) {
+                    held.add(shard);
+                }
+            }
+            held.sort((a, b) -> Integer.compare(b.buffer.length, a.buffer.length));
+            for (Shard shard : held) {
+                if (allocated + bytes <= memoryBudget / 2) {
+                    break;
+                }
+                flush(shard);
+                allocated -= shard.buffer.length;
+                shard.buffer = null;
+                releases++;
+            }
+        }
+        allocated += bytes;
+    }
+
+    /**
+     * Returns the file of a line.
+     */
+    private int partition(byte[] buf, int off, int len) {
+        long h;
+        if (tokenizer == null) {
+            h = Hash64.hash(buf, off, len, SEED);
+        } else {
+            tokenizer.tokenize(buf, off, len);
+            h = SEED;
+            for (int column : keyColumns) {
+                // A missing column hashes differently from an empty one.
+                h = tokenizer.has(column)
+                        ? Hash64.hash(buf, tokenizer.start(column), tokenizer.length(column), h)
+                        : Hash64.mix(h + 1);
+            }
+        }
+        return (int) Math.unsignedMultiplyHigh(h, shards.length);
+    }
+
+    /**
+     * Appends the buffer of a file to it.
+     */
+    private void flush(Shard shard) throws IOException {
+        if (shard.length == 0) {
+            return;
+        }
+        OutputStream out = stream(shard).out();
+        out.write(shard.buffer, 0, shard.length);
+        // Waits for the compressed blocks, so that nothing is held by the stream.
+        out.flush();
+        shard.length = 0;
+    }
+
+    /**
+     * Returns a file opened for appending, closing the file written least recently if too many
+     * are open.
+     */
+    private Shard stream(Shard shard) throws IOException {
+        if (open.get(shard.index) != null) {
+            return shard;
+        }
+        if (open.size() >= maxOpen) {
+            Iterator<Map.Entry<Integer, Shard>> eldest = open.entrySet().iterator();
+            Shard evicted = eldest.next().getValue();
+            eldest.remove();
+            evicted.file.close();
+            evicted.file = null;
+            evicted.bgzf = null;
+        }
+        shard.file = Files.newOutputStream(shard.path, StandardOpenOption.APPEND);
+        if (compress) {
+            shard.bgzf = new BgzfOutputStream(shard.file, pool, threads * 2);
+        }
+        open.put(shard.index, shard);
+        opens++;
+        return shard;
+    }
+
+    private void close(Shard shard) throws IOException {
+        if (open.remove(shard.index) != null) {
+            shard.file.close();
+            shard.file = null;
+            shard.bgzf = null;
+        }
+    }
+
+    /**
+     * The buffer and the state of an output file.
+     */
+    private static final class Shard {
+
+        final int index;
+        final Path path;
+        byte[] buffer = null;
+        int length = 0;
+        long lines = 0;
+        /** The file while it is open. */
+        OutputStream file = null;
+        /** The compressing stream on {@link #file}, if compressed. */
+        BgzfOutputStream bgzf = null;
+
+        Shard(int index, Path path) {
+            this.index = index;
+            this.path = path;
+        }
+
+        OutputStream out() {
+            return bgzf != null ? bgzf : file;
+        }
+    }
+}
@@ -0,0 +1,383 @@
+package com.github.oogasawa.utility.filter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * The {@code RegexPrefilter} class rejects lines that cannot match a regular expression without
+ * running the regular expression.
+ *
+ * When the expression is compiled, its top-level sequence is read for the literal strings that
+ * every match must contain; {@code ERROR.*timeout} needs "ERROR" and "timeout". A line is then
+ * only given to the regex engine if it contains all of them. Each string is searched for by
+ * scanning the line for its least frequent byte, judged by a fixed table of typical text, and
+ * comparing the whole string where that byte is found.
+ *
+ * The analysis is conservative: groups, character classes, escapes other than quoted
+ * characters, and anything under a quantifier that allows zero repetitions end a literal, and
+ * an expression with a top-level alternation, inline flags, or case-insensitive or comments
+ * mode yields no literal at all, in which case every line is passed on. An instance is
+ * immutable and can be shared by several threads.
+ */
+public final class RegexPrefilter {
+
+    /** Bytes of typical text from the most to the least frequent; other ASCII bytes are rare. */
+    private static final String COMMON = " etaoinsrhldcumfpgwybvkxjqz0123456789\t.,-_/:=\"'ETAOINSRHLDCUMFPGWYBVKXJQZ";
+    private static final int[] FREQUENCY = new int[256];
+
+    static {
+        for (int i = 0; i < COMMON.length(); i++) {
+            FREQUENCY[COMMON.charAt(i)] = COMMON.length() - i;
+        }
+        // UTF-8 sequences are frequent in non-English text.
+        for (int b = 0x80; b < 0x100; b++) {
+            FREQUENCY[b] = COMMON.length() / 2;
+        }
+    }
+
+    private final List<String> literals;
+    private final Literal[] searches;
+
+    private RegexPrefilter(List<String> literals) {
+        this.literals = List.copyOf(literals);
+        this.searches = literals.stream().map(Literal::new).toArray(Literal[]::new);
+    }
+
+    /**
+     * Analyses a compiled regular expression.
+     *
+     * @param pattern The regular expression.
+     * @return The prefilter; it has no literals if none could be found.
+     */
+    public static RegexPrefilter of(Pattern pattern) {
+        List<String> literals = new ArrayList<>();
+        int flags = pattern.flags();
+        if ((flags & Pattern.LITERAL) != 0) {
+            literals.add(pattern.pattern());
+        } else if ((flags & (Pattern.CASE_INSENSITIVE | Pattern.COMMENTS | Pattern.CANON_EQ)) == 0) {
+            if (!new Scanner(pattern.pattern(), literals).scan()) {
+                literals.clear();
+            }
+        }
+        literals.removeIf(s -> s.isEmpty() || s.indexOf('\uFFFD') >= 0);
+        // Longer strings are less likely to occur, so they are tried first.
+        literals.sort(Comparator.comparingInt(String::length).reversed());
+        return new RegexPrefilter(literals);
+    }
+
+    /**
+     * Returns the literal strings that a match must contain, in the order they are tried.
+     *
+     * @return The strings; empty if every line has to be passed on.
+     */
+    public List<String> literals() {
+        return literals;
+    }
+
+    /**
+     * Tests whether the prefilter rejects nothing.
+     *
+     * @return {@code true} if no literal was found.
+     */
+    public boolean isEmpty() {
+        return searches.length == 0;
+    }
+
+    /**
+     * Tests whether a range of bytes contains all the required strings.
+     *
+     * @param buf The array containing the bytes.
+     * @param off The start of the range.
+     * @param len The length of the range.
+     * @return {@code false} if the regular expression cannot match the range.
+     */
+    public boolean mayMatch(byte[] buf, int off, int len) {
+        for (Literal literal : searches) {
+            if (!literal.in(buf, off, len)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A required string and the byte it is searched by.
+     */
+    private static class Literal {
+
+        private final byte[] bytes;
+        private final int rare;
+        private final byte rareByte;
+
+        Literal(String s) {
+            bytes = s.getBytes(StandardCharsets.UTF_8);
+            int best = 0;
+            for (int i = 1; i < bytes.length; i++) {
+                if (FREQUENCY[bytes[i] & 0xff] < FREQUENCY[bytes[best] & 0xff]) {
+                    best = i;
+                }
+            }
+            rare = best;
+            rareByte = bytes[best];
+        }
+
+        boolean in(byte[] buf, int off, int len) {
+            int end = off + len - bytes.length + rare;
+            for (int i = off + rare; i <= end; i++) {
+                if (buf[i] == rareByte) {
+                    int start = i - rare;
+                    if (Arrays.equals(buf, start, start + bytes.length, bytes, 0, bytes.length)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Reads the top-level sequence of an expression and collects its required literals.
+     */
+    private static class Scanner {
+
+        private final String re;
+        private final List<String> literals;
+        private final StringBuilder current = new StringBuilder();
+        private int pos = 0;
+
+        Scanner(String re, List<String> literals) {
+            this.re = re;
+            this.literals = literals;
+        }
+
+        /**
+         * Returns {@code false} if the expression cannot be analysed.
+         */
+        boolean scan() {
+            while (pos < re.length()) {
+                char c = re.charAt(pos);
+                switch (c) {
+                    case '|':
+                        return false;
+                    case '(':
+                        if (re.startsWith("(?", pos) && pos + 2 < re.length()
+                                && (Character.isLetter(re.charAt(pos + 2)) || re.charAt(pos + 2) == '-')) {
+                            return false;
+                        }
+                        end();
+                        pos = skipGroup(pos);
+                        break;
+                    case '[':
+                        end();
+                        pos = skipClass(pos);
+                        break;
+                    case '.':
+                    case '^':
+                    case '$':
+                        end();
+                        pos++;
+                        break;
+                    case '\\':
+                        pos = escape(pos);
+                        break;
+                    default:
+                        int cp = re.codePointAt(pos);
+                        current.appendCodePoint(cp);
+                        pos += Character.charCount(cp);
+                        break;
+                }
+                quantifier();
+            }
+            end();
+            return true;
+        }
+
+        /**
+         * Handles a quantifier after an atom. If the atom extended the current literal, the
+         * quantifier applies to its last character, which is dropped when the minimum is zero and
+         * otherwise kept once; either way the literal ends there, since the atom may repeat. After
+         * any other atom, the current literal has already ended.
+         */
+        private void quantifier() {
+            if (pos >= re.length()) {
+                return;
+            }
+            char c = re.charAt(pos);
+            int min;
+            if (c == '*' || c == '?') {
+                min = 0;
+                pos++;
+            } else if (c == '+') {
+                min = 1;
+                pos++;
+            } else if (c == '{') {
+                int close = re.indexOf('}', pos);
+                if (close < 0) {
+                    return;
+                }
+                String bounds = re.substring(pos + 1, close);
+                int comma = bounds.indexOf(',');
+                try {
+                    min = Integer.parseInt((comma < 0 ? bounds : bounds.substring(0, comma)).trim());
+                } catch (NumberFormatException e) {
+                    return;
+                }
+                pos = close + 1;
+            } else {
+                return;
+            }
+            // Lazy and possessive forms.
+            if (pos < re.length() && (re.charAt(pos) == '?' || re.charAt(pos) == '+')) {
+                pos++;
+            }
+
+            if (min == 0 && current.length() > 0) {
+                current.setLength(current.length() - Character.charCount(current.codePointBefore(current.length())));
+            }
+            end();
+        }
+
+        private void end() {
+            if (current.length() > 0) {
+                literals.add(current.toString());
+                current.setLength(0);
+            }
+        }
+
+        /**
+         * Reads an escape sequence, appending it to the current literal if it stands for a
+         * single known character, and returns the position after it.
+         */
+        private int escape(int p) {
+            if (p + 1 >= re.length()) {
+                return p + 1;
+            }
+            char c = re.charAt(p + 1);
+            int next = p + 2;
+            switch (c) {
+                case 't' -> current.append('\t');
+                case 'n' -> current.append('\n');
+                case 'r' -> current.append('\r');
+                case 'f' -> current.append('\f');
+                case 'a' -> current.append('\u0007');
+                case 'e' -> current.append('\u001B');
+                case 'Q' -> {
+                    int close = re.indexOf("\\E", next);
+                    int stop = close < 0 ? re.length() : close;
+                    current.append(re, next, stop);
+                    next = close < 0 ? stop : close + 2;
+                }
+                default -> {
+                    if (!Character.isLetterOrDigit(c)) {
+                        current.append(c);
+                    } else {
+                        end();
+                        next = skipEscapeArgument(c, next);
+                    }
+                }
+            }
+            return next;
+        }
+
+        private int skipEscapeArgument(char c, int p) {
+            switch (c) {
+                case 'p', 'P', 'x', 'N' -> {
+                    if (p < re.length() && re.charAt(p) == '{') {
+                        int close = re.indexOf('}', p);
+                        return close < 0 ? re.length() : close + 1;
+                    }
+                    return Math.min(re.length(), p + (c == 'x' ? 2 : 1));
+                }
+                case 'u' -> {
+                    return Math.min(re.length(), p + 4);
+                }
+                case 'c' -> {
+                    return Math.min(re.length(), p + 1);
+                }
+                case 'k' -> {
+                    int close = re.indexOf('>', p);
+                    return close < 0 ? re.length() : close + 1;
+                }
+                case '0' -> {
+                    int end = p;
+                    while (end < re.length() && end < p + 3 && re.charAt(end) >= '0' && re.charAt(end) <= '7') {
+                        end++;
+                    }
+                    return end;
+                }
+                default -> {
+                    int end = p;
+                    while (Character.isDigit(c) && end < re.length() && Character.isDigit(re.charAt(end))) {
+                        end++;
+                    }
+                    return end;
+                }
+            }
+        }
+
+        /**
+         * Returns the position after the group starting at the given parenthesis.
+         */
+        private int skipGroup(int p) {
+            int depth = 0;
+            while (p < re.length()) {
+                char c = re.charAt(p);
+                if (c == '\\') {
+                    p = skipQuoted(p);
+                    continue;
+                }
+                if (c == '[') {
+                    p = skipClass(p);
+                    continue;
+                }
+                if (c == '(') {
+                    depth++;
+                } else if (c == ')' && --depth == 0) {
+                    return p + 1;
+                }
+                p++;
+            }
+            return p;
+        }
+
+        /**
+         * Returns the position after the character class starting at the given bracket.
+         */
+        private int skipClass(int p) {
+            int depth = 0;
+            while (p < re.length()) {
+                char c = re.charAt(p);
+                if (c == '\\') {
+                    p = skipQuoted(p);
+                    continue;
+                }
+                if (c == '[') {
+                    depth++;
+                    // A closing bracket right after the opening one is a member.
+                    if (p + 1 < re.length() && re.charAt(p + 1) == '^') {
+                        p++;
+                    }
+                    if (p + 1 < re.length() && re.charAt(p + 1) == ']') {
+                        p++;
+                    }
+                } else if (c == ']' && --depth == 0) {
+                    return p + 1;
+                }
+                p++;
+            }
+            return p;
+        }
+
+        private int skipQuoted(int p) {
+            if (re.startsWith("\\Q", p)) {
+                int close = re.indexOf("\\E", p + 2);
+                return close < 0 ? re.length() : close + 2;
+            }
+            return p + 2;
+        }
+    }
+}
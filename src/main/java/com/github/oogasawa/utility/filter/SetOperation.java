@@ -1,17 +1,24 @@
 package com.github.oogasawa.utility.filter;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
 import java.util.TreeSet;
 import java.util.stream.Collectors;
 
 /**
  * The {@code SetOperation} class provides utility methods for reading sets of strings
- * from files or input streams and performing set operations such as difference.
+ * from files or input streams and performing set operations such as difference, union,
+ * intersection and symmetric difference.
  * 
  * The class is designed to handle operations on text-based datasets where each line
  * in the input represents an individual element in the set.
@@ -36,32 +43,72 @@ public class SetOperation {
     }
 
     /**
-     * Reads a set of strings from an input stream.
+     * Reads a set of strings from an input stream. The input is decoded as ISO-8859-1, one
+     * character per byte, so that the set is ordered as bytes and {@link #print(TreeSet)} writes
+     * every line back unchanged, whether it is valid UTF-8 or not.
      * 
      * @param in The input stream containing the set of strings.
      * @return A {@code TreeSet<String>} containing the unique lines from the input stream.
      */
     public TreeSet<String> read(InputStream in) {
-        TreeSet<String> result = new TreeSet<>();
+        TreeSet<String> result;
 
-        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.ISO_8859_1));
 
         // Load each line from the input stream into a TreeSet to ensure uniqueness
-        result = reader.lines().collect(Collectors.toCollection(TreeSet::new));
+        result = reader.lines().collect(Collectors.toCollection(() -> new TreeSet<>(ByteLine.UTF8_ORDER)));
 
         return result;
     }
 
+    /**
+     * Reads a set of lines from a file without decoding them.
+     *
+     * Regular files are memory-mapped and the returned lines are slices of the mapping, so the
+     * file content is neither copied nor decoded. Other files, such as pipes, are read into memory.
+     *
+     * @param filePath The path to the file containing the set of lines.
+     * @return A {@code TreeSet<ByteLine>} containing the unique lines from the file.
+     * @throws IOException If the file cannot be read.
+     */
+    public TreeSet<ByteLine> readBytes(Path filePath) throws IOException {
+        TreeSet<ByteLine> result = new TreeSet<>();
+        if (Files.isRegularFile(filePath)) {
+            MappedLineFile.map(filePath).forEachLine((segment, off, len) -> result.add(new ByteLine(segment, off, len)));
+        } else {
+            try (InputStream in = Files.newInputStream(filePath)) {
+                new ByteLineReader(in).forEachLine(
+                        (buf, off, len) -> result.add(ByteLine.of(Arrays.copyOfRange(buf, off, off + len))));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads the unique lines of several files concurrently, without decoding them.
+     *
+     * Regular files are memory-mapped, split into newline-aligned chunks and parsed in parallel
+     * on the fork/join pool (see {@link ParallelLineLoader}).
+     *
+     * @param filePaths The files to read.
+     * @return For every file, its unique lines in ascending byte order.
+     * @throws IOException If a file cannot be read.
+     */
+    public List<ByteLine[]> readSorted(List<Path> filePaths) throws IOException {
+        return new ParallelLineLoader().loadAll(filePaths);
+    }
+
     /**
      * Computes the difference between two sets.
      * 
+     * @param <T> The type of the elements.
      * @param set1 The first set.
      * @param set2 The second set.
-     * @return A new {@code TreeSet<String>} containing elements that exist in {@code set1} but not in {@code set2}.
+     * @return A new {@code TreeSet} containing elements that exist in {@code set1} but not in {@code set2}.
      */
-    public TreeSet<String> difference(TreeSet<String> set1, TreeSet<String> set2) {
-        TreeSet<String> result = new TreeSet<>();
-        for (String s : set1) {
+    public <T extends Comparable<T>> TreeSet<T> difference(TreeSet<T> set1, TreeSet<T> set2) {
+        TreeSet<T> result = new TreeSet<>(set1.comparator());
+        for (T s : set1) {
             if (!set2.contains(s)) {
                 result.add(s);
             }
@@ -70,13 +117,109 @@ public class SetOperation {
     }
 
     /**
-     * Prints the elements of the given set in alphanumeric order.
+     * Computes the union of two sets.
+     *
+     * @param <T> The type of the elements.
+     * @param set1 The first set.
+     * @param set2 The second set.
+     * @return A new {@code TreeSet} containing elements that exist in {@code set1} or {@code set2}.
+     */
+    public <T extends Comparable<T>> TreeSet<T> union(TreeSet<T> set1, TreeSet<T> set2) {
+        TreeSet<T> result = new TreeSet<>(set1);
+        result.addAll(set2);
+        return result;
+    }
+
+    /**
+     * Computes the intersection of two sets.
+     *
+     * @param <T> The type of the elements.
+     * @param set1 The first set.
+     * @param set2 The second set.
+     * @return A new {@code TreeSet} containing elements that exist in both {@code set1} and {@code set2}.
+     */
+    public <T extends Comparable<T>> TreeSet<T> intersection(TreeSet<T> set1, TreeSet<T> set2) {
+        TreeSet<T> result = new TreeSet<>(set1.comparator());
+        for (T s : set1) {
+            if (set2.contains(s)) {
+                result.add(s);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Computes the symmetric difference of two sets.
+     *
+     * @param <T> The type of the elements.
+     * @param set1 The first set.
+     * @param set2 The second set.
+     * @return A new {@code TreeSet} containing elements that exist in exactly one of the sets.
+     */
+    public <T extends Comparable<T>> TreeSet<T> symmetricDifference(TreeSet<T> set1, TreeSet<T> set2) {
+        TreeSet<T> result = difference(set1, set2);
+        result.addAll(difference(set2, set1));
+        return result;
+    }
+
+    /**
+     * Applies an operator to any number of sets by folding its binary form from left to right.
+     *
+     * @param <T> The type of the elements.
+     * @param op The operator to apply.
+     * @param sets The operands; at least one set is required.
+     * @return A new {@code TreeSet} containing the result.
+     */
+    public <T extends Comparable<T>> TreeSet<T> apply(SetOperator op, List<TreeSet<T>> sets) {
+        TreeSet<T> result = new TreeSet<>(sets.get(0));
+        for (TreeSet<T> set : sets.subList(1, sets.size())) {
+            result = switch (op) {
+                case UNION -> union(result, set);
+                case INTERSECTION -> intersection(result, set);
+                case DIFFERENCE -> difference(result, set);
+                case SYMMETRIC_DIFFERENCE -> symmetricDifference(result, set);
+            };
+        }
+        return result;
+    }
+
+    /**
+     * Prints the elements of the given set in its order, encoded as ISO-8859-1 like the lines of
+     * {@link #read(InputStream)}.
      * 
      * @param set The set of strings to print.
      */
     public void print(TreeSet<String> set) {
+        PrintStream out = new PrintStream(new BufferedOutputStream(System.out, 1 << 16), false,
+                StandardCharsets.ISO_8859_1);
         for (String s : set) {
-            System.out.println(s);
+            out.println(s);
+        }
+        out.flush();
+    }
+
+    /**
+     * Prints the given lines in ascending byte order, copying their bytes to standard output
+     * without decoding them.
+     *
+     * @param set The lines to print, already in the desired order.
+     */
+    public void printBytes(Iterable<ByteLine> set) {
+        OutputStream out = new BufferedOutputStream(System.out, 1 << 16);
+        byte[] newline = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+        byte[] buf = new byte[256];
+        try {
+            for (ByteLine line : set) {
+                if (buf.length < line.length()) {
+                    buf = new byte[Math.max(line.length(), buf.length * 2)];
+                }
+                line.copyTo(buf, 0);
+                out.write(buf, 0, line.length());
+                out.write(newline);
+            }
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("An error occurred while writing the result: " + e.getMessage());
         }
     }
 }
@@ -0,0 +1,43 @@
+package com.github.oogasawa.utility.filter;
+
+/**
+ * The {@code SetOperator} enum lists the set operations supported by the streaming engines.
+ *
+ * Every operator decides whether an element is part of the result from two facts: whether
+ * the element belongs to the first input, and how many of the inputs contain it. This makes
+ * the n-ary variants of the operations a single merge pass over all inputs.
+ */
+public enum SetOperator {
+
+    /** Elements contained in at least one input. */
+    UNION,
+
+    /** Elements contained in every input. */
+    INTERSECTION,
+
+    /** Elements of the first input that are contained in none of the other inputs. */
+    DIFFERENCE,
+
+    /**
+     * Elements contained in an odd number of inputs. For two inputs this is the usual
+     * symmetric difference, and the n-ary form equals applying it repeatedly.
+     */
+    SYMMETRIC_DIFFERENCE;
+
+    /**
+     * Decides whether an element belongs to the result.
+     *
+     * @param inFirst {@code true} if the first input contains the element.
+     * @param count The number of inputs containing the element.
+     * @param inputs The total number of inputs.
+     * @return {@code true} if the element is part of the result.
+     */
+    public boolean accepts(boolean inFirst, int count, int inputs) {
+        return switch (this) {
+            case UNION -> count > 0;
+            case INTERSECTION -> count == inputs;
+            case DIFFERENCE -> inFirst && count == 1;
+            case SYMMETRIC_DIFFERENCE -> (count & 1) == 1;
+        };
+    }
+}
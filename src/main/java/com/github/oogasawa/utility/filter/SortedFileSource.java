@@ -0,0 +1,72 @@
+package com.github.oogasawa.utility.filter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * The {@code SortedFileSource} class reads a file that is already sorted, for example with
+ * {@code LC_ALL=C sort}, and serves its lines as a {@link SortedLineSource}.
+ *
+ * Lines are decoded as ISO-8859-1, one character per byte, so that any bytes, valid UTF-8 or
+ * not, are written back unchanged with the same charset; they are thus compared as bytes, the
+ * order of {@link ByteLine#UTF8_ORDER}. The order is
+ * verified while reading: a line that is smaller than its predecessor aborts the operation with
+ * an {@link IOException} naming the file and line number, so that unsorted input never produces
+ * a silently wrong result. Adjacent duplicate lines are skipped.
+ */
+public class SortedFileSource implements SortedLineSource {
+
+    private final Path path;
+    private final BufferedReader reader;
+    private String previous = null;
+    private long lineNumber = 0;
+
+    /**
+     * Opens a sorted file.
+     *
+     * @param path The file to read.
+     * @throws IOException If the file cannot be opened.
+     */
+    public SortedFileSource(Path path) throws IOException {
+        this.path = path;
+        this.reader = new BufferedReader(
+                new InputStreamReader(Files.newInputStream(path), StandardCharsets.ISO_8859_1));
+    }
+
+    @Override
+    public String next() throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (previous != null) {
+                int cmp = ByteLine.compareUtf8(line, previous);
+                if (cmp < 0) {
+                    throw new IOException(String.format("%s:%d: input is not sorted (\"%s\" follows \"%s\")",
+                            path, lineNumber, text(line), text(previous)));
+                }
+                if (cmp == 0) {
+                    continue;
+                }
+            }
+            previous = line;
+            return line;
+        }
+        return null;
+    }
+
+    /**
+     * Returns a line as UTF-8 text for a message.
+     */
+    private static String text(String line) {
+        return new String(line.getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
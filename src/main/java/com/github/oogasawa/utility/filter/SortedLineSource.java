@@ -0,0 +1,24 @@
+package com.github.oogasawa.utility.filter;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A {@code SortedLineSource} delivers lines in ascending UTF-8 byte order, that of
+ * {@link ByteLine#UTF8_ORDER} and of {@code LC_ALL=C sort}, without duplicates, one at a time,
+ * in the manner of {@link java.io.BufferedReader#readLine()}.
+ *
+ * Sources are consumed by the streaming set operations, which only ever need to look at
+ * the head of each input and therefore work in constant memory.
+ */
+public interface SortedLineSource extends Closeable {
+
+    /**
+     * Returns the next line.
+     *
+     * @return The next line, or {@code null} if the source is exhausted.
+     * @throws IOException If the underlying data cannot be read.
+     */
+    String next() throws IOException;
+
+}
@@ -0,0 +1,132 @@
+package com.github.oogasawa.utility.filter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The {@code SortedSetAlgebra} class evaluates a {@link SetOperator} over any number of
+ * sorted inputs in a single linear merge pass.
+ *
+ * When the inputs are {@link SortedLineSource}s, only the current head of every input is held
+ * in memory, so the operation runs in constant memory regardless of the size of the inputs.
+ * The output is always in ascending order.
+ */
+public class SortedSetAlgebra {
+
+    private SortedSetAlgebra() {
+    }
+
+    /**
+     * Applies an operator to sorted inputs.
+     *
+     * @param op The operator to apply.
+     * @param sources The inputs; the first one is the minuend of {@link SetOperator#DIFFERENCE}.
+     * @param out The destination of the result, one element per line.
+     * @return The number of elements written.
+     * @throws IOException If an input cannot be read, is not sorted, or the output cannot be written.
+     */
+    public static long apply(SetOperator op, List<? extends SortedLineSource> sources, Writer out)
+            throws IOException {
+        int n = sources.size();
+        String[] heads = new String[n];
+        for (int i = 0; i < n; i++) {
+            heads[i] = sources.get(i).next();
+        }
+
+        long written = 0;
+        while (true) {
+            String min = null;
+            for (String head : heads) {
+                if (head != null && (min == null || ByteLine.compareUtf8(head, min) < 0)) {
+                    min = head;
+                }
+            }
+            if (min == null) {
+                break;
+            }
+
+            boolean inFirst = min.equals(heads[0]);
+            int count = 0;
+            for (int i = 0; i < n; i++) {
+                if (min.equals(heads[i])) {
+                    count++;
+                    heads[i] = sources.get(i).next();
+                }
+            }
+
+            if (op.accepts(inFirst, count, n)) {
+                out.write(min);
+                out.write(System.lineSeparator());
+                written++;
+            }
+
+            // Stop early once no further element can be accepted.
+            if (op == SetOperator.DIFFERENCE && heads[0] == null) {
+                break;
+            }
+            if (op == SetOperator.INTERSECTION && anyExhausted(heads)) {
+                break;
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Applies an operator to sorted arrays of unique elements, such as the ones produced by
+     * {@link ParallelLineLoader}.
+     *
+     * @param <T> The type of the elements.
+     * @param op The operator to apply.
+     * @param sets The inputs, each sorted in ascending order without duplicates.
+     * @return The result in ascending order.
+     */
+    public static <T extends Comparable<T>> List<T> apply(SetOperator op, List<T[]> sets) {
+        int n = sets.size();
+        int[] pos = new int[n];
+        List<T> result = new ArrayList<>();
+        while (true) {
+            T min = null;
+            for (int i = 0; i < n; i++) {
+                if (pos[i] < sets.get(i).length) {
+                    T head = sets.get(i)[pos[i]];
+                    if (min == null || head.compareTo(min) < 0) {
+                        min = head;
+                    }
+                }
+            }
+            if (min == null) {
+                break;
+            }
+
+            boolean inFirst = false;
+            int count = 0;
+            for (int i = 0; i < n; i++) {
+                T[] set = sets.get(i);
+                if (pos[i] < set.length && set[pos[i]].compareTo(min) == 0) {
+                    inFirst |= i == 0;
+                    count++;
+                    pos[i]++;
+                }
+            }
+
+            if (op.accepts(inFirst, count, n)) {
+                result.add(min);
+            }
+            if (op == SetOperator.DIFFERENCE && pos[0] == sets.get(0).length) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    private static boolean anyExhausted(String[] heads) {
+        for (String head : heads) {
+            if (head == null) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
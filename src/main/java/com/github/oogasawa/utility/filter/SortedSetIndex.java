@@ -0,0 +1,519 @@
+package com.github.oogasawa.utility.filter;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * The {@code SortedSetIndex} class is a persistent, read-only index of the unique lines of a
+ * set file, used to test membership without re-reading and re-sorting the file.
+ *
+ * The index file consists of
+ * <ol>
+ * <li>a header recording the path, size and modification time of the source file,</li>
+ * <li>data blocks of about 4 KB, each holding lines in ascending byte order, where a line is
+ *     stored as the length of the prefix it shares with its predecessor followed by the
+ *     remaining suffix, except for every 16th line (a restart point), which is stored whole,
+ *     and ending with the offsets of the restart points, and</li>
+ * <li>a block index holding the file offset of every block.</li>
+ * </ol>
+ * The file is memory-mapped for lookups. A lookup searches the blocks by their first line,
+ * then the restart points of the block, and finally decodes at most 16 lines.
+ *
+ * By convention the index of {@code FILE} is stored as {@code FILE.sidx}. An instance remembers
+ * the block of the previous lookup and must not be shared between threads.
+ */
+public class SortedSetIndex implements Closeable {
+
+    /** The file name suffix of index files. */
+    public static final String SUFFIX = ".sidx";
+
+    private static final int MAGIC = 0x53495831; // "SIX1"
+    private static final int BLOCK_SIZE = 4096;
+    private static final int RESTART_INTERVAL = 16;
+    private static final int SEGMENT_BITS = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+
+    private final FileChannel channel;
+    private final ByteBuffer[] segments;
+    private final String sourcePath;
+    private final long sourceSize;
+    private final long sourceModified;
+    private final long entryCount;
+    private final long blockCount;
+    private final long blockIndexOffset;
+
+    private byte[] scratch = new byte[256];
+    private long lastBlock = 0;
+
+    private SortedSetIndex(FileChannel channel, ByteBuffer[] segments, String sourcePath, long sourceSize,
+            long sourceModified, long entryCount, long blockCount, long blockIndexOffset) {
+        this.channel = channel;
+        this.segments = segments;
+        this.sourcePath = sourcePath;
+        this.sourceSize = sourceSize;
+        this.sourceModified = sourceModified;
+        this.entryCount = entryCount;
+        this.blockCount = blockCount;
+        this.blockIndexOffset = blockIndexOffset;
+    }
+
+    /**
+     * Returns the conventional index path of a set file.
+     *
+     * @param source The set file.
+     * @return The path of its index.
+     */
+    public static Path indexPathOf(Path source) {
+        return source.resolveSibling(source.getFileName() + SUFFIX);
+    }
+
+    // ------------------------------------------------------------------------
+    // Building
+    // ------------------------------------------------------------------------
+
+    /**
+     * Builds the index of a set file.
+     *
+     * Unless {@code presorted} is set, the file is loaded and sorted in memory with
+     * {@link ParallelLineLoader}. A presorted file (for example sorted with {@code LC_ALL=C sort})
+     * is streamed in constant memory and its order is verified.
+     *
+     * @param source The set file.
+     * @param index The index file to write.
+     * @param presorted {@code true} if the source is already sorted in byte order.
+     * @return The number of unique lines indexed.
+     * @throws IOException If the source cannot be read, is not sorted, or the index cannot be written.
+     */
+    public static long build(Path source, Path index, boolean presorted) throws IOException {
+        // The index is written under a temporary name so that an interrupted build never leaves
+        // a truncated index that looks fresh.
+        Path tmp = index.resolveSibling(index.getFileName() + ".tmp");
+        try {
+            long entries;
+            try (Writer writer = new Writer(tmp, source)) {
+                if (presorted) {
+                    try (InputStream in = Files.newInputStream(source)) {
+                        new ByteLineReader(in).forEachLine(writer::add);
+                    }
+                } else {
+                    byte[] buf = new byte[256];
+                    for (ByteLine line : new ParallelLineLoader().load(source)) {
+                        if (buf.length < line.length()) {
+                            buf = new byte[Math.max(line.length(), buf.length * 2)];
+                        }
+                        line.copyTo(buf, 0);
+                        writer.add(buf, 0, line.length());
+                    }
+                }
+                writer.finish();
+                entries = writer.entries;
+            }
+            Files.move(tmp, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return entries;
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Writes an index file from lines supplied in ascending byte order.
+     */
+    private static class Writer implements Closeable {
+
+        private final FileChannel channel;
+        private final DataOutputStream out;
+        private final Path source;
+        private final long sourceSize;
+        private final long sourceModified;
+        private long pos;
+
+        private long[] blockOffsets = new long[1024];
+        private int blockCount = 0;
+        private byte[] block = new byte[BLOCK_SIZE * 2];
+        private int blockLen = 0;
+        private int[] restarts = new int[BLOCK_SIZE / 2];
+        private int restartCount = 0;
+        private int blockEntries = 0;
+        private byte[] prev = new byte[256];
+        private int prevLen = -1;
+        private long entries = 0;
+
+        Writer(Path index, Path source) throws IOException {
+            this.source = source;
+            this.sourceSize = Files.size(source);
+            this.sourceModified = Files.getLastModifiedTime(source).toMillis();
+            this.channel = FileChannel.open(index, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            this.out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+
+            // The counts are not known yet; finish() rewrites the header in place.
+            writeHeader(out, 0, 0, 0);
+            pos = out.size();
+        }
+
+        private void writeHeader(DataOutputStream header, long entryCount, long blockCount, long blockIndexOffset)
+                throws IOException {
+            header.writeInt(MAGIC);
+            header.writeUTF(source.toAbsolutePath().toString());
+            header.writeLong(sourceSize);
+            header.writeLong(sourceModified);
+            header.writeLong(entryCount);
+            header.writeLong(blockCount);
+            header.writeLong(blockIndexOffset);
+        }
+
+        void add(byte[] buf, int off, int len) throws IOException {
+            if (prevLen >= 0) {
+                int cmp = Arrays.compareUnsigned(buf, off, off + len, prev, 0, prevLen);
+                if (cmp == 0) {
+                    return;
+                }
+                if (cmp < 0) {
+                    throw new IOException(source + ": input is not sorted in byte order (LC_ALL=C sort)");
+                }
+            }
+
+            if (blockLen > 0 && blockLen + 10 + len + 4 * (restartCount + 2) > BLOCK_SIZE) {
+                flushBlock();
+            }
+
+            int shared = 0;
+            if (blockEntries % RESTART_INTERVAL == 0) {
+                if (restartCount == restarts.length) {
+                    restarts = Arrays.copyOf(restarts, restartCount * 2);
+                }
+                restarts[restartCount++] = blockLen;
+            } else {
+                int max = Math.min(len, prevLen);
+                while (shared < max && buf[off + shared] == prev[shared]) {
+                    shared++;
+                }
+            }
+            ensureBlock(blockLen + 10 + len - shared);
+            blockLen = writeVarInt(block, blockLen, shared);
+            blockLen = writeVarInt(block, blockLen, len - shared);
+            System.arraycopy(buf, off + shared, block, blockLen, len - shared);
+            blockLen += len - shared;
+
+            if (prev.length < len) {
+                prev = new byte[Math.max(len, prev.length * 2)];
+            }
+            System.arraycopy(buf, off, prev, 0, len);
+            prevLen = len;
+            blockEntries++;
+            entries++;
+        }
+
+        private void ensureBlock(int size) {
+            if (block.length < size) {
+                block = Arrays.copyOf(block, Math.max(size, block.length * 2));
+            }
+        }
+
+        private void flushBlock() throws IOException {
+            if (blockLen == 0) {
+                return;
+            }
+            long size = 4L + blockLen + 4L * (restartCount + 1);
+            if (size > SEGMENT_SIZE) {
+                throw new IOException(source + ": line too long to be indexed");
+            }
+            // Blocks never cross a segment boundary, so each one can be read from a single mapping.
+            long room = SEGMENT_SIZE - (pos & (SEGMENT_SIZE - 1));
+            if (size > room) {
+                out.write(new byte[(int) room]);
+                pos += room;
+            }
+            if (blockCount == blockOffsets.length) {
+                blockOffsets = Arrays.copyOf(blockOffsets, blockCount * 2);
+            }
+            blockOffsets[blockCount++] = pos;
+            out.writeInt((int) size - 4);
+            out.write(block, 0, blockLen);
+            for (int i = 0; i < restartCount; i++) {
+                out.writeInt(restarts[i]);
+            }
+            out.writeInt(restartCount);
+            pos += size;
+            blockLen = 0;
+            restartCount = 0;
+            blockEntries = 0;
+        }
+
+        void finish() throws IOException {
+            flushBlock();
+
+            // Align the block index so that no offset crosses a segment boundary.
+            int pad = (int) ((8 - (pos & 7)) & 7);
+            out.write(new byte[pad]);
+            pos += pad;
+            long blockIndexOffset = pos;
+            for (int i = 0; i < blockCount; i++) {
+                out.writeLong(blockOffsets[i]);
+            }
+            out.flush();
+
+            channel.position(0);
+            DataOutputStream header = new DataOutputStream(Channels.newOutputStream(channel));
+            writeHeader(header, entries, blockCount, blockIndexOffset);
+            header.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        private static int writeVarInt(byte[] b, int p, int v) {
+            while ((v & ~0x7F) != 0) {
+                b[p++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            b[p++] = (byte) v;
+            return p;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Reading
+    // ------------------------------------------------------------------------
+
+    /**
+     * Opens an index file.
+     *
+     * @param index The index file.
+     * @return The opened index.
+     * @throws IOException If the file cannot be read or is not an index.
+     */
+    public static SortedSetIndex open(Path index) throws IOException {
+        FileChannel ch = FileChannel.open(index, StandardOpenOption.READ);
+        try {
+            DataInputStream in = new DataInputStream(Channels.newInputStream(ch));
+            if (in.readInt() != MAGIC) {
+                throw new IOException(index + " is not a set index file");
+            }
+            String sourcePath = in.readUTF();
+            long sourceSize = in.readLong();
+            long sourceModified = in.readLong();
+            long entryCount = in.readLong();
+            long blockCount = in.readLong();
+            long blockIndexOffset = in.readLong();
+
+            long size = ch.size();
+            int n = (int) ((size + SEGMENT_SIZE - 1) >>> SEGMENT_BITS);
+            ByteBuffer[] segments = new ByteBuffer[n];
+            for (int i = 0; i < n; i++) {
+                long start = (long) i << SEGMENT_BITS;
+                segments[i] = ch.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+            }
+            return new SortedSetIndex(ch, segments, sourcePath, sourceSize, sourceModified,
+                    entryCount, blockCount, blockIndexOffset);
+        } catch (IOException | RuntimeException e) {
+            ch.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens the conventional index of a set file if it exists and is up to date.
+     *
+     * @param source The set file.
+     * @return The index, or {@code null} if there is no fresh index.
+     * @throws IOException If an existing index cannot be read.
+     */
+    public static SortedSetIndex openFresh(Path source) throws IOException {
+        Path index = indexPathOf(source);
+        if (!Files.isRegularFile(index) || !Files.isRegularFile(source)) {
+            return null;
+        }
+        SortedSetIndex result = open(index);
+        if (!result.isFreshFor(source)) {
+            result.close();
+            return null;
+        }
+        return result;
+    }
+
+    /**
+     * Tests whether the index was built from the current content of the given file, judged by
+     * its path, size and modification time.
+     *
+     * @param source The file to check.
+     * @return {@code true} if the index is up to date.
+     * @throws IOException If the attributes of the file cannot be read.
+     */
+    public boolean isFreshFor(Path source) throws IOException {
+        return sourcePath.equals(source.toAbsolutePath().toString())
+                && sourceSize == Files.size(source)
+                && sourceModified == Files.getLastModifiedTime(source).toMillis();
+    }
+
+    /**
+     * Returns the number of unique lines in the index.
+     *
+     * @return The number of lines.
+     */
+    public long size() {
+        return entryCount;
+    }
+
+    /**
+     * Tests whether a line is contained in the indexed set.
+     *
+     * Lookups in ascending order are cheapest, because the search starts from the block of the
+     * previous lookup whenever possible.
+     *
+     * @param key The array containing the line.
+     * @param off The start of the line.
+     * @param len The length of the line.
+     * @return {@code true} if the line is contained.
+     */
+    public boolean contains(byte[] key, int off, int len) {
+        if (blockCount == 0) {
+            return false;
+        }
+
+        // Find the last block whose first line is not greater than the key, galloping forward
+        // from the block of the previous lookup.
+        long lo;
+        long hi;
+        if (compareFirst(lastBlock, key, off, len) <= 0) {
+            lo = lastBlock;
+            long step = 1;
+            while (lo + step < blockCount && compareFirst(lo + step, key, off, len) <= 0) {
+                lo += step;
+                step <<= 1;
+            }
+            hi = Math.min(blockCount - 1, lo + step - 1);
+        } else if (lastBlock == 0) {
+            return false;
+        } else {
+            lo = 0;
+            hi = lastBlock - 1;
+        }
+        while (lo < hi) {
+            long mid = (lo + hi + 1) >>> 1;
+            if (compareFirst(mid, key, off, len) <= 0) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        if (compareFirst(lo, key, off, len) > 0) {
+            return false;
+        }
+        lastBlock = lo;
+        return searchBlock(lo, key, off, len);
+    }
+
+    private long blockOffset(long block) {
+        long p = blockIndexOffset + block * Long.BYTES;
+        return segment(p).getLong(local(p));
+    }
+
+    private ByteBuffer segment(long p) {
+        return segments[(int) (p >>> SEGMENT_BITS)];
+    }
+
+    private static int local(long p) {
+        return (int) (p & (SEGMENT_SIZE - 1));
+    }
+
+    private int compareFirst(long block, byte[] key, int off, int len) {
+        long start = blockOffset(block);
+        return compareRestart(segment(start), local(start) + 4, key, off, len);
+    }
+
+    /**
+     * Compares a line stored whole, that is with a shared prefix length of 0, to the key.
+     */
+    private int compareRestart(ByteBuffer seg, int p, byte[] key, int off, int len) {
+        int[] cursor = { p + 1 };
+        int n = readVarInt(seg, cursor);
+        byte[] line = scratch(n);
+        seg.get(cursor[0], line, 0, n);
+        return Arrays.compareUnsigned(line, 0, n, key, off, off + len);
+    }
+
+    private boolean searchBlock(long block, byte[] key, int off, int len) {
+        long start = blockOffset(block);
+        ByteBuffer seg = segment(start);
+        int base = local(start) + 4;
+        int end = base + seg.getInt(base - 4);
+        int restartCount = seg.getInt(end - 4);
+        int restartBase = end - 4 - 4 * restartCount;
+
+        // Find the last restart point that is not greater than the key; the first one is.
+        int lo = 0;
+        int hi = restartCount - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (compareRestart(seg, base + seg.getInt(restartBase + 4 * mid), key, off, len) <= 0) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+
+        int[] cursor = { base + seg.getInt(restartBase + 4 * lo) };
+        int limit = lo + 1 < restartCount ? base + seg.getInt(restartBase + 4 * (lo + 1)) : restartBase;
+        byte[] current = scratch;
+        while (cursor[0] < limit) {
+            int shared = readVarInt(seg, cursor);
+            int suffix = readVarInt(seg, cursor);
+            if (current.length < shared + suffix) {
+                current = Arrays.copyOf(current, Math.max(shared + suffix, current.length * 2));
+                scratch = current;
+            }
+            seg.get(cursor[0], current, shared, suffix);
+            cursor[0] += suffix;
+
+            int cmp = Arrays.compareUnsigned(current, 0, shared + suffix, key, off, off + len);
+            if (cmp == 0) {
+                return true;
+            }
+            if (cmp > 0) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private byte[] scratch(int len) {
+        if (scratch.length < len) {
+            scratch = new byte[Math.max(len, scratch.length * 2)];
+        }
+        return scratch;
+    }
+
+    private static int readVarInt(ByteBuffer b, int[] cursor) {
+        int p = cursor[0];
+        int v = 0;
+        int shift = 0;
+        byte x;
+        do {
+            x = b.get(p++);
+            v |= (x & 0x7F) << shift;
+            shift += 7;
+        } while (x < 0);
+        cursor[0] = p;
+        return v;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
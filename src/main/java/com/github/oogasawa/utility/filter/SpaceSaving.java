@@ -0,0 +1,208 @@
+package com.github.oogasawa.utility.filter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The {@code SpaceSaving} class finds the most frequent values of a stream with a fixed number
+ * of counters (the Space-Saving algorithm of Metwally et al.).
+ *
+ * A value that is already counted has its counter incremented. A new value takes a free counter
+ * or, when all are taken, the counter with the smallest count, which it inherits as its
+ * possible overcount. Every value occurring more than {@code n / capacity} times is guaranteed
+ * to be counted, and no count is too low. Values are identified by their 64-bit hash, and only
+ * their first bytes are kept for display.
+ */
+public class SpaceSaving {
+
+    /** The number of bytes of a value kept for display. */
+    private static final int DISPLAY_BYTES = 64;
+
+    /**
+     * A counted value.
+     *
+     * @param value The value, possibly shortened.
+     * @param count The count; it may exceed the true count by at most {@code error}.
+     * @param error The largest possible overcount.
+     */
+    public record Entry(String value, long count, long error) {
+
+        /**
+         * Returns the number of occurrences the value certainly has.
+         *
+         * @return The count less the error.
+         */
+        public long guaranteed() {
+            return count - error;
+        }
+    }
+
+    private final long[] hashes;
+    private final byte[][] values;
+    private final int[] lengths;
+    private final long[] counts;
+    private final long[] errors;
+    private int size = 0;
+
+    /**
+     * Creates an empty summary.
+     *
+     * @param capacity The number of counters.
+     * @throws IllegalArgumentException If the capacity is not positive.
+     */
+    public SpaceSaving(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        hashes = new long[capacity];
+        values = new byte[capacity][DISPLAY_BYTES];
+        lengths = new int[capacity];
+        counts = new long[capacity];
+        errors = new long[capacity];
+    }
+
+    /**
+     * Counts an occurrence of a value.
+     *
+     * @param hash The 64-bit hash of the value.
+     * @param buf The array containing the value.
+     * @param off The start of the value.
+     * @param len The length of the value.
+     */
+    public void add(long hash, byte[] buf, int off, int len) {
+        int found = indexOf(hash);
+        if (found >= 0) {
+            counts[found]++;
+            return;
+        }
+        int slot;
+        long inherited = 0;
+        if (size < counts.length) {
+            slot = size++;
+        } else {
+            slot = 0;
+            for (int i = 1; i < size; i++) {
+                if (counts[i] < counts[slot]) {
+                    slot = i;
+                }
+            }
+            inherited = counts[slot];
+        }
+        hashes[slot] = hash;
+        lengths[slot] = Math.min(len, DISPLAY_BYTES);
+        System.arraycopy(buf, off, values[slot], 0, lengths[slot]);
+        counts[slot] = inherited + 1;
+        errors[slot] = inherited;
+    }
+
+    /**
+     * Adds the counts of another summary.
+     *
+     * Values missing from one full summary may have occurred up to its smallest count there, so
+     * that count is added to their error; the summary keeps the largest combined counts.
+     *
+     * @param other The summary.
+     */
+    public void merge(SpaceSaving other) {
+        long[] mergedHashes = new long[size + other.size];
+        byte[][] mergedValues = new byte[mergedHashes.length][];
+        int[] mergedLengths = new int[mergedHashes.length];
+        long[] mergedCounts = new long[mergedHashes.length];
+        long[] mergedErrors = new long[mergedHashes.length];
+        long thisMin = size == counts.length ? minCount() : 0;
+        long otherMin = other.size == other.counts.length ? other.minCount() : 0;
+
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            int j = other.indexOf(hashes[i]);
+            mergedHashes[n] = hashes[i];
+            mergedValues[n] = values[i].clone();
+            mergedLengths[n] = lengths[i];
+            mergedCounts[n] = counts[i] + (j >= 0 ? other.counts[j] : otherMin);
+            mergedErrors[n++] = errors[i] + (j >= 0 ? other.errors[j] : otherMin);
+        }
+        for (int j = 0; j < other.size; j++) {
+            if (indexOf(other.hashes[j]) < 0) {
+                mergedHashes[n] = other.hashes[j];
+                mergedValues[n] = other.values[j].clone();
+                mergedLengths[n] = other.lengths[j];
+                mergedCounts[n] = other.counts[j] + thisMin;
+                mergedErrors[n++] = other.errors[j] + thisMin;
+            }
+        }
+
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(mergedCounts[b], mergedCounts[a]));
+        size = Math.min(n, counts.length);
+        for (int i = 0; i < size; i++) {
+            hashes[i] = mergedHashes[order[i]];
+            values[i] = mergedValues[order[i]];
+            lengths[i] = mergedLengths[order[i]];
+            counts[i] = mergedCounts[order[i]];
+            errors[i] = mergedErrors[order[i]];
+        }
+    }
+
+    /**
+     * Returns the most frequent values.
+     *
+     * @param n The number of values wanted.
+     * @return Up to {@code n} values, the most frequent first.
+     */
+    public List<Entry> top(int n) {
+        List<Entry> entries = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            entries.add(new Entry(new String(values[i], 0, lengths[i], StandardCharsets.UTF_8), counts[i], errors[i]));
+        }
+        entries.sort(Comparator.comparingLong(Entry::count).reversed());
+        return entries.subList(0, Math.min(n, entries.size()));
+    }
+
+    /**
+     * Returns the most frequent values whose ranks are certain.
+     *
+     * The values are taken, the most frequent first, as long as each certainly occurs at least
+     * as often as the next value, or as a value that is not counted, can at most; a value that
+     * has only inherited its lead over the others ends the list.
+     *
+     * @param n The number of values wanted.
+     * @return Up to {@code n} values, the most frequent first.
+     */
+    public List<Entry> certainTop(int n) {
+        List<Entry> entries = top(size);
+        // A value that is not counted occurs at most as often as the smallest count.
+        long uncounted = size == counts.length ? minCount() : 0;
+        List<Entry> certain = new ArrayList<>();
+        for (int i = 0; i < Math.min(n, entries.size()); i++) {
+            long next = i + 1 < entries.size() ? entries.get(i + 1).count() : uncounted;
+            if (entries.get(i).guaranteed() < next) {
+                break;
+            }
+            certain.add(entries.get(i));
+        }
+        return certain;
+    }
+
+    private int indexOf(long hash) {
+        for (int i = 0; i < size; i++) {
+            if (hashes[i] == hash) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private long minCount() {
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            min = Math.min(min, counts[i]);
+        }
+        return min;
+    }
+}
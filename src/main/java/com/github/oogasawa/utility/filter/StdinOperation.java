@@ -1,113 +1,486 @@
 package com.github.oogasawa.utility.filter;
 
-import java.util.Scanner;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 import java.util.ArrayList;
-import java.util.Arrays;
-
 
 
+/**
+ * The {@code StdinOperation} class implements the line filters that read standard input and
+ * write standard output.
+ *
+ * All operations share a byte-oriented pipeline: input is read in large blocks by a
+ * {@link ByteLineReader}, lines are handled as byte ranges as far as possible, and output is
+ * collected by a {@link LineWriter} and flushed once at the end. Every operation is also
+ * available for an explicit input and output stream.
+ *
+ * The commands also take files. A regular, uncompressed file is mapped into memory and its
+ * chunks are processed on several threads by a {@link ParallelFileProcessor}, with the output
+ * in file order; a compressed file or a pipe is read as a stream.
+ */
 public class StdinOperation {
 
+    /**
+     * An operation on the lines of an input.
+     */
+    private interface LineOperation {
+        void run(ByteLineReader in, LineWriter out) throws IOException;
+    }
+
 
-    public static void filterLines(String pattern) {
+    private static void runOnStdio(LineOperation operation) {
+        LineWriter out = LineWriter.stdout();
+        try {
+            operation.run(ByteLineReader.stdin(), out);
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+        }
+    }
+
+
+    private static void run(LineOperation operation, InputStream in, OutputStream out) throws IOException {
+        LineWriter writer = new LineWriter(out);
+        operation.run(new ByteLineReader(in), writer);
+        writer.flush();
+    }
 
-        Scanner stdin = new Scanner(System.in);
 
-        while (stdin.hasNextLine()) {
-            String line = stdin.nextLine();
-            if (line.contains(pattern)) {
-                System.out.println(line);
+    /**
+     * Runs an operation over files one after another, with the functions of the lines on the
+     * files that can be mapped and with the stream operation on the others.
+     */
+    private static void run(LineOperation stream, Supplier<ParallelFileProcessor.LineFunction> functions,
+            List<Path> files, int threads, OutputStream out) throws IOException {
+        LineWriter writer = new LineWriter(out);
+        ParallelFileProcessor processor = new ParallelFileProcessor(threads);
+        for (Path file : files) {
+            if (ParallelFileProcessor.canProcess(file)) {
+                processor.process(file, functions, writer);
+            } else {
+                try (InputStream in = CompressedInput.open(file, threads)) {
+                    stream.run(new ByteLineReader(in), writer);
+                }
             }
         }
+        writer.flush();
+    }
 
-        stdin.close();
+
+    /**
+     * Runs a function of the lines on a single thread.
+     */
+    private static LineOperation sequential(Supplier<ParallelFileProcessor.LineFunction> functions) {
+        return (in, out) -> {
+            ParallelFileProcessor.LineFunction function = functions.get();
+            in.forEachLine((buf, off, len) -> function.apply(buf, off, len, out));
+        };
     }
 
 
-    public static void filterLines(String pattern, int column) {
+    /**
+     * Turns the predicates of a filter into functions that copy the accepted lines.
+     */
+    private static Supplier<ParallelFileProcessor.LineFunction> keeping(
+            Supplier<ParallelLineFilter.LinePredicate> predicates) {
+        return () -> {
+            ParallelLineFilter.LinePredicate predicate = predicates.get();
+            return (buf, off, len, out) -> {
+                if (predicate.test(buf, off, len)) {
+                    out.writeLine(buf, off, len);
+                }
+            };
+        };
+    }
 
-        Scanner stdin = new Scanner(System.in);
 
-        while (stdin.hasNextLine()) {
-            String line = stdin.nextLine();
-            String[] columns = line.split("\t");
-            if (columns.length > column && columns[column].contains(pattern)) {
-                System.out.println(line);
+    public static void filterLines(String pattern) {
+        runOnStdio(contains(pattern));
+    }
+
+
+    /**
+     * Copies the lines containing a string from an input to an output.
+     *
+     * @param pattern The string to search for.
+     * @param in The input.
+     * @param out The output.
+     * @throws IOException If the input cannot be read or the output cannot be written.
+     */
+    public static void filterLines(String pattern, InputStream in, OutputStream out) throws IOException {
+        run(contains(pattern), in, out);
+    }
+
+
+    private static LineOperation contains(String pattern) {
+        byte[] p = pattern.getBytes(StandardCharsets.UTF_8);
+        return (in, out) -> in.forEachLine((buf, off, len) -> {
+            if (indexOf(buf, off, off + len, p) >= 0) {
+                out.writeLine(buf, off, len);
             }
-        }
+        });
+    }
+
 
-        stdin.close();
+    public static void filterLines(String pattern, int column) {
+        runOnStdio(contains(pattern, column));
     }
-    
-    
-    public static void regexFilterLines(String pattern) {
 
-        Pattern pFilter = Pattern.compile(pattern);
-        Scanner stdin = new Scanner(System.in);
-        
-        while (stdin.hasNextLine()) {
-            String line = stdin.nextLine();
-            if (pFilter.matcher(line).find()) {
-                System.out.println(line);
+
+    /**
+     * Copies the lines whose tab-separated column contains a string from an input to an output.
+     *
+     * @param pattern The string to search for.
+     * @param column The column to search, counted from 0.
+     * @param in The input.
+     * @param out The output.
+     * @throws IOException If the input cannot be read or the output cannot be written.
+     */
+    public static void filterLines(String pattern, int column, InputStream in, OutputStream out)
+            throws IOException {
+        run(contains(pattern, column), in, out);
+    }
+
+
+    private static LineOperation contains(String pattern, int column) {
+        byte[] p = pattern.getBytes(StandardCharsets.UTF_8);
+        TsvTokenizer tokenizer = new TsvTokenizer(column);
+        return (in, out) -> in.forEachLine((buf, off, len) -> {
+            if (tokenizer.tokenize(buf, off, len) > column
+                    && indexOf(buf, tokenizer.start(column), tokenizer.end(column), p) >= 0) {
+                out.writeLine(buf, off, len);
             }
-        }
+        });
+    }
+
+
+    public static void regexFilterLines(String pattern) {
+        runOnStdio(find(pattern, -1, 1, true, ByteRegex.Engine.JAVA));
+    }
+
 
-        stdin.close();
+    /**
+     * Copies the lines matching a regular expression from an input to an output.
+     *
+     * @param pattern The regular expression, found anywhere in the line.
+     * @param in The input.
+     * @param out The output.
+     * @throws IOException If the input cannot be read or the output cannot be written.
+     */
+    public static void regexFilterLines(String pattern, InputStream in, OutputStream out) throws IOException {
+        run(find(pattern, -1, 1, true, ByteRegex.Engine.JAVA), in, out);
     }
 
 
     public static void regexFilterLines(String pattern, int column) {
+        runOnStdio(find(pattern, column, 1, true, ByteRegex.Engine.JAVA));
+    }
+
+
+    /**
+     * Copies the lines whose tab-separated column matches a regular expression from an input to
+     * an output.
+     *
+     * @param pattern The regular expression, found anywhere in the column.
+     * @param column The column to search, counted from 0.
+     * @param in The input.
+     * @param out The output.
+     * @throws IOException If the input cannot be read or the output cannot be written.
+     */
+    public static void regexFilterLines(String pattern, int column, InputStream in, OutputStream out)
+            throws IOException {
+        run(find(pattern, column, 1, true, ByteRegex.Engine.JAVA), in, out);
+    }
+
+
+    /**
+     * Copies the lines matching a regular expression from standard input to standard output,
+     * testing batches of lines on several threads.
+     *
+     * @param pattern The regular expression, found anywhere in the line or column.
+     * @param column The column to search, counted from 0, or -1 for the whole line.
+     * @param threads The number of worker threads.
+     * @param ordered {@code true} to keep the input order, {@code false} to write batches of
+     *                lines as soon as they are done.
+     */
+    public static void regexFilterLines(String pattern, int column, int threads, boolean ordered) {
+        runOnStdio(find(pattern, column, threads, ordered, ByteRegex.Engine.JAVA));
+    }
+
 
+    /**
+     * Copies the lines matching a regular expression from an input to an output, testing
+     * batches of lines on several threads.
+     *
+     * @param pattern The regular expression, found anywhere in the line or column.
+     * @param column The column to search, counted from 0, or -1 for the whole line.
+     * @param threads The number of worker threads.
+     * @param ordered {@code true} to keep the input order.
+     * @param in The input.
+     * @param out The output.
+     * @throws IOException If the input cannot be read or the output cannot be written.
+     */
+    public static void regexFilterLines(String pattern, int column, int threads, boolean ordered,
+            InputStream in, OutputStream out) throws IOException {
+        run(find(pattern, column, threads, ordered, ByteRegex.Engine.JAVA), in, out);
+    }
+
+
+    /**
+     * Copies the lines matching a regular expression from standard input to standard output
+     * with the given regex engine.
+     *
+     * @param pattern The regular expression, found anywhere in the line or column.
+     * @param column The column to search, counted from 0, or -1 for the whole line.
+     * @param threads The number of worker threads.
+     * @param ordered {@code true} to keep the input order.
+     * @param engine The engine; {@code DFA} guarantees time linear in the input.
+     * @throws java.util.regex.PatternSyntaxException If the expression is invalid or not
+     *         supported by the engine.
+     */
+    public static void regexFilterLines(String pattern, int column, int threads, boolean ordered,
+            ByteRegex.Engine engine) {
+        runOnStdio(find(pattern, column, threads, ordered, engine));
+    }
+
+
+    /**
+     * Copies the lines matching a regular expression from an input to an output with the given
+     * regex engine.
+     *
+     * @param pattern The regular expression, found anywhere in the line or column.
+     * @param column The column to search, counted from 0, or -1 for the whole line.
+     * @param threads The number of worker threads.
+     * @param ordered {@code true} to keep the input order.
+     * @param engine The engine; {@code DFA} guarantees time linear in the input.
+     * @param in The input.
+     * @param out The output.
+     * @throws IOException If the input cannot be read or the output cannot be written.
+     * @throws java.util.regex.PatternSyntaxException If the expression is invalid or not
+     *         supported by the engine.
+     */
+    public static void regexFilterLines(String pattern, int column, int threads, boolean ordered,
+            ByteRegex.Engine engine, InputStream in, OutputStream out) throws IOException {
+        run(find(pattern, column, threads, ordered, engine), in, out);
+    }
+
+
+    /**
+     * Copies the lines of files matching a regular expression to an output, processing the
+     * chunks of every file on several threads. The lines are written in file order.
+     *
+     * @param pattern The regular expression, found anywhere in the line or column.
+     * @param column The column to search, counted from 0, or -1 for the whole line.
+     * @param threads The number of worker threads.
+     * @param engine The engine; {@code DFA} guarantees time linear in the input.
+     * @param files The files, read one after another.
+     * @param out The output.
+     * @throws IOException If a file cannot be read or the output cannot be written.
+     * @throws java.util.regex.PatternSyntaxException If the expression is invalid or not
+     *         supported by the engine.
+     */
+    public static void regexFilterLines(String pattern, int column, int threads, ByteRegex.Engine engine,
+            List<Path> files, OutputStream out) throws IOException {
+        run(find(pattern, column, threads, true, engine), keeping(regexPredicates(pattern, column, engine)),
+                files, threads, out);
+    }
+
+
+    private static LineOperation find(String pattern, int column, int threads, boolean ordered,
+            ByteRegex.Engine engine) {
+        Supplier<ParallelLineFilter.LinePredicate> predicates = regexPredicates(pattern, column, engine);
+        ParallelLineFilter filter = new ParallelLineFilter(threads, ordered);
+        return (in, out) -> filter.filter(in, out, predicates);
+    }
+
+
+    /**
+     * Compiles a regular expression and returns a factory of predicates, one per thread, that
+     * test a line or one of its columns.
+     */
+    static Supplier<ParallelLineFilter.LinePredicate> regexPredicates(String pattern, int column,
+            ByteRegex.Engine engine) {
+        ByteRegex dfa = engine == ByteRegex.Engine.DFA ? ByteRegex.compile(pattern) : null;
         Pattern pFilter = Pattern.compile(pattern);
-        Scanner stdin = new Scanner(System.in);
-        
-        while (stdin.hasNextLine()) {
-            String line = stdin.nextLine();
-            String[] columns = line.split("\t");
-            if (columns.length > column && pFilter.matcher(columns[column]).find()) {
-                System.out.println(line);
-            }
+        RegexPrefilter prefilter = RegexPrefilter.of(pFilter);
+        if (dfa != null) {
+            return () -> inColumn(column, dfaPredicate(dfa, prefilter));
         }
-
-        stdin.close();
+        return () -> inColumn(column, regexPredicate(pFilter, prefilter));
     }
 
-    
-    
-    public static void getColumns(String columnsStr) {
 
-        ArrayList<Integer> chosenColumns = parseColumns(columnsStr);
-        Scanner stdin = new Scanner(System.in);
+    /**
+     * Creates a predicate for one thread, with its own {@code Matcher}. Lines without the
+     * literals the expression requires are rejected before they are decoded.
+     */
+    private static ParallelLineFilter.LinePredicate regexPredicate(Pattern pFilter, RegexPrefilter prefilter) {
+        Matcher matcher = pFilter.matcher("");
+        if (prefilter.isEmpty()) {
+            return (buf, off, len) -> matcher.reset(new String(buf, off, len, StandardCharsets.UTF_8)).find();
+        }
+        return (buf, off, len) -> prefilter.mayMatch(buf, off, len)
+                && matcher.reset(new String(buf, off, len, StandardCharsets.UTF_8)).find();
+    }
 
-        while (stdin.hasNextLine()) {
-            String line = stdin.nextLine();
 
-            ArrayList<String> origColumns = new ArrayList<>(Arrays.asList(line.split("\t")));
-            ArrayList<String> resultColumns = new ArrayList<>();
+    /**
+     * Creates a predicate for one thread, with its own DFA cache.
+     */
+    private static ParallelLineFilter.LinePredicate dfaPredicate(ByteRegex dfa, RegexPrefilter prefilter) {
+        ByteRegex.Matcher matcher = dfa.matcher();
+        if (prefilter.isEmpty()) {
+            return matcher::find;
+        }
+        return (buf, off, len) -> prefilter.mayMatch(buf, off, len) && matcher.find(buf, off, len);
+    }
 
-            for (int i = 0; i < chosenColumns.size(); i++) {
-                int index = chosenColumns.get(i);
-                if (index < origColumns.size()) {
-                    resultColumns.add(origColumns.get(index));
-                }
-            }
 
-            System.out.println(joinColumns(resultColumns));
+    /**
+     * Applies a predicate to a tab-separated column of the line, with a tokenizer of its own.
+     * Lines without the column are rejected; a negative column leaves the predicate as it is.
+     */
+    static ParallelLineFilter.LinePredicate inColumn(int column, ParallelLineFilter.LinePredicate predicate) {
+        if (column < 0) {
+            return predicate;
         }
+        TsvTokenizer tokenizer = new TsvTokenizer(column);
+        return (buf, off, len) -> tokenizer.tokenize(buf, off, len) > column
+                && predicate.test(buf, tokenizer.start(column), tokenizer.length(column));
+    }
+
+
+    /**
+     * Copies the lines containing any of a set of strings from standard input to standard output.
+     *
+     * @param patterns The automaton of the strings to search for.
+     * @param column The column to search, counted from 0, or -1 for the whole line.
+     * @param threads The number of worker threads.
+     * @param ordered {@code true} to keep the input order.
+     */
+    public static void filterLines(AhoCorasick patterns, int column, int threads, boolean ordered) {
+        runOnStdio(containsAny(patterns, column, threads, ordered));
+    }
+
+
+    /**
+     * Copies the lines containing any of a set of strings from an input to an output. Every line
+     * is scanned once, whatever the number of strings.
+     *
+     * @param patterns The automaton of the strings to search for.
+     * @param column The column to search, counted from 0, or -1 for the whole line.
+     * @param threads The number of worker threads.
+     * @param ordered {@code true} to keep the input order.
+     * @param in The input.
+     * @param out The output.
+     * @throws IOException If the input cannot be read or the output cannot be written.
+     */
+    public static void filterLines(AhoCorasick patterns, int column, int threads, boolean ordered,
+            InputStream in, OutputStream out) throws IOException {
+        run(containsAny(patterns, column, threads, ordered), in, out);
+    }
 
-        stdin.close();
+
+    /**
+     * Copies the lines of files containing any of a set of strings to an output, processing the
+     * chunks of every file on several threads. The lines are written in file order.
+     *
+     * @param patterns The automaton of the strings to search for.
+     * @param column The column to search, counted from 0, or -1 for the whole line.
+     * @param threads The number of worker threads.
+     * @param files The files, read one after another.
+     * @param out The output.
+     * @throws IOException If a file cannot be read or the output cannot be written.
+     */
+    public static void filterLines(AhoCorasick patterns, int column, int threads, List<Path> files,
+            OutputStream out) throws IOException {
+        run(containsAny(patterns, column, threads, true), keeping(() -> inColumn(column, patterns::find)),
+                files, threads, out);
+    }
+
+
+    private static LineOperation containsAny(AhoCorasick patterns, int column, int threads, boolean ordered) {
+        ParallelLineFilter filter = new ParallelLineFilter(threads, ordered);
+        return (in, out) -> filter.filter(in, out, () -> inColumn(column, patterns::find));
+    }
+
+
+    public static void getColumns(String columnsStr) {
+        runOnStdio(sequential(columns(columnsStr)));
     }
 
-    
-    
-    private static String joinColumns(ArrayList<String> columns) {
-        return columns.stream().collect(Collectors.joining("\t"));
+
+    /**
+     * Copies selected tab-separated columns of every line from an input to an output.
+     *
+     * @param columnsStr The columns, for example {@code 3,0,5-10}.
+     * @param in The input.
+     * @param out The output.
+     * @throws IOException If the input cannot be read or the output cannot be written.
+     */
+    public static void getColumns(String columnsStr, InputStream in, OutputStream out) throws IOException {
+        run(sequential(columns(columnsStr)), in, out);
+    }
+
+
+    /**
+     * Copies selected tab-separated columns of every line of files to an output, processing the
+     * chunks of every file on several threads. The lines are written in file order.
+     *
+     * @param columnsStr The columns, for example {@code 3,0,5-10}.
+     * @param threads The number of worker threads.
+     * @param files The files, read one after another.
+     * @param out The output.
+     * @throws IOException If a file cannot be read or the output cannot be written.
+     */
+    public static void getColumns(String columnsStr, int threads, List<Path> files, OutputStream out)
+            throws IOException {
+        Supplier<ParallelFileProcessor.LineFunction> functions = columns(columnsStr);
+        run(sequential(functions), functions, files, threads, out);
     }
-    
 
-    private static ArrayList<Integer> parseColumns(String columnsStr) {
+
+    private static Supplier<ParallelFileProcessor.LineFunction> columns(String columnsStr) {
+        ArrayList<Integer> chosenColumns = parseColumns(columnsStr);
+        int[] columns = chosenColumns.stream().mapToInt(Integer::intValue).toArray();
+
+        // The selected fields are copied from the input buffer straight to the output buffer.
+        return () -> {
+            TsvTokenizer tokenizer = TsvTokenizer.forColumns(chosenColumns);
+            return (buf, off, len, out) -> {
+                int fields = tokenizer.tokenize(buf, off, len);
+                boolean first = true;
+                for (int column : columns) {
+                    if (column < fields) {
+                        if (!first) {
+                            out.write('\t');
+                        }
+                        first = false;
+                        out.write(buf, tokenizer.start(column), tokenizer.length(column));
+                    }
+                }
+                out.newLine();
+            };
+        };
+    }
+
+
+    /**
+     * Parses a column list such as {@code 3,0,5-10} into zero-based column numbers, in the
+     * given order.
+     *
+     * @param columnsStr The comma-separated columns and inclusive ranges.
+     * @return The column numbers.
+     * @throws NumberFormatException If a column is not a number.
+     */
+    public static ArrayList<Integer> parseColumns(String columnsStr) {
         ArrayList<Integer> result = new ArrayList<>();
         String[] columns = columnsStr.split(",");
         for (String column : columns) {
@@ -124,26 +497,137 @@ public class StdinOperation {
         }
         return result;
     }
-    
 
-    
+
+
     public static void splitLines(String delimiter) {
+        runOnStdio(sequential(split(delimiter)));
+    }
+
+
+    /**
+     * Splits every line at a regular expression and writes the fields separated by tabs.
+     *
+     * @param delimiter The regular expression separating the fields.
+     * @param in The input.
+     * @param out The output.
+     * @throws IOException If the input cannot be read or the output cannot be written.
+     */
+    public static void splitLines(String delimiter, InputStream in, OutputStream out) throws IOException {
+        run(sequential(split(delimiter)), in, out);
+    }
 
-        Scanner stdin = new Scanner(System.in);
 
-        while (stdin.hasNextLine()) {
-            String line = stdin.nextLine();
+    /**
+     * Splits every line of files at a regular expression and writes the fields separated by
+     * tabs, processing the chunks of every file on several threads. The lines are written in
+     * file order.
+     *
+     * @param delimiter The regular expression separating the fields.
+     * @param threads The number of worker threads.
+     * @param files The files, read one after another.
+     * @param out The output.
+     * @throws IOException If a file cannot be read or the output cannot be written.
+     */
+    public static void splitLines(String delimiter, int threads, List<Path> files, OutputStream out)
+            throws IOException {
+        Supplier<ParallelFileProcessor.LineFunction> functions = split(delimiter);
+        run(sequential(functions), functions, files, threads, out);
+    }
+
+
+    private static Supplier<ParallelFileProcessor.LineFunction> split(String delimiter) {
+        // Compiled here so that an invalid expression is reported before any thread starts.
+        FieldSplitter.of(delimiter);
+        return () -> {
+            // The fields are copied from the input buffer to the output buffer with tabs.
+            FieldSplitter splitter = FieldSplitter.of(delimiter);
+            TabJoiner joiner = new TabJoiner();
+            return (buf, off, len, out) -> {
+                joiner.reset(out);
+                splitter.split(buf, off, len, joiner);
+                out.newLine();
+            };
+        };
+    }
 
-            // Split the line and join with tabs
-            String tabSeparatedFields = Arrays.stream(line.split(delimiter))
-                                              .collect(Collectors.joining("\t"));
 
-            // Print the tab-separated fields
-            System.out.println(tabSeparatedFields);
+    /**
+     * Writes fields separated by tabs, dropping trailing empty fields as {@code String.split}
+     * does: empty fields are held back until a non-empty one follows.
+     */
+    private static final class TabJoiner implements FieldSplitter.FieldConsumer {
+
+        private LineWriter out;
+        private int written;
+        private int pending;
+
+        void reset(LineWriter out) {
+            this.out = out;
+            written = 0;
+            pending = 0;
         }
 
-        stdin.close();
+        @Override
+        public boolean accept(byte[] buf, int from, int to) throws IOException {
+            if (from == to) {
+                pending++;
+                return true;
+            }
+            for (; pending > 0; pending--) {
+                if (written++ > 0) {
+                    out.write('\t');
+                }
+            }
+            if (written++ > 0) {
+                out.write('\t');
+            }
+            out.write(buf, from, to - from);
+            return true;
+        }
     }
-}
 
-  
+
+    /**
+     * Converts CSV (RFC 4180) from an input to tab-separated lines on an output. Quoted fields
+     * may contain separators, doubled quotes and line breaks; see {@link CsvReader} for how tabs,
+     * line breaks and backslashes in fields are escaped.
+     *
+     * @param delimiter The field separator, a single character such as {@code ,} or {@code ;}.
+     * @param in The input.
+     * @param out The output.
+     * @throws IOException If the input cannot be read, is not valid CSV, or the output cannot
+     *         be written.
+     * @throws IllegalArgumentException If the separator is not a single byte.
+     */
+    public static void splitCsv(String delimiter, InputStream in, OutputStream out) throws IOException {
+        LineWriter writer = new LineWriter(out);
+        new CsvReader(in, CsvReader.separator(delimiter)).forEachRecord(writer::writeLine);
+        writer.flush();
+    }
+
+
+    /**
+     * Returns the position of the first occurrence of a byte string in a range, or -1.
+     */
+    private static int indexOf(byte[] buf, int from, int to, byte[] pattern) {
+        if (pattern.length == 0) {
+            return from;
+        }
+        byte first = pattern[0];
+        int last = to - pattern.length;
+        for (int i = from; i <= last; i++) {
+            if (buf[i] != first) {
+                continue;
+            }
+            int j = 1;
+            while (j < pattern.length && buf[i + j] == pattern[j]) {
+                j++;
+            }
+            if (j == pattern.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
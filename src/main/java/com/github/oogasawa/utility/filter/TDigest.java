@@ -0,0 +1,203 @@
+package com.github.oogasawa.utility.filter;
+
+import java.util.Arrays;
+
+/**
+ * The {@code TDigest} class estimates quantiles of a stream of numbers in a fixed amount of
+ * memory.
+ *
+ * The numbers are summarized by centroids, each a mean and a weight, kept sorted by mean. New
+ * numbers are buffered and, when the buffer is full, merged with the centroids in one sorted
+ * pass, in which neighbouring centroids are combined as long as the combined weight stays below
+ * {@code 4 n q (1 - q) / compression} at their quantile {@code q}. Centroids near the extremes
+ * therefore stay small and the tails are estimated accurately. About {@code compression}
+ * centroids are kept; digests are merged by adding the centroids of one to the other.
+ */
+public class TDigest {
+
+    private final double compression;
+    private double[] means;
+    private double[] weights;
+    private int centroids = 0;
+
+    private final double[] buffer;
+    private final double[] ones;
+    private int buffered = 0;
+
+    private double total = 0;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    /**
+     * Creates an empty digest.
+     *
+     * @param compression The accuracy parameter; 100 keeps quantile errors well below 1%.
+     * @throws IllegalArgumentException If the compression is below 10.
+     */
+    public TDigest(double compression) {
+        if (compression < 10) {
+            throw new IllegalArgumentException("Compression must be at least 10: " + compression);
+        }
+        this.compression = compression;
+        this.means = new double[0];
+        this.weights = new double[0];
+        this.buffer = new double[(int) Math.ceil(compression * 5)];
+        this.ones = new double[buffer.length];
+        Arrays.fill(ones, 1.0);
+    }
+
+    /**
+     * Adds a number.
+     *
+     * @param x The number; NaN is ignored.
+     */
+    public void add(double x) {
+        if (Double.isNaN(x)) {
+            return;
+        }
+        if (buffered == buffer.length) {
+            compress();
+        }
+        buffer[buffered++] = x;
+        total++;
+        min = Math.min(min, x);
+        max = Math.max(max, x);
+    }
+
+    /**
+     * Adds the numbers summarized by another digest.
+     *
+     * @param other The digest.
+     */
+    public void merge(TDigest other) {
+        other.compress();
+        compress();
+        total += other.total;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        combine(other.means, other.weights, other.centroids);
+    }
+
+    /**
+     * Returns the number of numbers added.
+     *
+     * @return The count.
+     */
+    public long count() {
+        return (long) total;
+    }
+
+    /**
+     * Returns the smallest number added.
+     *
+     * @return The minimum, or NaN if the digest is empty.
+     */
+    public double min() {
+        return total == 0 ? Double.NaN : min;
+    }
+
+    /**
+     * Returns the largest number added.
+     *
+     * @return The maximum, or NaN if the digest is empty.
+     */
+    public double max() {
+        return total == 0 ? Double.NaN : max;
+    }
+
+    /**
+     * Estimates a quantile.
+     *
+     * @param q The quantile, from 0 to 1.
+     * @return The estimate, or NaN if the digest is empty.
+     */
+    public double quantile(double q) {
+        compress();
+        if (centroids == 0) {
+            return Double.NaN;
+        }
+        if (q <= 0) {
+            return min;
+        }
+        if (q >= 1) {
+            return max;
+        }
+        // Each centroid is taken to sit at the middle of its weight; interpolate between the
+        // middles, and between the extremes and the outer centroids.
+        double rank = q * total;
+        double cumulative = 0;
+        double previousMean = min;
+        double previousRank = 0;
+        for (int i = 0; i < centroids; i++) {
+            double middle = cumulative + weights[i] / 2;
+            if (rank < middle) {
+                double t = (rank - previousRank) / (middle - previousRank);
+                return previousMean + t * (means[i] - previousMean);
+            }
+            previousMean = means[i];
+            previousRank = middle;
+            cumulative += weights[i];
+        }
+        double t = (rank - previousRank) / (total - previousRank);
+        return previousMean + t * (max - previousMean);
+    }
+
+    /**
+     * Merges the buffered numbers into the centroids.
+     */
+    private void compress() {
+        if (buffered == 0) {
+            return;
+        }
+        Arrays.sort(buffer, 0, buffered);
+        int n = buffered;
+        buffered = 0;
+        combine(buffer, ones, n);
+    }
+
+    /**
+     * Merges sorted centroids into the centroids, combining neighbours within the size limit.
+     */
+    private void combine(double[] otherMeans, double[] otherWeights, int n) {
+        if (centroids + n == 0) {
+            return;
+        }
+        double[] newMeans = new double[Math.max(16, centroids + n)];
+        double[] newWeights = new double[newMeans.length];
+        int count = 0;
+        double mean = 0;
+        double weight = 0;
+        double before = 0;
+        int i = 0;
+        int j = 0;
+        while (i < centroids || j < n) {
+            double m;
+            double w;
+            if (j == n || (i < centroids && means[i] <= otherMeans[j])) {
+                m = means[i];
+                w = weights[i++];
+            } else {
+                m = otherMeans[j];
+                w = otherWeights[j++];
+            }
+            if (weight > 0) {
+                double q = (before + (weight + w) / 2) / total;
+                if (weight + w <= Math.max(1, 4 * total * q * (1 - q) / compression)) {
+                    weight += w;
+                    mean += (m - mean) * w / weight;
+                    continue;
+                }
+                newMeans[count] = mean;
+                newWeights[count++] = weight;
+                before += weight;
+            }
+            mean = m;
+            weight = w;
+        }
+        newMeans[count] = mean;
+        newWeights[count++] = weight;
+        means = newMeans;
+        weights = newWeights;
+        centroids = count;
+    }
+}
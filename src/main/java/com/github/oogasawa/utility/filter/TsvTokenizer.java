@@ -0,0 +1,149 @@
+package com.github.oogasawa.utility.filter;
+
+import java.util.List;
+
+/**
+ * The {@code TsvTokenizer} class locates the tab-separated fields of a line without copying or
+ * allocating anything.
+ *
+ * The start and end offsets of the fields are recorded in reusable arrays, and tabs are found
+ * 64 bytes at a time by a {@link ByteScanner}. Scanning stops at the end of the highest column
+ * the tokenizer was created for, so the rest of a long line is never looked at. Fields follow
+ * the rules of {@code line.split("\t")}: trailing empty fields do not exist, and an empty line
+ * has a single empty field. An instance is not thread-safe.
+ */
+public final class TsvTokenizer {
+
+    private final ByteScanner scanner = ByteScanner.get();
+    private final int maxColumn;
+    private final int[] starts;
+    private final int[] ends;
+    private int count = 0;
+
+    /**
+     * Creates a tokenizer that locates the fields up to the given column.
+     *
+     * @param maxColumn The highest column needed, counted from 0.
+     * @throws IllegalArgumentException If the column is negative.
+     */
+    public TsvTokenizer(int maxColumn) {
+        if (maxColumn < 0) {
+            throw new IllegalArgumentException("Invalid column: " + maxColumn);
+        }
+        this.maxColumn = maxColumn;
+        this.starts = new int[maxColumn + 1];
+        this.ends = new int[maxColumn + 1];
+    }
+
+    /**
+     * Creates a tokenizer for the highest of the given columns.
+     *
+     * @param columns The columns needed, counted from 0.
+     * @return The tokenizer.
+     * @throws IllegalArgumentException If a column is negative.
+     */
+    public static TsvTokenizer forColumns(List<Integer> columns) {
+        int max = 0;
+        for (int column : columns) {
+            if (column < 0) {
+                throw new IllegalArgumentException("Invalid column: " + column);
+            }
+            max = Math.max(max, column);
+        }
+        return new TsvTokenizer(max);
+    }
+
+    /**
+     * Locates the fields of a line.
+     *
+     * @param buf The array containing the line.
+     * @param off The start of the line.
+     * @param len The length of the line, without the line terminator.
+     * @return The number of fields located, at most the highest column plus one.
+     */
+    public int tokenize(byte[] buf, int off, int len) {
+        if (len == 0) {
+            starts[0] = off;
+            ends[0] = off;
+            count = 1;
+            return count;
+        }
+
+        // Trailing tabs only end empty fields, which do not count.
+        int end = off + len;
+        while (end > off && buf[end - 1] == '\t') {
+            end--;
+        }
+
+        if (end == off) {
+            count = 0;
+            return count;
+        }
+        int n = 0;
+        starts[0] = off;
+        for (int p = off; p < end; p += ByteScanner.BLOCK) {
+            for (long m = scanner.mask(buf, p, end, (byte) '\t'); m != 0; m &= m - 1) {
+                int tab = p + Long.numberOfTrailingZeros(m);
+                ends[n++] = tab;
+                if (n > maxColumn) {
+                    count = n;
+                    return count;
+                }
+                starts[n] = tab + 1;
+            }
+        }
+        ends[n++] = end;
+        count = n;
+        return count;
+    }
+
+    /**
+     * Returns the number of fields located by the last call of
+     * {@link #tokenize(byte[], int, int)}.
+     *
+     * @return The number of fields.
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * Tests whether the last line has the given column.
+     *
+     * @param column The column, counted from 0.
+     * @return {@code true} if the column exists.
+     */
+    public boolean has(int column) {
+        return column < count;
+    }
+
+    /**
+     * Returns the start of a field of the last line.
+     *
+     * @param column The column; it must exist.
+     * @return The offset of the first byte of the field.
+     */
+    public int start(int column) {
+        return starts[column];
+    }
+
+    /**
+     * Returns the end of a field of the last line.
+     *
+     * @param column The column; it must exist.
+     * @return The offset just after the last byte of the field.
+     */
+    public int end(int column) {
+        return ends[column];
+    }
+
+    /**
+     * Returns the length of a field of the last line.
+     *
+     * @param column The column; it must exist.
+     * @return The number of bytes of the field.
+     */
+    public int length(int column) {
+        return ends[column] - starts[column];
+    }
+}
@@ -0,0 +1,38 @@
+package com.github.oogasawa.utility.filter;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The {@code VectorByteScanner} class compares a block of bytes with the Vector API, one
+ * vector register at a time.
+ *
+ * The class needs the incubator module {@code jdk.incubator.vector}; it is only loaded by
+ * {@link ByteScanner#get()} once the module is known to be present.
+ */
+final class VectorByteScanner extends ByteScanner {
+
+    private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED.length() > BLOCK
+            ? ByteVector.SPECIES_512 : ByteVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+
+    @Override
+    public String name() {
+        return "vector" + LANES * 8;
+    }
+
+    @Override
+    boolean isUseful() {
+        // Without 128-bit vectors the API falls back to slow scalar code.
+        return LANES >= 16;
+    }
+
+    @Override
+    public long mask(byte[] buf, int off, byte b) {
+        long mask = 0;
+        for (int k = 0; k < BLOCK; k += LANES) {
+            mask |= ByteVector.fromArray(SPECIES, buf, off + k).eq(b).toLong() << k;
+        }
+        return mask;
+    }
+}
@@ -0,0 +1,111 @@
+package com.github.oogasawa.utility.cli;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+import com.github.oogasawa.utility.filter.ApproximateDifference;
+import com.github.oogasawa.utility.filter.BloomFilter;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestMethodOrder;
+import org.junit.jupiter.api.io.TempDir;
+
+@DisplayName("Bloom filter approximate difference test")
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class BloomFilterTest {
+
+    private static final Logger logger = Logger.getLogger(BloomFilterTest.class.getName());
+
+    @TempDir
+    Path tmpDir;
+
+    @DisplayName("Should have no false negatives and about the configured false-positive rate")
+    @Test
+    @Order(1)
+    public void testFalsePositiveRate() {
+
+        BloomFilter filter = new BloomFilter(100000, 0.01);
+        for (int i = 0; i < 100000; i++) {
+            byte[] b = ("member" + i).getBytes(StandardCharsets.UTF_8);
+            filter.add(b, 0, b.length);
+        }
+        for (int i = 0; i < 100000; i++) {
+            byte[] b = ("member" + i).getBytes(StandardCharsets.UTF_8);
+            assertTrue(filter.mightContain(b, 0, b.length));
+        }
+
+        int falsePositives = 0;
+        for (int i = 0; i < 100000; i++) {
+            byte[] b = ("other" + i).getBytes(StandardCharsets.UTF_8);
+            if (filter.mightContain(b, 0, b.length)) {
+                falsePositives++;
+            }
+        }
+        double rate = falsePositives / 100000.0;
+        logger.info("false-positive rate: " + rate + ", estimated: " + filter.estimatedFpp());
+        assertTrue(rate < 0.015, "rate " + rate);
+        assertEquals(0.01, filter.estimatedFpp(), 0.003);
+    }
+
+    @DisplayName("Should save the filter, reuse it while fresh and rebuild it when file2 changes")
+    @Test
+    @Order(2)
+    public void testPersistedFilter() throws IOException {
+
+        List<String> reference = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            reference.add("id" + i);
+        }
+        Path file1 = Files.write(tmpDir.resolve("new.txt"), List.of("id5", "x1", "id7", "x2", "x1"));
+        Path file2 = Files.write(tmpDir.resolve("master.txt"), reference);
+        Path bloom = tmpDir.resolve("master.bloom");
+
+        ApproximateDifference d = new ApproximateDifference(0.0001);
+        d.prepare(file2, bloom);
+        assertTrue(Files.exists(bloom));
+        assertEquals("x1 x2", difference(d, file1));
+
+        ApproximateDifference reused = new ApproximateDifference(0.5);
+        reused.prepare(null, bloom);
+        assertEquals(0.0001, reused.getFilter().getConfiguredFpp());
+        assertEquals(1000, reused.getFilter().getCount());
+        assertEquals("x1 x2", difference(reused, file1));
+
+        Files.write(file2, List.of("x2"));
+        Files.setLastModifiedTime(file2, FileTime.fromMillis(System.currentTimeMillis() + 10000));
+        ApproximateDifference rebuilt = new ApproximateDifference(0.0001);
+        rebuilt.prepare(file2, bloom);
+        assertEquals(1, rebuilt.getFilter().getCount());
+        assertEquals("id5 x1 id7", difference(rebuilt, file1));
+        assertEquals(1, BloomFilter.load(bloom).getCount());
+
+        // A fresh filter is rebuilt for another requested rate, and kept if none is requested.
+        ApproximateDifference coarser = new ApproximateDifference(0.05);
+        coarser.prepare(file2, bloom);
+        assertEquals(0.05, coarser.getFilter().getConfiguredFpp());
+        assertEquals(0.05, BloomFilter.load(bloom).getConfiguredFpp());
+        ApproximateDifference any = new ApproximateDifference();
+        any.prepare(file2, bloom);
+        assertEquals(0.05, any.getFilter().getConfiguredFpp());
+        assertEquals("id5 x1 id7", difference(any, file1));
+    }
+
+    private String difference(ApproximateDifference d, Path file1) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        d.difference(file1, out);
+        return out.toString(StandardCharsets.UTF_8).replace(System.lineSeparator(), " ").trim();
+    }
+}
@@ -0,0 +1,85 @@
+package com.github.oogasawa.utility.cli;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.logging.Logger;
+import com.github.oogasawa.utility.filter.ByteScanner;
+import com.github.oogasawa.utility.filter.TsvTokenizer;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestMethodOrder;
+
+@DisplayName("Byte scanner test")
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class ByteScannerTest {
+
+    private static final Logger logger = Logger.getLogger(ByteScannerTest.class.getName());
+
+    @DisplayName("Should find the same positions with the default and the scalar scanner")
+    @Test
+    @Order(1)
+    public void testMask() {
+
+        logger.info("Default scanner: " + ByteScanner.get().name());
+        Random random = new Random(3);
+        byte[] buf = new byte[1000];
+        for (int round = 0; round < 200; round++) {
+            for (int i = 0; i < buf.length; i++) {
+                // Bytes around 0x80 and 0x00 catch carries between the lanes of a long.
+                buf[i] = (byte) "\t\n\u0000ÿ\u007Fa".charAt(random.nextInt(6));
+            }
+            for (byte b : new byte[] { '\t', '\n', 0, (byte) 0xFF, (byte) 0x80 }) {
+                for (int off = 0; off < buf.length; off += 1 + random.nextInt(70)) {
+                    int to = Math.min(buf.length, off + random.nextInt(100));
+                    long expected = 0;
+                    for (int i = Math.min(to - off, ByteScanner.BLOCK) - 1; i >= 0; i--) {
+                        expected = expected << 1 | (buf[off + i] == b ? 1 : 0);
+                    }
+                    assertEquals(expected, ByteScanner.get().mask(buf, off, to, b));
+                    assertEquals(expected, ByteScanner.scalar().mask(buf, off, to, b));
+                    assertEquals(indexOf(buf, off, to, b), ByteScanner.get().indexOf(buf, off, to, b));
+                    assertEquals(indexOf(buf, off, to, b), ByteScanner.scalar().indexOf(buf, off, to, b));
+                }
+            }
+        }
+    }
+
+    @DisplayName("Should tokenize long lines across blocks like String.split")
+    @Test
+    @Order(2)
+    public void testTokenizer() {
+
+        Random random = new Random(5);
+        TsvTokenizer tokenizer = new TsvTokenizer(40);
+        for (int round = 0; round < 2000; round++) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = random.nextInt(300); i > 0; i--) {
+                sb.append(random.nextInt(8) == 0 ? '\t' : 'x');
+            }
+            String line = sb.toString();
+            byte[] bytes = ("..." + line).getBytes(StandardCharsets.UTF_8);
+            String[] fields = line.split("\t");
+            int n = tokenizer.tokenize(bytes, 3, bytes.length - 3);
+            assertEquals(Math.min(fields.length, 41), n, line);
+            for (int i = 0; i < n; i++) {
+                assertEquals(fields[i], new String(bytes, tokenizer.start(i), tokenizer.length(i),
+                        StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    private static int indexOf(byte[] buf, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,141 @@
+package com.github.oogasawa.utility.cli;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import com.github.oogasawa.utility.filter.BgzfOutputStream;
+import com.github.oogasawa.utility.filter.CompressedInput;
+import com.github.oogasawa.utility.filter.LineSorter;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestMethodOrder;
+import org.junit.jupiter.api.io.TempDir;
+
+@DisplayName("Compressed input and output test")
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class CompressionTest {
+
+    private static final Logger logger = Logger.getLogger(CompressionTest.class.getName());
+
+    @TempDir
+    Path tmpDir;
+
+    @DisplayName("Should write BGZF that any gzip reader accepts and read it back on several threads")
+    @Test
+    @Order(1)
+    public void testBgzfRoundTrip() throws IOException {
+
+        byte[] data = sample();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (BgzfOutputStream out = new BgzfOutputStream(bytes, 3)) {
+            out.write(data, 0, 1000);
+            out.flush();
+            out.write(data[1000]);
+            out.write(data, 1001, data.length - 1001);
+        }
+        byte[] bgzf = bytes.toByteArray();
+        logger.info(String.format("BGZF: %d bytes from %d", bgzf.length, data.length));
+
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(bgzf))) {
+            assertArrayEquals(data, in.readAllBytes());
+        }
+        try (InputStream in = CompressedInput.open(new ByteArrayInputStream(bgzf), 3)) {
+            assertArrayEquals(data, in.readAllBytes());
+        }
+
+        // A corrupted block is reported rather than passed on.
+        byte[] corrupt = bgzf.clone();
+        corrupt[100] ^= 0x55;
+        assertThrows(IOException.class, () -> {
+            try (InputStream in = CompressedInput.open(new ByteArrayInputStream(corrupt), 2)) {
+                in.readAllBytes();
+            }
+        });
+    }
+
+    @DisplayName("Should read multi-member gzip and pass plain input through")
+    @Test
+    @Order(2)
+    public void testGzipAndPlainInput() throws IOException {
+
+        byte[] data = sample();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int half = data.length / 2;
+        for (byte[] member : new byte[][] { Arrays.copyOf(data, half), Arrays.copyOfRange(data, half, data.length) }) {
+            try (GZIPOutputStream gz = new GZIPOutputStream(bytes) {
+                @Override
+                public void close() throws IOException {
+                    finish();
+                }
+            }) {
+                gz.write(member);
+            }
+        }
+        try (InputStream in = CompressedInput.open(new ByteArrayInputStream(bytes.toByteArray()), 2)) {
+            assertArrayEquals(data, in.readAllBytes());
+        }
+        try (InputStream in = CompressedInput.open(new ByteArrayInputStream(data), 2)) {
+            assertArrayEquals(data, in.readAllBytes());
+        }
+        try (InputStream in = CompressedInput.open(new ByteArrayInputStream(new byte[1]), 2)) {
+            assertArrayEquals(new byte[1], in.readAllBytes());
+        }
+    }
+
+    @DisplayName("Should keep the last line of a file without a newline apart from the next file")
+    @Test
+    @Order(3)
+    public void testConcatenate() throws IOException {
+
+        Path r1 = Files.write(tmpDir.resolve("r1"), "b\na".getBytes(StandardCharsets.UTF_8));
+        ByteArrayOutputStream gz = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(gz)) {
+            out.write("c".getBytes(StandardCharsets.UTF_8));
+        }
+        Path r2 = Files.write(tmpDir.resolve("r2.gz"), gz.toByteArray());
+        Path r3 = Files.write(tmpDir.resolve("r3"), new byte[0]);
+        Path r4 = Files.write(tmpDir.resolve("r4"), "d\n".getBytes(StandardCharsets.UTF_8));
+        List<Path> files = List.of(r1, r2, r3, r4);
+
+        try (InputStream in = CompressedInput.concatenate(files, 2)) {
+            assertArrayEquals("b\na\nc\nd\n".getBytes(StandardCharsets.UTF_8), in.readAllBytes());
+        }
+
+        // As with LC_ALL=C sort r1 r2 r3 r4.
+        LineSorter sorter = new LineSorter(List.of(new LineSorter.Key(-1, false, false)), false, 1,
+                1 << 20, tmpDir);
+        ByteArrayOutputStream sorted = new ByteArrayOutputStream();
+        try (InputStream in = CompressedInput.concatenate(files, 2)) {
+            sorter.run(in, sorted);
+        }
+        String nl = System.lineSeparator();
+        assertEquals("a" + nl + "b" + nl + "c" + nl + "d" + nl, sorted.toString(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] sample() {
+        StringBuilder sb = new StringBuilder();
+        Random random = new Random(3);
+        for (int i = 0; i < 40000; i++) {
+            sb.append(i).append('\t').append(Long.toHexString(random.nextLong())).append('\n');
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
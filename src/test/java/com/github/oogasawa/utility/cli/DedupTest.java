@@ -0,0 +1,97 @@
+package com.github.oogasawa.utility.cli;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Logger;
+import com.github.oogasawa.utility.filter.Deduplicator;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestMethodOrder;
+import org.junit.jupiter.api.io.TempDir;
+
+@DisplayName("Streaming deduplication test")
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class DedupTest {
+
+    private static final Logger logger = Logger.getLogger(DedupTest.class.getName());
+
+    @TempDir
+    Path tmpDir;
+
+    @DisplayName("Should print the first occurrence of every line or key in input order")
+    @Test
+    @Order(1)
+    public void testDedup() throws IOException {
+
+        String input = String.join("\n",
+                "b\t1\tx",
+                "a\t2",
+                "b\t1\tx",
+                "c\t1\ty",
+                "a\t2\t",
+                "",
+                "b\t3\tx",
+                "");
+        Deduplicator lines = new Deduplicator(List.of(), 256 << 20, tmpDir);
+        assertEquals(String.join(System.lineSeparator(), "b\t1\tx", "a\t2", "c\t1\ty", "a\t2\t", "", "b\t3\tx")
+                + System.lineSeparator(), run(lines, input));
+        assertEquals(6, lines.getUnique());
+
+        Deduplicator keys = new Deduplicator(List.of(1, 2), 256 << 20, tmpDir);
+        assertEquals(String.join(System.lineSeparator(), "b\t1\tx", "a\t2", "c\t1\ty", "", "b\t3\tx")
+                + System.lineSeparator(), run(keys, input));
+    }
+
+    @DisplayName("Should give the same output when fingerprints are spilled to disk")
+    @Test
+    @Order(2)
+    public void testSpill() throws IOException {
+
+        Random random = new Random(21);
+        List<String> input = new ArrayList<>();
+        for (int i = 0; i < 200000; i++) {
+            input.add("k" + random.nextInt(60000) + "\t" + i);
+        }
+        Map<String, String> firsts = new LinkedHashMap<>();
+        for (String line : input) {
+            firsts.putIfAbsent(line.substring(0, line.indexOf('\t')), line);
+        }
+
+        Deduplicator dedup = new Deduplicator(List.of(0), 64 << 10, tmpDir);
+        List<String> output = List.of(run(dedup, String.join("\n", input)).split(System.lineSeparator()));
+        logger.info("spilled lines: " + dedup.getSpilledLines());
+        assertTrue(dedup.getSpilledLines() > 0);
+        assertEquals(new ArrayList<>(firsts.values()), output);
+
+        Deduplicator whole = new Deduplicator(List.of(), 64 << 10, tmpDir);
+        List<String> keys = input.stream().map(line -> line.substring(0, line.indexOf('\t'))).toList();
+        assertEquals(new ArrayList<>(new LinkedHashSet<>(keys)),
+                List.of(run(whole, String.join("\n", keys)).split(System.lineSeparator())));
+        try (var files = Files.list(tmpDir)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    private static String run(Deduplicator dedup, String input) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        dedup.run(new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)), out);
+        return out.toString(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,109 @@
+package com.github.oogasawa.utility.cli;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.logging.Logger;
+import com.github.oogasawa.utility.filter.ExternalSetOperation;
+import com.github.oogasawa.utility.filter.SetOperation;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestMethodOrder;
+import org.junit.jupiter.api.io.TempDir;
+
+@DisplayName("external difference test")
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class ExternalSetOperationTest {
+
+    private static final Logger logger = Logger.getLogger(ExternalSetOperationTest.class.getName());
+
+    @TempDir
+    Path tmpDir;
+
+    @DisplayName("Should produce the same output as the TreeSet engine when spilling many runs")
+    @Test
+    @Order(1)
+    public void testSpilledDifference() throws IOException {
+
+        Random random = new Random(42);
+        List<String> lines1 = new ArrayList<>();
+        List<String> lines2 = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            lines1.add("id" + random.nextInt(10000));
+            lines2.add("id" + random.nextInt(10000));
+        }
+        Path file1 = Files.write(tmpDir.resolve("file1.txt"), lines1);
+        Path file2 = Files.write(tmpDir.resolve("file2.txt"), lines2);
+
+        // A tiny budget forces hundreds of runs and a multi-pass merge.
+        ExternalSetOperation external = new ExternalSetOperation(16 * 1024, tmpDir);
+        StringWriter out = new StringWriter();
+        external.difference(file1, file2, out);
+
+        SetOperation s = new SetOperation();
+        TreeSet<String> expected = s.difference(s.read(file1), s.read(file2));
+        StringBuilder sb = new StringBuilder();
+        for (String e : expected) {
+            sb.append(e).append(System.lineSeparator());
+        }
+
+        assertEquals(sb.toString(), out.toString());
+        assertTrue(external.getRunCount() > 128, "Expected a multi-pass merge");
+        assertTrue(external.getBytesSpilled() > 0);
+        try (var files = Files.list(tmpDir)) {
+            assertEquals(2, files.count(), "Runs should be deleted");
+        }
+    }
+
+    @DisplayName("Should keep everything in memory when the budget is large enough")
+    @Test
+    @Order(2)
+    public void testInMemoryDifference() throws IOException {
+
+        Path file1 = Files.write(tmpDir.resolve("a.txt"), List.of("3", "1", "2", "1"));
+        Path file2 = Files.write(tmpDir.resolve("b.txt"), List.of("2", "4"));
+
+        ExternalSetOperation external = new ExternalSetOperation(1 << 20, tmpDir);
+        StringWriter out = new StringWriter();
+        external.difference(file1, file2, out);
+
+        String nl = System.lineSeparator();
+        assertEquals("1" + nl + "3" + nl, out.toString());
+        assertEquals(0, external.getRunCount());
+    }
+
+    @DisplayName("Should pass lines with invalid UTF-8 through unchanged instead of failing")
+    @Test
+    @Order(3)
+    public void testInvalidUtf8() throws IOException {
+
+        Path file1 = Files.write(tmpDir.resolve("a.txt"),
+                new byte[] { 'c', 'a', 'f', (byte) 0xE9, '\n', 'x', '\n', 'c', 'a', 'f', (byte) 0xE8, '\n' });
+        Path file2 = Files.write(tmpDir.resolve("b.txt"), List.of("x"));
+
+        ExternalSetOperation external = new ExternalSetOperation(1 << 20, tmpDir);
+        StringWriter out = new StringWriter();
+        external.difference(file1, file2, out);
+
+        // Distinct invalid lines stay distinct, in byte order.
+        String nl = System.lineSeparator();
+        assertArrayEquals(("caf\u00E8" + nl + "caf\u00E9" + nl).getBytes(StandardCharsets.ISO_8859_1),
+                out.toString().getBytes(StandardCharsets.ISO_8859_1));
+        // The TreeSet engine reads them the same way.
+        assertEquals(List.of("caf\u00E8", "caf\u00E9", "x"), List.copyOf(new SetOperation().read(file1)));
+    }
+}
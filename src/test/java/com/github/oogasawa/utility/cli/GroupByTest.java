@@ -0,0 +1,145 @@
+package com.github.oogasawa.utility.cli;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.logging.Logger;
+import com.github.oogasawa.utility.filter.GroupBy;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestMethodOrder;
+import org.junit.jupiter.api.io.TempDir;
+
+@DisplayName("Group-by aggregation test")
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class GroupByTest {
+
+    private static final Logger logger = Logger.getLogger(GroupByTest.class.getName());
+
+    @TempDir
+    Path tmpDir;
+
+    @DisplayName("Should aggregate groups in order of first appearance on any number of threads")
+    @Test
+    @Order(1)
+    public void testAggregates() throws IOException {
+
+        String input = String.join("\n",
+                "o1\tc1\t10\tx",
+                "o2\tc2\t2.5\ty",
+                "o3\tc1\t-4\ty",
+                "o4\tc3\tn/a\tx",
+                "o5\tc1\t7\tx",
+                "o6\tc2\t1e1",
+                "o7");
+        List<GroupBy.Aggregate> aggregates = GroupBy.Aggregate.parse("count,sum:2,min:2,max:2,mean:2,distinct:3");
+        String expected = String.join(System.lineSeparator(),
+                "c1\t3\t13\t-4\t10\t4.333333333333333\t2",
+                "c2\t2\t12.5\t2.5\t10\t6.25\t1",
+                "c3\t1\t0\t\t\t\t1",
+                "\t1\t0\t\t\t\t0") + System.lineSeparator();
+        for (int threads : new int[] { 1, 3 }) {
+            GroupBy groupBy = new GroupBy(List.of(1), aggregates, threads, 256 << 20, tmpDir);
+            assertEquals(expected, run(groupBy, input), "threads: " + threads);
+            assertEquals(4, groupBy.getGroups());
+        }
+
+        assertThrows(IllegalArgumentException.class, () -> GroupBy.Aggregate.parse("sum"));
+        assertThrows(IllegalArgumentException.class, () -> GroupBy.Aggregate.parse("count,median:1"));
+    }
+
+    @DisplayName("Should give the same groups as a map when rows are spilled to disk")
+    @Test
+    @Order(2)
+    public void testSpill() throws IOException {
+
+        Random random = new Random(18);
+        List<String> lines = new ArrayList<>();
+        Map<String, long[]> reference = new LinkedHashMap<>();
+        for (int i = 0; i < 150000; i++) {
+            String key = "k" + random.nextInt(50000) + "\t" + random.nextInt(3);
+            long value = random.nextInt(2000) - 1000;
+            lines.add(key + "\t" + value);
+            long[] acc = reference.computeIfAbsent(key, k -> new long[] { 0, 0, Long.MAX_VALUE });
+            acc[0]++;
+            acc[1] += value;
+            acc[2] = Math.min(acc[2], value);
+        }
+        Set<String> expected = new HashSet<>();
+        reference.forEach((key, acc) -> expected.add(key + "\t" + acc[0] + "\t" + acc[1] + "\t" + acc[2]));
+
+        List<GroupBy.Aggregate> aggregates = GroupBy.Aggregate.parse("count,sum:2,min:2");
+        for (int threads : new int[] { 1, 2 }) {
+            GroupBy groupBy = new GroupBy(List.of(0, 1), aggregates, threads, 4L << 20, tmpDir);
+            String output = run(groupBy, String.join("\n", lines));
+            logger.info(String.format("threads: %d, spilled rows: %d", threads, groupBy.getSpilledRows()));
+            assertTrue(groupBy.getSpilledRows() > 0);
+            List<String> groups = List.of(output.split(System.lineSeparator()));
+            assertEquals(expected.size(), groups.size());
+            assertEquals(expected, new HashSet<>(groups));
+        }
+        try (var files = Files.list(tmpDir)) {
+            assertEquals(0, files.count());
+        }
+
+        // Without spilling, the groups come in order of first appearance, as in the map.
+        GroupBy groupBy = new GroupBy(List.of(0, 1), aggregates, 2, 256 << 20, tmpDir);
+        List<String> groups = List.of(run(groupBy, String.join("\n", lines)).split(System.lineSeparator()));
+        assertEquals(new ArrayList<>(reference.keySet()), groups.stream().map(g -> g.substring(0, g.indexOf('\t',
+                g.indexOf('\t') + 1))).toList());
+    }
+
+    @DisplayName("Should keep integer sums exact in groups next to decimal or overflowing ones")
+    @Test
+    @Order(3)
+    public void testExactPerGroup() throws IOException {
+
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            lines.add("g" + i + "\t" + (3000000000000000L + i));
+        }
+        lines.add("g0\t0.5");
+        for (int i = 0; i < 11; i++) {
+            lines.add("big\t900000000000000000");
+        }
+        String input = String.join("\n", lines);
+
+        List<GroupBy.Aggregate> aggregates = GroupBy.Aggregate.parse("sum:1,max:1");
+        String expected = null;
+        for (int threads : new int[] { 1, 2, 4 }) {
+            String output = run(new GroupBy(List.of(0), aggregates, threads, 256 << 20, tmpDir), input);
+            if (expected == null) {
+                expected = output;
+            }
+            assertEquals(expected, output, "threads: " + threads);
+        }
+        List<String> groups = List.of(expected.split(System.lineSeparator()));
+        assertEquals("g0\t3.0000000000000005E15\t3.0E15", groups.get(0));
+        assertEquals("g1\t3000000000000001\t3000000000000001", groups.get(1));
+        assertEquals("big\t9.9E18\t900000000000000000", groups.get(200));
+    }
+
+    private static String run(GroupBy groupBy, String input) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        groupBy.run(new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)), out);
+        return out.toString(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,117 @@
+package com.github.oogasawa.utility.cli;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+import com.github.oogasawa.utility.filter.HashJoin;
+import com.github.oogasawa.utility.filter.StdinOperation;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestMethodOrder;
+import org.junit.jupiter.api.io.TempDir;
+
+@DisplayName("Hash join test")
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class HashJoinTest {
+
+    private static final Logger logger = Logger.getLogger(HashJoinTest.class.getName());
+
+    @TempDir
+    Path tmpDir;
+
+    @DisplayName("Should compute inner, left and anti joins with either side as the build side")
+    @Test
+    @Order(1)
+    public void testJoinTypes() throws IOException {
+
+        Path orders = Files.write(tmpDir.resolve("orders.tsv"),
+                List.of("o1\tc1\t10", "o2\tc2\t20", "o3\tc9\t30", "o4\tc1\t40"));
+        Path customers = Files.write(tmpDir.resolve("customers.tsv"),
+                List.of("c1\tAlice", "c2\tBob", "c3\tCarol"));
+        List<String> manyCustomers = new ArrayList<>(Files.readAllLines(customers));
+        for (int i = 100; i < 200; i++) {
+            manyCustomers.add("c" + i + "\tSomeone");
+        }
+        Path bigCustomers = Files.write(tmpDir.resolve("big-customers.tsv"), manyCustomers);
+
+        // customers.tsv is smaller than orders.tsv, so the orders are streamed in their order;
+        // big-customers.tsv is larger, so the orders are loaded and printed in probe order.
+        assertEquals("o1 c1 10 c1 Alice|o2 c2 20 c2 Bob|o4 c1 40 c1 Alice",
+                join(HashJoin.Type.INNER, "1", "0", orders, customers, 256 << 20));
+        assertEquals("o1 c1 10 c1 Alice|o2 c2 20 c2 Bob|o3 c9 30|o4 c1 40 c1 Alice",
+                join(HashJoin.Type.LEFT, "1", "0", orders, customers, 256 << 20));
+        assertEquals("o3 c9 30", join(HashJoin.Type.ANTI, "1", "0", orders, customers, 256 << 20));
+
+        assertEquals("o1 c1 10 c1 Alice|o4 c1 40 c1 Alice|o2 c2 20 c2 Bob",
+                join(HashJoin.Type.INNER, "1", "0", orders, bigCustomers, 256 << 20));
+        assertEquals("o1 c1 10 c1 Alice|o4 c1 40 c1 Alice|o2 c2 20 c2 Bob|o3 c9 30",
+                join(HashJoin.Type.LEFT, "1", "0", orders, bigCustomers, 256 << 20));
+        assertEquals("o3 c9 30", join(HashJoin.Type.ANTI, "1", "0", orders, bigCustomers, 256 << 20));
+    }
+
+    @DisplayName("Should give the same result when partitioned to disk")
+    @Test
+    @Order(2)
+    public void testGraceJoin() throws IOException {
+
+        List<String> left = new ArrayList<>();
+        List<String> right = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            left.add("k" + (i % 700) + "\t" + (i % 3) + "\tleft" + i);
+            if (i % 2 == 0) {
+                right.add((i % 3) + "\tk" + (i % 1000) + "\tright" + i);
+            }
+        }
+        Path leftFile = Files.write(tmpDir.resolve("left.tsv"), left);
+        Path rightFile = Files.write(tmpDir.resolve("right.tsv"), right);
+
+        for (HashJoin.Type type : HashJoin.Type.values()) {
+            String inMemory = join(type, "0,1", "1,0", leftFile, rightFile, 256 << 20);
+            HashJoin grace = new HashJoin(type, StdinOperation.parseColumns("0,1"),
+                    StdinOperation.parseColumns("1,0"), 10000, tmpDir);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            grace.join(leftFile, rightFile, out);
+            logger.info(type + ": " + grace.getPartitions() + " partitions");
+
+            assertTrue(grace.getPartitions() > 1);
+            assertEquals(sorted(inMemory), sorted(toString(out)));
+            assertTrue(inMemory.length() > 0);
+        }
+        try (var files = Files.list(tmpDir)) {
+            assertEquals(2, files.count());
+        }
+    }
+
+    private String join(HashJoin.Type type, String key1, String key2, Path left, Path right, long memory)
+            throws IOException {
+        HashJoin join = new HashJoin(type, StdinOperation.parseColumns(key1), StdinOperation.parseColumns(key2),
+                memory, tmpDir);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        join.join(left, right, out);
+        return toString(out);
+    }
+
+    private static String toString(ByteArrayOutputStream out) {
+        return out.toString(StandardCharsets.UTF_8).replace("\t", " ").trim()
+                .replace(System.lineSeparator(), "|");
+    }
+
+    private static List<String> sorted(String rows) {
+        List<String> result = Arrays.asList(rows.split("\\|"));
+        result.sort(null);
+        return result;
+    }
+}
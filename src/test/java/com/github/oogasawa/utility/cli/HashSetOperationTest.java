@@ -0,0 +1,84 @@
+package com.github.oogasawa.utility.cli;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+import com.github.oogasawa.utility.filter.HashSetOperation;
+import com.github.oogasawa.utility.filter.OffHeapLineSet;
+import com.github.oogasawa.utility.filter.SetOperator;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestMethodOrder;
+import org.junit.jupiter.api.io.TempDir;
+
+@DisplayName("unordered hash set operation test")
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class HashSetOperationTest {
+
+    private static final Logger logger = Logger.getLogger(HashSetOperationTest.class.getName());
+
+    @TempDir
+    Path tmpDir;
+
+    @DisplayName("Should keep ordinals and contents across table resizes")
+    @Test
+    @Order(1)
+    public void testOffHeapLineSet() throws IOException {
+
+        OffHeapLineSet set = new OffHeapLineSet(4);
+        for (int i = 0; i < 100000; i++) {
+            byte[] b = ("line" + i).getBytes(StandardCharsets.UTF_8);
+            assertEquals(i, set.intern(b, 0, b.length));
+        }
+        byte[] longLine = "x".repeat(1000).getBytes(StandardCharsets.UTF_8);
+        assertTrue(set.add(longLine, 0, longLine.length));
+        assertFalse(set.add(longLine, 0, longLine.length));
+
+        byte[] b = "line4242".getBytes(StandardCharsets.UTF_8);
+        assertEquals(4242, set.indexOf(b, 0, b.length));
+        byte[] absent = "line100000".getBytes(StandardCharsets.UTF_8);
+        assertFalse(set.contains(absent, 0, absent.length));
+
+        List<String> all = new ArrayList<>();
+        set.forEach((ordinal, buf, off, len) -> all.add(new String(buf, off, len, StandardCharsets.UTF_8)));
+        assertEquals(100001, all.size());
+        assertEquals("line99999", all.get(99999));
+        assertEquals(1000, all.get(100000).length());
+    }
+
+    @DisplayName("Should list each result element once in order of first occurrence")
+    @Test
+    @Order(2)
+    public void testOperators() throws IOException {
+
+        Path a = Files.write(tmpDir.resolve("a.txt"), List.of("5", "1", "3", "1", "2"));
+        Path b = Files.write(tmpDir.resolve("b.txt"), List.of("2", "4", "3"));
+        Path c = Files.write(tmpDir.resolve("c.txt"), List.of("6", "3", "5"));
+        List<Path> files = List.of(a, b, c);
+
+        assertEquals("5 1", apply(SetOperator.DIFFERENCE, List.of(a, b)));
+        assertEquals("1", apply(SetOperator.DIFFERENCE, files));
+        assertEquals("5 1 3 2 4 6", apply(SetOperator.UNION, files));
+        assertEquals("3", apply(SetOperator.INTERSECTION, files));
+        assertEquals("1 3 4 6", apply(SetOperator.SYMMETRIC_DIFFERENCE, files));
+    }
+
+    private String apply(SetOperator op, List<Path> files) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new HashSetOperation().apply(op, files, out);
+        return out.toString(StandardCharsets.UTF_8).replace(System.lineSeparator(), " ").trim();
+    }
+}
@@ -0,0 +1,81 @@
+package com.github.oogasawa.utility.cli;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+import com.github.oogasawa.utility.filter.KeyedSetOperation;
+import com.github.oogasawa.utility.filter.SetOperator;
+import com.github.oogasawa.utility.filter.StdinOperation;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestMethodOrder;
+import org.junit.jupiter.api.io.TempDir;
+
+@DisplayName("Key-column set operation test")
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class KeyedSetOperationTest {
+
+    private static final Logger logger = Logger.getLogger(KeyedSetOperationTest.class.getName());
+
+    @TempDir
+    Path tmpDir;
+
+    @DisplayName("Should print whole rows of file1 whose key column is or is not in file2")
+    @Test
+    @Order(1)
+    public void testAntiAndSemiJoin() throws IOException {
+
+        Path rows = Files.write(tmpDir.resolve("rows.tsv"),
+                List.of("1\tx\tapple", "2\ty\tbanana", "3\tz\tcherry", "4\tw\tapple"));
+        List<String> fruits = new ArrayList<>(List.of("apple\tred", "cherry\tred"));
+        for (int i = 0; i < 100; i++) {
+            fruits.add("fruit" + i + "\tgreen");
+        }
+        Path reference = Files.write(tmpDir.resolve("fruits.tsv"), fruits);
+
+        // The reference is larger: its keys are loaded and the rows are streamed.
+        assertEquals("2 y banana", apply(SetOperator.DIFFERENCE, "2", "0", rows, reference));
+        assertEquals("1 x apple|3 z cherry|4 w apple",
+                apply(SetOperator.INTERSECTION, "2", "0", rows, reference));
+
+        // The rows are larger: their keys are loaded and the reference is streamed.
+        Path small = Files.write(tmpDir.resolve("small.tsv"), List.of("banana"));
+        assertEquals("1 x apple|3 z cherry|4 w apple", apply(SetOperator.DIFFERENCE, "2", "0", rows, small));
+        assertEquals("2 y banana", apply(SetOperator.INTERSECTION, "2", "0", rows, small));
+    }
+
+    @DisplayName("Should build compound keys like getColumns")
+    @Test
+    @Order(2)
+    public void testCompoundKeys() throws IOException {
+
+        Path rows = Files.write(tmpDir.resolve("pairs.tsv"),
+                List.of("a\t1\tk", "a\t2\tk", "b\t1\tk", "c\t\t", "d"));
+        Path reference = Files.write(tmpDir.resolve("keys.tsv"), List.of("1\ta", "c", "d", "2\tb"));
+
+        // "c\t\t" has a single field, like "c\t\t".split("\t"), so its key is "c".
+        String result = apply(SetOperator.INTERSECTION, "0-1", "1,0", rows, reference);
+        logger.info("compound key intersection: " + result);
+        assertEquals("a 1 k|c  |d", result);
+    }
+
+    private String apply(SetOperator op, String key1, String key2, Path... files) throws IOException {
+        KeyedSetOperation s = new KeyedSetOperation(
+                StdinOperation.parseColumns(key1), StdinOperation.parseColumns(key2));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        s.apply(op, List.of(files), out);
+        return out.toString(StandardCharsets.UTF_8).replace("\t", " ").trim()
+                .replace(System.lineSeparator(), "|");
+    }
+}
@@ -0,0 +1,177 @@
+package com.github.oogasawa.utility.cli;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import com.github.oogasawa.utility.filter.CompressedInput;
+import com.github.oogasawa.utility.filter.Partitioner;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestMethodOrder;
+import org.junit.jupiter.api.io.TempDir;
+
+@DisplayName("Hash partitioning test")
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class PartitionTest {
+
+    private static final Logger logger = Logger.getLogger(PartitionTest.class.getName());
+
+    @TempDir
+    Path tmpDir;
+
+    @DisplayName("Should send every key to one file, keeping the input order")
+    @Test
+    @Order(1)
+    public void testPartition() throws IOException {
+
+        List<String> input = generate(1000, 50);
+        Partitioner partitioner = new Partitioner(List.of(0), 5, tmpDir.resolve("out/part"), false,
+                256 << 20, 256, 2);
+        partitioner.run(new ByteArrayInputStream(join(input)));
+
+        List<List<String>> files = read(partitioner, 5, false);
+        assertSharded(input, files, List.of(0));
+        for (int i = 0; i < 5; i++) {
+            assertEquals(files.get(i).size(), partitioner.getLines(i));
+        }
+
+        // Whole lines as keys, more files than distinct lines.
+        Partitioner lines = new Partitioner(List.of(), 100, tmpDir.resolve("lines"), false, 256 << 20, 256, 2);
+        lines.run(new ByteArrayInputStream(join(List.of("a", "b", "a", "", "b"))));
+        List<List<String>> shards = read(lines, 100, false);
+        assertEquals(100, shards.size());
+        assertEquals(3, shards.stream().filter(s -> !s.isEmpty()).count());
+        assertSharded(List.of("a", "b", "a", "", "b"), shards, List.of());
+    }
+
+    @DisplayName("Should reopen files beyond the limit and write valid BGZF")
+    @Test
+    @Order(2)
+    public void testMaxOpenAndCompress() throws IOException {
+
+        List<String> input = generate(60000, 2000);
+        Path file = tmpDir.resolve("input.tsv");
+        Files.write(file, join(input));
+
+        // Buffers of 64 KB and two open files force many appends and reopens.
+        Partitioner plain = new Partitioner(List.of(1, 0), 7, tmpDir.resolve("plain"), false, 0, 2, 2);
+        plain.run(List.of(file));
+        List<List<String>> expected = read(plain, 7, false);
+        assertSharded(input, expected, List.of(1, 0));
+        logger.info("opens: " + plain.getOpens());
+        assertTrue(plain.getOpens() > 7);
+
+        Partitioner compressed = new Partitioner(List.of(1, 0), 7, tmpDir.resolve("bgzf"), true, 0, 2, 2);
+        compressed.run(List.of(file));
+        assertEquals(expected, read(compressed, 7, true));
+        assertTrue(compressed.path(3).getFileName().toString().endsWith("-00003.gz"));
+
+        // Readable by plain gzip as well, as a series of members.
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(compressed.path(0)))) {
+            assertEquals(expected.get(0), lines(in.readAllBytes()));
+        }
+    }
+
+    @DisplayName("Should stay within the memory budget when the buffers of all files do not fit")
+    @Test
+    @Order(3)
+    public void testMemoryBudget() throws IOException {
+
+        // 2000 buffers of 64 KB would take 125 MB; 1 MB holds 16 of them.
+        List<String> input = generate(5000, 2000);
+        Partitioner partitioner = new Partitioner(List.of(0), 2000, tmpDir.resolve("budget"), false,
+                1 << 20, 256, 2);
+        partitioner.run(new ByteArrayInputStream(join(input)));
+        logger.info("releases: " + partitioner.getReleases());
+        assertTrue(partitioner.getReleases() > 0);
+        assertSharded(input, read(partitioner, 2000, false), List.of(0));
+    }
+
+    /**
+     * Generates lines of three columns with keys in the first two.
+     */
+    private static List<String> generate(int n, int keys) {
+        Random random = new Random(11);
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            int key = random.nextInt(keys);
+            lines.add("k" + key + "\t" + (key % 3 == 0 ? "" : "v" + key % 7) + "\t" + i);
+        }
+        return lines;
+    }
+
+    /**
+     * Asserts that the files hold the input, every key in one file in input order.
+     */
+    private static void assertSharded(List<String> input, List<List<String>> files, List<Integer> columns) {
+        Map<String, Integer> fileOfLine = new HashMap<>();
+        for (int i = 0; i < files.size(); i++) {
+            for (String line : files.get(i)) {
+                fileOfLine.put(line, i);
+            }
+        }
+        Map<String, Integer> fileOfKey = new HashMap<>();
+        List<List<String>> expected = new ArrayList<>();
+        files.forEach(f -> expected.add(new ArrayList<>()));
+        for (String line : input) {
+            Integer file = fileOfLine.get(line);
+            assertTrue(file != null, line);
+            assertEquals(file, fileOfKey.computeIfAbsent(key(line, columns), k -> file), line);
+            expected.get(file).add(line);
+        }
+        assertEquals(expected, files);
+    }
+
+    private static String key(String line, List<Integer> columns) {
+        if (columns.isEmpty()) {
+            return line;
+        }
+        String[] fields = line.split("\t", -1);
+        StringBuilder key = new StringBuilder();
+        for (int column : columns) {
+            key.append(fields[column]).append('\t');
+        }
+        return key.toString();
+    }
+
+    private static List<List<String>> read(Partitioner partitioner, int n, boolean compressed) throws IOException {
+        List<List<String>> files = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            try (InputStream in = compressed
+                    ? CompressedInput.open(partitioner.path(i), 2)
+                    : Files.newInputStream(partitioner.path(i))) {
+                files.add(lines(in.readAllBytes()));
+            }
+        }
+        return files;
+    }
+
+    private static List<String> lines(byte[] bytes) {
+        return new String(bytes, StandardCharsets.UTF_8).lines().toList();
+    }
+
+    private static byte[] join(List<String> lines) {
+        StringBuilder sb = new StringBuilder();
+        for (String line : lines) {
+            sb.append(line).append('\n');
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,145 @@
+package com.github.oogasawa.utility.cli;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Logger;
+import com.github.oogasawa.utility.filter.ColumnProfiler;
+import com.github.oogasawa.utility.filter.Hash64;
+import com.github.oogasawa.utility.filter.HyperLogLog;
+import com.github.oogasawa.utility.filter.SpaceSaving;
+import com.github.oogasawa.utility.filter.TDigest;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestMethodOrder;
+
+@DisplayName("Column profiling test")
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class ProfileTest {
+
+    private static final Logger logger = Logger.getLogger(ProfileTest.class.getName());
+
+    @DisplayName("Should estimate distinct counts, quantiles and frequent values of merged sketches")
+    @Test
+    @Order(1)
+    public void testSketches() {
+
+        HyperLogLog first = new HyperLogLog(14);
+        HyperLogLog second = new HyperLogLog(14);
+        TDigest low = new TDigest(100);
+        TDigest high = new TDigest(100);
+        SpaceSaving left = new SpaceSaving(16);
+        SpaceSaving right = new SpaceSaving(16);
+        Random random = new Random(19);
+        for (int i = 0; i < 100000; i++) {
+            byte[] value = ("v" + i).getBytes(StandardCharsets.UTF_8);
+            long hash = Hash64.hash(value, 0, value.length);
+            (i % 2 == 0 ? first : second).add(hash);
+            // Both halves see the first thousand values again.
+            if (i < 1000) {
+                (i % 2 == 0 ? second : first).add(hash);
+            }
+            (i < 50000 ? low : high).add(i);
+
+            byte[] item = ("item" + (random.nextInt(10) < 3 ? random.nextInt(3) : 3 + random.nextInt(5000)))
+                    .getBytes(StandardCharsets.UTF_8);
+            (i % 2 == 0 ? left : right).add(Hash64.hash(item, 0, item.length), item, 0, item.length);
+        }
+
+        first.merge(second);
+        logger.info("distinct: " + first.estimate());
+        assertEquals(100000, first.estimate(), 3000);
+
+        low.merge(high);
+        assertEquals(100000, low.count());
+        assertEquals(0, low.quantile(0));
+        assertEquals(99999, low.quantile(1));
+        for (double q : new double[] { 0.01, 0.25, 0.5, 0.75, 0.99 }) {
+            assertEquals(q * 100000, low.quantile(q), 1000, "q: " + q);
+        }
+
+        left.merge(right);
+        List<SpaceSaving.Entry> top = left.top(3);
+        assertEquals(List.of("item0", "item1", "item2"), top.stream().map(SpaceSaving.Entry::value).sorted().toList());
+        for (SpaceSaving.Entry entry : top) {
+            assertTrue(entry.count() - entry.error() <= 11000 && entry.count() >= 9000, entry.toString());
+        }
+    }
+
+    @DisplayName("Should profile columns identically on any number of threads")
+    @Test
+    @Order(2)
+    public void testProfile() throws IOException {
+
+        String input = String.join("\n",
+                "a\t1\tx",
+                "b\t\ty",
+                "a\t3",
+                "c\t2.5\tx",
+                "a");
+        String expected = String.join(System.lineSeparator(),
+                "column\tpresent\tempty\tmissing\tnullRate\tdistinct\tminLength\tmaxLength\tnumeric\tmin\tp25\tmedian"
+                        + "\tp75\tp99\tmax\ttop",
+                "0\t5\t0\t0\t0.0000\t3\t1\t1\t0\t\t\t\t\t\t\ta=3",
+                "1\t4\t1\t1\t0.4000\t4\t0\t3\t3\t1\t1.375\t2.5\t2.875\t3\t3\t",
+                "2\t3\t0\t2\t0.4000\t2\t1\t1\t0\t\t\t\t\t\t\tx=2") + System.lineSeparator();
+        for (int threads : new int[] { 1, 3 }) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            new ColumnProfiler(threads, 256, 5).run(new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)),
+                    out);
+            assertEquals(expected, out.toString(StandardCharsets.UTF_8), "threads: " + threads);
+        }
+    }
+
+    @DisplayName("Should print only top values whose counts and ranks are certain")
+    @Test
+    @Order(3)
+    public void testEvictedTail() throws IOException {
+
+        // 640 tail values evict each other from 63 counters, so the counts they inherit make b,
+        // which occurs twice, look more frequent than it is, and c certainly frequent with a
+        // count that may be too high.
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            lines.add("a");
+        }
+        for (int i = 0; i < 640; i++) {
+            lines.add("t" + i);
+        }
+        lines.add("b");
+        lines.add("b");
+        for (int i = 0; i < 100; i++) {
+            lines.add("c");
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ColumnProfiler(1, 1, 5).run(new ByteArrayInputStream(String.join("\n", lines)
+                .getBytes(StandardCharsets.UTF_8)), out);
+        String[] profile = out.toString(StandardCharsets.UTF_8).split(System.lineSeparator());
+        String top = profile[1].substring(profile[1].lastIndexOf('\t') + 1);
+        logger.info("top: " + top);
+        assertEquals("a=200, c=100..110", top);
+
+        SpaceSaving summary = new SpaceSaving(8);
+        for (String value : lines) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            summary.add(Hash64.hash(bytes, 0, bytes.length), bytes, 0, bytes.length);
+        }
+        assertEquals(List.of("a", "c"), summary.certainTop(8).stream().map(SpaceSaving.Entry::value).toList());
+        for (SpaceSaving.Entry entry : summary.top(8)) {
+            assertTrue(entry.guaranteed() <= Collections.frequency(lines, entry.value()), entry.toString());
+            assertTrue(entry.count() >= Collections.frequency(lines, entry.value()), entry.toString());
+        }
+    }
+}
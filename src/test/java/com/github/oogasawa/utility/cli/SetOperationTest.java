@@ -1,12 +1,21 @@
 package com.github.oogasawa.utility.cli;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.TreeSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import com.github.oogasawa.utility.filter.ByteLine;
+import com.github.oogasawa.utility.filter.MappedLineFile;
 import com.github.oogasawa.utility.filter.SetOperation;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.MethodOrderer;
@@ -14,6 +23,7 @@ import org.junit.jupiter.api.Order;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestInstance;
 import org.junit.jupiter.api.TestMethodOrder;
+import org.junit.jupiter.api.io.TempDir;
 
 
 @DisplayName("SetOperation utility methods test")
@@ -43,4 +53,67 @@ public class SetOperationTest {
         assertArrayEquals(expectedArray, result.toArray());
     }
 
+
+    @TempDir
+    Path tmpDir;
+
+    @DisplayName("Should read the same set from a memory-mapped file as from a stream")
+    @Test
+    @Order(2)
+    public void testReadBytesMethod() throws IOException {
+
+        SetOperation setOperation = new SetOperation();
+        Path file = tmpDir.resolve("input_data.txt");
+        try (InputStream in = getClass().getResourceAsStream("/SetOperationTest/input_data.txt")) {
+            Files.copy(in, file);
+        }
+
+        TreeSet<ByteLine> result = setOperation.readBytes(file);
+
+        String[] expectedArray = { "", "1", "2", "3"};
+        assertArrayEquals(expectedArray, result.stream().map(ByteLine::toString).toArray());
+    }
+
+    @DisplayName("Should split files into newline-aligned segments and compare lines as unsigned bytes")
+    @Test
+    @Order(3)
+    public void testMappedSegments() throws IOException {
+
+        Path file = tmpDir.resolve("segments.txt");
+        Files.writeString(file, "b\r\nä\nlonger line\na\nzz", StandardCharsets.UTF_8);
+
+        MappedLineFile mapped = MappedLineFile.map(file, 16);
+        assertEquals(2, mapped.segments().size());
+
+        List<ByteLine> lines = new ArrayList<>();
+        mapped.forEachLine((segment, off, len) -> lines.add(new ByteLine(segment, off, len)));
+        assertArrayEquals(new String[] { "b", "ä", "longer line", "a", "zz" },
+                lines.stream().map(ByteLine::toString).toArray());
+
+        TreeSet<ByteLine> sorted = new TreeSet<>(lines);
+        assertArrayEquals(new String[] { "a", "b", "longer line", "zz", "ä" },
+                sorted.stream().map(ByteLine::toString).toArray());
+    }
+
+
+    @DisplayName("Should load a multi-chunk file in parallel into the same set as the TreeSet reader")
+    @Test
+    @Order(4)
+    public void testReadSortedMethod() throws IOException {
+
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 300000; i++) {
+            lines.add(Integer.toString((i * 7919) % 100000));
+        }
+        Path file = Files.write(tmpDir.resolve("large.txt"), lines);
+        Path small = Files.write(tmpDir.resolve("small.txt"), List.of("b", "a", "b"));
+
+        SetOperation setOperation = new SetOperation();
+        List<ByteLine[]> result = setOperation.readSorted(List.of(file, small));
+
+        TreeSet<String> expected = setOperation.read(file);
+        assertArrayEquals(expected.toArray(), Arrays.stream(result.get(0)).map(ByteLine::toString).toArray());
+        assertArrayEquals(new String[] { "a", "b" }, Arrays.stream(result.get(1)).map(ByteLine::toString).toArray());
+    }
+
 }
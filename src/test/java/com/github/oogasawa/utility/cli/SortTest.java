@@ -0,0 +1,112 @@
+package com.github.oogasawa.utility.cli;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Logger;
+import com.github.oogasawa.utility.filter.LineSorter;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestMethodOrder;
+import org.junit.jupiter.api.io.TempDir;
+
+@DisplayName("External sort test")
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class SortTest {
+
+    private static final Logger logger = Logger.getLogger(SortTest.class.getName());
+
+    @TempDir
+    Path tmpDir;
+
+    @DisplayName("Should sort by text, numeric and reversed keys, keeping the input order of equal keys")
+    @Test
+    @Order(1)
+    public void testKeys() throws IOException {
+
+        String input = String.join("\n",
+                "b\t10\tx",
+                "a\t9\ty",
+                "c\t-1.5",
+                "b\tn/a\tz",
+                "a\t10\tw",
+                "ab",
+                "b\t9\tv");
+        assertEquals(lines("a\t10\tw", "a\t9\ty", "ab", "b\t10\tx", "b\t9\tv", "b\tn/a\tz", "c\t-1.5"),
+                sort(List.of(), false, 1, input));
+        assertEquals(lines("ab", "b\tn/a\tz", "c\t-1.5", "a\t9\ty", "b\t9\tv", "b\t10\tx", "a\t10\tw"),
+                sort(LineSorter.Key.parse("1n", false, false), false, 1, input));
+        assertEquals(lines("c\t-1.5", "b\t10\tx", "b\tn/a\tz", "b\t9\tv", "ab", "a\t9\ty", "a\t10\tw"),
+                sort(LineSorter.Key.parse("0r", false, false), false, 1, input));
+        assertEquals(lines("a\t10\tw", "a\t9\ty", "ab", "b\t10\tx", "b\t9\tv", "b\tn/a\tz", "c\t-1.5"),
+                sort(LineSorter.Key.parse("0,1nr", false, false), false, 1, input));
+        assertEquals(lines("a\t9\ty", "ab", "b\t10\tx", "c\t-1.5"),
+                sort(LineSorter.Key.parse("0", false, false), true, 3, input));
+
+        assertThrows(IllegalArgumentException.class, () -> LineSorter.Key.parse("1x", false, false));
+        assertThrows(IllegalArgumentException.class, () -> LineSorter.Key.parse("n", false, false));
+    }
+
+    @DisplayName("Should give the same order as a stable in-memory sort when runs are spilled")
+    @Test
+    @Order(2)
+    public void testSpill() throws IOException {
+
+        Random random = new Random(20);
+        List<String> input = new ArrayList<>();
+        for (int i = 0; i < 200000; i++) {
+            input.add("k" + random.nextInt(30000) + "\t" + (random.nextInt(2000) - 1000) + "\tline" + i);
+        }
+        Comparator<String> byNumber = Comparator.comparingInt(line -> Integer.parseInt(line.split("\t")[1]));
+        List<String> expected = new ArrayList<>(input);
+        expected.sort(byNumber.reversed().thenComparing(line -> line.split("\t")[0]));
+        Map<String, String> firsts = new LinkedHashMap<>();
+        input.stream().sorted(Comparator.comparing(line -> line.split("\t")[0]))
+                .forEach(line -> firsts.putIfAbsent(line.split("\t")[0], line));
+
+        for (int threads : new int[] { 1, 3 }) {
+            LineSorter sorter = new LineSorter(LineSorter.Key.parse("1nr,0", false, false), false, threads,
+                    1L << 20, tmpDir);
+            assertEquals(lines(expected.toArray(new String[0])), run(sorter, String.join("\n", input)));
+            logger.info(String.format("threads: %d, runs: %d", threads, sorter.getRuns()));
+            assertTrue(sorter.getRuns() > 1);
+
+            sorter = new LineSorter(LineSorter.Key.parse("0", false, false), true, threads, 1L << 20, tmpDir);
+            assertEquals(lines(firsts.values().toArray(new String[0])), run(sorter, String.join("\n", input)));
+        }
+        try (var files = Files.list(tmpDir)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    private String sort(List<LineSorter.Key> keys, boolean unique, int threads, String input) throws IOException {
+        return run(new LineSorter(keys, unique, threads, 256 << 20, tmpDir), input);
+    }
+
+    private static String run(LineSorter sorter, String input) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        sorter.run(new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)), out);
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    private static String lines(String... lines) {
+        return String.join(System.lineSeparator(), lines) + System.lineSeparator();
+    }
+}
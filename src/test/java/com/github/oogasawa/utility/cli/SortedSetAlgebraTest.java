@@ -0,0 +1,120 @@
+package com.github.oogasawa.utility.cli;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+import com.github.oogasawa.utility.filter.ByteLine;
+import com.github.oogasawa.utility.filter.SetOperator;
+import com.github.oogasawa.utility.filter.SortedFileSource;
+import com.github.oogasawa.utility.filter.SortedSetAlgebra;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestMethodOrder;
+import org.junit.jupiter.api.io.TempDir;
+
+@DisplayName("streaming presorted set algebra test")
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class SortedSetAlgebraTest {
+
+    private static final Logger logger = Logger.getLogger(SortedSetAlgebraTest.class.getName());
+
+    @TempDir
+    Path tmpDir;
+
+    @SafeVarargs
+    private String apply(SetOperator op, List<String>... inputs) throws IOException {
+        List<SortedFileSource> sources = new ArrayList<>();
+        for (int i = 0; i < inputs.length; i++) {
+            Path file = Files.write(tmpDir.resolve(op + "-" + i + ".txt"), inputs[i]);
+            sources.add(new SortedFileSource(file));
+        }
+        StringWriter out = new StringWriter();
+        SortedSetAlgebra.apply(op, sources, out);
+        for (SortedFileSource source : sources) {
+            source.close();
+        }
+        // The lines are the input bytes as ISO-8859-1 characters.
+        String text = new String(out.toString().getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8);
+        return text.replace(System.lineSeparator(), " ").trim();
+    }
+
+    @DisplayName("Should evaluate every operator on three sorted files")
+    @Test
+    @Order(1)
+    public void testOperators() throws IOException {
+
+        List<String> a = List.of("1", "2", "3", "3", "5");
+        List<String> b = List.of("2", "3", "4");
+        List<String> c = List.of("3", "5", "6");
+
+        assertEquals("1 2 3 4 5 6", apply(SetOperator.UNION, a, b, c));
+        assertEquals("3", apply(SetOperator.INTERSECTION, a, b, c));
+        assertEquals("1", apply(SetOperator.DIFFERENCE, a, b, c));
+        assertEquals("1 3 4 6", apply(SetOperator.SYMMETRIC_DIFFERENCE, a, b, c));
+        assertEquals("1 4 5", apply(SetOperator.SYMMETRIC_DIFFERENCE, a, b));
+    }
+
+    @DisplayName("Should fail on unsorted input")
+    @Test
+    @Order(2)
+    public void testUnsortedInput() {
+
+        IOException e = assertThrows(IOException.class,
+                () -> apply(SetOperator.UNION, List.of("1", "3", "2"), List.of("1")));
+        assertTrue(e.getMessage().contains(":3: input is not sorted"), e.getMessage());
+    }
+
+    @DisplayName("Should pass lines with invalid UTF-8 through unchanged instead of failing")
+    @Test
+    @Order(3)
+    public void testInvalidUtf8() throws IOException {
+
+        // "caf" followed by the Latin-1 byte for e-acute, which is not valid UTF-8.
+        Path a = Files.write(tmpDir.resolve("latin1-a.txt"),
+                new byte[] { 'a', '\n', 'c', 'a', 'f', (byte) 0xE8, '\n', 'c', 'a', 'f', (byte) 0xE9, '\n' });
+        Path b = Files.write(tmpDir.resolve("latin1-b.txt"), new byte[] { 'a', '\n' });
+        StringWriter out = new StringWriter();
+        try (SortedFileSource sa = new SortedFileSource(a); SortedFileSource sb = new SortedFileSource(b)) {
+            SortedSetAlgebra.apply(SetOperator.DIFFERENCE, List.of(sa, sb), out);
+        }
+        // The bytes come back unchanged and distinct invalid lines stay distinct.
+        String nl = System.lineSeparator();
+        assertArrayEquals(("caf\u00E8" + nl + "caf\u00E9" + nl).getBytes(StandardCharsets.ISO_8859_1),
+                out.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    @DisplayName("Should accept and merge input in UTF-8 byte order")
+    @Test
+    @Order(4)
+    public void testByteOrder() throws IOException {
+
+        // LC_ALL=C sort puts U+FF01 (EF BC 81) before an emoji (F0 9F 98 80), unlike String.compareTo.
+        String fullwidth = "\uFF01";
+        String emoji = "\uD83D\uDE00";
+        assertEquals(fullwidth + " " + emoji, apply(SetOperator.UNION, List.of(fullwidth, emoji), List.of(emoji)));
+        assertEquals("a z " + fullwidth + " " + emoji,
+                apply(SetOperator.UNION, List.of("a", emoji), List.of("z", fullwidth)));
+        assertTrue(ByteLine.compareUtf8(fullwidth, emoji) < 0);
+        assertTrue(ByteLine.compareUtf8("\uD7FF", "\uE000") < 0);
+        assertEquals(0, ByteLine.compareUtf8(emoji, emoji));
+        for (String[] pair : new String[][] { { "ab", "a\uFFFF" }, { emoji, "\uFFFD" }, { "\uE000x", emoji } }) {
+            int expected = ByteLine.of(pair[0].getBytes(StandardCharsets.UTF_8))
+                    .compareTo(ByteLine.of(pair[1].getBytes(StandardCharsets.UTF_8)));
+            assertEquals(Integer.signum(expected), Integer.signum(ByteLine.compareUtf8(pair[0], pair[1])));
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.github.oogasawa.utility.cli;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Logger;
+import com.github.oogasawa.utility.filter.IndexedSetOperation;
+import com.github.oogasawa.utility.filter.SetOperator;
+import com.github.oogasawa.utility.filter.SortedSetIndex;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestMethodOrder;
+import org.junit.jupiter.api.io.TempDir;
+
+@DisplayName("Sorted set index test")
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class SortedSetIndexTest {
+
+    private static final Logger logger = Logger.getLogger(SortedSetIndexTest.class.getName());
+
+    @TempDir
+    Path tmpDir;
+
+    @DisplayName("Should find exactly the indexed lines across many blocks")
+    @Test
+    @Order(1)
+    public void testLookup() throws IOException {
+
+        List<String> reference = new ArrayList<>();
+        for (int i = 0; i < 50000; i += 2) {
+            reference.add(String.format("ref%07d", i));
+        }
+        reference.add("");
+        reference.add("日本語");
+        reference.add("x".repeat(10000));
+        Collections.shuffle(reference, new Random(1));
+        Path file = Files.write(tmpDir.resolve("reference.txt"), reference);
+
+        long entries = SortedSetIndex.build(file, SortedSetIndex.indexPathOf(file), false);
+        assertEquals(reference.size(), entries);
+
+        try (SortedSetIndex index = SortedSetIndex.openFresh(file)) {
+            logger.info("index size: " + Files.size(SortedSetIndex.indexPathOf(file)) + " bytes");
+            for (int i = 0; i < 50000; i++) {
+                assertEquals(i % 2 == 0, contains(index, String.format("ref%07d", i)), "ref" + i);
+            }
+            // Lookups out of order restart the block search.
+            assertTrue(contains(index, "x".repeat(10000)));
+            assertTrue(contains(index, ""));
+            assertTrue(contains(index, "日本語"));
+            assertFalse(contains(index, "x".repeat(9999)));
+            assertFalse(contains(index, "ref"));
+            assertFalse(contains(index, "zzz"));
+        }
+    }
+
+    @DisplayName("Should index presorted input in one pass and reject unsorted input")
+    @Test
+    @Order(2)
+    public void testPresorted() throws IOException {
+
+        Path sorted = Files.write(tmpDir.resolve("sorted.txt"), List.of("a", "b", "b", "c"));
+        Path index = tmpDir.resolve("sorted.idx");
+        assertEquals(3, SortedSetIndex.build(sorted, index, true));
+
+        Path unsorted = Files.write(tmpDir.resolve("unsorted.txt"), List.of("a", "c", "b"));
+        assertThrows(IOException.class,
+                () -> SortedSetIndex.build(unsorted, SortedSetIndex.indexPathOf(unsorted), true));
+        assertFalse(Files.exists(SortedSetIndex.indexPathOf(unsorted)));
+    }
+
+    @DisplayName("Should evaluate difference and intersection with fresh indexes only")
+    @Test
+    @Order(3)
+    public void testIndexedOperation() throws IOException {
+
+        Path file1 = Files.write(tmpDir.resolve("new.txt"), List.of("d", "a", "c", "a", "e"));
+        Path file2 = Files.write(tmpDir.resolve("master.txt"), List.of("c", "b", "a"));
+
+        assertNull(IndexedSetOperation.openFresh(List.of(file2)));
+        SortedSetIndex.build(file2, SortedSetIndex.indexPathOf(file2), false);
+
+        try (IndexedSetOperation s = IndexedSetOperation.openFresh(List.of(file2))) {
+            assertEquals("d e", apply(s, SetOperator.DIFFERENCE, file1));
+            assertEquals("a c", apply(s, SetOperator.INTERSECTION, file1));
+        }
+
+        Files.write(file2, List.of("a"));
+        Files.setLastModifiedTime(file2, FileTime.fromMillis(System.currentTimeMillis() + 10000));
+        assertNull(IndexedSetOperation.openFresh(List.of(file2)));
+    }
+
+    private boolean contains(SortedSetIndex index, String line) {
+        byte[] b = line.getBytes(StandardCharsets.UTF_8);
+        return index.contains(b, 0, b.length);
+    }
+
+    private String apply(IndexedSetOperation s, SetOperator op, Path file1) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        s.apply(op, file1, out);
+        return out.toString(StandardCharsets.UTF_8).replace(System.lineSeparator(), " ").trim();
+    }
+}
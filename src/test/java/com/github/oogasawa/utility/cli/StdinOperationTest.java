@@ -0,0 +1,429 @@
+package com.github.oogasawa.utility.cli;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
+import com.github.oogasawa.utility.filter.AhoCorasick;
+import com.github.oogasawa.utility.filter.ByteRegex;
+import com.github.oogasawa.utility.filter.LinePipeline;
+import com.github.oogasawa.utility.filter.LineWriter;
+import com.github.oogasawa.utility.filter.ParallelFileProcessor;
+import com.github.oogasawa.utility.filter.RegexPrefilter;
+import com.github.oogasawa.utility.filter.StdinOperation;
+import com.github.oogasawa.utility.filter.TsvTokenizer;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestMethodOrder;
+import org.junit.jupiter.api.io.TempDir;
+
+@DisplayName("Standard input operation test")
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class StdinOperationTest {
+
+    private static final Logger logger = Logger.getLogger(StdinOperationTest.class.getName());
+
+    @TempDir
+    Path tmpDir;
+
+    private static final List<String> LINES = List.of(
+            "9606\tHomo sapiens\tscientific name\t",
+            "10090\tMus musculus\t\tmouse",
+            "",
+            "\t\t",
+            "7227\tDrosophila melanogaster",
+            "4932\tSaccharomyces cerevisiae\tyeast\t\t",
+            "日本語\tテキスト\tmusculus");
+
+    @DisplayName("Should filter lines by substring, as String.contains does")
+    @Test
+    @Order(1)
+    public void testFilterLines() throws IOException {
+
+        assertEquals(expected(l -> l.contains("mus")), run(out -> StdinOperation.filterLines("mus", in(), out)));
+        assertEquals(expected(l -> l.contains("語\t")), run(out -> StdinOperation.filterLines("語\t", in(), out)));
+        assertEquals(expected(l -> column(l, 2) != null && column(l, 2).contains("mus")),
+                run(out -> StdinOperation.filterLines("mus", 2, in(), out)));
+        assertEquals(expected(l -> column(l, 3) != null && column(l, 3).contains("")),
+                run(out -> StdinOperation.filterLines("", 3, in(), out)));
+    }
+
+    @DisplayName("Should filter lines by regular expression on the line or a column")
+    @Test
+    @Order(2)
+    public void testRegexFilterLines() throws IOException {
+
+        Pattern p = Pattern.compile("^[0-9]+$");
+        assertEquals(expected(l -> Pattern.compile("s[a-z]+s").matcher(l).find()),
+                run(out -> StdinOperation.regexFilterLines("s[a-z]+s", in(), out)));
+        assertEquals(expected(l -> column(l, 0) != null && p.matcher(column(l, 0)).find()),
+                run(out -> StdinOperation.regexFilterLines("^[0-9]+$", 0, in(), out)));
+        assertEquals(expected(l -> column(l, 1) != null && column(l, 1).matches("テ.*")),
+                run(out -> StdinOperation.regexFilterLines("^テ", 1, in(), out)));
+    }
+
+    @DisplayName("Should extract columns and split lines like String.split")
+    @Test
+    @Order(3)
+    public void testColumnsAndSplit() throws IOException {
+
+        String columns = LINES.stream().map(l -> {
+            String[] f = l.split("\t");
+            return List.of(3, 0, 1, 2).stream().filter(i -> i < f.length).map(i -> f[i])
+                    .collect(Collectors.joining("\t"));
+        }).collect(Collectors.joining(System.lineSeparator(), "", System.lineSeparator()));
+        String result = run(out -> StdinOperation.getColumns("3,0-2", in(), out));
+        logger.info("getColumns 3,0-2:\n" + result);
+        assertEquals(columns, result);
+
+        String split = LINES.stream().map(l -> String.join("\t", l.split("a")))
+                .collect(Collectors.joining(System.lineSeparator(), "", System.lineSeparator()));
+        assertEquals(split, run(out -> StdinOperation.splitLines("a", in(), out)));
+    }
+
+    @DisplayName("Should locate fields up to the highest requested column only")
+    @Test
+    @Order(4)
+    public void testTokenizer() {
+
+        TsvTokenizer tokenizer = new TsvTokenizer(1);
+        byte[] line = "xx\tab\t\tlast\t\t".getBytes(StandardCharsets.UTF_8);
+        assertEquals(2, tokenizer.tokenize(line, 0, line.length));
+        assertEquals(3, tokenizer.start(1));
+        assertEquals(5, tokenizer.end(1));
+
+        // Trailing tabs end empty fields that do not count, as in String.split.
+        byte[] tabs = "xx\t\t".getBytes(StandardCharsets.UTF_8);
+        assertEquals(1, tokenizer.tokenize(tabs, 0, tabs.length));
+        assertEquals(0, tokenizer.tokenize(tabs, 2, 2));
+        assertEquals(1, tokenizer.tokenize(tabs, 0, 0));
+        assertEquals(0, tokenizer.length(0));
+    }
+
+    @DisplayName("Should filter in parallel with the same lines as one thread, in order unless unordered")
+    @Test
+    @Order(5)
+    public void testParallelRegexFilterLines() throws IOException {
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 300000; i++) {
+            sb.append(i).append('\t').append(Integer.toHexString(i * 31)).append('\n');
+        }
+        byte[] input = sb.toString().getBytes(StandardCharsets.UTF_8);
+
+        String single = run(out -> StdinOperation.regexFilterLines("a.*[0-9]", 1, 1, true,
+                new ByteArrayInputStream(input), out));
+        String ordered = run(out -> StdinOperation.regexFilterLines("a.*[0-9]", 1, 4, true,
+                new ByteArrayInputStream(input), out));
+        String unordered = run(out -> StdinOperation.regexFilterLines("a.*[0-9]", 1, 4, false,
+                new ByteArrayInputStream(input), out));
+        logger.info("parallel filter kept " + single.lines().count() + " lines");
+
+        assertEquals(single, ordered);
+        assertEquals(single.lines().sorted().collect(Collectors.toList()),
+                unordered.lines().sorted().collect(Collectors.toList()));
+    }
+
+    @DisplayName("Should keep lines containing any of many strings, as String.contains does")
+    @Test
+    @Order(6)
+    public void testPatternsFilterLines() throws IOException {
+
+        List<String> patterns = List.of("he", "she", "his", "hers", "musculus", "語\t", "", "cerevisiae\t\t");
+        AhoCorasick automaton = AhoCorasick.compile(patterns);
+        assertEquals(7, automaton.size());
+
+        byte[] ushers = "ushers".getBytes(StandardCharsets.UTF_8);
+        assertTrue(automaton.find(ushers, 0, ushers.length));
+        assertFalse(automaton.find(ushers, 3, 3));
+
+        java.util.function.Predicate<String> any = s -> patterns.stream().anyMatch(p -> !p.isEmpty() && s.contains(p));
+        assertEquals(expected(any), run(out -> StdinOperation.filterLines(automaton, -1, 1, true, in(), out)));
+        assertEquals(expected(l -> column(l, 2) != null && any.test(column(l, 2))),
+                run(out -> StdinOperation.filterLines(automaton, 2, 2, true, in(), out)));
+
+        // Random strings over a small alphabet produce many overlaps and failure transitions.
+        Random random = new Random(42);
+        List<String> words = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            words.add(randomString(random, 2 + random.nextInt(5)));
+        }
+        AhoCorasick many = AhoCorasick.compile(words);
+        for (int i = 0; i < 2000; i++) {
+            String s = randomString(random, random.nextInt(40));
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            assertEquals(words.stream().anyMatch(s::contains), many.find(b, 0, b.length), s);
+        }
+    }
+
+    @DisplayName("Should find the literals a regular expression requires and never reject a match")
+    @Test
+    @Order(7)
+    public void testRegexPrefilter() {
+
+        assertEquals(List.of("timeout", "ERROR"), literals("ERROR.*timeout"));
+        assertEquals(List.of("ab", "d"), literals("ab+c?d"));
+        assertEquals(List.of("a.b", "c"), literals("a\\.b\\d{2}c"));
+        assertEquals(List.of("baz"), literals("(foo|bar)baz[xyz]*"));
+        assertEquals(List.of("a+"), literals("\\Qa+b\\E*"));
+        assertEquals(List.of("テキス"), literals("^テキスト?"));
+        assertEquals(List.of(), literals("foo|bar"));
+        assertEquals(List.of(), literals("(?i)foo"));
+        assertEquals(List.of(), RegexPrefilter.of(Pattern.compile("foo", Pattern.CASE_INSENSITIVE)).literals());
+
+        // Random expressions over a small alphabet against random strings.
+        Random random = new Random(7);
+        String[] atoms = { "a", "b", "c", "ab", ".", "[ab]", "(a|c)", "\\.", "\\d", "x" };
+        String[] quantifiers = { "", "", "", "*", "+", "?", "{2}", "{0,2}", "+?" };
+        for (int i = 0; i < 500; i++) {
+            StringBuilder re = new StringBuilder();
+            for (int j = random.nextInt(6); j >= 0; j--) {
+                re.append(atoms[random.nextInt(atoms.length)]).append(quantifiers[random.nextInt(quantifiers.length)]);
+            }
+            Pattern pattern = Pattern.compile(re.toString());
+            RegexPrefilter prefilter = RegexPrefilter.of(pattern);
+            for (int j = 0; j < 50; j++) {
+                String s = randomString(random, random.nextInt(12)).replace('d', '.');
+                byte[] b = s.getBytes(StandardCharsets.UTF_8);
+                if (pattern.matcher(s).find()) {
+                    assertTrue(prefilter.mayMatch(b, 0, b.length), re + " on " + s);
+                }
+            }
+        }
+    }
+
+    @DisplayName("Should match like Pattern.find with the DFA engine, in linear time")
+    @Test
+    @Order(8)
+    public void testByteRegex() throws IOException {
+
+        assertEquals(expected(l -> Pattern.compile("s[a-z]+s|^$|語\\t").matcher(l).find()),
+                run(out -> StdinOperation.regexFilterLines("s[a-z]+s|^$|語\\t", -1, 2, true,
+                        ByteRegex.Engine.DFA, in(), out)));
+        assertEquals(expected(l -> column(l, 1) != null && column(l, 1).matches("テ.*")),
+                run(out -> StdinOperation.regexFilterLines("^テ", 1, 1, true, ByteRegex.Engine.DFA, in(), out)));
+
+        // Random expressions against random strings, with a cache small enough to be cleared.
+        Random random = new Random(11);
+        String[] atoms = { "a", "b", "é", "日", ".", "[ab]", "[^a]", "(a|bc)", "(?:é|b)", "\\d", "\\W", "^", "$",
+            "[a-é]", "\\x{65E5}" };
+        String[] quantifiers = { "", "", "", "*", "+", "?", "{2}", "{0,2}", "{1,}", "*?" };
+        String alphabet = "ab1é日 ";
+        for (int i = 0; i < 500; i++) {
+            StringBuilder re = new StringBuilder();
+            for (int j = random.nextInt(5); j >= 0; j--) {
+                String atom = atoms[random.nextInt(atoms.length)];
+                re.append(atom);
+                if (!atom.equals("^") && !atom.equals("$")) {
+                    re.append(quantifiers[random.nextInt(quantifiers.length)]);
+                }
+                if (random.nextInt(8) == 0) {
+                    re.append('|');
+                }
+            }
+            Pattern pattern = Pattern.compile(re.toString());
+            ByteRegex.Matcher matcher = ByteRegex.compile(re.toString()).matcher(random.nextBoolean() ? 4 : 1000);
+            for (int j = 0; j < 40; j++) {
+                StringBuilder sb = new StringBuilder();
+                for (int k = random.nextInt(15); k > 0; k--) {
+                    sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+                }
+                byte[] b = sb.toString().getBytes(StandardCharsets.UTF_8);
+                assertEquals(pattern.matcher(sb).find(), matcher.find(b, 0, b.length), re + " on " + sb);
+            }
+        }
+
+        // Nested quantifiers that make a backtracking engine take exponential time.
+        byte[] line = ("a".repeat(100000) + "c").getBytes(StandardCharsets.UTF_8);
+        assertFalse(ByteRegex.compile("(a+)+b").matcher().find(line, 0, line.length));
+        assertTrue(ByteRegex.compile("(a|aa)+c$").matcher().find(line, 0, line.length));
+
+        assertThrows(PatternSyntaxException.class, () -> ByteRegex.compile("(a)\\1"));
+        assertThrows(PatternSyntaxException.class, () -> ByteRegex.compile("a(?=b)"));
+        assertThrows(PatternSyntaxException.class, () -> ByteRegex.compile("a*+"));
+    }
+
+    @DisplayName("Should run stages in one pass with the output of the chained commands")
+    @Test
+    @Order(9)
+    public void testLinePipeline() throws IOException {
+
+        byte[] dump = String.join("\n",
+                "2|Bacteria|bacteria|",
+                "9606|Homo sapiens||human||",
+                "562|Bacteria|Escherichia\tcoli|E. coli",
+                "||",
+                "",
+                "|Bacteroides|x|y|z",
+                "1|日本語|Bac|").getBytes(StandardCharsets.UTF_8);
+
+        byte[] split = run(out -> StdinOperation.splitLines("\\|", new ByteArrayInputStream(dump), out))
+                .getBytes(StandardCharsets.UTF_8);
+        byte[] filtered = run(out -> StdinOperation.regexFilterLines("^Bac", 1, new ByteArrayInputStream(split), out))
+                .getBytes(StandardCharsets.UTF_8);
+        String chained = run(out -> StdinOperation.getColumns("0,1", new ByteArrayInputStream(filtered), out));
+        LinePipeline pipeline = new LinePipeline().split("\\|").regexFilter("^Bac", 1, ByteRegex.Engine.JAVA).columns("0,1");
+        assertEquals(chained, run(out -> pipeline.run(new ByteArrayInputStream(dump), out)));
+
+        // A split that stops after the columns used, and one whose empty fields must be kept.
+        for (String columns : new String[] { "1", "0,2", "2,5", "3-4", "4" }) {
+            String expected = run(out -> StdinOperation.getColumns(columns, new ByteArrayInputStream(split), out));
+            assertEquals(expected, run(out -> new LinePipeline().split("\\|").columns(columns)
+                    .run(new ByteArrayInputStream(dump), out)), columns);
+        }
+        assertEquals(new String(split, StandardCharsets.UTF_8),
+                run(out -> new LinePipeline().split("\\|").run(new ByteArrayInputStream(dump), out)));
+
+        AhoCorasick patterns = AhoCorasick.compile(List.of("coli", "human"));
+        String expected = run(out -> StdinOperation.filterLines(patterns, -1, 1, true, new ByteArrayInputStream(split), out));
+        assertEquals(expected, run(out -> new LinePipeline().split("\\|").filter(patterns, -1)
+                .run(new ByteArrayInputStream(dump), out)));
+    }
+
+    @DisplayName("Should split at literal and regex delimiters like String.split, and convert CSV to TSV")
+    @Test
+    @Order(10)
+    public void testSplitAndCsv() throws IOException {
+
+        List<String> lines = List.of("1\t|\tall\t|\t\t|\tsynonym\t|", "\t|\t", "", "a||b|", "|x", "日本|語|",
+                "no delimiter", "a.b.c", "x\t|\ty\t|");
+        byte[] input = String.join("\n", lines).getBytes(StandardCharsets.UTF_8);
+        for (String delimiter : new String[] { "\\t\\|\\t", "\\|", "\\Q|\\E", "\\.", "\\|+", "[|.]", "(?=b)", "" }) {
+            String expected = lines.stream().map(l -> String.join("\t", l.split(delimiter)))
+                    .collect(Collectors.joining(System.lineSeparator(), "", System.lineSeparator()));
+            assertEquals(expected, run(out -> StdinOperation.splitLines(delimiter, new ByteArrayInputStream(input), out)),
+                    delimiter);
+            assertEquals(expected, run(out -> new LinePipeline().split(delimiter)
+                    .run(new ByteArrayInputStream(input), out)), delimiter);
+        }
+
+        String csv = "\uFEFFid,name,note\r\n"
+                + "1,\"Smith, John\",\"said \"\"hi\"\"\"\r\n"
+                + "2,\"two\nlines\",tab\there\\x\n"
+                + "3,,\"\"\n"
+                + "\n"
+                + "4,a\"b,\"q\"x";
+        String tsv = String.join(System.lineSeparator(),
+                "id\tname\tnote",
+                "1\tSmith, John\tsaid \"hi\"",
+                "2\ttwo\\nlines\ttab\\there\\\\x",
+                "3\t\t",
+                "",
+                "4\ta\"b\tqx") + System.lineSeparator();
+        byte[] csvBytes = csv.getBytes(StandardCharsets.UTF_8);
+        assertEquals(tsv, run(out -> StdinOperation.splitCsv(",", new ByteArrayInputStream(csvBytes), out)));
+        assertEquals("Smith, John" + System.lineSeparator(), run(out -> new LinePipeline().csv(",")
+                .regexFilter("^1$", 0, ByteRegex.Engine.JAVA).columns("1").run(new ByteArrayInputStream(csvBytes), out)));
+        assertEquals("a\tb;c" + System.lineSeparator(), run(out -> StdinOperation.splitCsv(";",
+                new ByteArrayInputStream("a;\"b;c\"".getBytes(StandardCharsets.UTF_8)), out)));
+
+        assertThrows(IOException.class, () -> run(out -> StdinOperation.splitCsv(",",
+                new ByteArrayInputStream("a,\"b\nc".getBytes(StandardCharsets.UTF_8)), out)));
+        assertThrows(IllegalArgumentException.class, () -> StdinOperation.splitCsv("\\t\\|",
+                new ByteArrayInputStream(new byte[0]), new ByteArrayOutputStream()));
+        assertThrows(IllegalArgumentException.class, () -> new LinePipeline().split(",").csv(","));
+    }
+
+    @DisplayName("Should process files in parallel chunks with the output of standard input, in order")
+    @Test
+    @Order(11)
+    public void testFiles() throws IOException {
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 200000; i++) {
+            sb.append(i).append("\t|\t").append(Integer.toHexString(i * 31)).append("\t|\t")
+                    .append(i % 7 == 0 ? "" : "x" + i).append(i % 5 == 0 ? "\r\n" : "\n");
+        }
+        sb.append("last\t|\tline");
+        byte[] data = sb.toString().getBytes(StandardCharsets.UTF_8);
+        Path file = Files.write(tmpDir.resolve("names.dmp"), data);
+        Path gz = tmpDir.resolve("names.dmp.gz");
+        try (GZIPOutputStream out = new GZIPOutputStream(Files.newOutputStream(gz))) {
+            out.write(data);
+        }
+        byte[] twice = new byte[data.length * 2 + 1];
+        System.arraycopy(data, 0, twice, 0, data.length);
+        twice[data.length] = '\n';
+        System.arraycopy(data, 0, twice, data.length + 1, data.length);
+        List<Path> files = List.of(file, gz);
+
+        String split = run(out -> StdinOperation.splitLines("\\t\\|\\t", new ByteArrayInputStream(twice), out));
+        assertEquals(split, run(out -> StdinOperation.splitLines("\\t\\|\\t", 4, files, out)));
+        String columns = run(out -> StdinOperation.getColumns("4,0", new ByteArrayInputStream(twice), out));
+        assertEquals(columns, run(out -> StdinOperation.getColumns("4,0", 3, files, out)));
+        String regex = run(out -> StdinOperation.regexFilterLines("a.*[0-9]\t", -1, 1, true,
+                new ByteArrayInputStream(twice), out));
+        assertEquals(regex, run(out -> StdinOperation.regexFilterLines("a.*[0-9]\t", -1, 4, ByteRegex.Engine.DFA,
+                files, out)));
+        AhoCorasick patterns = AhoCorasick.compile(List.of("ff", "x12"));
+        String any = run(out -> StdinOperation.filterLines(patterns, 2, 1, true, new ByteArrayInputStream(twice), out));
+        assertEquals(any, run(out -> StdinOperation.filterLines(patterns, 2, 2, List.of(file, file), out)));
+        logger.info("file filter kept " + any.lines().count() + " lines");
+
+        // Chunks far smaller than the lines still end after a newline.
+        for (int chunk : new int[] { 1, 100, 65536 }) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            LineWriter writer = new LineWriter(bytes);
+            new ParallelFileProcessor(3, chunk).process(file, () -> (buf, off, len, out) -> out.writeLine(buf, off, len),
+                    writer);
+            writer.flush();
+            assertEquals(sb.toString().lines().map(l -> l + System.lineSeparator()).collect(Collectors.joining()),
+                    bytes.toString(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static List<String> literals(String regex) {
+        return RegexPrefilter.of(Pattern.compile(regex)).literals();
+    }
+
+    private static String randomString(Random random, int length) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            sb.append("abcd".charAt(random.nextInt(4)));
+        }
+        return sb.toString();
+    }
+
+    @FunctionalInterface
+    private interface Operation {
+        void run(ByteArrayOutputStream out) throws IOException;
+    }
+
+    private static ByteArrayInputStream in() {
+        return new ByteArrayInputStream(String.join("\n", LINES).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String run(Operation operation) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        operation.run(out);
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    private static String expected(java.util.function.Predicate<String> filter) {
+        return LINES.stream().filter(filter).map(l -> l + System.lineSeparator()).collect(Collectors.joining());
+    }
+
+    private static String column(String line, int column) {
+        String[] columns = line.split("\t");
+        return columns.length > column ? columns[column] : null;
+    }
+}